@@ -86,6 +86,27 @@ public interface Context {
    */
   DataServiceDelegate getDataServiceDelegate();
 
+  /**
+   * Getter for the {@link QueryPlanCache} shared by all queries in this context.
+   *
+   * @return the context {@link QueryPlanCache}, or null if generated transformations should not be cached.
+   */
+  QueryPlanCache getQueryPlanCache();
+
+  /**
+   * Getter for the {@link ServiceTransTemplateCache} shared by all queries in this context.
+   *
+   * @return the context {@link ServiceTransTemplateCache}, or null if service transformations should not be cached.
+   */
+  ServiceTransTemplateCache getServiceTransTemplateCache();
+
+  /**
+   * Getter for the {@link ServiceTransPool} of prepared service transformations shared by all queries in this context.
+   *
+   * @return the context {@link ServiceTransPool}, or null if service transformations should not be pooled.
+   */
+  ServiceTransPool getServiceTransPool();
+
   /**
    * Add {@link DataServiceExecutor} to the executors cache.
    * @param executor the {@link DataServiceExecutor} to cache.
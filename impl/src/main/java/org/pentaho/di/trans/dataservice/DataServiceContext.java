@@ -38,6 +38,7 @@ import org.pentaho.di.trans.dataservice.streaming.execution.StreamingServiceTran
 import org.pentaho.di.trans.dataservice.ui.DataServiceDelegate;
 import org.pentaho.di.trans.dataservice.ui.UIFactory;
 import org.pentaho.di.trans.dataservice.utils.DataServiceConstants;
+import org.pentaho.di.trans.dataservice.utils.KettleUtils;
 
 import java.util.List;
 import java.util.concurrent.ConcurrentMap;
@@ -85,6 +86,15 @@ public class DataServiceContext implements Context {
     .softValues()
     .<StreamServiceKey, StreamingServiceTransExecutor>build();
 
+  private final QueryPlanCache queryPlanCache = new QueryPlanCache( KettleUtils.getInstance().getKettleProperty(
+    DataServiceConstants.PLAN_CACHE_SIZE_PROPERTY, DataServiceConstants.PLAN_CACHE_SIZE_DEFAULT ) );
+
+  private final ServiceTransTemplateCache serviceTransTemplateCache = new ServiceTransTemplateCache(
+    KettleUtils.getInstance().getKettleProperty( DataServiceConstants.TEMPLATE_CACHE_SIZE_PROPERTY,
+      DataServiceConstants.TEMPLATE_CACHE_SIZE_DEFAULT ) );
+
+  private final ServiceTransPool serviceTransPool = new ServiceTransPool( serviceTransTemplateCache );
+
   public DataServiceContext( List<PushDownFactory> pushDownFactories,
                              List<AutoOptimizationService> autoOptimizationServices,
                              PentahoCacheManager cacheManager, UIFactory uiFactory, LogChannelInterface logChannel ) {
@@ -144,6 +154,28 @@ public class DataServiceContext implements Context {
     return DataServiceDelegate.withDefaultSpoonInstance( this );
   }
 
+  @Override
+  public QueryPlanCache getQueryPlanCache() {
+    return queryPlanCache;
+  }
+
+  @Override
+  public ServiceTransTemplateCache getServiceTransTemplateCache() {
+    return serviceTransTemplateCache;
+  }
+
+  @Override
+  public ServiceTransPool getServiceTransPool() {
+    return serviceTransPool;
+  }
+
+  /**
+   * Called when the context is destroyed, releases the pooled service transformations and their thread.
+   */
+  public void destroy() {
+    serviceTransPool.shutdown();
+  }
+
   @Override
   public void addExecutor( DataServiceExecutor executor ) {
     executors.putIfAbsent( executor.getId(), executor );
@@ -53,13 +53,17 @@ import org.pentaho.di.trans.TransAdapter;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.dataservice.client.api.IDataServiceClientService;
 import org.pentaho.di.trans.dataservice.clients.TransMutators;
+import org.pentaho.di.trans.dataservice.execution.BatchingRowSet;
 import org.pentaho.di.trans.dataservice.execution.CopyParameters;
 import org.pentaho.di.trans.dataservice.execution.DefaultTransWiring;
+import org.pentaho.di.trans.dataservice.execution.InlineEvaluation;
 import org.pentaho.di.trans.dataservice.execution.PrepareExecution;
 import org.pentaho.di.trans.dataservice.execution.TransStarter;
 import org.pentaho.di.trans.dataservice.optimization.OptimizationImpactInfo;
 import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
 import org.pentaho.di.trans.dataservice.optimization.ValueMetaResolver;
+import org.pentaho.di.trans.dataservice.optimization.cache.ServiceCache;
+import org.pentaho.di.trans.dataservice.optimization.pushdown.ParameterPushdown;
 import org.pentaho.di.trans.dataservice.streaming.StreamServiceKey;
 import org.pentaho.di.trans.dataservice.streaming.WindowParametersHelper;
 import org.pentaho.di.trans.dataservice.streaming.execution.StreamingGeneratedTransExecution;
@@ -103,9 +107,15 @@ public class DataServiceExecutor {
   private long windowEvery;
   private long windowLimit;
   private StreamServiceKey streamServiceKey;
+  private final boolean inline;
+  private final ServiceCache.Result cachedResult;
+  // Cached results have no service transformation to take an id from
+  private final String cachedResultId;
 
   private final AtomicBoolean genTransformationPushBasedIsFinished = new AtomicBoolean( false );
   private final AtomicBoolean transListenerFinishTransAdded = new AtomicBoolean( false );
+  private final AtomicBoolean stopRequested = new AtomicBoolean( false );
+  private final AtomicBoolean limitReached = new AtomicBoolean( false );
 
   private DataServiceExecutor( Builder builder ) {
     sql = builder.sql;
@@ -120,6 +130,9 @@ public class DataServiceExecutor {
     windowEvery = builder.windowEvery;
     windowLimit = builder.windowLimit;
     streamServiceKey = builder.streamServiceKey;
+    inline = builder.inline;
+    cachedResult = builder.cachedResult;
+    cachedResultId = cachedResult != null ? UUID.randomUUID().toString() : null;
 
     listenerMap = MultimapBuilder.enumKeys( ExecutionPoint.class ).linkedListValues().build();
   }
@@ -146,6 +159,11 @@ public class DataServiceExecutor {
     private IMetaStore metastore;
     private BiConsumer<String, TransMeta> transMutator =
       ( stepName, transMeta ) -> TransMutators.disableAllUnrelatedHops( stepName, transMeta, true );
+    private boolean defaultTransMutator = true;
+    private boolean inlineEvaluation = false;
+    private boolean inline = false;
+    private boolean cachedResults = true;
+    private ServiceCache.Result cachedResult;
 
     private KettleUtils kettleUtils = KettleUtils.getInstance();
 
@@ -207,12 +225,27 @@ public class DataServiceExecutor {
 
     Builder serviceTransMutator( BiConsumer<String, TransMeta> transMutator ) {
       this.transMutator = transMutator;
+      this.defaultTransMutator = false;
       return this;
     }
 
     public Builder serviceTrans( TransMeta serviceTransMeta ) {
-      // Copy TransMeta, we don't want to persist any changes to the meta during execution
-      serviceTransMeta = (TransMeta) serviceTransMeta.realClone( false );
+      // Copy from the prepared template when the service transformation version is known
+      ServiceTransTemplateCache templateCache = context != null ? context.getServiceTransTemplateCache() : null;
+      if ( templateCache != null && defaultTransMutator && serviceTransMeta == service.getServiceTrans() ) {
+        TransMeta prepared = templateCache.copy( service );
+        if ( prepared != null ) {
+          // Parameters were activated once, when the template was built
+          prepared.setName( calculateTransname( sql, true ) );
+          return serviceTrans( new Trans( prepared ) );
+        }
+      }
+
+      // Copy TransMeta, we don't want to persist any changes to the meta during execution. Resolved service
+      // transformations may be shared between concurrent queries
+      synchronized ( serviceTransMeta ) {
+        serviceTransMeta = (TransMeta) serviceTransMeta.realClone( false );
+      }
       serviceTransMeta.clearNameChangedListeners();
       serviceTransMeta.setName( calculateTransname( sql, true ) );
       serviceTransMeta.activateParameters();
@@ -240,6 +273,24 @@ public class DataServiceExecutor {
       return this;
     }
 
+    /**
+     * Evaluate simple queries (projection, WHERE and LIMIT only) directly on the rows of the service step, without
+     * running the generated transformation. Other queries are unaffected.
+     */
+    public Builder inlineEvaluation( boolean enable ) {
+      inlineEvaluation = enable;
+      return this;
+    }
+
+    /**
+     * Answer queries from the cached results of identical queries, if the service cache keeps them. Cached results
+     * run no transformation, so callers that need the transformations themselves turn this off.
+     */
+    public Builder cachedResults( boolean enable ) {
+      cachedResults = enable;
+      return this;
+    }
+
     public DataServiceExecutor build() throws KettleException {
       RowMetaInterface serviceFields;
       int serviceRowLimit = getServiceRowLimit( service );
@@ -258,7 +309,10 @@ public class DataServiceExecutor {
 
       // Sets the service transformation fields
       if ( service.getServiceTrans() != null ) {
-        serviceFields = service.getServiceTrans().getStepFields( service.getStepname() );
+        // Resolved service transformations may be shared between concurrent queries
+        synchronized ( service.getServiceTrans() ) {
+          serviceFields = service.getServiceTrans().getStepFields( service.getStepname() );
+        }
       } else {
         throw new KettleException(
             BaseMessages.getString( PKG, "DataServiceExecutor.Error.NoServiceTransformation",
@@ -314,30 +368,63 @@ public class DataServiceExecutor {
             serviceTrans( serviceTransExecutor.getServiceTrans() );
           }
         }
-      } else if ( serviceTrans == null && service.getServiceTrans() != null ) {
-        serviceTrans( service.getServiceTrans() );
       }
 
+      // Parameter conditions are stripped before generating, so they never end up in a cached plan
+      this.parameters.putAll( getWhereConditionParameters() );
+
+      boolean cachePlan = sqlTransGenerator == null;
       if ( sqlTransGenerator == null ) {
         sqlTransGenerator = new SqlTransGenerator( sql, service.isStreaming() ? 0 : rowLimit,
             service.isStreaming() ? 0
                 : ( serviceRowLimit > 0 ? serviceRowLimit
                 : ( !service.isUserDefined() ? DataServiceConstants.ROW_LIMIT_DEFAULT : 0 ) ) );
+        if ( !service.isStreaming() ) {
+          sqlTransGenerator.setParallelism( getParallelism() );
+          sqlTransGenerator.setQueryMemoryLimit( getQueryMemoryLimit() );
+        }
+        sqlTransGenerator.setRewritePlan( isPlanRewrite() );
+      }
+
+      // Identical queries answered earlier are replayed from the result cache, no transformation is built
+      cachedResult = cachedResults && cachePlan && genTrans == null ? getCachedResult() : null;
+      if ( cachedResult != null ) {
+        // Nothing runs, so there is nothing to stop or look up by id either
+        return new DataServiceExecutor( this );
       }
+
+      boolean pooled = false;
+      if ( !service.isStreaming() && serviceTrans == null && service.getServiceTrans() != null ) {
+        Trans prepared = borrowServiceTrans();
+        if ( prepared != null ) {
+          pooled = true;
+          serviceTrans( prepared );
+        } else {
+          serviceTrans( service.getServiceTrans() );
+        }
+      }
+
+      // The generated transformation still describes the result, but is never run for inline queries
+      inline = inlineEvaluation && genTrans == null && cachePlan && isInlineSupported();
+
       if ( genTrans == null ) {
-        genTrans = new Trans( sqlTransGenerator.generateTransMeta() );
+        QueryPlanCache planCache = cachePlan ? context.getQueryPlanCache() : null;
+        genTrans = new Trans( planCache != null
+          ? planCache.generateTransMeta( service.getName(), sqlTransGenerator, normalizeConditions )
+          : sqlTransGenerator.generateTransMeta() );
       }
 
-      serviceTrans.setContainerObjectId( UUID.randomUUID().toString() );
-      serviceTrans.setMetaStore( metastore );
-      serviceTrans.setGatheringMetrics( enableMetrics );
+      // Pooled transformations were already set up when they were prepared
+      if ( !pooled ) {
+        serviceTrans.setContainerObjectId( UUID.randomUUID().toString() );
+        serviceTrans.setMetaStore( metastore );
+        serviceTrans.setGatheringMetrics( enableMetrics );
+      }
 
       genTrans.setContainerObjectId( UUID.randomUUID().toString() );
       genTrans.setMetaStore( metastore );
       genTrans.setGatheringMetrics( enableMetrics );
 
-      this.parameters.putAll( getWhereConditionParameters() );
-
       DataServiceExecutor dataServiceExecutor = new DataServiceExecutor( this );
 
       context.addExecutor( dataServiceExecutor );
@@ -353,6 +440,54 @@ public class DataServiceExecutor {
       return dataServiceExecutor;
     }
 
+    /**
+     * Take an already prepared service transformation from the context pool, if this query can use one.
+     * Pooled transformations are prepared without parameters, so queries that set any are not eligible.
+     */
+    private Trans borrowServiceTrans() {
+      ServiceTransPool pool = context.getServiceTransPool();
+      if ( pool == null || !defaultTransMutator || !parameters.isEmpty() || logLevel != null || enableMetrics ) {
+        return null;
+      }
+      for ( PushDownOptimizationMeta optimizationMeta : service.getPushDownOptimizationMeta() ) {
+        if ( optimizationMeta.isEnabled() && optimizationMeta.getType() instanceof ParameterPushdown ) {
+          return null;
+        }
+      }
+      Trans prepared = pool.borrow( service, metastore );
+      if ( prepared != null ) {
+        prepared.getTransMeta().setName( calculateTransname( sql, true ) );
+      }
+      return prepared;
+    }
+
+    private boolean isInlineSupported() {
+      if ( service.isStreaming() || !InlineEvaluation.isSupported( sql ) ) {
+        return false;
+      }
+      // Cached results are replayed into the generated transformation
+      for ( PushDownOptimizationMeta optimizationMeta : service.getPushDownOptimizationMeta() ) {
+        if ( optimizationMeta.isEnabled() && optimizationMeta.getType() instanceof ServiceCache ) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private ServiceCache.Result getCachedResult() {
+      if ( service.isStreaming() ) {
+        return null;
+      }
+      for ( PushDownOptimizationMeta optimizationMeta : service.getPushDownOptimizationMeta() ) {
+        if ( optimizationMeta.isEnabled() && optimizationMeta.getType() instanceof ServiceCache ) {
+          return ( (ServiceCache) optimizationMeta.getType() ).getCachedResult( service, sql, parameters,
+            sqlTransGenerator.getRowLimit(), sqlTransGenerator.getServiceRowLimit(),
+            service.getServiceTrans().getLogChannel() );
+        }
+      }
+      return null;
+    }
+
     private StreamServiceKey getStreamingServiceKey() {
       // Apply Push Down Optimizations
       List<OptimizationImpactInfo> optimizationImpactList = new ArrayList<>();
@@ -461,6 +596,36 @@ public class DataServiceExecutor {
       return result;
     }
 
+    /**
+     * @return copies to split aggregating queries over, never more than the available processors
+     */
+    @VisibleForTesting
+    protected int getParallelism() {
+      int processors = Runtime.getRuntime().availableProcessors();
+      long parallelism = kettleUtils.getKettleProperty( DataServiceConstants.PARALLELISM_PROPERTY,
+        DataServiceConstants.PARALLELISM_DEFAULT );
+      return parallelism <= 0 ? processors : (int) Math.min( parallelism, processors );
+    }
+
+    /**
+     * @return bytes a query may hold in memory to group, deduplicate and sort before spilling to disk, 0 for no limit
+     */
+    @VisibleForTesting
+    protected long getQueryMemoryLimit() {
+      long megabytes = kettleUtils.getKettleProperty( DataServiceConstants.QUERY_MEMORY_PROPERTY,
+        DataServiceConstants.QUERY_MEMORY_DEFAULT );
+      return Math.max( megabytes, 0 ) * 1024 * 1024;
+    }
+
+    /**
+     * @return whether generated transformations are rewritten into fewer steps
+     */
+    @VisibleForTesting
+    protected boolean isPlanRewrite() {
+      return kettleUtils.getKettleProperty( DataServiceConstants.PLAN_REWRITE_PROPERTY,
+        DataServiceConstants.PLAN_REWRITE_DEFAULT ) != 0;
+    }
+
     @VisibleForTesting
     protected long getKettleTimeLimit() throws KettleException {
       String limit = kettleUtils.getKettleProperty( DataServiceConstants.TIME_LIMIT_PROPERTY );
@@ -596,6 +761,22 @@ public class DataServiceExecutor {
     // Setup executor with streaming execution plan
     ImmutableMultimap.Builder<ExecutionPoint, Runnable> builder = ImmutableMultimap.builder();
 
+    if ( cachedResult != null ) {
+      // Cached rows are given to the consumer, see executeDefaultQuery
+      return;
+    }
+
+    if ( inline ) {
+      // Rows are evaluated as the service step writes them, see executeDefaultQuery
+      builder.putAll( ExecutionPoint.PREPARE,
+          new CopyParameters( parameters, serviceTrans ),
+          new PrepareExecution( serviceTrans ) );
+      builder.put( ExecutionPoint.START, new TransStarter( serviceTrans ) );
+
+      listenerMap.putAll( builder.build() );
+      return;
+    }
+
     builder.putAll( ExecutionPoint.PREPARE,
         new CopyParameters( parameters, serviceTrans ),
         new PrepareExecution( serviceTrans ),
@@ -620,6 +801,9 @@ public class DataServiceExecutor {
   }
 
   public DataServiceExecutor executeQuery( final DataOutputStream dos ) throws IOException {
+    if ( cachedResult != null ) {
+      return writeCachedResult( dos );
+    }
     writeMetadata( dos, getServiceName(), calculateTransname( getSql(), true ),
         getServiceTrans().getContainerObjectId(), calculateTransname( getSql(), false ),
         getGenTrans().getContainerObjectId() );
@@ -673,6 +857,23 @@ public class DataServiceExecutor {
     return executeQuery( consumer );
   }
 
+  /**
+   * Writes cached result rows, with the row meta they were cached with. Both transformation ids are the query's id.
+   */
+  private DataServiceExecutor writeCachedResult( DataOutputStream dos ) throws IOException {
+    writeMetadata( dos, getServiceName(), calculateTransname( getSql(), true ), getId(),
+        calculateTransname( getSql(), false ), getId() );
+    try {
+      cachedResult.getRowMeta().writeMeta( dos );
+      for ( RowMetaAndData row : cachedResult.getRows() ) {
+        row.getRowMeta().writeData( dos, row.getData() );
+      }
+    } catch ( KettleFileException e ) {
+      throw new IOException( e );
+    }
+    return this;
+  }
+
   /**
    * Stub method to call the writeMeta with the RowMetaInterface.
    * @param generatedTransformation
@@ -815,7 +1016,21 @@ public class DataServiceExecutor {
     return null;
   }
 
-  public DataServiceExecutor executeDefaultQuery( final Observer<RowMetaAndData> consumer ) {
+  public DataServiceExecutor executeDefaultQuery( Observer<RowMetaAndData> resultConsumer ) {
+    if ( cachedResult != null ) {
+      listenerMap.get( ExecutionPoint.READY ).add( () -> {
+        for ( RowMetaAndData row : cachedResult.getRows() ) {
+          resultConsumer.onNext( row );
+        }
+        resultConsumer.onComplete();
+      } );
+      return executeQuery();
+    }
+    final Observer<RowMetaAndData> consumer = recordResult( resultConsumer );
+    if ( inline ) {
+      listenerMap.get( ExecutionPoint.READY ).add( new InlineEvaluation( this, consumer ) );
+      return executeQuery();
+    }
     listenerMap.get( ExecutionPoint.READY ).add( new Runnable() {
       @Override
       public void run() {
@@ -848,10 +1063,22 @@ public class DataServiceExecutor {
     return executeQuery();
   }
 
+  /**
+   * @return an observer caching the rows given to the consumer as the query result, if a service cache is enabled
+   */
+  private Observer<RowMetaAndData> recordResult( Observer<RowMetaAndData> consumer ) {
+    for ( PushDownOptimizationMeta optimizationMeta : service.getPushDownOptimizationMeta() ) {
+      if ( optimizationMeta.isEnabled() && optimizationMeta.getType() instanceof ServiceCache ) {
+        return ( (ServiceCache) optimizationMeta.getType() ).recordResult( this, consumer );
+      }
+    }
+    return consumer;
+  }
+
   public DataServiceExecutor executeQuery() {
-    // Apply Push Down Optimizations
+    // Apply Push Down Optimizations, cached results do not run the service transformation
     for ( PushDownOptimizationMeta optimizationMeta : service.getPushDownOptimizationMeta() ) {
-      if ( optimizationMeta.isEnabled() ) {
+      if ( optimizationMeta.isEnabled() && cachedResult == null ) {
         optimizationMeta.activate( this );
       }
     }
@@ -879,13 +1106,18 @@ public class DataServiceExecutor {
   }
 
   public RowProducer addRowProducer() throws KettleException {
-    return genTrans.addRowProducer( sqlTransGenerator.getInjectorStepName(), 0 );
+    return BatchingRowSet.batching( genTrans.addRowProducer( sqlTransGenerator.getInjectorStepName(), 0 ) );
   }
 
   public void waitUntilFinished() {
+    if ( cachedResult != null ) {
+      return;
+    }
     if ( !service.isStreaming() ) {
       serviceTrans.waitUntilFinished();
-      genTrans.waitUntilFinished();
+      if ( !inline ) {
+        genTrans.waitUntilFinished();
+      }
     } else {
       try {
         // we need to actively wait for the genTrans to finish, because otherwise it will return on the
@@ -919,14 +1151,14 @@ public class DataServiceExecutor {
   }
 
   /**
-   * @return the serviceTrans
+   * @return the serviceTrans, null for {@link #isCachedResult() cached results} unless one was given
    */
   public Trans getServiceTrans() {
     return serviceTrans;
   }
 
   /**
-   * @return the genTrans
+   * @return the genTrans, null for {@link #isCachedResult() cached results}
    */
   public Trans getGenTrans() {
     return genTrans;
@@ -944,10 +1176,13 @@ public class DataServiceExecutor {
   }
 
   public String getId() {
-    return serviceTrans.getContainerObjectId();
+    return serviceTrans != null ? serviceTrans.getContainerObjectId() : cachedResultId;
   }
 
   public Boolean hasErrors() {
+    if ( cachedResult != null ) {
+      return false;
+    }
     return serviceTrans.getErrors() > 0 || genTrans.getErrors() > 0;
   }
 
@@ -978,8 +1213,13 @@ public class DataServiceExecutor {
   }
 
   public void stop( boolean stopTrans ) {
+    if ( cachedResult != null ) {
+      stopRequested.set( true );
+      return;
+    }
     synchronized ( getServiceTrans() ) {
       if ( stopTrans || !service.isStreaming() ) {
+        stopRequested.set( true );
         if ( serviceTrans.isRunning() ) {
           serviceTrans.stopAll();
         }
@@ -1001,8 +1241,39 @@ public class DataServiceExecutor {
     }
   }
 
+  /**
+   * @return true if the query was stopped before it completed, by request or by an error. Stopping the service
+   * transformation once a limit is reached does not count, the query still completes.
+   */
   public boolean isStopped() {
-    return genTrans.isStopped();
+    if ( cachedResult != null ) {
+      return stopRequested.get();
+    }
+    if ( !inline ) {
+      return genTrans.isStopped();
+    }
+    return stopRequested.get() || ( serviceTrans.isStopped() && !limitReached.get() );
+  }
+
+  /**
+   * Records that the service transformation is stopped early, because every row the query can return was read.
+   */
+  public void setLimitReached() {
+    limitReached.set( true );
+  }
+
+  /**
+   * @return true if rows are evaluated directly on the service step, and the generated transformation is not run
+   */
+  public boolean isInline() {
+    return inline;
+  }
+
+  /**
+   * @return true if the query is answered from cached results, and neither transformation is built
+   */
+  public boolean isCachedResult() {
+    return cachedResult != null;
   }
 
   /**
@@ -1027,6 +1298,18 @@ public class DataServiceExecutor {
     return sqlTransGenerator.getServiceRowLimit();
   }
 
+  public int getResultRowLimit() {
+    return sqlTransGenerator.getResultRowLimit();
+  }
+
+  public RowMetaInterface getInjectedFields() {
+    return sqlTransGenerator.getInjectedFields();
+  }
+
+  public boolean isReadOnlyInjection() {
+    return sqlTransGenerator.isReadOnlyInjection();
+  }
+
   public ListMultimap<ExecutionPoint, Runnable> getListenerMap() {
     return listenerMap;
   }
@@ -50,6 +50,9 @@ public class DataServiceMeta implements MetaStoreElement {
   public static final String IS_STREAMING = "streaming";
   public static final String ROW_LIMIT = "row_limit";
   public static final String TIME_LIMIT = "time_limit";
+  public static final String POOL_MIN_SIZE = "pool_min_size";
+  public static final String POOL_MAX_SIZE = "pool_max_size";
+  public static final String POOL_IDLE_TIMEOUT = "pool_idle_timeout";
 
   protected String name;
 
@@ -73,6 +76,18 @@ public class DataServiceMeta implements MetaStoreElement {
   @MetaStoreAttribute( key = IS_STREAMING )
   protected boolean streaming;
 
+  @MetaStoreAttribute( key = POOL_MIN_SIZE )
+  protected int poolMinSize;
+
+  @MetaStoreAttribute( key = POOL_MAX_SIZE )
+  protected int poolMaxSize;
+
+  @MetaStoreAttribute( key = POOL_IDLE_TIMEOUT )
+  protected long poolIdleTimeout;
+
+  // Not persisted, set while the service transformation is known to be unchanged
+  private Integer serviceTransVersion;
+
   /**
    * Constructor.
    *
@@ -133,6 +148,25 @@ public class DataServiceMeta implements MetaStoreElement {
    */
   public void setServiceTrans( TransMeta serviceTrans ) {
     this.serviceTrans = serviceTrans;
+    this.serviceTransVersion = null;
+  }
+
+  /**
+   * Getter for the known {@link TransMeta#getCacheVersion() version} of the service trans meta.
+   *
+   * @return The service trans meta version, or null if it has to be calculated.
+   */
+  public Integer getServiceTransVersion() {
+    return serviceTransVersion;
+  }
+
+  /**
+   * Setter for the known version of the service trans meta.
+   *
+   * @param serviceTransVersion The service trans meta version, or null if unknown.
+   */
+  public void setServiceTransVersion( Integer serviceTransVersion ) {
+    this.serviceTransVersion = serviceTransVersion;
   }
 
   /**
@@ -247,6 +281,60 @@ public class DataServiceMeta implements MetaStoreElement {
     this.timeLimit = timeLimit;
   }
 
+  /**
+   * Getter for the number of prepared service transformations kept ready while the service is in use.
+   *
+   * @return The minimum warm pool size.
+   */
+  public int getPoolMinSize() {
+    return poolMinSize;
+  }
+
+  /**
+   * Setter for the minimum warm pool size.
+   *
+   * @param poolMinSize The new minimum warm pool size.
+   */
+  public void setPoolMinSize( int poolMinSize ) {
+    this.poolMinSize = poolMinSize;
+  }
+
+  /**
+   * Getter for the maximum number of prepared service transformations kept ready. Zero disables the warm pool.
+   *
+   * @return The maximum warm pool size.
+   */
+  public int getPoolMaxSize() {
+    return poolMaxSize;
+  }
+
+  /**
+   * Setter for the maximum warm pool size.
+   *
+   * @param poolMaxSize The new maximum warm pool size, or zero to disable the pool.
+   */
+  public void setPoolMaxSize( int poolMaxSize ) {
+    this.poolMaxSize = poolMaxSize;
+  }
+
+  /**
+   * Getter for the time an idle prepared service transformation is kept (milliseconds).
+   *
+   * @return The warm pool idle timeout in milliseconds, or zero for the default.
+   */
+  public long getPoolIdleTimeout() {
+    return poolIdleTimeout;
+  }
+
+  /**
+   * Setter for the warm pool idle timeout.
+   *
+   * @param poolIdleTimeout The new warm pool idle timeout in milliseconds.
+   */
+  public void setPoolIdleTimeout( long poolIdleTimeout ) {
+    this.poolIdleTimeout = poolIdleTimeout;
+  }
+
   @Override public String toString() {
     return Objects.toStringHelper( this )
       .add( "name", name )
@@ -256,6 +344,9 @@ public class DataServiceMeta implements MetaStoreElement {
       .add( "streaming", streaming )
       .add( "rowLimit", rowLimit )
       .add( "timeLimit", timeLimit )
+      .add( "poolMinSize", poolMinSize )
+      .add( "poolMaxSize", poolMaxSize )
+      .add( "poolIdleTimeout", poolIdleTimeout )
       .add( "pushDownOptimizationMeta", pushDownOptimizationMeta )
       .toString();
   }
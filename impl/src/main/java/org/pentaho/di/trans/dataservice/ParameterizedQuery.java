@@ -0,0 +1,186 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.ImmutableList;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.row.ValueMetaAndData;
+import org.pentaho.di.core.sql.DateToStrFunction;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.core.sql.SQLCondition;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A parsed query with its WHERE and HAVING literals lifted out into typed bind slots.
+ * <p>
+ * Queries that only differ by the constants they compare against share the same {@link #getShape() shape}, so a
+ * transformation generated for one of them can be reused for all of them once the literal values are
+ * {@link #bind(Condition, Iterator) bound} back into the generated filter conditions.
+ */
+public class ParameterizedQuery {
+
+  private final String shape;
+  private final ImmutableList<ValueMetaAndData> whereValues;
+  private final ImmutableList<ValueMetaAndData> havingValues;
+
+  private ParameterizedQuery( String shape, List<ValueMetaAndData> whereValues,
+                              List<ValueMetaAndData> havingValues ) {
+    this.shape = shape;
+    this.whereValues = ImmutableList.copyOf( whereValues );
+    this.havingValues = ImmutableList.copyOf( havingValues );
+  }
+
+  public static ParameterizedQuery create( SQL sql ) {
+    StringBuilder shape = new StringBuilder( "SELECT " ).append( normalize( sql.getSelectClause() ) )
+      .append( " FROM " ).append( sql.getServiceName() );
+
+    ImmutableList.Builder<ValueMetaAndData> whereValues = ImmutableList.builder();
+    if ( hasCondition( sql.getWhereCondition() ) ) {
+      shape.append( " WHERE " );
+      appendShape( sql.getWhereCondition().getCondition(), shape, whereValues );
+      for ( DateToStrFunction function : sql.getWhereCondition().getDateToStrFunctions() ) {
+        shape.append( " DATE_TO_STR(" ).append( function.getFieldName() ).append( ',' )
+          .append( function.getDateMask() ).append( ")=" ).append( function.getResultName() );
+      }
+    }
+    if ( sql.getGroupClause() != null ) {
+      shape.append( " GROUP BY " ).append( normalize( sql.getGroupClause() ) );
+    }
+    ImmutableList.Builder<ValueMetaAndData> havingValues = ImmutableList.builder();
+    if ( hasCondition( sql.getHavingCondition() ) ) {
+      shape.append( " HAVING " );
+      appendShape( sql.getHavingCondition().getCondition(), shape, havingValues );
+    }
+    if ( sql.getOrderClause() != null ) {
+      shape.append( " ORDER BY " ).append( normalize( sql.getOrderClause() ) );
+    }
+    if ( sql.getLimitClause() != null ) {
+      shape.append( " LIMIT " ).append( normalize( sql.getLimitClause() ) );
+    }
+    return new ParameterizedQuery( shape.toString(), whereValues.build(), havingValues.build() );
+  }
+
+  private static boolean hasCondition( SQLCondition sqlCondition ) {
+    return sqlCondition != null && sqlCondition.getCondition() != null;
+  }
+
+  /**
+   * Describe a condition with each literal replaced by a slot of the literal's type
+   */
+  private static void appendShape( Condition condition, StringBuilder shape,
+                                   ImmutableList.Builder<ValueMetaAndData> values ) {
+    if ( condition.isNegated() ) {
+      shape.append( "NOT " );
+    }
+    if ( condition.isAtomic() ) {
+      shape.append( condition.getLeftValuename() ).append( ' ' ).append( condition.getFunctionDesc() );
+      ValueMetaAndData exact = condition.getRightExact();
+      if ( exact != null ) {
+        shape.append( " ?" ).append( exact.getValueMeta() != null ? exact.getValueMeta().getTypeDesc() : "" );
+        values.add( exact );
+      } else if ( condition.getRightValuename() != null ) {
+        shape.append( ' ' ).append( condition.getRightValuename() );
+      }
+    } else {
+      shape.append( '(' );
+      for ( Condition child : condition.getChildren() ) {
+        if ( child.getOperator() != Condition.OPERATOR_NONE ) {
+          shape.append( ' ' ).append( child.getOperatorDesc() ).append( ' ' );
+        }
+        appendShape( child, shape, values );
+      }
+      shape.append( ')' );
+    }
+  }
+
+  /**
+   * Bind literal values into a condition of the same shape, in the order they were lifted.
+   *
+   * @param condition Condition to update, typically a copy of the one the values were lifted from
+   * @param values    Remaining literal values
+   * @throws IllegalArgumentException if the condition does not have the shape of the values
+   */
+  public static void bind( Condition condition, Iterator<ValueMetaAndData> values ) {
+    if ( condition.isAtomic() ) {
+      if ( condition.getRightExact() != null ) {
+        if ( !values.hasNext() ) {
+          throw new IllegalArgumentException( "Not enough values to bind condition " + condition );
+        }
+        condition.setRightExact( (ValueMetaAndData) values.next().clone() );
+      }
+    } else {
+      for ( Condition child : condition.getChildren() ) {
+        bind( child, values );
+      }
+    }
+  }
+
+  /**
+   * Collapse runs of whitespace outside of quoted literals and identifiers
+   */
+  static String normalize( String text ) {
+    StringBuilder normalized = new StringBuilder( text.length() );
+    char quote = 0;
+    boolean pendingSpace = false;
+    for ( char c : text.toCharArray() ) {
+      if ( quote == 0 && CharMatcher.WHITESPACE.matches( c ) ) {
+        pendingSpace = normalized.length() > 0;
+        continue;
+      }
+      if ( pendingSpace ) {
+        normalized.append( ' ' );
+        pendingSpace = false;
+      }
+      if ( quote == 0 && ( c == '\'' || c == '"' ) ) {
+        quote = c;
+      } else if ( c == quote ) {
+        quote = 0;
+      }
+      normalized.append( c );
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * @return query text with WHERE and HAVING literals replaced by typed slots
+   */
+  public String getShape() {
+    return shape;
+  }
+
+  public List<ValueMetaAndData> getWhereValues() {
+    return whereValues;
+  }
+
+  public List<ValueMetaAndData> getHavingValues() {
+    return havingValues;
+  }
+
+  @Override public String toString() {
+    return shape;
+  }
+}
@@ -0,0 +1,397 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.util.Utils;
+import org.pentaho.di.trans.TransHopMeta;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.steps.queryfilter.QueryFilterMeta;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.di.trans.steps.calculator.CalculatorMeta;
+import org.pentaho.di.trans.steps.calculator.CalculatorMetaFunction;
+import org.pentaho.di.trans.steps.dummytrans.DummyTransMeta;
+import org.pentaho.di.trans.steps.filterrows.FilterRowsMeta;
+import org.pentaho.di.trans.steps.selectvalues.SelectMetadataChange;
+import org.pentaho.di.trans.steps.selectvalues.SelectValuesMeta;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rewrites a generated transformation into fewer steps. Every step is a thread and a rowset every row is handed over
+ * through, so steps that do nothing or could be done by their neighbour only add latency.
+ * <p>
+ * Only transformations that are a single chain of steps from the injector to the result step are rewritten. These
+ * rules are applied until none matches:
+ * <ul>
+ *   <li>Select values steps that change nothing are dropped, so are dummies. The result dummy is dropped when the step
+ *   before it can give the result rows instead.</li>
+ *   <li>A select values step only removing fields is dropped before a projection not selecting them, and consecutive
+ *   projections are merged.</li>
+ *   <li>Fields formatted by DateToStr for the WHERE filter and removed after it are formatted by the filter
+ *   itself.</li>
+ *   <li>A filter followed by a projection becomes a single {@link QueryFilterMeta query filter}, named after the
+ *   filter.</li>
+ * </ul>
+ */
+class PlanRewriter {
+
+  private final TransMeta transMeta;
+  private final List<StepMeta> chain;
+
+  private PlanRewriter( TransMeta transMeta, List<StepMeta> chain ) {
+    this.transMeta = transMeta;
+    this.chain = chain;
+  }
+
+  /**
+   * @return the name of the step giving the result rows after the rewrite
+   */
+  static String rewrite( TransMeta transMeta, String injectorStepName, String resultStepName )
+    throws KettleException {
+    List<StepMeta> chain = chain( transMeta, injectorStepName, resultStepName );
+    if ( chain == null ) {
+      return resultStepName;
+    }
+    PlanRewriter rewriter = new PlanRewriter( transMeta, chain );
+    rewriter.rewrite();
+    return chain.get( chain.size() - 1 ).getName();
+  }
+
+  /**
+   * @return the steps from the injector to the result step, or null if the transformation branches
+   */
+  private static List<StepMeta> chain( TransMeta transMeta, String injectorStepName, String resultStepName ) {
+    StepMeta step = transMeta.findStep( injectorStepName );
+    List<StepMeta> chain = Lists.newArrayList();
+    while ( step != null ) {
+      chain.add( step );
+      if ( step.getName().equals( resultStepName ) ) {
+        return chain.size() == transMeta.nrSteps() ? chain : null;
+      }
+      List<StepMeta> next = transMeta.findNextSteps( step );
+      if ( next.size() != 1 || transMeta.findPreviousSteps( next.get( 0 ) ).size() != 1 ) {
+        return null;
+      }
+      step = next.get( 0 );
+    }
+    return null;
+  }
+
+  private void rewrite() throws KettleException {
+    boolean rewritten;
+    do {
+      rewritten = false;
+      // The injector is never rewritten
+      for ( int i = 1; i < chain.size() && !rewritten; i++ ) {
+        rewritten = rewriteAt( i );
+      }
+    } while ( rewritten );
+  }
+
+  private boolean rewriteAt( int i ) throws KettleException {
+    StepMeta step = chain.get( i );
+    StepMetaInterface meta = step.getStepMetaInterface();
+    StepMeta next = i + 1 < chain.size() ? chain.get( i + 1 ) : null;
+    StepMetaInterface nextMeta = next != null && next.getCopies() == step.getCopies()
+      ? next.getStepMetaInterface() : null;
+
+    if ( meta instanceof DummyTransMeta ) {
+      // The step before the result dummy has to give the result rows in a single copy
+      if ( next != null || ( i > 1 && chain.get( i - 1 ).getCopies() == 1 ) ) {
+        replace( i, i, null );
+        return true;
+      }
+      return false;
+    }
+
+    if ( meta instanceof SelectValuesMeta ) {
+      SelectValuesMeta select = (SelectValuesMeta) meta;
+      if ( isIdentity( select, transMeta.getPrevStepFields( step ) ) ) {
+        replace( i, i, null );
+        return true;
+      }
+      if ( nextMeta instanceof SelectValuesMeta && isProjection( (SelectValuesMeta) nextMeta ) ) {
+        SelectValuesMeta projection = (SelectValuesMeta) nextMeta;
+        if ( isRemoval( select ) && Collections.disjoint( names( select.getDeleteName() ),
+          names( projection.getSelectName() ) ) ) {
+          replace( i, i, null );
+          return true;
+        }
+        if ( isProjection( select ) ) {
+          SelectValuesMeta merged = merge( select, projection );
+          if ( merged != null ) {
+            replace( i, i + 1, copy( next, next.getName(), merged ) );
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    if ( meta instanceof CalculatorMeta && i + 2 < chain.size() ) {
+      StepMeta filter = chain.get( i + 1 );
+      StepMeta removal = chain.get( i + 2 );
+      if ( filter.getStepMetaInterface() instanceof FilterRowsMeta
+        && removal.getStepMetaInterface() instanceof SelectValuesMeta
+        && filter.getCopies() == step.getCopies() && removal.getCopies() == step.getCopies() ) {
+        QueryFilterMeta folded = foldFormats( (CalculatorMeta) meta, (FilterRowsMeta) filter.getStepMetaInterface(),
+          (SelectValuesMeta) removal.getStepMetaInterface() );
+        if ( folded != null ) {
+          replace( i, i + 2, copy( filter, filter.getName(), folded ) );
+          return true;
+        }
+      }
+      return false;
+    }
+
+    if ( ( meta instanceof FilterRowsMeta || meta instanceof QueryFilterMeta )
+      && nextMeta instanceof SelectValuesMeta && isProjection( (SelectValuesMeta) nextMeta ) ) {
+      QueryFilterMeta fused;
+      if ( meta instanceof FilterRowsMeta ) {
+        fused = new QueryFilterMeta();
+        fused.allocate( 0, 0 );
+        fused.setCondition( ( (FilterRowsMeta) meta ).getCondition() );
+      } else if ( ( (QueryFilterMeta) meta ).getSelectName().length == 0 ) {
+        fused = (QueryFilterMeta) ( (QueryFilterMeta) meta ).clone();
+      } else {
+        return false;
+      }
+      SelectValuesMeta projection = (SelectValuesMeta) nextMeta;
+      String[] selectRename = new String[ projection.getSelectName().length ];
+      for ( int j = 0; j < selectRename.length; j++ ) {
+        selectRename[ j ] = rename( projection, j );
+      }
+      fused.setSelectName( projection.getSelectName().clone() );
+      fused.setSelectRename( selectRename );
+      replace( i, i + 1, copy( step, step.getName(), fused ) );
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Replaces steps of the chain, from and to inclusive, by a single step or by nothing.
+   */
+  private void replace( int from, int to, StepMeta replacement ) {
+    StepMeta previous = chain.get( from - 1 );
+    StepMeta next = to + 1 < chain.size() ? chain.get( to + 1 ) : null;
+    List<StepMeta> replaced = chain.subList( from, to + 1 );
+
+    for ( int i = transMeta.nrTransHops() - 1; i >= 0; i-- ) {
+      TransHopMeta hop = transMeta.getTransHop( i );
+      if ( replaced.contains( hop.getFromStep() ) || replaced.contains( hop.getToStep() ) ) {
+        transMeta.removeTransHop( i );
+      }
+    }
+    for ( StepMeta step : replaced ) {
+      transMeta.removeStep( transMeta.indexOfStep( step ) );
+    }
+    replaced.clear();
+
+    StepMeta linked = previous;
+    if ( replacement != null ) {
+      transMeta.addStep( replacement );
+      transMeta.addTransHop( new TransHopMeta( previous, replacement ) );
+      chain.add( from, replacement );
+      linked = replacement;
+    }
+    if ( next != null ) {
+      transMeta.addTransHop( new TransHopMeta( linked, next ) );
+    }
+    transMeta.clearCaches();
+  }
+
+  /**
+   * @return a step in place of another one, in as many copies
+   */
+  private static StepMeta copy( StepMeta like, String name, StepMetaInterface meta ) {
+    StepMeta stepMeta = meta instanceof QueryFilterMeta
+      ? new StepMeta( QueryFilterMeta.STEP_ID, name, meta ) : new StepMeta( name, meta );
+    stepMeta.setLocation( like.getLocation().x, like.getLocation().y );
+    stepMeta.setDraw( true );
+    stepMeta.setCopies( like.getCopies() );
+    return stepMeta;
+  }
+
+  /**
+   * Whether a select values step passes every field on unchanged, with its name and metadata
+   */
+  private static boolean isIdentity( SelectValuesMeta meta, RowMetaInterface inputFields ) {
+    if ( size( meta.getDeleteName() ) > 0 || meta.isSelectingAndSortingUnspecifiedFields() ) {
+      return false;
+    }
+    SelectMetadataChange defaults = new SelectMetadataChange( meta );
+    for ( int i = 0; i < size( meta.getMeta() ); i++ ) {
+      if ( !isUnchanged( meta.getMeta()[ i ], defaults ) ) {
+        return false;
+      }
+    }
+    String[] selectName = meta.getSelectName();
+    if ( size( selectName ) == 0 ) {
+      return true;
+    }
+    if ( !isProjection( meta ) || selectName.length != inputFields.size() ) {
+      return false;
+    }
+    for ( int i = 0; i < selectName.length; i++ ) {
+      String name = inputFields.getValueMeta( i ).getName();
+      String rename = rename( meta, i );
+      if ( !name.equalsIgnoreCase( selectName[ i ] ) || ( !Utils.isEmpty( rename ) && !rename.equals( name ) ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isUnchanged( SelectMetadataChange change, SelectMetadataChange defaults ) {
+    return change.getType() == ValueMetaInterface.TYPE_NONE
+      && ( Utils.isEmpty( change.getRename() ) || change.getRename().equals( change.getName() ) )
+      && Utils.isEmpty( change.getConversionMask() )
+      && change.getLength() == defaults.getLength()
+      && change.getPrecision() == defaults.getPrecision()
+      && change.getStorageType() == defaults.getStorageType()
+      && Utils.isEmpty( change.getEncoding() )
+      && Utils.isEmpty( change.getDecimalSymbol() )
+      && Utils.isEmpty( change.getGroupingSymbol() )
+      && Utils.isEmpty( change.getCurrencySymbol() );
+  }
+
+  /**
+   * Whether a select values step only selects and renames fields
+   */
+  private static boolean isProjection( SelectValuesMeta meta ) {
+    if ( size( meta.getSelectName() ) == 0 || size( meta.getDeleteName() ) > 0 || size( meta.getMeta() ) > 0
+      || meta.isSelectingAndSortingUnspecifiedFields() ) {
+      return false;
+    }
+    if ( meta.getSelectLength() == null || meta.getSelectPrecision() == null ) {
+      return true;
+    }
+    SelectValuesMeta defaults = new SelectValuesMeta();
+    defaults.allocate( 1, 0, 0 );
+    for ( int i = 0; i < meta.getSelectName().length; i++ ) {
+      if ( meta.getSelectLength()[ i ] != defaults.getSelectLength()[ 0 ]
+        || meta.getSelectPrecision()[ i ] != defaults.getSelectPrecision()[ 0 ] ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether a select values step only removes fields
+   */
+  private static boolean isRemoval( SelectValuesMeta meta ) {
+    return size( meta.getDeleteName() ) > 0 && size( meta.getSelectName() ) == 0 && size( meta.getMeta() ) == 0;
+  }
+
+  private static String rename( SelectValuesMeta meta, int i ) {
+    return meta.getSelectRename() == null ? null : meta.getSelectRename()[ i ];
+  }
+
+  // Arrays of select values steps are null unless allocated or set
+  private static int size( Object[] array ) {
+    return array == null ? 0 : array.length;
+  }
+
+  /**
+   * @return a projection selecting what the second projection selects from the first, or null if it refers to a field
+   * the first one does not give
+   */
+  private static SelectValuesMeta merge( SelectValuesMeta first, SelectValuesMeta second ) {
+    String[] selectName = new String[ second.getSelectName().length ];
+    String[] selectRename = new String[ selectName.length ];
+    for ( int i = 0; i < selectName.length; i++ ) {
+      int index = -1;
+      for ( int j = 0; j < first.getSelectName().length && index < 0; j++ ) {
+        String output = Const.NVL( rename( first, j ), first.getSelectName()[ j ] );
+        if ( output.equalsIgnoreCase( second.getSelectName()[ i ] ) ) {
+          index = j;
+        }
+      }
+      if ( index < 0 ) {
+        return null;
+      }
+      selectName[ i ] = first.getSelectName()[ index ];
+      String rename = Const.NVL( rename( second, i ), rename( first, index ) );
+      selectRename[ i ] = Utils.isEmpty( rename ) ? null : rename;
+    }
+    SelectValuesMeta merged = new SelectValuesMeta();
+    merged.allocate( selectName.length, 0, 0 );
+    merged.setSelectName( selectName );
+    merged.setSelectRename( selectRename );
+    return merged;
+  }
+
+  /**
+   * @return a query filter formatting the DateToStr copies of fields itself, or null if the steps do not only add
+   * formatted copies for the filter and remove them after it
+   */
+  private static QueryFilterMeta foldFormats( CalculatorMeta calculator, FilterRowsMeta filter,
+                                              SelectValuesMeta removal ) {
+    CalculatorMetaFunction[] functions = calculator.getCalculation();
+    if ( functions == null || functions.length == 0 || !isRemoval( removal ) ) {
+      return null;
+    }
+    List<String> formatted = Lists.newArrayList();
+    for ( CalculatorMetaFunction function : functions ) {
+      if ( function.getCalcType() != CalculatorMetaFunction.CALC_COPY_OF_FIELD
+        || function.getValueType() != ValueMetaInterface.TYPE_STRING || function.isRemovedFromResult() ) {
+        return null;
+      }
+      formatted.add( function.getFieldName() );
+    }
+    if ( !names( formatted.toArray( new String[ formatted.size() ] ) ).equals( names( removal.getDeleteName() ) ) ) {
+      return null;
+    }
+
+    QueryFilterMeta meta = new QueryFilterMeta();
+    meta.allocate( functions.length, 0 );
+    meta.setCondition( filter.getCondition() );
+    for ( int i = 0; i < functions.length; i++ ) {
+      //CHECKSTYLE:Indentation:OFF
+      meta.getFormatField()[i] = functions[i].getFieldName();
+      meta.getFormatSource()[i] = functions[i].getFieldA();
+      meta.getFormatMask()[i] = functions[i].getConversionMask();
+    }
+    return meta;
+  }
+
+  private static Set<String> names( String[] names ) {
+    Set<String> set = Sets.newHashSet();
+    for ( String name : names ) {
+      set.add( name.toUpperCase() );
+    }
+    return set;
+  }
+}
@@ -0,0 +1,236 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaAndData;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.steps.queryfilter.QueryFilterMeta;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.di.trans.steps.filterrows.FilterRowsMeta;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Bounded cache of generated transformations, so that repeated queries skip {@link SqlTransGenerator} entirely.
+ * <p>
+ * Plans are keyed by data service, {@link ParameterizedQuery#getShape() query shape}, row limits, parallelism,
+ * memory limit, plan rewriting and the layout of the service fields the query was parsed against, which is everything
+ * the generated transformation depends on.
+ * Queries differing only by their WHERE or HAVING literals share a plan: cached plans are never handed out
+ * directly, every hit returns a clone with the query's own literals bound into its filter conditions.
+ */
+public class QueryPlanCache {
+
+  private final Cache<Key, Plan> plans;
+
+  public QueryPlanCache( long maximumSize ) {
+    plans = CacheBuilder.newBuilder()
+      .maximumSize( maximumSize )
+      .recordStats()
+      .build();
+  }
+
+  /**
+   * Get the generated transformation for this generator's query, from cache if possible.
+   * On a hit, the generator's injector and result step names are updated to match the cached plan.
+   *
+   * @param serviceName Name of the queried data service
+   * @param generator   Generator for the parsed query
+   * @param normalized  Whether the query conditions were normalized against the service fields
+   * @return a transformation owned by the caller
+   * @throws KettleException if the transformation could not be generated
+   */
+  public TransMeta generateTransMeta( String serviceName, SqlTransGenerator generator, boolean normalized )
+    throws KettleException {
+    ParameterizedQuery query = ParameterizedQuery.create( generator.getSql() );
+    Key key = Key.create( serviceName, query, generator, normalized );
+
+    Plan plan = plans.getIfPresent( key );
+    if ( plan != null ) {
+      generator.setInjectorStepName( plan.injectorStepName );
+      generator.setResultStepName( plan.resultStepName );
+      TransMeta transMeta = plan.copy();
+      transMeta.setName( generator.getTransName() );
+      bind( transMeta, SqlTransGenerator.WHERE_FILTER_STEP, query.getWhereValues() );
+      bind( transMeta, SqlTransGenerator.HAVING_FILTER_STEP, query.getHavingValues() );
+      return transMeta;
+    }
+
+    TransMeta transMeta = generator.generateTransMeta();
+    plans.put( key, new Plan( (TransMeta) transMeta.realClone( false ),
+      generator.getInjectorStepName(), generator.getResultStepName() ) );
+    return transMeta;
+  }
+
+  private static void bind( TransMeta transMeta, String stepName, List<ValueMetaAndData> values )
+    throws KettleException {
+    StepMeta stepMeta = transMeta.findStep( stepName );
+    if ( stepMeta == null ) {
+      return;
+    }
+    StepMetaInterface meta = stepMeta.getStepMetaInterface();
+    // Rewritten plans may filter in a query filter step of the same name
+    Condition condition = meta instanceof QueryFilterMeta
+      ? ( (QueryFilterMeta) meta ).getCondition() : ( (FilterRowsMeta) meta ).getCondition();
+    Iterator<ValueMetaAndData> iterator = values.iterator();
+    try {
+      ParameterizedQuery.bind( condition, iterator );
+    } catch ( IllegalArgumentException e ) {
+      throw new KettleException( "Unable to bind query values to cached plan", e );
+    }
+    if ( iterator.hasNext() ) {
+      throw new KettleException( "Cached plan does not match query values for step " + stepName );
+    }
+  }
+
+  public void invalidateAll() {
+    plans.invalidateAll();
+  }
+
+  public long size() {
+    return plans.size();
+  }
+
+  public long getHitCount() {
+    return getStats().hitCount();
+  }
+
+  public long getMissCount() {
+    return getStats().missCount();
+  }
+
+  public CacheStats getStats() {
+    return plans.stats();
+  }
+
+  private static class Plan {
+    private final TransMeta transMeta;
+    private final String injectorStepName;
+    private final String resultStepName;
+
+    Plan( TransMeta transMeta, String injectorStepName, String resultStepName ) {
+      this.transMeta = transMeta;
+      this.injectorStepName = injectorStepName;
+      this.resultStepName = resultStepName;
+    }
+
+    TransMeta copy() {
+      return (TransMeta) transMeta.realClone( false );
+    }
+  }
+
+  static final class Key {
+    private final String serviceName;
+    private final String sql;
+    private final String serviceFields;
+    private final int rowLimit;
+    private final int serviceRowLimit;
+    private final int parallelism;
+    private final long queryMemoryLimit;
+    private final boolean rewritePlan;
+    private final boolean normalized;
+
+    private Key( String serviceName, String sql, String serviceFields, int rowLimit, int serviceRowLimit,
+                 int parallelism, long queryMemoryLimit, boolean rewritePlan, boolean normalized ) {
+      this.serviceName = serviceName;
+      this.sql = sql;
+      this.serviceFields = serviceFields;
+      this.rowLimit = rowLimit;
+      this.serviceRowLimit = serviceRowLimit;
+      this.parallelism = parallelism;
+      this.queryMemoryLimit = queryMemoryLimit;
+      this.rewritePlan = rewritePlan;
+      this.normalized = normalized;
+    }
+
+    static Key create( String serviceName, ParameterizedQuery query, SqlTransGenerator generator,
+                       boolean normalized ) {
+      return new Key( serviceName, query.getShape(), describe( generator.getSql().getRowMeta() ),
+        generator.getRowLimit(), generator.getServiceRowLimit(), generator.getParallelism(),
+        generator.getQueryMemoryLimit(), generator.isRewritePlan(), normalized );
+    }
+
+    /**
+     * Describe the parts of the service fields that are copied into the generated transformation
+     */
+    private static String describe( RowMetaInterface rowMeta ) {
+      StringBuilder description = new StringBuilder();
+      for ( ValueMetaInterface valueMeta : rowMeta.getValueMetaList() ) {
+        description.append( valueMeta.getName() ).append( ':' )
+          .append( valueMeta.getType() ).append( ':' )
+          .append( valueMeta.getLength() ).append( ':' )
+          .append( valueMeta.getPrecision() ).append( ':' )
+          .append( valueMeta.getConversionMask() ).append( ';' );
+      }
+      return description.toString();
+    }
+
+    @Override public boolean equals( Object o ) {
+      if ( this == o ) {
+        return true;
+      }
+      if ( o == null || getClass() != o.getClass() ) {
+        return false;
+      }
+      Key key = (Key) o;
+      return rowLimit == key.rowLimit
+        && serviceRowLimit == key.serviceRowLimit
+        && parallelism == key.parallelism
+        && queryMemoryLimit == key.queryMemoryLimit
+        && rewritePlan == key.rewritePlan
+        && normalized == key.normalized
+        && Objects.equal( serviceName, key.serviceName )
+        && Objects.equal( sql, key.sql )
+        && Objects.equal( serviceFields, key.serviceFields );
+    }
+
+    @Override public int hashCode() {
+      return Objects.hashCode( serviceName, sql, serviceFields, rowLimit, serviceRowLimit, parallelism,
+        queryMemoryLimit, rewritePlan, normalized );
+    }
+
+    @Override public String toString() {
+      return Objects.toStringHelper( this )
+        .add( "serviceName", serviceName )
+        .add( "sql", sql )
+        .add( "rowLimit", rowLimit )
+        .add( "serviceRowLimit", serviceRowLimit )
+        .add( "parallelism", parallelism )
+        .add( "queryMemoryLimit", queryMemoryLimit )
+        .add( "rewritePlan", rewritePlan )
+        .add( "normalized", normalized )
+        .toString();
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.sql.DateToStrFunction;
+import org.pentaho.di.core.sql.IifFunction;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.core.sql.SQLCondition;
+import org.pentaho.di.core.sql.SQLField;
+import org.pentaho.di.core.sql.SQLFields;
+
+import java.util.BitSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Works out which service fields a query refers to, so only those are injected into the generated transformation.
+ * <p>
+ * Every field is kept whenever a reference can not be resolved with certainty.
+ */
+class ReferencedFields {
+  private static final Pattern AGGREGATE =
+    Pattern.compile( "^\\s*\\w+\\s*\\(\\s*(?:DISTINCT\\s+)?(.+?)\\s*\\)\\s*$", Pattern.CASE_INSENSITIVE );
+
+  private final SQL sql;
+  private final RowMetaInterface serviceFields;
+  private final BitSet used = new BitSet();
+
+  private ReferencedFields( SQL sql ) {
+    this.sql = sql;
+    this.serviceFields = sql.getRowMeta();
+  }
+
+  /**
+   * @return service fields referenced by the query, in service order
+   */
+  static RowMetaInterface of( SQL sql ) {
+    ReferencedFields referencedFields = new ReferencedFields( sql );
+    return referencedFields.resolve() ? referencedFields.prune() : sql.getRowMeta();
+  }
+
+  private boolean resolve() {
+    if ( serviceFields == null || !resolveFields( sql.getSelectFields(), false ) ) {
+      return false;
+    }
+    SQLCondition where = sql.getWhereCondition();
+    if ( where != null && where.getCondition() != null && !resolveWhere( where ) ) {
+      return false;
+    }
+    if ( sql.getGroupFields() != null && !resolveFields( sql.getGroupFields(), true ) ) {
+      return false;
+    }
+    if ( sql.getOrderFields() != null && !resolveFields( sql.getOrderFields(), true ) ) {
+      return false;
+    }
+    SQLCondition having = sql.getHavingCondition();
+    return having == null || having.getCondition() == null || resolveCondition( having.getCondition(), true );
+  }
+
+  private RowMetaInterface prune() {
+    if ( used.isEmpty() && !serviceFields.isEmpty() ) {
+      // Rows still have to be counted, keep the field a COUNT(*) would aggregate on
+      used.set( 0 );
+    }
+    if ( used.cardinality() == serviceFields.size() ) {
+      return serviceFields;
+    }
+    RowMetaInterface pruned = new RowMeta();
+    for ( int i = used.nextSetBit( 0 ); i >= 0; i = used.nextSetBit( i + 1 ) ) {
+      pruned.addValueMeta( serviceFields.getValueMeta( i ) );
+    }
+    return pruned;
+  }
+
+  /**
+   * @param aliases True if fields may also refer to the select list by alias
+   */
+  private boolean resolveFields( SQLFields fields, boolean aliases ) {
+    for ( SQLField field : fields.getFields() ) {
+      if ( field.getIif() != null ) {
+        if ( !resolveIif( field.getIif() ) ) {
+          return false;
+        }
+      } else if ( field.getValueData() != null || field.isCountStar() ) {
+        continue;
+      } else if ( field.getValueMeta() != null && use( field.getValueMeta().getName() ) ) {
+        continue;
+      } else if ( !use( field.getField() ) && !( aliases && isSelected( field.getField() ) ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean resolveIif( IifFunction iif ) {
+    return resolveCondition( iif.getSqlCondition().getCondition(), false )
+      && ( !iif.isTrueField() || use( iif.getTrueValueString() ) )
+      && ( !iif.isFalseField() || use( iif.getFalseValueString() ) );
+  }
+
+  private boolean resolveWhere( SQLCondition where ) {
+    for ( DateToStrFunction function : where.getDateToStrFunctions() ) {
+      if ( !use( function.getFieldName() ) ) {
+        return false;
+      }
+    }
+    return resolveCondition( where.getCondition(), false );
+  }
+
+  private boolean resolveCondition( Condition condition, boolean having ) {
+    if ( !condition.isAtomic() ) {
+      for ( Condition child : condition.getChildren() ) {
+        if ( !resolveCondition( child, having ) ) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return resolveName( condition.getLeftValuename(), having )
+      && ( condition.getRightValuename() == null || resolveName( condition.getRightValuename(), having ) );
+  }
+
+  private boolean resolveName( String name, boolean having ) {
+    if ( name == null || use( name ) || isSelected( name ) || isDateToStrResult( name ) ) {
+      return true;
+    }
+    if ( having ) {
+      Matcher matcher = AGGREGATE.matcher( name );
+      if ( matcher.matches() ) {
+        String argument = matcher.group( 1 ).replace( "\"", "" );
+        return "*".equals( argument ) || use( argument )
+          || use( argument.substring( argument.lastIndexOf( '.' ) + 1 ) );
+      }
+    }
+    return false;
+  }
+
+  private boolean isSelected( String name ) {
+    return SQLField.searchSQLFieldByFieldOrAlias( sql.getSelectFields().getFields(), name ) != null;
+  }
+
+  private boolean isDateToStrResult( String name ) {
+    if ( sql.getWhereCondition() != null ) {
+      for ( DateToStrFunction function : sql.getWhereCondition().getDateToStrFunctions() ) {
+        if ( name.equals( function.getResultName() ) ) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean use( String name ) {
+    int index = name == null ? -1 : serviceFields.indexOfValue( name );
+    if ( index >= 0 ) {
+      used.set( index );
+    }
+    return index >= 0;
+  }
+}
@@ -0,0 +1,346 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.utils.DataServiceConstants;
+import org.pentaho.di.trans.step.StepMetaDataCombi;
+import org.pentaho.metastore.api.IMetaStore;
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per data service pools of service transformations that are already prepared for execution.
+ * <p>
+ * Preparing a transformation initializes all of its steps, which includes opening database connections. Data services
+ * that opt in with a {@link DataServiceMeta#getPoolMaxSize() maximum pool size} keep a few of them ready, so a query
+ * can start reading rows right away. Pools grow on demand up to their maximum size, are replenished in the background
+ * and shrink back to their {@link DataServiceMeta#getPoolMinSize() minimum size} once instances sit idle longer than
+ * the {@link DataServiceMeta#getPoolIdleTimeout() idle timeout}. A pool that is not used at all for that long is
+ * discarded.
+ * <p>
+ * Pooled transformations are prepared without parameters, and only for services with a known
+ * {@link DataServiceMeta#getServiceTransVersion() version}, so a changed service never hands out stale instances.
+ */
+public class ServiceTransPool {
+  private static final Log logger = LogFactory.getLog( ServiceTransPool.class );
+
+  private final ServiceTransTemplateCache templateCache;
+  private final ConcurrentMap<Key, ServicePool> pools = new ConcurrentHashMap<>();
+  private ScheduledExecutorService scheduler;
+  private volatile boolean shutdown;
+
+  public ServiceTransPool( ServiceTransTemplateCache templateCache ) {
+    this( templateCache, null );
+  }
+
+  @VisibleForTesting
+  ServiceTransPool( ServiceTransTemplateCache templateCache, ScheduledExecutorService scheduler ) {
+    this.templateCache = templateCache;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Take a prepared service transformation out of the pool for a data service.
+   *
+   * @param service   Data service to run
+   * @param metaStore MetaStore the transformation will run with
+   * @return a prepared transformation owned by the caller, or null if none is ready or the service is not pooled
+   */
+  public Trans borrow( DataServiceMeta service, IMetaStore metaStore ) {
+    if ( shutdown || service.getPoolMaxSize() <= 0 || service.getServiceTrans() == null
+      || service.getServiceTransVersion() == null ) {
+      return null;
+    }
+    Key key = new Key( service.getName(), service.getStepname(), service.getServiceTransVersion(), metaStore );
+    ServicePool pool = pools.get( key );
+    if ( pool == null ) {
+      // Instances of older versions of this service are no longer useful
+      retire( service.getName(), metaStore );
+      ServicePool created = new ServicePool( service, metaStore );
+      pool = pools.putIfAbsent( key, created );
+      if ( pool == null ) {
+        pool = created;
+      }
+    }
+    return pool.borrow();
+  }
+
+  /**
+   * Discard all pooled transformations for a data service. Services of the same name in other MetaStores keep theirs.
+   */
+  public void retire( String serviceName, IMetaStore metaStore ) {
+    for ( Iterator<Map.Entry<Key, ServicePool>> it = pools.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Key, ServicePool> entry = it.next();
+      if ( entry.getKey().metaStore == metaStore && Objects.equal( entry.getKey().serviceName, serviceName ) ) {
+        it.remove();
+        entry.getValue().close();
+      }
+    }
+  }
+
+  /**
+   * Discard all pooled transformations.
+   */
+  public void invalidateAll() {
+    for ( Iterator<ServicePool> it = pools.values().iterator(); it.hasNext(); ) {
+      ServicePool pool = it.next();
+      it.remove();
+      pool.close();
+    }
+  }
+
+  /**
+   * Discard all pooled transformations and stop the background thread. Nothing is pooled afterwards.
+   */
+  public synchronized void shutdown() {
+    shutdown = true;
+    invalidateAll();
+    if ( scheduler != null ) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * @return number of prepared transformations ready to be borrowed
+   */
+  public int size() {
+    int size = 0;
+    for ( ServicePool pool : pools.values() ) {
+      size += pool.idle.size();
+    }
+    return size;
+  }
+
+  @VisibleForTesting
+  void evictIdle( long now ) {
+    for ( Iterator<ServicePool> it = pools.values().iterator(); it.hasNext(); ) {
+      ServicePool pool = it.next();
+      if ( now - pool.lastBorrowed > pool.idleTimeout ) {
+        it.remove();
+        pool.close();
+      } else {
+        pool.evictIdle( now );
+      }
+    }
+  }
+
+  @VisibleForTesting
+  Trans prepare( DataServiceMeta service, IMetaStore metaStore ) throws KettleException {
+    TransMeta transMeta = templateCache.copy( service );
+    if ( transMeta == null ) {
+      throw new KettleException( "Unable to copy the service transformation of " + service.getName() );
+    }
+    Trans trans = new Trans( transMeta );
+    trans.setContainerObjectId( UUID.randomUUID().toString() );
+    trans.setMetaStore( metaStore );
+    trans.prepareExecution( null );
+    return trans;
+  }
+
+  static void dispose( Trans trans ) {
+    trans.stopAll();
+    for ( StepMetaDataCombi stepMetaDataCombi : trans.getSteps() ) {
+      stepMetaDataCombi.step.setOutputDone();
+      stepMetaDataCombi.step.dispose( stepMetaDataCombi.meta, stepMetaDataCombi.data );
+      stepMetaDataCombi.step.markStop();
+    }
+  }
+
+  private synchronized ScheduledExecutorService getScheduler() {
+    if ( shutdown ) {
+      throw new RejectedExecutionException( "Service transformation pool is shut down" );
+    }
+    if ( scheduler == null ) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon( true ).setNameFormat( "data-service-pool-%d" ).build() );
+      scheduler.scheduleWithFixedDelay( new Runnable() {
+        @Override public void run() {
+          evictIdle( System.currentTimeMillis() );
+        }
+      }, DataServiceConstants.POOL_EVICTION_INTERVAL, DataServiceConstants.POOL_EVICTION_INTERVAL,
+        TimeUnit.MILLISECONDS );
+    }
+    return scheduler;
+  }
+
+  private class ServicePool {
+    private final DataServiceMeta service;
+    private final IMetaStore metaStore;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeout;
+    // Most recently prepared instances last
+    private final Deque<Idle> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger target;
+    private volatile long lastBorrowed = System.currentTimeMillis();
+    private volatile boolean closed;
+
+    ServicePool( DataServiceMeta service, IMetaStore metaStore ) {
+      this.service = service;
+      this.metaStore = metaStore;
+      this.maxSize = service.getPoolMaxSize();
+      this.minSize = Math.max( 0, Math.min( service.getPoolMinSize(), maxSize ) );
+      this.idleTimeout = service.getPoolIdleTimeout() > 0
+        ? service.getPoolIdleTimeout() : DataServiceConstants.POOL_IDLE_TIMEOUT_DEFAULT;
+      this.target = new AtomicInteger( minSize );
+    }
+
+    Trans borrow() {
+      lastBorrowed = System.currentTimeMillis();
+      Idle entry = idle.pollLast();
+      if ( entry == null ) {
+        // Demand exceeds the pool, keep one more ready next time
+        int current;
+        do {
+          current = target.get();
+        } while ( current < maxSize && !target.compareAndSet( current, current + 1 ) );
+      }
+      replenish();
+      return entry != null ? entry.trans : null;
+    }
+
+    void replenish() {
+      while ( !closed ) {
+        int current = pending.get();
+        if ( idle.size() + current >= target.get() ) {
+          return;
+        }
+        if ( pending.compareAndSet( current, current + 1 ) ) {
+          try {
+            getScheduler().execute( new Runnable() {
+              @Override public void run() {
+                prepareOne();
+              }
+            } );
+          } catch ( RejectedExecutionException e ) {
+            // Pool shut down by another thread
+            pending.decrementAndGet();
+            close();
+          }
+        }
+      }
+    }
+
+    void prepareOne() {
+      try {
+        if ( closed ) {
+          return;
+        }
+        Idle entry = new Idle( prepare( service, metaStore ), System.currentTimeMillis() );
+        idle.addLast( entry );
+        // Closed while preparing
+        if ( closed && idle.remove( entry ) ) {
+          dispose( entry.trans );
+        }
+      } catch ( Exception e ) {
+        logger.warn( "Unable to prepare a pooled transformation for data service " + service.getName(), e );
+      } finally {
+        pending.decrementAndGet();
+      }
+    }
+
+    void evictIdle( long now ) {
+      Idle oldest;
+      while ( idle.size() > minSize && ( oldest = idle.peekFirst() ) != null && now - oldest.since > idleTimeout ) {
+        if ( idle.remove( oldest ) ) {
+          dispose( oldest.trans );
+          int current;
+          do {
+            current = target.get();
+          } while ( current > minSize && !target.compareAndSet( current, current - 1 ) );
+        }
+      }
+      replenish();
+    }
+
+    void close() {
+      closed = true;
+      for ( Idle entry = idle.pollFirst(); entry != null; entry = idle.pollFirst() ) {
+        dispose( entry.trans );
+      }
+    }
+  }
+
+  private static final class Idle {
+    private final Trans trans;
+    private final long since;
+
+    Idle( Trans trans, long since ) {
+      this.trans = trans;
+      this.since = since;
+    }
+  }
+
+  private static final class Key {
+    private final String serviceName;
+    private final String stepName;
+    private final int version;
+    private final IMetaStore metaStore;
+
+    Key( String serviceName, String stepName, int version, IMetaStore metaStore ) {
+      this.serviceName = serviceName;
+      this.stepName = stepName;
+      this.version = version;
+      this.metaStore = metaStore;
+    }
+
+    @Override public boolean equals( Object o ) {
+      if ( this == o ) {
+        return true;
+      }
+      if ( o == null || getClass() != o.getClass() ) {
+        return false;
+      }
+      Key key = (Key) o;
+      return version == key.version
+        && metaStore == key.metaStore
+        && Objects.equal( serviceName, key.serviceName )
+        && Objects.equal( stepName, key.stepName );
+    }
+
+    @Override public int hashCode() {
+      return Objects.hashCode( serviceName, stepName, version, System.identityHashCode( metaStore ) );
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.clients.TransMutators;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Bounded cache of prepared service transformations.
+ * <p>
+ * Preparing a service transformation for a query means copying it, activating its parameters and cutting it down
+ * to the steps that feed the data service step. For services with a known
+ * {@link DataServiceMeta#getServiceTransVersion() version}, this is done once per version and each query only pays
+ * for a copy of the much smaller template.
+ */
+public class ServiceTransTemplateCache {
+
+  private final Cache<Key, TransMeta> templates;
+
+  public ServiceTransTemplateCache( long maximumSize ) {
+    templates = CacheBuilder.newBuilder()
+      .maximumSize( maximumSize )
+      .recordStats()
+      .build();
+  }
+
+  /**
+   * Get a copy of the prepared service transformation for a data service.
+   *
+   * @param service Data service with a known service transformation version
+   * @return a transformation owned by the caller, or null if no template is available for this service
+   */
+  public TransMeta copy( final DataServiceMeta service ) {
+    if ( service.getServiceTrans() == null || service.getServiceTransVersion() == null ) {
+      return null;
+    }
+    Key key = new Key( service.getName(), service.getStepname(), service.getServiceTransVersion() );
+    TransMeta template;
+    try {
+      template = templates.get( key, new Callable<TransMeta>() {
+        @Override public TransMeta call() throws Exception {
+          return prepare( service );
+        }
+      } );
+    } catch ( ExecutionException | UncheckedExecutionException e ) {
+      return null;
+    }
+    return (TransMeta) template.realClone( false );
+  }
+
+  static TransMeta prepare( DataServiceMeta service ) {
+    TransMeta template;
+    // Shared with concurrent queries
+    synchronized ( service.getServiceTrans() ) {
+      template = (TransMeta) service.getServiceTrans().realClone( false );
+    }
+    template.clearNameChangedListeners();
+    template.activateParameters();
+    TransMutators.disableAllUnrelatedHops( service.getStepname(), template, true );
+    TransMutators.removeUnusedSteps( service.getStepname(), template );
+    return template;
+  }
+
+  public void invalidateAll() {
+    templates.invalidateAll();
+  }
+
+  public long size() {
+    return templates.size();
+  }
+
+  public CacheStats getStats() {
+    return templates.stats();
+  }
+
+  private static final class Key {
+    private final String serviceName;
+    private final String stepName;
+    private final int version;
+
+    Key( String serviceName, String stepName, int version ) {
+      this.serviceName = serviceName;
+      this.stepName = stepName;
+      this.version = version;
+    }
+
+    @Override public boolean equals( Object o ) {
+      if ( this == o ) {
+        return true;
+      }
+      if ( o == null || getClass() != o.getClass() ) {
+        return false;
+      }
+      Key key = (Key) o;
+      return version == key.version
+        && Objects.equal( serviceName, key.serviceName )
+        && Objects.equal( stepName, key.stepName );
+    }
+
+    @Override public int hashCode() {
+      return Objects.hashCode( serviceName, stepName, version );
+    }
+  }
+}
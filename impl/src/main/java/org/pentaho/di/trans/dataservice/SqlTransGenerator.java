@@ -22,6 +22,7 @@
 
 package org.pentaho.di.trans.dataservice;
 
+import com.google.common.collect.Lists;
 import org.pentaho.di.core.Condition;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
@@ -36,20 +37,21 @@ import org.pentaho.di.core.sql.SQLFields;
 import org.pentaho.di.core.util.Utils;
 import org.pentaho.di.trans.TransHopMeta;
 import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.steps.conditional.ConditionalFieldsMeta;
+import org.pentaho.di.trans.dataservice.steps.externalsort.ExternalSortMeta;
+import org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta;
+import org.pentaho.di.trans.dataservice.steps.mergegroupby.MergeGroupByMeta;
+import org.pentaho.di.trans.dataservice.steps.topn.TopNMeta;
 import org.pentaho.di.trans.step.StepMeta;
-import org.pentaho.di.trans.step.StepMetaInterface;
-import org.pentaho.di.trans.step.errorhandling.StreamInterface;
 import org.pentaho.di.trans.steps.calculator.CalculatorMeta;
 import org.pentaho.di.trans.steps.calculator.CalculatorMetaFunction;
 import org.pentaho.di.trans.steps.constant.ConstantMeta;
 import org.pentaho.di.trans.steps.dummytrans.DummyTransMeta;
 import org.pentaho.di.trans.steps.filterrows.FilterRowsMeta;
 import org.pentaho.di.trans.steps.injector.InjectorMeta;
-import org.pentaho.di.trans.steps.memgroupby.MemoryGroupByMeta;
 import org.pentaho.di.trans.steps.samplerows.SampleRowsMeta;
 import org.pentaho.di.trans.steps.selectvalues.SelectMetadataChange;
 import org.pentaho.di.trans.steps.selectvalues.SelectValuesMeta;
-import org.pentaho.di.trans.steps.sort.SortRowsMeta;
 
 import java.util.Collection;
 import java.util.List;
@@ -62,6 +64,9 @@ import static org.pentaho.di.core.row.ValueMetaInterface.TYPE_STRING;
 
 public class SqlTransGenerator {
 
+  public static final String WHERE_FILTER_STEP = "Where filter";
+  public static final String HAVING_FILTER_STEP = "Having filter";
+
   private SQL sql;
   private RowMetaInterface serviceFields;
 
@@ -73,10 +78,19 @@ public class SqlTransGenerator {
 
   private int serviceLimit;
 
+  private int parallelism = 1;
+
+  private long queryMemoryLimit;
+
+  // Share of the query memory limit of each step that has to hold rows
+  private long stepMemoryLimit;
+
+  private boolean rewritePlan;
+
   public SqlTransGenerator( SQL sql, int rowLimit ) {
     this.sql = sql;
     this.rowLimit = rowLimit;
-    this.serviceFields = sql.getRowMeta();
+    this.serviceFields = ReferencedFields.of( sql );
   }
 
   public SqlTransGenerator( SQL sql, int rowLimit, int serviceLimit ) {
@@ -91,18 +105,9 @@ public class SqlTransGenerator {
    */
   public TransMeta generateTransMeta() throws KettleException {
     TransMeta transMeta = new TransMeta();
-    StringBuilder sbsql = new StringBuilder( sql.getServiceName() );
-    sbsql.append( " - SQL - " ).append( sql.getSqlString() );
-
-    // Get rid of newlines...
-    //
-    for ( int i = sbsql.length() - 1; i >= 0; i-- ) {
-      if ( sbsql.charAt( i ) == '\n' || sbsql.charAt( i ) == '\r' ) {
-        sbsql.setCharAt( i, ' ' );
-      }
-    }
-    transMeta.setName( sbsql.toString() );
+    transMeta.setName( getTransName() );
     xLocation = 50;
+    stepMemoryLimit = queryMemoryLimit / Math.max( countRowHoldingSteps(), 1 );
 
     // Add an injector where we will pump in the rows from the service transformation.
     //
@@ -116,6 +121,9 @@ public class SqlTransGenerator {
       lastStep = addToTrans( serviceLimitStep, transMeta, lastStep );
     }
 
+    // Steps from the conversion up to the aggregation may run in parallel copies
+    int firstParallelStep = transMeta.nrSteps();
+
     // Set conversion masks
     lastStep = addToTrans( generateConversionStep(), transMeta, lastStep );
 
@@ -127,12 +135,11 @@ public class SqlTransGenerator {
       lastStep = addToTrans( constStep, transMeta, lastStep );
     }
 
-    // Add filters, constants, calculator steps to calculate possible IIF functions...
-    // This block is for the IIF methods in the SELECT clause
+    // Calculate possible IIF functions in the SELECT clause
     //
     List<SQLField> iifFields = sql.getSelectFields().getIifFunctionFields();
-    for ( SQLField iifField : iifFields ) {
-      lastStep = generateIifStep( iifField, transMeta, lastStep );
+    if ( !iifFields.isEmpty() ) {
+      lastStep = addToTrans( generateConditionalFieldsStep( iifFields, "IIF fields" ), transMeta, lastStep );
     }
 
     // We optionally need to aggregate the data
@@ -165,18 +172,25 @@ public class SqlTransGenerator {
     }
     List<SQLField> groupFields = sql.getGroupFields().getFields();
 
-    if ( aggFields.size() > 0 || groupFields.size() > 0 ) {
+    if ( ( aggFields.size() > 0 || groupFields.size() > 0 ) && isParallel( aggFields ) ) {
+      // Rows are distributed round-robin over the copies, their partial aggregates are merged in a single step
+      StepMeta partialStep = generatePartialGroupByStep( aggFields, groupFields, transMeta.getStepFields( lastStep ) );
+      lastStep = addToTrans( partialStep, transMeta, lastStep );
+      for ( int i = firstParallelStep; i < transMeta.nrSteps(); i++ ) {
+        transMeta.getStep( i ).setCopies( parallelism );
+      }
+      lastStep = addToTrans( generateMergeGroupByStep( aggFields, groupFields ), transMeta, lastStep );
+    } else if ( aggFields.size() > 0 || groupFields.size() > 0 ) {
       StepMeta groupStep = generateGroupByStep( aggFields, groupFields, transMeta.getStepFields( lastStep ) );
       lastStep = addToTrans( groupStep, transMeta, lastStep );
     }
 
-    // Add filters, constants, calculator steps to calculate possible IIF functions...
-    // This block is for the IIF methods in the ORDER clause
+    // Calculate possible IIF functions in the ORDER clause
     //
     if ( sql.getOrderFields() != null ) {
       iifFields = sql.getOrderFields().getIifFunctionFields();
-      for ( SQLField iifField : iifFields ) {
-        lastStep = generateIifStep( iifField, transMeta, lastStep );
+      if ( !iifFields.isEmpty() ) {
+        lastStep = addToTrans( generateConditionalFieldsStep( iifFields, "Order IIF fields" ), transMeta, lastStep );
       }
     }
 
@@ -197,8 +211,14 @@ public class SqlTransGenerator {
     }
 
     // We also may need to order the data...
+    // With a limit only the first offset + limit rows have to be kept, the select step does not change the row count.
     //
-    if ( sql.getOrderFields() != null && !sql.getOrderFields().isEmpty() ) {
+    boolean ordered = sql.getOrderFields() != null && !sql.getOrderFields().isEmpty();
+    boolean topN = ordered && sql.getLimitClause() != null;
+    if ( topN ) {
+      StepMeta topNStep = generateTopNStep( transMeta.getStepFields( lastStep ) );
+      lastStep = addToTrans( topNStep, transMeta, lastStep );
+    } else if ( ordered ) {
       StepMeta sortStep = generateSortStep( transMeta.getStepFields( lastStep ) );
       lastStep = addToTrans( sortStep, transMeta, lastStep );
     }
@@ -208,7 +228,7 @@ public class SqlTransGenerator {
     }
 
     // Limit the data from the limit keyword
-    if ( sql.getLimitClause() != null ) {
+    if ( sql.getLimitClause() != null && !topN ) {
       int limit = sql.getLimitValues().getLimit();
       int offset = sql.getLimitValues().getOffset();
       StepMeta limitStep = generateLimitStep( "Limit rows", offset, limit );
@@ -228,9 +248,41 @@ public class SqlTransGenerator {
     resultStepName = resultStep.getName();
     lastStep = addToTrans( resultStep, transMeta, lastStep );
 
+    if ( rewritePlan ) {
+      resultStepName = PlanRewriter.rewrite( transMeta, injectorStepName, resultStepName );
+    }
+
     return transMeta;
   }
 
+  /**
+   * @return the number of steps holding rows until end of input: the aggregation, DISTINCT and a full sort
+   */
+  private int countRowHoldingSteps() {
+    boolean aggregated = !sql.getSelectFields().getAggregateFields().isEmpty()
+      || !sql.getGroupFields().getFields().isEmpty() || sql.getHavingCondition() != null;
+    boolean ordered = sql.getOrderFields() != null && !sql.getOrderFields().isEmpty();
+    return ( aggregated ? 1 : 0 ) + ( sql.getSelectFields().isDistinct() ? 1 : 0 )
+      + ( ordered && sql.getLimitClause() == null ? 1 : 0 );
+  }
+
+  /**
+   * @return the name of the generated transformation, derived from the SQL string
+   */
+  public String getTransName() {
+    StringBuilder sbsql = new StringBuilder( sql.getServiceName() );
+    sbsql.append( " - SQL - " ).append( sql.getSqlString() );
+
+    // Get rid of newlines...
+    //
+    for ( int i = sbsql.length() - 1; i >= 0; i-- ) {
+      if ( sbsql.charAt( i ) == '\n' || sbsql.charAt( i ) == '\r' ) {
+        sbsql.setCharAt( i, ' ' );
+      }
+    }
+    return sbsql.toString();
+  }
+
   private StepMeta generateConversionStep() {
     // Set conversion masks for each column, modify type where required.
     SelectValuesMeta meta = new SelectValuesMeta();
@@ -282,106 +334,38 @@ public class SqlTransGenerator {
   }
 
   /**
-   * This method generates a 4 steps for every IIF clause... TODO: replace with one step...
+   * Generates a single step adding the fields of all IIF functions, evaluated in one pass over the rows.
    *
-   * @param iifField
-   * @param lastStep
-   * @param transMeta
-   * @return steps
+   * @param iifFields IIF function fields
+   * @param stepName  Name of the step, unique in the transformation
+   * @return the step
    */
-  private StepMeta generateIifStep( SQLField iifField, TransMeta transMeta, StepMeta lastStep ) {
-    IifFunction iif = iifField.getIif();
-
-    // The Filter condition...
-    //
-    FilterRowsMeta filterMeta = new FilterRowsMeta();
-    filterMeta.setCondition( iifField.getIif().getSqlCondition().getCondition() );
-    StepMeta filterStep = new StepMeta( iifField.getExpression(), filterMeta );
-    filterStep.setLocation( xLocation, 50 );
-    xLocation += 100;
-    filterStep.setDraw( true );
-    lastStep = addToTrans( filterStep, transMeta, lastStep );
-
-    // The True and false steps...
-    //
-    StepMetaInterface trueMetaInterface;
-    ValueMetaInterface valueMeta = iif.getTrueValue().getValueMeta();
-    if ( iif.isTrueField() ) {
-      CalculatorMeta trueMeta = new CalculatorMeta();
-      trueMetaInterface = trueMeta;
-      trueMeta.allocate( 1 );
-
-      CalculatorMetaFunction function = new CalculatorMetaFunction();
-      function.setFieldName( Const.NVL( iifField.getAlias(), iifField.getField() ) );
-      function.setCalcType( CalculatorMetaFunction.CALC_COPY_OF_FIELD );
-      function.setValueType( valueMeta.getType() );
-      function.setValueLength( valueMeta.getLength() );
-      function.setValuePrecision( valueMeta.getPrecision() );
-      function.setFieldA( iif.getTrueValueString() );
-      function.setConversionMask( valueMeta.getConversionMask() );
-      //CHECKSTYLE:Indentation:OFF
-      trueMeta.getCalculation()[0] = function;
-    } else {
-      ConstantMeta trueMeta = new ConstantMeta();
-      trueMetaInterface = trueMeta;
-      trueMeta.allocate( 1 );
+  private StepMeta generateConditionalFieldsStep( List<SQLField> iifFields, String stepName ) {
+    ConditionalFieldsMeta meta = new ConditionalFieldsMeta();
+    meta.allocate( iifFields.size() );
+    for ( int i = 0; i < iifFields.size(); i++ ) {
+      SQLField iifField = iifFields.get( i );
+      IifFunction iif = iifField.getIif();
+      ValueMetaInterface trueMeta = iif.getTrueValue().getValueMeta();
+      ValueMetaInterface falseMeta = iif.getFalseValue().getValueMeta();
       //CHECKSTYLE:Indentation:OFF
-      trueMeta.getFieldName()[0] = Const.NVL( iifField.getAlias(), iifField.getField() );
-      trueMeta.getFieldType()[0] = iif.getTrueValue().getValueMeta().getTypeDesc();
-      trueMeta.getValue()[0] = iif.getTrueValue().toString();
-      trueMeta.getFieldFormat()[0] = valueMeta.getConversionMask();
-    }
-    StepMeta trueStep = new StepMeta( "TRUE: " + iifField.getExpression(), trueMetaInterface );
-    trueStep.setLocation( xLocation, 50 );
-    trueStep.setDraw( true );
-    lastStep = addToTrans( trueStep, transMeta, filterStep );
-
-    StepMetaInterface falseMetaInterface;
-    valueMeta = iif.getFalseValue().getValueMeta();
-    if ( iif.isFalseField() ) {
-      CalculatorMeta falseMeta = new CalculatorMeta();
-      falseMetaInterface = falseMeta;
-      falseMeta.allocate( 1 );
-      CalculatorMetaFunction function = new CalculatorMetaFunction();
-      function.setFieldName( Const.NVL( iifField.getAlias(), iifField.getField() ) );
-      function.setCalcType( CalculatorMetaFunction.CALC_COPY_OF_FIELD );
-      function.setValueType( valueMeta.getType() );
-      function.setValueLength( valueMeta.getLength() );
-      function.setValuePrecision( valueMeta.getPrecision() );
-      function.setFieldA( iif.getFalseValueString() );
-      function.setConversionMask( valueMeta.getConversionMask() );
-      falseMeta.getCalculation()[0] = function;
-    } else {
-
-      ConstantMeta falseMeta = new ConstantMeta();
-      falseMetaInterface = falseMeta;
-      falseMeta.allocate( 1 );
-      falseMeta.getFieldName()[0] = Const.NVL( iifField.getAlias(), iifField.getField() );
-      falseMeta.getFieldType()[0] = iif.getFalseValue().getValueMeta().getTypeDesc();
-      falseMeta.getFieldFormat()[0] = valueMeta.getConversionMask();
-      falseMeta.getValue()[0] = iif.getFalseValue().toString();
-    }
-    StepMeta falseStep = new StepMeta( "FALSE: " + iifField.getExpression(), falseMetaInterface );
-    falseStep.setLocation( xLocation, 150 );
-    xLocation += 100;
-    falseStep.setDraw( true );
-    lastStep = addToTrans( falseStep, transMeta, filterStep );
-
-    // specify true/false targets
-    List<StreamInterface> targetStreams = filterMeta.getStepIOMeta().getTargetStreams();
-    targetStreams.get( 0 ).setSubject( trueStep.getName() );
-    targetStreams.get( 1 ).setSubject( falseStep.getName() );
-    filterMeta.searchInfoAndTargetSteps( transMeta.getSteps() );
-
-    DummyTransMeta dummyMeta = new DummyTransMeta();
-    StepMeta dummyStep = new StepMeta( "Collect: " + iifField.getExpression(), dummyMeta );
-    dummyStep.setLocation( xLocation, 50 );
-    xLocation += 100;
-    dummyStep.setDraw( true );
-    lastStep = addToTrans( dummyStep, transMeta, trueStep );
-    transMeta.addTransHop( new TransHopMeta( falseStep, dummyStep ) );
+      meta.getFieldName()[i] = Const.NVL( iifField.getAlias(), iifField.getField() );
+      meta.getCondition()[i] = iif.getSqlCondition().getCondition();
+      meta.getTrueField()[i] = iif.isTrueField();
+      meta.getTrueValue()[i] = iif.isTrueField() ? iif.getTrueValueString() : iif.getTrueValue().toString();
+      meta.getTrueType()[i] = trueMeta.getTypeDesc();
+      meta.getTrueFormat()[i] = trueMeta.getConversionMask();
+      meta.getFalseField()[i] = iif.isFalseField();
+      meta.getFalseValue()[i] = iif.isFalseField() ? iif.getFalseValueString() : iif.getFalseValue().toString();
+      meta.getFalseType()[i] = falseMeta.getTypeDesc();
+      meta.getFalseFormat()[i] = falseMeta.getConversionMask();
+    }
 
-    return lastStep;
+    StepMeta stepMeta = new StepMeta( ConditionalFieldsMeta.STEP_ID, stepName, meta );
+    stepMeta.setLocation( xLocation, 50 );
+    xLocation += 100;
+    stepMeta.setDraw( true );
+    return stepMeta;
   }
 
   private StepMeta generateInjectorStep() {
@@ -413,8 +397,11 @@ public class SqlTransGenerator {
 
   private StepMeta generateUniqueStep( RowMetaInterface rowMeta ) {
     SQLFields fields = sql.getSelectFields();
-    MemoryGroupByMeta meta = new MemoryGroupByMeta();
+    HashGroupByMeta meta = new HashGroupByMeta();
     meta.allocate( fields.getFields().size(), 0 );
+    meta.setMemoryLimit( stepMemoryLimit );
+    // Pass each distinct row on as soon as it is seen
+    meta.setStreaming( true );
     for ( int i = 0; i < fields.getFields().size(); i++ ) {
       SQLField field = fields.getFields().get( i );
       if ( !Utils.isEmpty( field.getAlias() ) && rowMeta.searchValueMeta( field.getAlias() ) != null ) {
@@ -424,7 +411,7 @@ public class SqlTransGenerator {
       }
     }
 
-    StepMeta stepMeta = new StepMeta( "DISTINCT", meta );
+    StepMeta stepMeta = new StepMeta( HashGroupByMeta.STEP_ID, "DISTINCT", meta );
     stepMeta.setLocation( xLocation, 50 );
     xLocation += 100;
     stepMeta.setDraw( true );
@@ -499,7 +486,7 @@ public class SqlTransGenerator {
     FilterRowsMeta meta = new FilterRowsMeta();
     meta.setCondition( condition );
 
-    StepMeta stepMeta = new StepMeta( isHaving ? "Having filter" : "Where filter", meta );
+    StepMeta stepMeta = new StepMeta( isHaving ? HAVING_FILTER_STEP : WHERE_FILTER_STEP, meta );
     stepMeta.setLocation( xLocation, 50 );
     xLocation += 100;
     stepMeta.setDraw( true );
@@ -531,7 +518,7 @@ public class SqlTransGenerator {
 
   private StepMeta generateGroupByStep( List<SQLField> aggFields, List<SQLField> groupFields,
     RowMetaInterface inputFields ) throws KettleException {
-    MemoryGroupByMeta meta = new MemoryGroupByMeta();
+    HashGroupByMeta meta = new HashGroupByMeta();
     meta.allocate( groupFields.size(), aggFields.size() );
 
     // See if we need to always return a row or not (0 rows counted scenario)
@@ -549,114 +536,247 @@ public class SqlTransGenerator {
     //
     for ( int i = 0; i < aggFields.size(); i++ ) {
       SQLField field = aggFields.get( i );
-      ValueMetaInterface valueMeta = field.getValueMeta();
-      meta.getAggregateField()[i] = Const.NVL( field.getAlias(), field.getField() );
+      meta.getAggregateField()[i] = getAggregateName( field );
+      meta.getSubjectField()[i] = getSubjectField( field, inputFields );
+      meta.getAggregateType()[i] = getAggregateType( field );
+      returnRow |= field.getAggregation() == SQLAggregation.COUNT;
+    }
 
-      String subjectField;
-      if ( field.getValueData() == null ) {
-        // No constant value to aggregate
-        //
-        if ( valueMeta == null ) {
-          // No specific value to aggregate (count(*))
-          // In that case just take the first field in the input stream.
-          //
-          if ( inputFields.size() == 0 ) {
-            throw new KettleException( "No field fields found to aggregate on." );
-          }
-          subjectField = inputFields.getValueMeta( 0 ).getName();
-        } else {
-          subjectField = valueMeta.getName();
-        }
+    meta.setAlwaysGivingBackOneRow( returnRow );
+    meta.setMemoryLimit( stepMemoryLimit );
+
+    StepMeta stepMeta = new StepMeta( HashGroupByMeta.STEP_ID, "Group by", meta );
+    stepMeta.setLocation( xLocation, 50 );
+    xLocation += 100;
+    stepMeta.setDraw( true );
+
+    return stepMeta;
+  }
+
+  /**
+   * Aggregates the rows of one copy. Averages are split in a sum and a count of their non-null values.
+   */
+  private StepMeta generatePartialGroupByStep( List<SQLField> aggFields, List<SQLField> groupFields,
+    RowMetaInterface inputFields ) throws KettleException {
+    List<String> aggregateFields = Lists.newArrayList(), subjectFields = Lists.newArrayList();
+    List<Integer> aggregateTypes = Lists.newArrayList();
+    boolean returnRow = false;
+    for ( SQLField field : aggFields ) {
+      String subjectField = getSubjectField( field, inputFields );
+      if ( field.getAggregation() == SQLAggregation.AVG ) {
+        aggregateFields.add( getPartialSumName( field ) );
+        subjectFields.add( subjectField );
+        aggregateTypes.add( HashGroupByMeta.TYPE_SUM );
+        aggregateFields.add( getPartialCountName( field ) );
+        subjectFields.add( subjectField );
+        aggregateTypes.add( HashGroupByMeta.TYPE_COUNT_ALL );
       } else {
-        // A constant field to aggregate.
-        //
-        subjectField = "Constant_" + field.getFieldIndex() + "_" + field.getField();
+        aggregateFields.add( getAggregateName( field ) );
+        subjectFields.add( subjectField );
+        aggregateTypes.add( getAggregateType( field ) );
       }
+      returnRow |= field.getAggregation() == SQLAggregation.COUNT;
+    }
+
+    HashGroupByMeta meta = new HashGroupByMeta();
+    meta.allocate( groupFields.size(), aggregateFields.size() );
+    for ( int i = 0; i < groupFields.size(); i++ ) {
+      meta.getGroupField()[i] = groupFields.get( i ).getField();
+    }
+    for ( int i = 0; i < aggregateFields.size(); i++ ) {
+      meta.getAggregateField()[i] = aggregateFields.get( i );
+      meta.getSubjectField()[i] = subjectFields.get( i );
+      meta.getAggregateType()[i] = aggregateTypes.get( i );
+    }
+    // An empty copy must not add a group of its own, unless all rows end up in one group anyway
+    meta.setAlwaysGivingBackOneRow( returnRow && groupFields.isEmpty() );
+    // The copies share the budget
+    meta.setMemoryLimit( stepMemoryLimit > 0 ? Math.max( stepMemoryLimit / parallelism, 1 ) : 0 );
+
+    StepMeta stepMeta = new StepMeta( HashGroupByMeta.STEP_ID, "Partial group by", meta );
+    stepMeta.setLocation( xLocation, 50 );
+    xLocation += 100;
+    stepMeta.setDraw( true );
+    return stepMeta;
+  }
 
-      meta.getSubjectField()[i] = subjectField;
-      int agg = 0;
+  private StepMeta generateMergeGroupByStep( List<SQLField> aggFields, List<SQLField> groupFields ) {
+    MergeGroupByMeta meta = new MergeGroupByMeta();
+    meta.allocate( groupFields.size(), aggFields.size() );
+    for ( int i = 0; i < groupFields.size(); i++ ) {
+      meta.getGroupField()[i] = groupFields.get( i ).getField();
+    }
+    boolean returnRow = false;
+    for ( int i = 0; i < aggFields.size(); i++ ) {
+      SQLField field = aggFields.get( i );
+      meta.getAggregateField()[i] = getAggregateName( field );
+      meta.getSubjectField()[i] = getAggregateName( field );
       switch ( field.getAggregation() ) {
         case SUM:
-          agg = MemoryGroupByMeta.TYPE_GROUP_SUM;
+          meta.getAggregateType()[i] = MergeGroupByMeta.TYPE_SUM;
           break;
         case MIN:
-          agg = MemoryGroupByMeta.TYPE_GROUP_MIN;
+          meta.getAggregateType()[i] = MergeGroupByMeta.TYPE_MIN;
           break;
         case MAX:
-          agg = MemoryGroupByMeta.TYPE_GROUP_MAX;
+          meta.getAggregateType()[i] = MergeGroupByMeta.TYPE_MAX;
           break;
         case COUNT:
-          if ( field.isCountStar() ) {
-            agg = MemoryGroupByMeta.TYPE_GROUP_COUNT_ANY;
-          } else if ( field.isCountDistinct() ) {
-            agg = MemoryGroupByMeta.TYPE_GROUP_COUNT_DISTINCT;
-          } else {
-            // Count a particular field
-            agg = MemoryGroupByMeta.TYPE_GROUP_COUNT_ALL;
-          }
+          meta.getAggregateType()[i] = MergeGroupByMeta.TYPE_COUNT;
           returnRow = true;
           break;
-        case AVG:
-          agg = MemoryGroupByMeta.TYPE_GROUP_AVERAGE;
-          break;
         default:
-          throw new KettleException( "Unhandled aggregation method [" + field.getAggregation() + "]" );
+          meta.getSubjectField()[i] = getPartialSumName( field );
+          meta.getCountField()[i] = getPartialCountName( field );
+          meta.getAggregateType()[i] = MergeGroupByMeta.TYPE_AVERAGE;
+          break;
       }
-      meta.getAggregateType()[i] = agg;
     }
-
     meta.setAlwaysGivingBackOneRow( returnRow );
 
-    StepMeta stepMeta = new StepMeta( "Group by", meta );
+    StepMeta stepMeta = new StepMeta( MergeGroupByMeta.STEP_ID, "Group by", meta );
     stepMeta.setLocation( xLocation, 50 );
     xLocation += 100;
     stepMeta.setDraw( true );
-
     return stepMeta;
   }
 
+  /**
+   * Only aggregates that can be merged from partial results run in parallel: COUNT(DISTINCT) can not.
+   */
+  private boolean isParallel( List<SQLField> aggFields ) {
+    if ( parallelism <= 1 ) {
+      return false;
+    }
+    for ( SQLField field : aggFields ) {
+      if ( field.isCountDistinct() ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String getAggregateName( SQLField field ) {
+    return Const.NVL( field.getAlias(), field.getField() );
+  }
+
+  private String getPartialSumName( SQLField field ) {
+    return "Partial sum " + getAggregateName( field );
+  }
+
+  private String getPartialCountName( SQLField field ) {
+    return "Partial count " + getAggregateName( field );
+  }
+
+  private String getSubjectField( SQLField field, RowMetaInterface inputFields ) throws KettleException {
+    ValueMetaInterface valueMeta = field.getValueMeta();
+    if ( field.getValueData() == null ) {
+      // No constant value to aggregate
+      //
+      if ( valueMeta == null ) {
+        // No specific value to aggregate (count(*))
+        // In that case just take the first field in the input stream.
+        //
+        if ( inputFields.size() == 0 ) {
+          throw new KettleException( "No field fields found to aggregate on." );
+        }
+        return inputFields.getValueMeta( 0 ).getName();
+      }
+      return valueMeta.getName();
+    }
+    // A constant field to aggregate.
+    //
+    return "Constant_" + field.getFieldIndex() + "_" + field.getField();
+  }
+
+  private int getAggregateType( SQLField field ) throws KettleException {
+    switch ( field.getAggregation() ) {
+      case SUM:
+        return HashGroupByMeta.TYPE_SUM;
+      case MIN:
+        return HashGroupByMeta.TYPE_MIN;
+      case MAX:
+        return HashGroupByMeta.TYPE_MAX;
+      case COUNT:
+        if ( field.isCountStar() ) {
+          return HashGroupByMeta.TYPE_COUNT_ANY;
+        } else if ( field.isCountDistinct() ) {
+          return HashGroupByMeta.TYPE_COUNT_DISTINCT;
+        }
+        // Count a particular field
+        return HashGroupByMeta.TYPE_COUNT_ALL;
+      case AVG:
+        return HashGroupByMeta.TYPE_AVERAGE;
+      default:
+        throw new KettleException( "Unhandled aggregation method [" + field.getAggregation() + "]" );
+    }
+  }
+
   private StepMeta generateSortStep( RowMetaInterface rowMeta ) throws KettleException {
     List<SQLField> fields = sql.getOrderFields().getFields();
-    List<SQLField> selectFields = sql.getSelectFields().getFields();
 
-    SortRowsMeta meta = new SortRowsMeta();
+    ExternalSortMeta meta = new ExternalSortMeta();
     meta.allocate( fields.size() );
     for ( int i = 0; i < fields.size(); i++ ) {
-      SQLField sqlField = fields.get( i );
+      meta.getFieldName()[i] = findOrderField( rowMeta, fields.get( i ) ).getName();
+      meta.getAscending()[i] = fields.get( i ).isAscending();
+      meta.getCaseSensitive()[i] = true;
+    }
+    // Runs are sized to the memory the rows are estimated to take
+    meta.setMemoryLimit( stepMemoryLimit );
 
-      ValueMetaInterface valueMeta = rowMeta.searchValueMeta( sqlField.getField() );
-      if ( valueMeta == null ) {
-        // This could be an alias used in an order by clause.
-        // In that case, we need to find the correct original name in the selectFields...
-        //
-        SQLField selectField = SQLField.searchSQLFieldByFieldOrAlias( selectFields, sqlField.getField() );
-        if ( selectField != null ) {
-          // Yep, verify this original name...
-          //
-          valueMeta = rowMeta.searchValueMeta( selectField.getField() );
-        } else {
-          valueMeta = rowMeta.searchValueMeta( sqlField.getAlias() );
-        }
+    StepMeta stepMeta = new StepMeta( ExternalSortMeta.STEP_ID, "Sort rows", meta );
+    stepMeta.setLocation( xLocation, 50 );
+    xLocation += 100;
+    stepMeta.setDraw( true );
+    return stepMeta;
+  }
 
-      }
-      if ( valueMeta == null ) {
-        throw new KettleException( "Unable to find field to sort on: "
-          + sqlField.getField() + " nor the alias: " + sqlField.getAlias() );
-      }
+  private StepMeta generateTopNStep( RowMetaInterface rowMeta ) throws KettleException {
+    List<SQLField> fields = sql.getOrderFields().getFields();
 
-      meta.getFieldName()[i] = valueMeta.getName();
-      meta.getAscending()[i] = sqlField.isAscending();
+    TopNMeta meta = new TopNMeta();
+    meta.allocate( fields.size() );
+    for ( int i = 0; i < fields.size(); i++ ) {
+      meta.getFieldName()[i] = findOrderField( rowMeta, fields.get( i ) ).getName();
+      meta.getAscending()[i] = fields.get( i ).isAscending();
       meta.getCaseSensitive()[i] = true;
     }
-    meta.setSortSize( "1000000" );
+    meta.setLimit( sql.getLimitValues().getLimit() );
+    meta.setOffset( sql.getLimitValues().getOffset() );
 
-    StepMeta stepMeta = new StepMeta( "Sort rows", meta );
+    StepMeta stepMeta = new StepMeta( TopNMeta.STEP_ID, "Top N rows", meta );
     stepMeta.setLocation( xLocation, 50 );
     xLocation += 100;
     stepMeta.setDraw( true );
     return stepMeta;
   }
 
+  private ValueMetaInterface findOrderField( RowMetaInterface rowMeta, SQLField sqlField ) throws KettleException {
+    List<SQLField> selectFields = sql.getSelectFields().getFields();
+
+    ValueMetaInterface valueMeta = rowMeta.searchValueMeta( sqlField.getField() );
+    if ( valueMeta == null ) {
+      // This could be an alias used in an order by clause.
+      // In that case, we need to find the correct original name in the selectFields...
+      //
+      SQLField selectField = SQLField.searchSQLFieldByFieldOrAlias( selectFields, sqlField.getField() );
+      if ( selectField != null ) {
+        // Yep, verify this original name...
+        //
+        valueMeta = rowMeta.searchValueMeta( selectField.getField() );
+      } else {
+        valueMeta = rowMeta.searchValueMeta( sqlField.getAlias() );
+      }
+
+    }
+    if ( valueMeta == null ) {
+      throw new KettleException( "Unable to find field to sort on: "
+        + sqlField.getField() + " nor the alias: " + sqlField.getAlias() );
+    }
+    return valueMeta;
+  }
+
   private StepMeta generateSelectStep() {
     List<SQLField> fields = sql.getSelectFields().getFields();
 
@@ -728,4 +848,73 @@ public class SqlTransGenerator {
   public int getServiceRowLimit() {
     return serviceLimit;
   }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * @param parallelism Number of copies aggregating queries are split over, 1 to run every step in a single copy
+   */
+  public void setParallelism( int parallelism ) {
+    this.parallelism = Math.max( parallelism, 1 );
+  }
+
+  public long getQueryMemoryLimit() {
+    return queryMemoryLimit;
+  }
+
+  /**
+   * @param queryMemoryLimit Estimated bytes the query may hold in memory to group, deduplicate and sort rows before
+   *                         spilling them to disk, 0 for no limit. Shared by the steps doing so.
+   */
+  public void setQueryMemoryLimit( long queryMemoryLimit ) {
+    this.queryMemoryLimit = Math.max( queryMemoryLimit, 0 );
+  }
+
+  public boolean isRewritePlan() {
+    return rewritePlan;
+  }
+
+  /**
+   * @param rewritePlan Whether to {@link PlanRewriter rewrite} the generated transformation into fewer steps. The
+   *                    result step may then be another step than the result dummy.
+   */
+  public void setRewritePlan( boolean rewritePlan ) {
+    this.rewritePlan = rewritePlan;
+  }
+
+  /**
+   * @return the service fields injected into the generated transformation, only those the query refers to
+   */
+  public RowMetaInterface getInjectedFields() {
+    return serviceFields;
+  }
+
+  /**
+   * Whether the generated transformation only reads the values of injected rows. No injected field is converted in
+   * place and none is stored as binary strings, which sorting and grouping would convert in place. Steps that add
+   * fields resize the row, so exact-length rows are never written to.
+   *
+   * @return true if injected rows may be handed over without copying them
+   */
+  public boolean isReadOnlyInjection() {
+    for ( ValueMetaInterface valueMeta : serviceFields.getValueMetaList() ) {
+      if ( getType( valueMeta ) != TYPE_NONE || valueMeta.isStorageBinaryString() ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the most rows the generated transformation writes to its result step, or 0 if not limited
+   */
+  public int getResultRowLimit() {
+    int limit = sql.getLimitClause() != null ? sql.getLimitValues().getLimit() : 0;
+    if ( rowLimit > 0 && ( limit <= 0 || rowLimit < limit ) ) {
+      return rowLimit;
+    }
+    return Math.max( limit, 0 );
+  }
 }
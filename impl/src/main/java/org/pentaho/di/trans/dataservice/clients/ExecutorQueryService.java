@@ -64,6 +64,7 @@ public class ExecutorQueryService implements Query.Service {
         .rowLimit( maxRows )
         .parameters( parameters )
         .metastore( metaStore )
+        .inlineEvaluation( true )
         .build();
       query = new ExecutorQuery( executor );
     } catch ( Exception e ) {
@@ -120,7 +121,13 @@ public class ExecutorQueryService implements Query.Service {
     }
 
     @Override public List<Trans> getTransList() {
-      return ImmutableList.of( executor.getServiceTrans(), executor.getGenTrans() );
+      // Cached results run neither transformation, inline queries never run the generated one
+      if ( executor.isCachedResult() ) {
+        return ImmutableList.of();
+      }
+      return executor.isInline()
+        ? ImmutableList.of( executor.getServiceTrans() )
+        : ImmutableList.of( executor.getServiceTrans(), executor.getGenTrans() );
     }
 
     @Override
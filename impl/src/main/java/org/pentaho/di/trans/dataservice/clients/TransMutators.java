@@ -23,10 +23,14 @@ package org.pentaho.di.trans.dataservice.clients;
 
 import org.pentaho.di.trans.TransHopMeta;
 import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepIOMetaInterface;
 import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 import java.util.stream.IntStream;
 
@@ -52,6 +56,50 @@ public class TransMutators {
     }
   }
 
+  /**
+   * Physically remove disabled hops, along with the steps that can not run because all of their hops are disabled.
+   * Steps still referenced by name from the remaining steps are kept, and so is the service step.
+   */
+  public static void removeUnusedSteps( final String stepName, final TransMeta serviceTrans ) {
+    Set<StepMeta> keep = new HashSet<>( serviceTrans.getTransHopSteps( false ) );
+    Optional.ofNullable( serviceTrans.findStep( stepName ) ).ifPresent( keep::add );
+    for ( StepMeta stepMeta : new ArrayList<>( keep ) ) {
+      keep.addAll( getReferencedSteps( stepMeta ) );
+    }
+
+    // Steps without any hops are left alone, only steps cut off by disabled hops go
+    List<StepMeta> unused = serviceTrans.getSteps().stream()
+      .filter( stepMeta -> !keep.contains( stepMeta ) && serviceTrans.isStepUsedInTransHops( stepMeta ) )
+      .collect( toList() );
+
+    for ( int i = serviceTrans.nrTransHops() - 1; i >= 0; i-- ) {
+      if ( !serviceTrans.getTransHop( i ).isEnabled() ) {
+        serviceTrans.removeTransHop( i );
+      }
+    }
+    for ( StepMeta stepMeta : unused ) {
+      serviceTrans.removeStep( serviceTrans.indexOfStep( stepMeta ) );
+    }
+  }
+
+  private static List<StepMeta> getReferencedSteps( StepMeta stepMeta ) {
+    List<StepMeta> referenced = new ArrayList<>();
+    if ( stepMeta.getStepErrorMeta() != null && stepMeta.getStepErrorMeta().getTargetStep() != null ) {
+      referenced.add( stepMeta.getStepErrorMeta().getTargetStep() );
+    }
+    StepIOMetaInterface stepIOMeta = stepMeta.getStepMetaInterface() != null
+      ? stepMeta.getStepMetaInterface().getStepIOMeta() : null;
+    if ( stepIOMeta != null ) {
+      for ( StreamInterface stream : stepIOMeta.getInfoStreams() ) {
+        Optional.ofNullable( stream.getStepMeta() ).ifPresent( referenced::add );
+      }
+      for ( StreamInterface stream : stepIOMeta.getTargetStreams() ) {
+        Optional.ofNullable( stream.getStepMeta() ).ifPresent( referenced::add );
+      }
+    }
+    return referenced;
+  }
+
   private static void findUpstreamHops(
     Set<TransHopMeta> upstreamHops, List<TransHopMeta> all, StepMeta step, final boolean includeTargetedSteps ) {
     for ( TransHopMeta hop : all ) {
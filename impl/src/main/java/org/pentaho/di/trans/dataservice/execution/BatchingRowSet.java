@@ -0,0 +1,328 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.pentaho.di.core.BaseRowSet;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.RowSet;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.step.StepInterface;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Row set handing rows from a single producer thread to a single consumer step in batches.
+ * <p>
+ * Rows are collected into a batch on the producer side and published through a bounded ring buffer, so the two
+ * threads only synchronize once per batch. Batches start with a single row, so the first row is handed over
+ * immediately. They grow while the consumer is busy and shrink again whenever it is left waiting for rows.
+ * Drained batches are refilled by the producer once the consumer moved past them.
+ * <p>
+ * A waiting thread parks until the other one publishes or drains a batch. A partially filled batch is published
+ * with the next row if the consumer waits for it. If the producer is done or idle for longer than
+ * {@link #LINGER_NANOS}, the consumer takes the collected rows itself.
+ */
+public class BatchingRowSet extends BaseRowSet {
+  static final int MAX_BATCH_SIZE = 256;
+  static final int RING_SIZE = 64;
+  static final long LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos( 1 );
+
+  private static final int SEALED = -1;
+
+  private final Batch[] ring = new Batch[ RING_SIZE ];
+  // Batches before head are drained and may be refilled
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicInteger queuedRows = new AtomicInteger();
+
+  // Producer side
+  private volatile Thread producer;
+  private volatile boolean producerWaiting;
+  private volatile Batch batch = new Batch( 1 );
+  private int targetSize = 1;
+
+  // Consumer side
+  private volatile Thread consumer;
+  private volatile boolean consumerWaiting;
+  private long next;
+  private Batch current;
+  private Object[][] currentRows;
+  private int position;
+
+  /**
+   * Replace the row set of a row producer with a batching one. Must be called before the transformation starts.
+   *
+   * @return a producer writing to the batching row set, or the given producer if its row set can not be replaced
+   */
+  public static RowProducer batching( RowProducer rowProducer ) {
+    StepInterface step = rowProducer.getStepInterface();
+    RowSet rowSet = rowProducer.getRowSet();
+    if ( step == null || rowSet == null ) {
+      return rowProducer;
+    }
+    List<RowSet> inputRowSets = step.getInputRowSets();
+    int index = inputRowSets.indexOf( rowSet );
+    if ( index < 0 ) {
+      return rowProducer;
+    }
+
+    BatchingRowSet batchingRowSet = new BatchingRowSet();
+    batchingRowSet.setThreadNameFromToCopy( rowSet.getOriginStepName(), rowSet.getOriginStepCopy(),
+      rowSet.getDestinationStepName(), rowSet.getDestinationStepCopy() );
+    inputRowSets.set( index, batchingRowSet );
+    return new RowProducer( step, batchingRowSet );
+  }
+
+  @Override public boolean putRow( RowMetaInterface rowMeta, Object[] rowData ) {
+    return putRowWait( rowMeta, rowData, Const.TIMEOUT_PUT_MILLIS, TimeUnit.MILLISECONDS );
+  }
+
+  @Override public boolean putRowWait( RowMetaInterface rowMeta, Object[] rowData, long time, TimeUnit tu ) {
+    if ( producer == null ) {
+      producer = Thread.currentThread();
+    }
+    setRowMeta( rowMeta );
+
+    if ( batch.state.get() == MAX_BATCH_SIZE && !publish( System.nanoTime() + tu.toNanos( time ) ) ) {
+      return false;
+    }
+    if ( append( rowData ) >= targetSize || consumerWaiting ) {
+      // Keep collecting rows if the consumer is behind
+      tryPublish();
+    }
+    return true;
+  }
+
+  /**
+   * Rows still collected by the producer are taken over by the consumer, whichever thread is done.
+   */
+  @Override public void setDone() {
+    super.setDone();
+    if ( consumerWaiting ) {
+      LockSupport.unpark( consumer );
+    }
+  }
+
+  @Override public Object[] getRow() {
+    return getRowWait( Const.TIMEOUT_GET_MILLIS, TimeUnit.MILLISECONDS );
+  }
+
+  @Override public Object[] getRowImmediate() {
+    return poll( isDone() );
+  }
+
+  @Override public Object[] getRowWait( long timeout, TimeUnit tu ) {
+    Object[] row = poll( false );
+    if ( row != null ) {
+      return row;
+    }
+
+    long now = System.nanoTime();
+    long deadline = now + tu.toNanos( timeout );
+    long lingerDeadline = now + LINGER_NANOS;
+    consumer = Thread.currentThread();
+    consumerWaiting = true;
+    try {
+      for ( ;; ) {
+        boolean done = isDone();
+        boolean lingered = now - lingerDeadline >= 0;
+        row = poll( done || lingered );
+        if ( row != null || done ) {
+          return row;
+        }
+        long remaining = deadline - now;
+        if ( remaining <= 0 ) {
+          return null;
+        }
+        LockSupport.parkNanos( this, lingered ? remaining : Math.min( remaining, lingerDeadline - now ) );
+        now = System.nanoTime();
+      }
+    } finally {
+      consumerWaiting = false;
+    }
+  }
+
+  @Override public int size() {
+    Batch currentBatch = current;
+    return queuedRows.get()
+      + ( currentBatch != null ? Math.max( 0, currentBatch.size - position ) : 0 )
+      + Math.max( 0, batch.state.get() );
+  }
+
+  @Override public void clear() {
+    Arrays.fill( ring, null );
+    next = tail.get();
+    head.set( next );
+    queuedRows.set( 0 );
+    batch = new Batch( 1 );
+    targetSize = 1;
+    current = null;
+    currentRows = null;
+    position = 0;
+    done.set( false );
+  }
+
+  public boolean isBlocking() {
+    return true;
+  }
+
+  @VisibleForTesting
+  int getTargetSize() {
+    return targetSize;
+  }
+
+  /**
+   * @return number of rows in the collected batch
+   */
+  private int append( Object[] rowData ) {
+    Batch collecting = batch;
+    int size = collecting.state.get();
+    if ( size >= 0 ) {
+      if ( size == collecting.rows.length ) {
+        collecting.rows = Arrays.copyOf( collecting.rows, Math.min( MAX_BATCH_SIZE, size << 1 ) );
+      }
+      collecting.rows[ size ] = rowData;
+      if ( collecting.state.compareAndSet( size, size + 1 ) ) {
+        return size + 1;
+      }
+    }
+    // The consumer took the collected rows
+    collecting = new Batch( targetSize );
+    collecting.rows[ 0 ] = rowData;
+    collecting.state.set( 1 );
+    batch = collecting;
+    return 1;
+  }
+
+  private boolean tryPublish() {
+    Batch collected = batch;
+    int size = collected.state.get();
+    if ( size < 0 ) {
+      // The consumer took the collected rows
+      batch = new Batch( targetSize );
+      return true;
+    }
+    long t = tail.get();
+    if ( t - head.get() >= RING_SIZE ) {
+      return false;
+    }
+    if ( size > 0 && collected.state.compareAndSet( size, SEALED ) ) {
+      // Smaller batches while the consumer is starved for rows, larger while it is busy
+      targetSize = consumerWaiting ? Math.max( 1, targetSize >> 1 ) : Math.min( MAX_BATCH_SIZE, targetSize << 1 );
+
+      collected.size = size;
+      queuedRows.addAndGet( size );
+      int slot = (int) ( t & ( RING_SIZE - 1 ) );
+      Batch drained = ring[ slot ];
+      ring[ slot ] = collected;
+      tail.set( t + 1 );
+      if ( consumerWaiting ) {
+        LockSupport.unpark( consumer );
+      }
+      batch = drained != null ? drained.reset() : new Batch( targetSize );
+    } else if ( size > 0 ) {
+      // The consumer took the collected rows meanwhile
+      batch = new Batch( targetSize );
+    }
+    return true;
+  }
+
+  private boolean publish( long deadline ) {
+    while ( !tryPublish() ) {
+      long remaining = deadline - System.nanoTime();
+      if ( remaining <= 0 ) {
+        return false;
+      }
+      producerWaiting = true;
+      if ( tail.get() - head.get() >= RING_SIZE ) {
+        LockSupport.parkNanos( this, remaining );
+      }
+      producerWaiting = false;
+    }
+    return true;
+  }
+
+  private Object[] poll( boolean takeCollected ) {
+    if ( current == null ) {
+      current = take( takeCollected );
+      if ( current == null ) {
+        return null;
+      }
+      currentRows = current.rows;
+      position = 0;
+    }
+    Object[] row = currentRows[ position ];
+    currentRows[ position++ ] = null;
+    if ( position == current.size ) {
+      // Drained batch may be refilled by the producer
+      current = null;
+      currentRows = null;
+      head.set( next );
+      if ( producerWaiting ) {
+        LockSupport.unpark( producer );
+      }
+    }
+    return row;
+  }
+
+  private Batch take( boolean takeCollected ) {
+    // Read before the tail, so a batch published before this one is found in the ring
+    Batch collecting = batch;
+    if ( next < tail.get() ) {
+      Batch taken = ring[ (int) ( next++ & ( RING_SIZE - 1 ) ) ];
+      queuedRows.addAndGet( -taken.size );
+      return taken;
+    }
+    int size = collecting.state.get();
+    if ( takeCollected && size > 0 && collecting.state.compareAndSet( size, SEALED ) ) {
+      collecting.size = size;
+      return collecting;
+    }
+    return null;
+  }
+
+  private static final class Batch {
+    // Number of collected rows, until the batch is SEALED by publishing it or by the consumer taking it
+    final AtomicInteger state = new AtomicInteger();
+    volatile Object[][] rows;
+    int size;
+
+    Batch( int capacity ) {
+      rows = new Object[ capacity ][];
+    }
+
+    Batch reset() {
+      size = 0;
+      state.set( 0 );
+      return this;
+    }
+  }
+}
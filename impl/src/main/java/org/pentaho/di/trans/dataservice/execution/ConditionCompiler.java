@@ -0,0 +1,342 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Longs;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaAndData;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles a {@link Condition} into a {@link RowPredicate} for a known row layout.
+ * <p>
+ * {@link Condition#evaluate(RowMetaInterface, Object[])} walks the condition tree and converts constants on every
+ * row. A compiled predicate resolves field indexes and converts constants once, compares integers and numbers
+ * without going through the value meta, checks IN lists against a typed hash set, and evaluates cheap operands of
+ * AND/OR groups first. Anything it does not specialize is delegated to the condition itself, so results are always
+ * the same as {@link Condition#evaluate(RowMetaInterface, Object[])}.
+ */
+public class ConditionCompiler {
+
+  // Relative cost of evaluating a predicate, used to order operands of AND/OR groups
+  private static final int COST_CONSTANT = 0;
+  private static final int COST_NULL_CHECK = 1;
+  private static final int COST_PRIMITIVE = 2;
+  private static final int COST_COMPARE = 4;
+  private static final int COST_IN_LIST = 6;
+  private static final int COST_INTERPRETED = 10;
+
+  private final RowMetaInterface rowMeta;
+  private final boolean nullsNotSmaller;
+
+  private ConditionCompiler( RowMetaInterface rowMeta ) {
+    this.rowMeta = rowMeta;
+    this.nullsNotSmaller =
+      "Y".equalsIgnoreCase( System.getProperty( Const.KETTLE_FILTER_TREAT_NULLS_AS_NOT_ZERO, "N" ) );
+  }
+
+  /**
+   * @param condition Condition to compile, must not be modified while the predicate is in use
+   * @param rowMeta   Layout of the rows the predicate will be tested against
+   * @return predicate equivalent to the condition for rows of this layout
+   */
+  public static RowPredicate compile( Condition condition, RowMetaInterface rowMeta ) {
+    return new ConditionCompiler( rowMeta ).compile( condition ).predicate;
+  }
+
+  private Compiled compile( Condition condition ) {
+    Compiled compiled = condition.isAtomic() ? compileAtomic( condition ) : compileComposite( condition );
+    return condition.isNegated() ? compiled.negate() : compiled;
+  }
+
+  private Compiled compileComposite( Condition condition ) {
+    List<Condition> children = condition.getChildren();
+    List<Compiled> operands = new ArrayList<>( children.size() );
+    int cost = 0;
+    for ( Condition child : children ) {
+      Compiled operand = compile( child );
+      operands.add( operand );
+      cost += operand.cost;
+    }
+
+    int operator = commonOperator( children );
+    if ( operator == Condition.OPERATOR_AND || operator == Condition.OPERATOR_OR ) {
+      // Operands have no side effects, so cheap ones can go first
+      operands.sort( Comparator.comparingInt( operand -> operand.cost ) );
+      final RowPredicate[] predicates = predicates( operands );
+      if ( operator == Condition.OPERATOR_AND ) {
+        return new Compiled( row -> {
+          for ( RowPredicate predicate : predicates ) {
+            if ( !predicate.test( row ) ) {
+              return false;
+            }
+          }
+          return true;
+        }, cost );
+      } else {
+        return new Compiled( row -> {
+          for ( RowPredicate predicate : predicates ) {
+            if ( predicate.test( row ) ) {
+              return true;
+            }
+          }
+          return false;
+        }, cost );
+      }
+    }
+
+    // Mixed operators are folded left to right, like Condition does
+    final RowPredicate[] predicates = predicates( operands );
+    final int[] operators = new int[ children.size() ];
+    for ( int i = 0; i < operators.length; i++ ) {
+      operators[ i ] = children.get( i ).getOperator();
+    }
+    return new Compiled( row -> {
+      boolean result = predicates[ 0 ].test( row );
+      for ( int i = 1; i < predicates.length; i++ ) {
+        switch ( operators[ i ] ) {
+          case Condition.OPERATOR_OR:
+            result = result || predicates[ i ].test( row );
+            break;
+          case Condition.OPERATOR_AND:
+            result = result && predicates[ i ].test( row );
+            break;
+          case Condition.OPERATOR_OR_NOT:
+            result = result || !predicates[ i ].test( row );
+            break;
+          case Condition.OPERATOR_AND_NOT:
+            result = result && !predicates[ i ].test( row );
+            break;
+          case Condition.OPERATOR_XOR:
+            result = result ^ predicates[ i ].test( row );
+            break;
+          default:
+            break;
+        }
+      }
+      return result;
+    }, cost );
+  }
+
+  /**
+   * @return the operator joining all children, or -1 if they are joined by different operators
+   */
+  private static int commonOperator( List<Condition> children ) {
+    int operator = -1;
+    for ( int i = 1; i < children.size(); i++ ) {
+      int childOperator = children.get( i ).getOperator();
+      if ( operator >= 0 && operator != childOperator ) {
+        return -1;
+      }
+      operator = childOperator;
+    }
+    return operator;
+  }
+
+  private static RowPredicate[] predicates( List<Compiled> operands ) {
+    RowPredicate[] predicates = new RowPredicate[ operands.size() ];
+    for ( int i = 0; i < predicates.length; i++ ) {
+      predicates[ i ] = operands.get( i ).predicate;
+    }
+    return predicates;
+  }
+
+  private Compiled compileAtomic( final Condition condition ) {
+    int function = condition.getFunction();
+    if ( function == Condition.FUNC_TRUE ) {
+      return new Compiled( row -> true, COST_CONSTANT );
+    }
+
+    final int index = condition.getLeftValuename() != null ? rowMeta.indexOfValue( condition.getLeftValuename() ) : -1;
+    if ( index < 0 ) {
+      return interpreted( condition );
+    }
+    final ValueMetaInterface valueMeta = rowMeta.getValueMeta( index );
+
+    switch ( function ) {
+      case Condition.FUNC_NULL:
+        return new Compiled( row -> valueMeta.isNull( row[ index ] ), COST_NULL_CHECK );
+      case Condition.FUNC_NOT_NULL:
+        return new Compiled( row -> !valueMeta.isNull( row[ index ] ), COST_NULL_CHECK );
+      case Condition.FUNC_EQUAL:
+      case Condition.FUNC_NOT_EQUAL:
+      case Condition.FUNC_SMALLER:
+      case Condition.FUNC_SMALLER_EQUAL:
+      case Condition.FUNC_LARGER:
+      case Condition.FUNC_LARGER_EQUAL:
+        return compileComparison( condition, index, valueMeta );
+      case Condition.FUNC_IN_LIST:
+        return compileInList( condition, index, valueMeta );
+      default:
+        return interpreted( condition );
+    }
+  }
+
+  private Compiled compileComparison( Condition condition, final int index, final ValueMetaInterface valueMeta ) {
+    ValueMetaAndData exact = condition.getRightExact();
+    if ( exact == null || exact.getValueMeta() == null || exact.getValueData() == null
+      || !valueMeta.isStorageNormal() ) {
+      return interpreted( condition );
+    }
+
+    // Same conversion ValueMetaInterface#compare( Object, ValueMetaInterface, Object ) does for every row
+    final Object constant;
+    try {
+      ValueMetaInterface constantMeta = exact.getValueMeta();
+      if ( constantMeta.getType() == valueMeta.getType() ) {
+        constant = constantMeta.isStorageNormal()
+          ? exact.getValueData() : constantMeta.convertToNormalStorageType( exact.getValueData() );
+      } else {
+        constant = valueMeta.convertData( constantMeta, exact.getValueData() );
+      }
+    } catch ( KettleValueException e ) {
+      return interpreted( condition );
+    }
+    if ( constant == null ) {
+      return interpreted( condition );
+    }
+
+    final int function = condition.getFunction();
+    final boolean nullIsFalse = nullsNotSmaller
+      && ( function == Condition.FUNC_SMALLER || function == Condition.FUNC_SMALLER_EQUAL );
+
+    final ComparisonResult test = comparisonResult( function );
+    if ( !valueMeta.isSortedDescending() && valueMeta.getType() == ValueMetaInterface.TYPE_INTEGER ) {
+      final long value = (Long) constant;
+      return new Compiled( row -> {
+        Long data = (Long) row[ index ];
+        if ( data == null ) {
+          return !nullIsFalse && test.matches( -1 );
+        }
+        return test.matches( Long.compare( data, value ) );
+      }, COST_PRIMITIVE );
+    }
+    if ( !valueMeta.isSortedDescending() && valueMeta.getType() == ValueMetaInterface.TYPE_NUMBER ) {
+      final double value = (Double) constant;
+      return new Compiled( row -> {
+        Double data = (Double) row[ index ];
+        if ( data == null ) {
+          return !nullIsFalse && test.matches( -1 );
+        }
+        return test.matches( Double.compare( data, value ) );
+      }, COST_PRIMITIVE );
+    }
+    return new Compiled( row -> {
+      Object data = row[ index ];
+      if ( nullIsFalse && valueMeta.isNull( data ) ) {
+        return false;
+      }
+      return test.matches( valueMeta.compare( data, constant ) );
+    }, COST_COMPARE );
+  }
+
+  private interface ComparisonResult {
+    boolean matches( int cmp );
+  }
+
+  private static ComparisonResult comparisonResult( int function ) {
+    switch ( function ) {
+      case Condition.FUNC_EQUAL:
+        return cmp -> cmp == 0;
+      case Condition.FUNC_NOT_EQUAL:
+        return cmp -> cmp != 0;
+      case Condition.FUNC_SMALLER:
+        return cmp -> cmp < 0;
+      case Condition.FUNC_SMALLER_EQUAL:
+        return cmp -> cmp <= 0;
+      case Condition.FUNC_LARGER:
+        return cmp -> cmp > 0;
+      default:
+        return cmp -> cmp >= 0;
+    }
+  }
+
+  private Compiled compileInList( Condition condition, final int index, final ValueMetaInterface valueMeta ) {
+    ValueMetaAndData exact = condition.getRightExact();
+    if ( exact == null || exact.getValueMeta() == null ) {
+      return interpreted( condition );
+    }
+    final Set<String> values;
+    try {
+      ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+      for ( String value : Const.splitString( exact.getValueMeta().getString( exact.getValueData() ), ';', true ) ) {
+        if ( value != null ) {
+          builder.add( value.replace( "\\", "" ) );
+        }
+      }
+      values = builder.build();
+    } catch ( KettleValueException e ) {
+      return interpreted( condition );
+    }
+
+    if ( valueMeta.getType() == ValueMetaInterface.TYPE_INTEGER && valueMeta.isStorageNormal() ) {
+      // Integers are matched by their plain string form, so only values in that form can ever match
+      ImmutableSet.Builder<Long> builder = ImmutableSet.builder();
+      for ( String value : values ) {
+        Long parsed = Longs.tryParse( value );
+        if ( parsed != null && parsed.toString().equals( value ) ) {
+          builder.add( parsed );
+        }
+      }
+      final Set<Long> longValues = builder.build();
+      return new Compiled( row -> {
+        Long data = (Long) row[ index ];
+        return data != null && longValues.contains( data );
+      }, COST_IN_LIST );
+    }
+    return new Compiled( row -> {
+      String value = valueMeta.getCompatibleString( row[ index ] );
+      return value != null && values.contains( value );
+    }, COST_IN_LIST );
+  }
+
+  private Compiled interpreted( final Condition condition ) {
+    // Negation is applied by the caller
+    final boolean negated = condition.isNegated();
+    return new Compiled( row -> negated != condition.evaluate( rowMeta, row ), COST_INTERPRETED );
+  }
+
+  private static final class Compiled {
+    private final RowPredicate predicate;
+    private final int cost;
+
+    Compiled( RowPredicate predicate, int cost ) {
+      this.predicate = predicate;
+      this.cost = cost;
+    }
+
+    Compiled negate() {
+      return new Compiled( row -> !predicate.test( row ), cost );
+    }
+  }
+}
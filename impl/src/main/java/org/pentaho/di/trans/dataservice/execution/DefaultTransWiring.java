@@ -23,10 +23,14 @@
 package org.pentaho.di.trans.dataservice.execution;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.RowProducer;
 import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.RowAdapter;
 import org.pentaho.di.trans.step.StepAdapter;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
@@ -35,6 +39,11 @@ import org.pentaho.di.trans.step.StepMeta;
  * @author nhudak
  */
 public class DefaultTransWiring implements Runnable {
+  /**
+   * Steps that allocate a new row for every row they write and never touch it again
+   */
+  static final ImmutableSet<String> FRESH_ROW_STEPS = ImmutableSet.of( "TableInput", "CsvInput", "TextFileInput" );
+
   private final DataServiceExecutor dataServiceExecutor;
 
   public DefaultTransWiring( DataServiceExecutor dataServiceExecutor ) {
@@ -60,7 +69,9 @@ public class DefaultTransWiring implements Runnable {
     if ( serviceStep == null ) {
       throw Throwables.propagate( new KettleException( "Service step is not accessible" ) );
     }
-    serviceStep.addRowListener( new DefaultTransWiringRowAdapter( serviceTrans, genTrans, rowProducer ) );
+    serviceStep.addRowListener( new DefaultTransWiringRowAdapter( serviceTrans, genTrans, rowProducer,
+      dataServiceExecutor.getServiceRowLimit(),
+      new RowProjection( dataServiceExecutor.getInjectedFields(), ownership( serviceTrans, serviceStep ) ) ) );
 
     // Let the other transformation know when there are no more rows
     //
@@ -70,16 +81,49 @@ public class DefaultTransWiring implements Runnable {
       }
     } );
 
-    dataServiceExecutor.getGenTrans()
-      .findRunThread( dataServiceExecutor.getResultStepName() )
-      .addStepListener( new StepAdapter() {
-        @Override public void stepFinished( Trans trans, StepMeta stepMeta, StepInterface step ) {
-          if ( serviceTrans.isRunning() ) {
-            trans.getLogChannel().logBasic( "Query finished, stopping service transformation" );
-            serviceTrans.stopAll();
+    StepInterface resultStep = genTrans.findRunThread( dataServiceExecutor.getResultStepName() );
+    resultStep.addStepListener( new StepAdapter() {
+      @Override public void stepFinished( Trans trans, StepMeta stepMeta, StepInterface step ) {
+        if ( serviceTrans.isRunning() ) {
+          trans.getLogChannel().logBasic( "Query finished, stopping service transformation" );
+          serviceTrans.stopAll();
+        }
+      }
+    } );
+
+    // No further rows can reach the result once the query limit is satisfied, stop reading the service right away
+    //
+    final int resultLimit = dataServiceExecutor.getResultRowLimit();
+    if ( resultLimit > 0 ) {
+      resultStep.addRowListener( new RowAdapter() {
+        private int rows;
+
+        @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) {
+          if ( ++rows == resultLimit ) {
+            dataServiceExecutor.setLimitReached();
+            if ( serviceTrans.isRunning() ) {
+              serviceTrans.getLogChannel().logBasic( "Query limit reached, stopping service transformation" );
+              serviceTrans.stopAll();
+            }
+            rowProducer.finished();
           }
         }
       } );
+    }
   }
 
+  /**
+   * Rows written by the service step are handed over without copying them if nothing else can write to them: the
+   * step allocates a new row each time, no other step reads them and the generated transformation does not modify
+   * injected values.
+   */
+  private RowProjection.Ownership ownership( Trans serviceTrans, StepInterface serviceStep ) {
+    StepMeta stepMeta = serviceStep.getStepMeta();
+    TransMeta transMeta = serviceTrans.getTransMeta();
+    if ( dataServiceExecutor.isReadOnlyInjection() && stepMeta != null && transMeta != null
+      && FRESH_ROW_STEPS.contains( stepMeta.getStepID() ) && transMeta.findNextSteps( stepMeta ).isEmpty() ) {
+      return RowProjection.Ownership.TRANSFER;
+    }
+    return RowProjection.Ownership.COPY;
+  }
 }
@@ -40,15 +40,42 @@ class DefaultTransWiringRowAdapter extends RowAdapter {
   private final Trans serviceTrans;
   private final Trans genTrans;
   private final RowProducer rowProducer;
+  private final int inputLimit;
+  private final RowProjection projection;
+  private int rowsPassed;
 
   public DefaultTransWiringRowAdapter( Trans serviceTrans, Trans genTrans, RowProducer rowProducer ) {
+    this( serviceTrans, genTrans, rowProducer, 0 );
+  }
+
+  /**
+   * @param inputLimit Number of service rows the generated transformation reads, or 0 for all of them. The service
+   *                   transformation is stopped as soon as this many rows have been passed along.
+   */
+  public DefaultTransWiringRowAdapter( Trans serviceTrans, Trans genTrans, RowProducer rowProducer,
+                                       int inputLimit ) {
+    this( serviceTrans, genTrans, rowProducer, inputLimit, new RowProjection( null ) );
+  }
+
+  /**
+   * @param projection Takes the fields the generated transformation reads out of each service row
+   */
+  public DefaultTransWiringRowAdapter( Trans serviceTrans, Trans genTrans, RowProducer rowProducer,
+                                       int inputLimit, RowProjection projection ) {
     this.serviceTrans = serviceTrans;
     this.genTrans = genTrans;
     this.rowProducer = rowProducer;
+    this.inputLimit = inputLimit;
+    this.projection = projection;
   }
 
   @Override
   public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) throws KettleStepException {
+    // Nothing reads any further rows once the service transformation is being stopped
+    if ( serviceTrans.isStopped() || ( inputLimit > 0 && rowsPassed >= inputLimit ) ) {
+      return;
+    }
+
     // Simply pass along the row to the other transformation (to the Injector step)
     //
     LogChannelInterface log = serviceTrans.getLogChannel();
@@ -61,8 +88,9 @@ class DefaultTransWiringRowAdapter extends RowAdapter {
     }
 
     try {
-      Object[] rowData = rowMeta.cloneRow( row );
-      while ( !rowProducer.putRowWait( rowMeta, rowData, 1, TimeUnit.SECONDS ) && genTrans.isRunning() ) {
+      RowMetaInterface injectedRowMeta = projection.getRowMeta( rowMeta );
+      Object[] rowData = projection.project( rowMeta, row );
+      while ( !rowProducer.putRowWait( injectedRowMeta, rowData, 1, TimeUnit.SECONDS ) && genTrans.isRunning() ) {
         // Row queue was full, try again
         if ( log.isRowLevel() ) {
           log.logRowlevel( DataServiceConstants.ROW_BUFFER_IS_FULL_TRYING_AGAIN );
@@ -71,5 +99,11 @@ class DefaultTransWiringRowAdapter extends RowAdapter {
     } catch ( KettleValueException e ) {
       throw new KettleStepException( e );
     }
+
+    if ( inputLimit > 0 && ++rowsPassed == inputLimit ) {
+      log.logBasic( "Service row limit reached, stopping service transformation" );
+      rowProducer.finished();
+      serviceTrans.stopAll();
+    }
   }
 }
@@ -0,0 +1,241 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import com.google.common.base.Throwables;
+import io.reactivex.Observer;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.core.sql.SQLField;
+import org.pentaho.di.core.util.Utils;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+import org.pentaho.di.trans.step.RowAdapter;
+import org.pentaho.di.trans.step.StepAdapter;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Evaluates a simple query directly on the rows written by the service step.
+ * <p>
+ * Queries that only project fields, filter with a WHERE clause and limit their results do not need a generated
+ * transformation. Rows are filtered, projected and limited in the service step's row listener and handed to the
+ * consumer as they are written, with the same semantics as the generated steps: the service row limit applies
+ * before the WHERE filter, the LIMIT clause and the query row limit after it. Anything else falls back to the
+ * {@link org.pentaho.di.trans.dataservice.SqlTransGenerator generated transformation}.
+ */
+public class InlineEvaluation implements Runnable {
+  private final DataServiceExecutor dataServiceExecutor;
+  private final Observer<RowMetaAndData> consumer;
+
+  public InlineEvaluation( DataServiceExecutor dataServiceExecutor, Observer<RowMetaAndData> consumer ) {
+    this.dataServiceExecutor = dataServiceExecutor;
+    this.consumer = consumer;
+  }
+
+  /**
+   * @return true if the query can be evaluated without a generated transformation
+   */
+  public static boolean isSupported( SQL sql ) {
+    if ( sql.getSelectFields() == null || sql.getSelectFields().getFields().isEmpty()
+      || sql.getSelectFields().isDistinct()
+      || ( sql.getGroupFields() != null && !sql.getGroupFields().getFields().isEmpty() )
+      || sql.getHavingCondition() != null
+      || ( sql.getOrderFields() != null && !sql.getOrderFields().isEmpty() ) ) {
+      return false;
+    }
+    for ( SQLField field : sql.getSelectFields().getFields() ) {
+      if ( field.getAggregation() != null || field.getIif() != null || field.getValueData() != null ) {
+        return false;
+      }
+    }
+    return sql.getWhereCondition() == null || sql.getWhereCondition().isEmpty()
+      || sql.getWhereCondition().getDateToStrFunctions().isEmpty();
+  }
+
+  @Override public void run() {
+    final Trans serviceTrans = dataServiceExecutor.getServiceTrans();
+    StepInterface serviceStep = serviceTrans.findRunThread( dataServiceExecutor.getService().getStepname() );
+    if ( serviceStep == null ) {
+      throw Throwables.propagate( new KettleException( "Service step is not accessible" ) );
+    }
+
+    final Evaluator evaluator = new Evaluator( dataServiceExecutor.getSql(),
+      dataServiceExecutor.getServiceRowLimit(), dataServiceExecutor.getRowLimit() );
+    final AtomicBoolean completed = new AtomicBoolean( false );
+
+    serviceStep.addRowListener( new RowAdapter() {
+      @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) throws KettleStepException {
+        if ( completed.get() ) {
+          return;
+        }
+        RowMetaAndData result = evaluator.evaluate( rowMeta, row );
+        if ( result != null ) {
+          consumer.onNext( result );
+        }
+        if ( evaluator.isDone() && completed.compareAndSet( false, true ) ) {
+          dataServiceExecutor.setLimitReached();
+          if ( serviceTrans.isRunning() ) {
+            serviceTrans.getLogChannel().logBasic( "Query finished, stopping service transformation" );
+            serviceTrans.stopAll();
+          }
+          consumer.onComplete();
+        }
+      }
+    } );
+
+    serviceStep.addStepListener( new StepAdapter() {
+      @Override public void stepFinished( Trans trans, StepMeta stepMeta, StepInterface step ) {
+        if ( completed.compareAndSet( false, true ) ) {
+          consumer.onComplete();
+        }
+      }
+    } );
+  }
+
+  /**
+   * Filters with a {@link ConditionCompiler compiled} WHERE condition, then projects and limits service rows, one
+   * row at a time.
+   */
+  static class Evaluator {
+    private final SQL sql;
+    private final Condition condition;
+    private final long serviceRowLimit;
+    private final long offset;
+    private final long end;
+
+    private long inputRows;
+    private long matchedRows;
+    private boolean done;
+
+    private RowMetaInterface inputRowMeta;
+    private RowPredicate predicate;
+    private RowMetaInterface outputRowMeta;
+    private int[] fieldIndexes;
+
+    Evaluator( SQL sql, int serviceRowLimit, int rowLimit ) {
+      this.sql = sql;
+      this.condition = sql.getWhereCondition() != null && !sql.getWhereCondition().isEmpty()
+        ? sql.getWhereCondition().getCondition() : null;
+      this.serviceRowLimit = serviceRowLimit;
+
+      long offset = 0;
+      long end = Long.MAX_VALUE;
+      if ( sql.getLimitClause() != null ) {
+        offset = sql.getLimitValues().getOffset();
+        end = offset + sql.getLimitValues().getLimit();
+      }
+      if ( rowLimit > 0 ) {
+        end = Math.min( end, offset + rowLimit );
+      }
+      this.offset = offset;
+      this.end = end;
+      this.done = end <= offset;
+    }
+
+    /**
+     * @return the projected row, or null if the row is not part of the result
+     */
+    RowMetaAndData evaluate( RowMetaInterface rowMeta, Object[] row ) throws KettleStepException {
+      if ( done ) {
+        return null;
+      }
+      inputRows++;
+      if ( serviceRowLimit > 0 && inputRows >= serviceRowLimit ) {
+        done = true;
+      }
+      try {
+        if ( rowMeta != inputRowMeta ) {
+          prepare( rowMeta );
+        }
+        if ( predicate != null && !predicate.test( row ) ) {
+          return null;
+        }
+        matchedRows++;
+        if ( matchedRows >= end ) {
+          done = true;
+        }
+        if ( matchedRows <= offset ) {
+          return null;
+        }
+        return project( rowMeta, row );
+      } catch ( KettleException e ) {
+        throw new KettleStepException( e );
+      }
+    }
+
+    boolean isDone() {
+      return done;
+    }
+
+    private RowMetaAndData project( RowMetaInterface rowMeta, Object[] row ) throws KettleException {
+      Object[] result = new Object[ fieldIndexes.length ];
+      for ( int i = 0; i < fieldIndexes.length; i++ ) {
+        ValueMetaInterface valueMeta = rowMeta.getValueMeta( fieldIndexes[ i ] );
+        Object value = row[ fieldIndexes[ i ] ];
+        result[ i ] = valueMeta.isStorageBinaryString() ? valueMeta.convertToNormalStorageType( value ) : value;
+      }
+      return new RowMetaAndData( outputRowMeta, result );
+    }
+
+    private void prepare( RowMetaInterface rowMeta ) throws KettleException {
+      List<SQLField> fields = sql.getSelectFields().getFields();
+      RowMetaInterface output = new RowMeta();
+      int[] indexes = new int[ fields.size() ];
+      for ( int i = 0; i < fields.size(); i++ ) {
+        SQLField field = fields.get( i );
+        indexes[ i ] = rowMeta.indexOfValue( field.getField() );
+        if ( indexes[ i ] < 0 ) {
+          throw new KettleException( "Unable to find field " + field.getField() + " in the service rows" );
+        }
+        ValueMetaInterface valueMeta = rowMeta.getValueMeta( indexes[ i ] ).clone();
+        valueMeta.setStorageType( ValueMetaInterface.STORAGE_TYPE_NORMAL );
+        valueMeta.setStorageMetadata( null );
+        // Same conversion masks as the generated transformation
+        ValueMetaInterface serviceField = sql.getRowMeta() != null
+          ? sql.getRowMeta().searchValueMeta( field.getField() ) : null;
+        if ( serviceField != null && !Utils.isEmpty( serviceField.getConversionMask() ) ) {
+          valueMeta.setConversionMask( serviceField.getConversionMask() );
+        }
+        if ( !Utils.isEmpty( field.getAlias() ) ) {
+          valueMeta.setName( field.getAlias() );
+        }
+        output.addValueMeta( valueMeta );
+      }
+      inputRowMeta = rowMeta;
+      predicate = condition != null ? ConditionCompiler.compile( condition, rowMeta ) : null;
+      outputRowMeta = output;
+      fieldIndexes = indexes;
+    }
+  }
+}
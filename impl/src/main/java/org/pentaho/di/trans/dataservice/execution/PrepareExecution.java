@@ -37,6 +37,10 @@ public class PrepareExecution implements Runnable {
   }
 
   @Override public void run() {
+    if ( trans.isReadyToStart() ) {
+      // Taken from a pool of prepared transformations
+      return;
+    }
     try {
       trans.prepareExecution( null );
     } catch ( KettleException e ) {
@@ -0,0 +1,152 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Copies the fields injected into a generated transformation out of the wider service rows.
+ * <p>
+ * Field positions are resolved by name against the row meta of the first row, and again whenever the row meta
+ * changes. Rows are passed on whole when every field is needed, copied or not depending on the {@link Ownership}.
+ */
+public class RowProjection {
+  /**
+   * Who may write to the rows and values once they are projected.
+   */
+  public enum Ownership {
+    /** The source keeps its rows, rows and values are copied */
+    COPY,
+    /** The source hands its rows over and never touches them again, rows are passed on as they are */
+    TRANSFER,
+    /** Rows are shared with other readers that never write to them, rows are trimmed to their exact length */
+    SHARE
+  }
+
+  private final RowMetaInterface fields;
+  private final Ownership ownership;
+
+  private RowMetaInterface sourceRowMeta;
+  private RowMetaInterface rowMeta;
+  private int[] indexes;
+
+  /**
+   * @param fields Fields to keep, or null to keep every field
+   */
+  public RowProjection( RowMetaInterface fields ) {
+    this( fields, Ownership.COPY );
+  }
+
+  /**
+   * @param fields    Fields to keep, or null to keep every field
+   * @param ownership How rows are handed over. Only use {@link Ownership#TRANSFER} or {@link Ownership#SHARE} if the
+   *                  consumer never writes to the values of the rows it is given
+   */
+  public RowProjection( RowMetaInterface fields, Ownership ownership ) {
+    this.fields = fields;
+    this.ownership = ownership;
+  }
+
+  public Ownership getOwnership() {
+    return ownership;
+  }
+
+  /**
+   * @return row meta of the rows returned by {@link #project(RowMetaInterface, Object[])} for this source row meta
+   */
+  public RowMetaInterface getRowMeta( RowMetaInterface source ) throws KettleValueException {
+    resolve( source );
+    return rowMeta;
+  }
+
+  /**
+   * @return the kept fields of the row, copied unless ownership is transferred or shared
+   */
+  public Object[] project( RowMetaInterface source, Object[] row ) throws KettleValueException {
+    resolve( source );
+    if ( indexes == null ) {
+      switch ( ownership ) {
+        case TRANSFER:
+          return row;
+        case SHARE:
+          // Steps that add fields write into spare capacity, an exact-length row makes them copy instead
+          return row.length == rowMeta.size() ? row : Arrays.copyOf( row, rowMeta.size() );
+        default:
+          return source.cloneRow( row );
+      }
+    }
+    Object[] projected = new Object[ indexes.length ];
+    for ( int i = 0; i < indexes.length; i++ ) {
+      Object value = row[ indexes[ i ] ];
+      projected[ i ] = ownership == Ownership.COPY ? rowMeta.getValueMeta( i ).cloneValueData( value ) : value;
+    }
+    return projected;
+  }
+
+  /**
+   * Reads the kept fields of a row by their index in the source row meta, for sources that do not store whole rows.
+   *
+   * @return a new row of the kept fields, values copied unless ownership is transferred or shared
+   */
+  public Object[] project( RowMetaInterface source, IntFunction<Object> values ) throws KettleValueException {
+    resolve( source );
+    Object[] projected = new Object[ rowMeta.size() ];
+    for ( int i = 0; i < projected.length; i++ ) {
+      Object value = values.apply( indexes == null ? i : indexes[ i ] );
+      projected[ i ] = ownership == Ownership.COPY ? rowMeta.getValueMeta( i ).cloneValueData( value ) : value;
+    }
+    return projected;
+  }
+
+  private void resolve( RowMetaInterface source ) throws KettleValueException {
+    if ( source == sourceRowMeta ) {
+      return;
+    }
+    sourceRowMeta = source;
+    rowMeta = source;
+    indexes = null;
+    if ( fields == null || fields.size() >= source.size() ) {
+      return;
+    }
+
+    RowMetaInterface projectedRowMeta = new RowMeta();
+    int[] projectedIndexes = new int[ fields.size() ];
+    for ( int i = 0; i < projectedIndexes.length; i++ ) {
+      String name = fields.getValueMeta( i ).getName();
+      projectedIndexes[ i ] = source.indexOfValue( name );
+      if ( projectedIndexes[ i ] < 0 ) {
+        sourceRowMeta = null;
+        throw new KettleValueException( "Unable to find service field " + name );
+      }
+      projectedRowMeta.addValueMeta( source.getValueMeta( projectedIndexes[ i ] ) );
+    }
+    rowMeta = projectedRowMeta;
+    indexes = projectedIndexes;
+  }
+}
@@ -23,25 +23,43 @@
 package org.pentaho.di.trans.dataservice.optimization.cache;
 
 import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
 import org.pentaho.di.core.Condition;
 import org.pentaho.di.core.RowMetaAndData;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaAndData;
 import org.pentaho.di.core.sql.SQL;
 import org.pentaho.di.core.sql.SQLCondition;
 import org.pentaho.di.core.sql.SQLField;
 import org.pentaho.di.core.sql.SQLFields;
 import org.pentaho.di.core.sql.SQLLimit;
+import org.pentaho.di.core.xml.XMLHandler;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+import org.pentaho.di.trans.dataservice.DataServiceMeta;
+import org.pentaho.di.trans.dataservice.ParameterizedQuery;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author nhudak
@@ -49,14 +67,24 @@ import java.util.List;
 class CachedService implements Serializable {
 
   private static final long serialVersionUID = 1L;
-  private final ImmutableList<RowMetaAndData> rowMetaAndData;
+  private final List<RowMetaAndData> rowMetaAndData;
   private final Optional<Integer> ranking;
   private final Optional<Integer> rankingServiceRows;
+  // Time rows read back from disk expire at, even if the memory cache would keep them longer
+  private final long expiresAt;
+  // Built on demand, not worth serializing with the rows
+  private transient CachedServiceIndex index;
 
   private CachedService( List<RowMetaAndData> rowMetaAndData, Optional<Integer> ranking,  Optional<Integer> ranking2 ) {
-    this.rowMetaAndData = ImmutableList.copyOf( rowMetaAndData );
+    this( rowMetaAndData, ranking, ranking2, Long.MAX_VALUE );
+  }
+
+  private CachedService( List<RowMetaAndData> rowMetaAndData, Optional<Integer> ranking, Optional<Integer> ranking2,
+                         long expiresAt ) {
+    this.rowMetaAndData = ColumnarRows.compact( rowMetaAndData );
     this.ranking = ranking;
     this.rankingServiceRows = ranking2;
+    this.expiresAt = expiresAt;
   }
 
   public static CachedService complete( List<RowMetaAndData> rowMetaAndData ) {
@@ -68,6 +96,24 @@ class CachedService implements Serializable {
     );
   }
 
+  /**
+   * Recreates a cached service read back from the {@link DiskCacheTier disk tier}.
+   *
+   * @param expiresAt Time in milliseconds the segment it was read from expires at
+   */
+  static CachedService restore( List<RowMetaAndData> rowMetaAndData, Optional<Integer> ranking,
+                                Optional<Integer> rankingServiceRows, long expiresAt ) {
+    return new CachedService( rowMetaAndData, ranking, rankingServiceRows, expiresAt );
+  }
+
+  /**
+   * Final result rows of a query, kept with their row meta so even an empty result can be replayed.
+   */
+  static CachedService result( RowMetaInterface rowMeta, List<RowMetaAndData> rowMetaAndData ) {
+    return new CachedService( ColumnarRows.compact( rowMeta, rowMetaAndData ), Optional.<Integer>absent(),
+      Optional.<Integer>absent() );
+  }
+
   public static CachedService partial( List<RowMetaAndData> rowMetaAndData, DataServiceExecutor executor ) {
     return new CachedService(
       rowMetaAndData,
@@ -80,10 +126,61 @@ class CachedService implements Serializable {
     return rowMetaAndData;
   }
 
+  /**
+   * Rows to replay for a query, in cached order. If the query's WHERE clause can use an index, rows that can not
+   * match it are skipped.
+   */
+  public Iterator<RowMetaAndData> rows( DataServiceExecutor executor ) {
+    Optional<int[]> positions = positions( executor );
+    if ( !positions.isPresent() ) {
+      return rowMetaAndData.iterator();
+    }
+    return Iterators.transform( Ints.asList( positions.get() ).iterator(), rowMetaAndData::get );
+  }
+
+  /**
+   * Same rows as {@link #rows}, read value by value without materializing rows. Only available for rows stored in
+   * columns.
+   */
+  Optional<ColumnarRows.Cursor> cursor( DataServiceExecutor executor ) {
+    if ( !( rowMetaAndData instanceof ColumnarRows ) ) {
+      return Optional.absent();
+    }
+    return Optional.of( ( (ColumnarRows) rowMetaAndData ).cursor( positions( executor ).orNull() ) );
+  }
+
+  private Optional<int[]> positions( DataServiceExecutor executor ) {
+    SQLCondition whereCondition = executor.getSql().getWhereCondition();
+    return whereCondition == null || whereCondition.getCondition() == null
+      ? Optional.<int[]>absent() : getIndex().lookup( whereCondition.getCondition() );
+  }
+
+  private synchronized CachedServiceIndex getIndex() {
+    if ( index == null ) {
+      index = new CachedServiceIndex( rowMetaAndData );
+    }
+    return index;
+  }
+
+  /**
+   * @return row meta of the cached rows, absent if there are no rows and it was not kept
+   */
+  Optional<RowMetaInterface> getRowMeta() {
+    if ( rowMetaAndData instanceof ColumnarRows ) {
+      return Optional.of( ( (ColumnarRows) rowMetaAndData ).getRowMeta() );
+    }
+    return rowMetaAndData.isEmpty() ? Optional.<RowMetaInterface>absent()
+      : Optional.of( rowMetaAndData.get( 0 ).getRowMeta() );
+  }
+
   public Optional<Integer> getRanking() {
     return ranking;
   }
 
+  Optional<Integer> getRankingServiceRows() {
+    return rankingServiceRows;
+  }
+
   @Override public String toString() {
     return Objects.toStringHelper( this )
       .add( "rowMetaAndData.length", rowMetaAndData.size() )
@@ -91,6 +188,13 @@ class CachedService implements Serializable {
       .toString();
   }
 
+  /**
+   * @return true if these rows were read back from disk and outlived their segment
+   */
+  boolean isExpired() {
+    return System.currentTimeMillis() >= expiresAt;
+  }
+
   public boolean isComplete() {
     return !ranking.isPresent() && !rankingServiceRows.isPresent();
   }
@@ -165,39 +269,72 @@ class CachedService implements Serializable {
      * Optional
      */
     private final ImmutableList<String> orderByFields;
+    /**
+     * Optional, present for keys of {@link #forResult final query results}
+     */
+    private final Optional<String> query;
+    /**
+     * Optional, XML of the simplified where condition. Not part of key equality, only used to match
+     * {@link #subsumes narrower} queries.
+     */
+    private final Optional<String> conditionXml;
+    /**
+     * Parsed {@link #conditionXml}, shared by keys with the same condition. Null until it is first needed.
+     */
+    private transient volatile Optional<Condition> condition;
 
     private CacheKey( int transMetaVersionId, ImmutableMap<String, String> parameters, Optional<String> whereClause,
-                      ImmutableList<String> orderByFields ) {
+                      ImmutableList<String> orderByFields, Optional<String> query, Optional<String> conditionXml ) {
       this.transMetaVersionId = transMetaVersionId;
       this.parameters = parameters;
       this.whereClause = whereClause;
       this.orderByFields = orderByFields;
+      this.query = query;
+      this.conditionXml = conditionXml;
     }
 
     public static CacheKey create( DataServiceExecutor executor ) {
-      SQL sql = executor.getSql();
+      // Get trans meta from service instead of executor, since executor modifies the meta with every query
+      return create( executor.getService(), executor.getSql(), executor.getParameters() );
+    }
 
+    public static CacheKey create( DataServiceMeta service, SQL sql, Map<String, String> parameters ) {
       // Calculate trans meta version. If the service transformation changes, keys will no longer match
       int version;
-      // Get trans meta from service instead of executor, since executor modifies the meta with every query
-      TransMeta trans = executor.getService().getServiceTrans();
-      try {
-        version = trans.getCacheVersion();
-      } catch ( KettleException e ) {
-        throw new IllegalStateException( "Unable to determine version of transMeta", e );
+      if ( service.getServiceTransVersion() != null ) {
+        version = service.getServiceTransVersion();
+      } else {
+        // Shared with concurrent queries
+        TransMeta serviceTrans = service.getServiceTrans();
+        try {
+          synchronized ( serviceTrans ) {
+            version = serviceTrans.getCacheVersion();
+          }
+        } catch ( KettleException e ) {
+          throw new IllegalStateException( "Unable to determine version of transMeta", e );
+        }
       }
 
       // Extract where condition
-      Optional<String> whereClause = Optional.fromNullable( sql.getWhereCondition() ).transform(
+      Optional<Condition> condition = Optional.fromNullable( sql.getWhereCondition() ).transform(
         // Simplify  and rewrite condition, more likely to match future queries
-        new Function<SQLCondition, String>() {
-          @Override public String apply( SQLCondition input ) {
+        new Function<SQLCondition, Condition>() {
+          @Override public Condition apply( SQLCondition input ) {
             Condition clone = (Condition) input.getCondition().clone();
             clone.simplify();
-            return clone.toString();
+            return clone;
           }
         }
       );
+      Optional<String> whereClause = condition.transform( Functions.toStringFunction() );
+      Optional<String> conditionXml = Optional.absent();
+      try {
+        if ( condition.isPresent() ) {
+          conditionXml = Optional.of( condition.get().getXML() );
+        }
+      } catch ( KettleValueException e ) {
+        // Key still matches identical queries, only subsumption is lost
+      }
 
       // Extract ORDER BY fields from SQL
       ImmutableList<String> orderByFields = FluentIterable
@@ -219,9 +356,44 @@ class CachedService implements Serializable {
         .toList();
 
       // Copy execution parameters
-      ImmutableMap<String, String> parameters = ImmutableMap.copyOf( executor.getParameters() );
+      return new CacheKey( version, ImmutableMap.copyOf( parameters ), whereClause, orderByFields,
+        Optional.<String>absent(), conditionXml );
+    }
 
-      return new CacheKey( version, parameters, whereClause, orderByFields );
+    /**
+     * Key of the final result rows of a query. Queries only share results if their normalized text, literals,
+     * parameters, row limits and service version are the same.
+     */
+    public static CacheKey forResult( DataServiceMeta service, SQL sql, Map<String, String> parameters,
+                                      int rowLimit, int serviceRowLimit ) {
+      CacheKey key = create( service, sql, parameters );
+      ParameterizedQuery parameterized = ParameterizedQuery.create( sql );
+      String query = Joiner.on( ' ' ).join( parameterized.getShape(),
+        values( parameterized.getWhereValues() ), values( parameterized.getHavingValues() ),
+        "ROWS " + rowLimit, "SERVICE ROWS " + serviceRowLimit );
+      return new CacheKey( key.transMetaVersionId, key.parameters, key.whereClause, key.orderByFields,
+        Optional.of( query ), key.conditionXml );
+    }
+
+    private static List<String> values( List<ValueMetaAndData> values ) {
+      List<String> strings = Lists.newArrayListWithCapacity( values.size() );
+      for ( ValueMetaAndData value : values ) {
+        strings.add( value.getValueMeta() == null ? String.valueOf( value.getValueData() )
+          : value.getValueMeta().getTypeDesc() + ":" + value.toString() );
+      }
+      return strings;
+    }
+
+    public boolean isResult() {
+      return query.isPresent();
+    }
+
+    public int getTransMetaVersionId() {
+      return transMetaVersionId;
+    }
+
+    public boolean hasCondition() {
+      return whereClause.isPresent();
     }
 
     /**
@@ -246,11 +418,121 @@ class CachedService implements Serializable {
     }
 
     public CacheKey withoutCondition() {
-      return new CacheKey( transMetaVersionId, parameters, Optional.<String>absent(), orderByFields );
+      return new CacheKey( transMetaVersionId, parameters, Optional.<String>absent(), orderByFields, query,
+        Optional.<String>absent() );
     }
 
     public CacheKey withoutOrder() {
-      return new CacheKey( transMetaVersionId, parameters, whereClause, ImmutableList.<String>of() );
+      CacheKey key = new CacheKey( transMetaVersionId, parameters, whereClause, ImmutableList.<String>of(), query,
+        conditionXml );
+      key.condition = condition;
+      return key;
+    }
+
+    /**
+     * Check if rows cached under this key contain every row of the given query, so the query can be answered from
+     * them once its own where condition is applied.
+     *
+     * @param key Key of the query to answer
+     * @return true if this key's where condition is known to be wider than the query's
+     */
+    public boolean subsumes( CacheKey key ) {
+      if ( transMetaVersionId != key.transMetaVersionId || !parameters.equals( key.parameters )
+        || isResult() || key.isResult() ) {
+        return false;
+      }
+      Optional<Condition> general = condition(), specific = key.condition();
+      return general.isPresent() && specific.isPresent()
+        && ConditionSubsumption.subsumes( general.get(), specific.get() );
+    }
+
+    /**
+     * @return where condition of this key, parsed once
+     */
+    private Optional<Condition> condition() {
+      Optional<Condition> parsed = condition;
+      if ( parsed == null ) {
+        parsed = Optional.absent();
+        if ( conditionXml.isPresent() ) {
+          try {
+            parsed = Optional.of( new Condition(
+              XMLHandler.getSubNode( XMLHandler.loadXMLString( conditionXml.get() ), Condition.XML_TAG ) ) );
+          } catch ( KettleXMLException e ) {
+            // Condition can not be compared
+          }
+        }
+        condition = parsed;
+      }
+      return parsed;
+    }
+
+    /**
+     * Writes the fields of this key, to be read back by {@link #read}. Unlike Java serialization, reading can only
+     * ever create a key.
+     */
+    void write( DataOutput out ) throws IOException {
+      out.writeInt( transMetaVersionId );
+      out.writeInt( parameters.size() );
+      for ( Map.Entry<String, String> parameter : parameters.entrySet() ) {
+        writeString( out, parameter.getKey() );
+        writeString( out, parameter.getValue() );
+      }
+      writeOptional( out, whereClause );
+      out.writeInt( orderByFields.size() );
+      for ( String field : orderByFields ) {
+        writeString( out, field );
+      }
+      writeOptional( out, query );
+      writeOptional( out, conditionXml );
+    }
+
+    static CacheKey read( DataInput in ) throws IOException {
+      int transMetaVersionId = in.readInt();
+      ImmutableMap.Builder<String, String> parameters = ImmutableMap.builder();
+      for ( int i = readCount( in ); i > 0; i-- ) {
+        parameters.put( readString( in ), readString( in ) );
+      }
+      Optional<String> whereClause = readOptional( in );
+      ImmutableList.Builder<String> orderByFields = ImmutableList.builder();
+      for ( int i = readCount( in ); i > 0; i-- ) {
+        orderByFields.add( readString( in ) );
+      }
+      Optional<String> query = readOptional( in );
+      Optional<String> conditionXml = readOptional( in );
+      return new CacheKey( transMetaVersionId, parameters.build(), whereClause, orderByFields.build(), query,
+        conditionXml );
+    }
+
+    // Length prefixed UTF-8, writeUTF is limited to 64K and condition XML may be longer
+    private static void writeString( DataOutput out, String value ) throws IOException {
+      byte[] bytes = value.getBytes( Charsets.UTF_8 );
+      out.writeInt( bytes.length );
+      out.write( bytes );
+    }
+
+    private static String readString( DataInput in ) throws IOException {
+      byte[] bytes = new byte[ readCount( in ) ];
+      in.readFully( bytes );
+      return new String( bytes, Charsets.UTF_8 );
+    }
+
+    private static void writeOptional( DataOutput out, Optional<String> value ) throws IOException {
+      out.writeBoolean( value.isPresent() );
+      if ( value.isPresent() ) {
+        writeString( out, value.get() );
+      }
+    }
+
+    private static Optional<String> readOptional( DataInput in ) throws IOException {
+      return in.readBoolean() ? Optional.of( readString( in ) ) : Optional.<String>absent();
+    }
+
+    private static int readCount( DataInput in ) throws IOException {
+      int count = in.readInt();
+      if ( count < 0 ) {
+        throw new IOException( "Invalid cache key" );
+      }
+      return count;
     }
 
     @Override public boolean equals( Object o ) {
@@ -264,11 +546,12 @@ class CachedService implements Serializable {
       return Objects.equal( transMetaVersionId, cacheKey.transMetaVersionId )
           && Objects.equal( parameters, cacheKey.parameters )
           && Objects.equal( whereClause, cacheKey.whereClause )
-          && Objects.equal( orderByFields, cacheKey.orderByFields );
+          && Objects.equal( orderByFields, cacheKey.orderByFields )
+          && Objects.equal( query, cacheKey.query );
     }
 
     @Override public int hashCode() {
-      return Objects.hashCode( transMetaVersionId, parameters, whereClause, orderByFields );
+      return Objects.hashCode( transMetaVersionId, parameters, whereClause, orderByFields, query );
     }
 
     @Override public String toString() {
@@ -277,6 +560,7 @@ class CachedService implements Serializable {
         .add( "parameters", parameters )
         .add( "whereClause", whereClause )
         .add( "orderByFields", orderByFields )
+        .add( "query", query )
         .toString();
     }
   }
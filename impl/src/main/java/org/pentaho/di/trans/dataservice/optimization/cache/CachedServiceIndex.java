@@ -0,0 +1,410 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.primitives.Ints;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaAndData;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-column indexes over the rows of a {@link CachedService}, so a replay only feeds rows that can match the
+ * query's WHERE clause.
+ * <p>
+ * Indexes are built on demand. IN lists match the strings of values, and so does equality for strings, integers and
+ * booleans. The first time such a column is filtered on, a Bloom filter of those strings rules out lookups. Once a
+ * column has been filtered on {@link #INDEX_THRESHOLD} times, it gets a hash index of the strings, and a sorted index
+ * for ranges and for equality of other types.
+ * <p>
+ * Lookups return a superset of the matching rows, in cached order. The generated transformation still applies the
+ * full condition.
+ */
+class CachedServiceIndex {
+
+  static final int INDEX_THRESHOLD = 2;
+  private static final double BLOOM_FILTER_FPP = 0.01;
+
+  private final List<RowMetaAndData> rows;
+  private final Map<String, Optional<Column>> columns = Maps.newHashMap();
+
+  CachedServiceIndex( List<RowMetaAndData> rows ) {
+    this.rows = rows;
+  }
+
+  /**
+   * @return ascending positions of all rows that may match the condition, or absent if every row has to be read
+   */
+  synchronized Optional<int[]> lookup( Condition condition ) {
+    if ( condition.isAtomic() ) {
+      return lookupAtomic( condition );
+    }
+    int operator = ConditionSubsumption.operator( condition );
+    if ( operator == Condition.OPERATOR_AND ) {
+      // Any indexed conjunct narrows the rows
+      Optional<int[]> result = Optional.absent();
+      for ( Condition child : condition.getChildren() ) {
+        Optional<int[]> positions = lookup( child );
+        if ( positions.isPresent() ) {
+          result = Optional.of( result.isPresent() ? intersect( result.get(), positions.get() ) : positions.get() );
+        }
+      }
+      return result;
+    }
+    if ( operator == Condition.OPERATOR_OR ) {
+      // Every disjunct has to be indexed
+      int[] result = new int[0];
+      for ( Condition child : condition.getChildren() ) {
+        Optional<int[]> positions = lookup( child );
+        if ( !positions.isPresent() ) {
+          return Optional.absent();
+        }
+        result = union( result, positions.get() );
+      }
+      return Optional.of( result );
+    }
+    return Optional.absent();
+  }
+
+  private Optional<int[]> lookupAtomic( Condition condition ) {
+    ValueMetaAndData exact = condition.getRightExact();
+    if ( condition.isNegated() || condition.getLeftValuename() == null || condition.getRightValuename() != null
+      || exact == null || exact.getValueMeta() == null || exact.getValueData() == null ) {
+      return Optional.absent();
+    }
+    String name = condition.getLeftValuename().toLowerCase();
+    if ( !columns.containsKey( name ) ) {
+      columns.put( name, createColumn( condition.getLeftValuename() ) );
+    }
+    if ( !columns.get( name ).isPresent() ) {
+      return Optional.absent();
+    }
+
+    Column column = columns.get( name ).get();
+    try {
+      switch ( condition.getFunction() ) {
+        case Condition.FUNC_EQUAL:
+          return column.equal( exact );
+        case Condition.FUNC_IN_LIST:
+          return column.in( exact );
+        case Condition.FUNC_LARGER:
+        case Condition.FUNC_LARGER_EQUAL:
+        case Condition.FUNC_SMALLER:
+        case Condition.FUNC_SMALLER_EQUAL:
+          return column.range( condition.getFunction(), exact );
+        default:
+          return Optional.absent();
+      }
+    } catch ( KettleValueException | IllegalArgumentException e ) {
+      // Values of this column can not be indexed, fall back to reading all rows
+      columns.put( name, Optional.<Column>absent() );
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * A column can be indexed if every row has the same type at the same position, in normal storage.
+   */
+  private Optional<Column> createColumn( String name ) {
+    if ( rows.isEmpty() ) {
+      return Optional.absent();
+    }
+    if ( rows instanceof ColumnarRows ) {
+      // All columnar rows share one row meta
+      RowMetaInterface rowMeta = ( (ColumnarRows) rows ).getRowMeta();
+      int index = rowMeta.indexOfValue( name );
+      return index < 0 || !rowMeta.getValueMeta( index ).isStorageNormal() ? Optional.<Column>absent()
+        : Optional.of( new Column( index, rowMeta.getValueMeta( index ) ) );
+    }
+    RowMetaInterface rowMeta = rows.get( 0 ).getRowMeta();
+    int index = rowMeta.indexOfValue( name );
+    if ( index < 0 ) {
+      return Optional.absent();
+    }
+    ValueMetaInterface valueMeta = rowMeta.getValueMeta( index );
+    for ( RowMetaAndData row : rows ) {
+      RowMetaInterface meta = row.getRowMeta();
+      if ( meta != rowMeta && ( meta.indexOfValue( name ) != index
+        || meta.getValueMeta( index ).getType() != valueMeta.getType() ) ) {
+        return Optional.absent();
+      }
+      if ( !meta.getValueMeta( index ).isStorageNormal() ) {
+        return Optional.absent();
+      }
+    }
+    return Optional.of( new Column( index, valueMeta ) );
+  }
+
+  private final class Column {
+    private final int index;
+    private final ValueMetaInterface valueMeta;
+    private int lookups;
+    private BloomFilter<CharSequence> bloomFilter;
+    private ListMultimap<String, Integer> hashIndex;
+    private int[] sorted;
+
+    Column( int index, ValueMetaInterface valueMeta ) {
+      this.index = index;
+      this.valueMeta = valueMeta;
+    }
+
+    Optional<int[]> equal( ValueMetaAndData exact ) throws KettleValueException {
+      Object bound = valueMeta.convertData( exact.getValueMeta(), exact.getValueData() );
+      if ( bound == null ) {
+        return Optional.of( new int[0] );
+      }
+      if ( !hasCanonicalStrings() ) {
+        // Equal values may have different strings, e.g. BigNumbers of another scale. Only the sorted index knows
+        return scan( Condition.FUNC_EQUAL, bound );
+      }
+      return find( ImmutableSet.of( valueMeta.getCompatibleString( bound ) ) );
+    }
+
+    /**
+     * @return true if values compare equal exactly when their strings are equal, so equality can hash strings
+     */
+    private boolean hasCanonicalStrings() {
+      switch ( valueMeta.getType() ) {
+        case ValueMetaInterface.TYPE_STRING:
+          return !valueMeta.isCaseInsensitive();
+        case ValueMetaInterface.TYPE_INTEGER:
+        case ValueMetaInterface.TYPE_BOOLEAN:
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    Optional<int[]> in( ValueMetaAndData exact ) throws KettleValueException {
+      // Condition matches IN lists by the compatible string of the field value, which ignores format masks
+      ImmutableSet.Builder<String> keys = ImmutableSet.builder();
+      for ( String value : Const.splitString( exact.getValueMeta().getString( exact.getValueData() ), ';', true ) ) {
+        if ( value != null ) {
+          keys.add( value.replace( "\\", "" ) );
+        }
+      }
+      return find( keys.build() );
+    }
+
+    Optional<int[]> range( int function, ValueMetaAndData exact ) throws KettleValueException {
+      Object bound = valueMeta.convertData( exact.getValueMeta(), exact.getValueData() );
+      return bound == null ? Optional.<int[]>absent() : scan( function, bound );
+    }
+
+    private Optional<int[]> find( Set<String> keys ) throws KettleValueException {
+      if ( bloomFilter == null ) {
+        bloomFilter = BloomFilter.create( Funnels.stringFunnel( Charsets.UTF_8 ), Math.max( rows.size(), 1 ),
+          BLOOM_FILTER_FPP );
+        for ( int i = 0; i < rows.size(); i++ ) {
+          String key = key( i );
+          if ( key != null ) {
+            bloomFilter.put( key );
+          }
+        }
+      }
+      boolean mightContain = false;
+      for ( String key : keys ) {
+        mightContain |= bloomFilter.mightContain( key );
+      }
+      if ( !mightContain ) {
+        return Optional.of( new int[0] );
+      }
+      if ( ++lookups < INDEX_THRESHOLD ) {
+        return Optional.absent();
+      }
+
+      if ( hashIndex == null ) {
+        hashIndex = ArrayListMultimap.create();
+        for ( int i = 0; i < rows.size(); i++ ) {
+          String key = key( i );
+          if ( key != null ) {
+            hashIndex.put( key, i );
+          }
+        }
+      }
+      int[] result = new int[0];
+      for ( String key : keys ) {
+        result = union( result, Ints.toArray( hashIndex.get( key ) ) );
+      }
+      return Optional.of( result );
+    }
+
+    private Optional<int[]> scan( int function, Object bound ) throws KettleValueException {
+      if ( ++lookups < INDEX_THRESHOLD ) {
+        return Optional.absent();
+      }
+      if ( sorted == null ) {
+        sorted = sort();
+      }
+
+      // Nulls sort first, like they compare in conditions
+      int from = 0, to = sorted.length;
+      switch ( function ) {
+        case Condition.FUNC_EQUAL:
+          from = lowerBound( bound );
+          to = upperBound( bound );
+          break;
+        case Condition.FUNC_LARGER:
+          from = upperBound( bound );
+          break;
+        case Condition.FUNC_LARGER_EQUAL:
+          from = lowerBound( bound );
+          break;
+        case Condition.FUNC_SMALLER:
+          to = lowerBound( bound );
+          break;
+        case Condition.FUNC_SMALLER_EQUAL:
+          to = upperBound( bound );
+          break;
+        default:
+          return Optional.absent();
+      }
+      int[] result = Arrays.copyOfRange( sorted, from, Math.max( from, to ) );
+      Arrays.sort( result );
+      return Optional.of( result );
+    }
+
+    private int[] sort() {
+      Integer[] positions = new Integer[ rows.size() ];
+      for ( int i = 0; i < positions.length; i++ ) {
+        positions[ i ] = i;
+      }
+      Arrays.sort( positions, new Comparator<Integer>() {
+        @Override public int compare( Integer left, Integer right ) {
+          try {
+            return compare( left, right );
+          } catch ( KettleValueException e ) {
+            throw new IllegalArgumentException( e );
+          }
+        }
+      } );
+      return Ints.toArray( Arrays.asList( positions ) );
+    }
+
+    /**
+     * @return first position in the sorted index with a value not less than the bound
+     */
+    private int lowerBound( Object bound ) throws KettleValueException {
+      int low = 0, high = sorted.length;
+      while ( low < high ) {
+        int mid = ( low + high ) >>> 1;
+        if ( compare( sorted[ mid ], bound ) < 0 ) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * @return first position in the sorted index with a value greater than the bound
+     */
+    private int upperBound( Object bound ) throws KettleValueException {
+      int low = 0, high = sorted.length;
+      while ( low < high ) {
+        int mid = ( low + high ) >>> 1;
+        if ( compare( sorted[ mid ], bound ) <= 0 ) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    private Object value( int position ) {
+      // Columnar rows are read without materializing them
+      return rows instanceof ColumnarRows ? ( (ColumnarRows) rows ).getValue( position, index )
+        : rows.get( position ).getData()[ index ];
+    }
+
+    private int compare( int left, int right ) throws KettleValueException {
+      // Columnar rows compare primitive values without boxing them
+      return rows instanceof ColumnarRows ? ( (ColumnarRows) rows ).compare( left, right, index )
+        : valueMeta.compare( value( left ), value( right ) );
+    }
+
+    private int compare( int position, Object bound ) throws KettleValueException {
+      return rows instanceof ColumnarRows ? ( (ColumnarRows) rows ).compare( position, index, bound )
+        : valueMeta.compare( value( position ), bound );
+    }
+
+    private String key( int position ) throws KettleValueException {
+      Object value = value( position );
+      return value == null ? null : valueMeta.getCompatibleString( value );
+    }
+  }
+
+  private static int[] intersect( int[] left, int[] right ) {
+    int[] result = new int[ Math.min( left.length, right.length ) ];
+    int size = 0;
+    for ( int i = 0, j = 0; i < left.length && j < right.length; ) {
+      if ( left[ i ] < right[ j ] ) {
+        i++;
+      } else if ( left[ i ] > right[ j ] ) {
+        j++;
+      } else {
+        result[ size++ ] = left[ i ];
+        i++;
+        j++;
+      }
+    }
+    return Arrays.copyOf( result, size );
+  }
+
+  private static int[] union( int[] left, int[] right ) {
+    int[] result = new int[ left.length + right.length ];
+    int size = 0, i = 0, j = 0;
+    while ( i < left.length || j < right.length ) {
+      int next;
+      if ( j >= right.length || ( i < left.length && left[ i ] <= right[ j ] ) ) {
+        next = left[ i++ ];
+      } else {
+        next = right[ j++ ];
+      }
+      if ( size == 0 || result[ size - 1 ] != next ) {
+        result[ size++ ] = next;
+      }
+    }
+    return Arrays.copyOf( result, size );
+  }
+}
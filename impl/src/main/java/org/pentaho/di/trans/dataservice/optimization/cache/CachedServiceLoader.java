@@ -22,6 +22,7 @@
 
 package org.pentaho.di.trans.dataservice.optimization.cache;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
@@ -31,6 +32,7 @@ import com.google.common.util.concurrent.ListenableFutureTask;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.execution.DefaultTransWiring;
+import org.pentaho.di.trans.dataservice.execution.RowProjection;
 import org.pentaho.di.trans.dataservice.execution.TransStarter;
 import org.pentaho.di.core.RowMetaAndData;
 import org.pentaho.di.core.exception.KettleException;
@@ -44,6 +46,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 /**
@@ -51,21 +54,29 @@ import java.util.function.Supplier;
  */
 class CachedServiceLoader {
   private final Executor executor;
-  private final Supplier<Iterator<RowMetaAndData>> rowSupplier;
+  private final Function<DataServiceExecutor, Iterator<RowMetaAndData>> rowSource;
+  private final Function<DataServiceExecutor, Optional<ColumnarRows.Cursor>> cursorSource;
 
   CachedServiceLoader( Executor executor, Supplier<Iterator<RowMetaAndData>> rowSupplier ) {
     this.executor = executor;
-    this.rowSupplier = rowSupplier;
+    this.rowSource = dataServiceExecutor -> rowSupplier.get();
+    this.cursorSource = dataServiceExecutor -> Optional.absent();
   }
 
   CachedServiceLoader( CachedService cachedService, Executor executor ) {
-    this( executor, () -> cachedService.getRowMetaAndData().iterator() );
+    // Cached services only replay rows the query's WHERE clause may match
+    this.executor = executor;
+    this.rowSource = cachedService::rows;
+    this.cursorSource = cachedService::cursor;
   }
 
   ListenableFuture<Integer> replay( DataServiceExecutor dataServiceExecutor ) throws KettleException {
     final Trans serviceTrans = dataServiceExecutor.getServiceTrans(), genTrans = dataServiceExecutor.getGenTrans();
     final CountDownLatch startReplay = new CountDownLatch( 1 );
     final RowProducer rowProducer = dataServiceExecutor.addRowProducer();
+    // Cached rows are never written to, share them with the generated transformation if it only reads them
+    final RowProjection projection = new RowProjection( dataServiceExecutor.getInjectedFields(),
+      dataServiceExecutor.isReadOnlyInjection() ? RowProjection.Ownership.SHARE : RowProjection.Ownership.COPY );
 
     List<Runnable> startTrans = dataServiceExecutor.getListenerMap().get( DataServiceExecutor.ExecutionPoint.START ),
       postOptimization = dataServiceExecutor.getListenerMap().get( DataServiceExecutor.ExecutionPoint.READY );
@@ -100,22 +111,36 @@ class CachedServiceLoader {
       @Override public Integer call() throws Exception {
         Preconditions.checkState( startReplay.await( 30, TimeUnit.SECONDS ), "Cache replay did not start" );
         int rowCount = 0;
-        for ( Iterator<RowMetaAndData> iterator = rowSupplier.get();
-              iterator.hasNext() && genTrans.isRunning(); ) {
-          RowMetaAndData metaAndData = iterator.next();
-          boolean rowAdded = false;
-          RowMetaInterface rowMeta = metaAndData.getRowMeta();
-          Object[] rowData = rowMeta.cloneRow( metaAndData.getData() );
-          while ( !rowAdded && genTrans.isRunning() ) {
-            rowAdded = rowProducer.putRowWait( rowMeta, rowData, 10, TimeUnit.SECONDS );
+        Optional<ColumnarRows.Cursor> cursor = cursorSource.apply( dataServiceExecutor );
+        if ( cursor.isPresent() ) {
+          // Injected values are read straight from their columns, the projected row is the only one built
+          RowMetaInterface rowMeta = projection.getRowMeta( cursor.get().getRowMeta() );
+          while ( cursor.get().next() && genTrans.isRunning() ) {
+            if ( put( rowMeta, projection.project( cursor.get().getRowMeta(), cursor.get() ) ) ) {
+              rowCount += 1;
+            }
           }
-          if ( rowAdded ) {
-            rowCount += 1;
+        } else {
+          for ( Iterator<RowMetaAndData> iterator = rowSource.apply( dataServiceExecutor );
+                iterator.hasNext() && genTrans.isRunning(); ) {
+            RowMetaAndData metaAndData = iterator.next();
+            RowMetaInterface rowMeta = projection.getRowMeta( metaAndData.getRowMeta() );
+            if ( put( rowMeta, projection.project( metaAndData.getRowMeta(), metaAndData.getData() ) ) ) {
+              rowCount += 1;
+            }
           }
         }
         rowProducer.finished();
         return rowCount;
       }
+
+      private boolean put( RowMetaInterface rowMeta, Object[] rowData ) {
+        boolean rowAdded = false;
+        while ( !rowAdded && genTrans.isRunning() ) {
+          rowAdded = rowProducer.putRowWait( rowMeta, rowData, 10, TimeUnit.SECONDS );
+        }
+        return rowAdded;
+      }
     } );
     executor.execute( replay );
     return replay;
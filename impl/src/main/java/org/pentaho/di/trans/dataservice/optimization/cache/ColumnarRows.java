@@ -0,0 +1,415 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.function.IntFunction;
+
+/**
+ * Compact, column oriented storage of cached rows. Integers, numbers, dates and booleans are kept in primitive
+ * arrays, strings are dictionary encoded and nulls are tracked in a bitmap. Rows are materialized when read, each
+ * read returns a new row.
+ * <p>
+ * Readers that only need some values read them through {@link #getValue}, a {@link Cursor} or {@link #compare},
+ * which never build rows. Values of primitive columns are still boxed when read, the price of keeping them compact.
+ */
+final class ColumnarRows extends AbstractList<RowMetaAndData> implements RandomAccess, Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  // Written with the row meta's own serialization
+  private transient RowMetaInterface rowMeta;
+  private final int size;
+  private final Column[] columns;
+
+  private ColumnarRows( RowMetaInterface rowMeta, int size, Column[] columns ) {
+    this.rowMeta = rowMeta;
+    this.size = size;
+    this.columns = columns;
+  }
+
+  /**
+   * Compacts rows sharing the same row meta. Other rows are only copied.
+   */
+  static List<RowMetaAndData> compact( List<RowMetaAndData> rows ) {
+    if ( rows instanceof ColumnarRows ) {
+      return rows;
+    }
+    if ( rows.isEmpty() ) {
+      return ImmutableList.of();
+    }
+    return compact( rows.get( 0 ).getRowMeta(), rows );
+  }
+
+  /**
+   * Compacts rows of a known row meta, which is kept even if there are no rows. Rows of other row metas are only
+   * copied.
+   */
+  static List<RowMetaAndData> compact( RowMetaInterface rowMeta, List<RowMetaAndData> rows ) {
+    if ( rows instanceof ColumnarRows ) {
+      return rows;
+    }
+    for ( RowMetaAndData row : rows ) {
+      if ( row.getRowMeta() != rowMeta || row.getData() == null || row.getData().length < rowMeta.size() ) {
+        return ImmutableList.copyOf( rows );
+      }
+    }
+
+    Column[] columns = new Column[ rowMeta.size() ];
+    for ( int i = 0; i < columns.length; i++ ) {
+      columns[ i ] = column( rowMeta.getValueMeta( i ), rows, i );
+    }
+    return new ColumnarRows( rowMeta, rows.size(), columns );
+  }
+
+  @Override public RowMetaAndData get( int index ) {
+    Object[] data = new Object[ columns.length ];
+    for ( int i = 0; i < columns.length; i++ ) {
+      data[ i ] = getValue( index, i );
+    }
+    return new RowMetaAndData( rowMeta, data );
+  }
+
+  /**
+   * Reads a single value without materializing its row.
+   */
+  Object getValue( int index, int column ) {
+    if ( index < 0 || index >= size ) {
+      throw new IndexOutOfBoundsException( "Row " + index + " of " + size );
+    }
+    return columns[ column ].get( index );
+  }
+
+  /**
+   * Compares the values of two rows in a column, in the order of {@link ValueMetaInterface#compare}.
+   */
+  int compare( int left, int right, int column ) throws KettleValueException {
+    return columns[ column ].compare( rowMeta.getValueMeta( column ), left, right );
+  }
+
+  /**
+   * Compares the value of a row in a column to a value of the column's type.
+   */
+  int compare( int index, int column, Object value ) throws KettleValueException {
+    return columns[ column ].compare( rowMeta.getValueMeta( column ), index, value );
+  }
+
+  /**
+   * @param positions Rows to read, in this order, or null to read all rows
+   */
+  Cursor cursor( int[] positions ) {
+    return new Cursor( positions );
+  }
+
+  RowMetaInterface getRowMeta() {
+    return rowMeta;
+  }
+
+  @Override public int size() {
+    return size;
+  }
+
+  private void writeObject( ObjectOutputStream out ) throws IOException {
+    out.defaultWriteObject();
+    try {
+      rowMeta.writeMeta( new DataOutputStream( out ) );
+    } catch ( KettleException e ) {
+      throw new IOException( e );
+    }
+  }
+
+  private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    try {
+      rowMeta = new RowMeta( new DataInputStream( in ) );
+    } catch ( KettleException e ) {
+      throw new IOException( e );
+    }
+  }
+
+  /**
+   * Moves through rows, reading their values one at a time. Cursors are not thread safe.
+   */
+  final class Cursor implements IntFunction<Object> {
+    private final int[] positions;
+    private int next;
+    private int row = -1;
+
+    private Cursor( int[] positions ) {
+      this.positions = positions;
+    }
+
+    /**
+     * @return false once every row was read
+     */
+    boolean next() {
+      if ( next >= ( positions == null ? size : positions.length ) ) {
+        return false;
+      }
+      row = positions == null ? next : positions[ next ];
+      next++;
+      return true;
+    }
+
+    /**
+     * @return value of the current row in the given column
+     */
+    @Override public Object apply( int column ) {
+      return columns[ column ].get( row );
+    }
+
+    RowMetaInterface getRowMeta() {
+      return rowMeta;
+    }
+  }
+
+  private static Column column( ValueMetaInterface valueMeta, List<RowMetaAndData> rows, int index ) {
+    // Values are only encoded if their class round trips exactly, e.g. a java.sql.Timestamp in a Date field does not
+    Class<?> type = null;
+    if ( valueMeta.isStorageNormal() ) {
+      switch ( valueMeta.getType() ) {
+        case ValueMetaInterface.TYPE_INTEGER:
+          type = Long.class;
+          break;
+        case ValueMetaInterface.TYPE_NUMBER:
+          type = Double.class;
+          break;
+        case ValueMetaInterface.TYPE_DATE:
+          type = Date.class;
+          break;
+        case ValueMetaInterface.TYPE_BOOLEAN:
+          type = Boolean.class;
+          break;
+        case ValueMetaInterface.TYPE_STRING:
+          type = String.class;
+          break;
+        default:
+          break;
+      }
+    }
+    for ( int i = 0; type != null && i < rows.size(); i++ ) {
+      Object value = rows.get( i ).getData()[ index ];
+      if ( value != null && value.getClass() != type ) {
+        type = null;
+      }
+    }
+
+    Column column;
+    if ( type == Long.class ) {
+      column = new LongColumn( rows.size(), false );
+    } else if ( type == Date.class ) {
+      column = new LongColumn( rows.size(), true );
+    } else if ( type == Double.class ) {
+      column = new DoubleColumn( rows.size() );
+    } else if ( type == Boolean.class ) {
+      column = new BooleanColumn();
+    } else if ( type == String.class ) {
+      column = new StringColumn( rows.size() );
+    } else {
+      column = new ObjectColumn( rows.size() );
+    }
+    for ( int i = 0; i < rows.size(); i++ ) {
+      Object value = rows.get( i ).getData()[ index ];
+      if ( value == null ) {
+        column.nulls.set( i );
+      } else {
+        column.set( i, value );
+      }
+    }
+    column.trim();
+    return column;
+  }
+
+  private abstract static class Column implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final BitSet nulls = new BitSet();
+
+    abstract void set( int row, Object value );
+
+    abstract Object value( int row );
+
+    Object get( int row ) {
+      return nulls.get( row ) ? null : value( row );
+    }
+
+    int compare( ValueMetaInterface valueMeta, int left, int right ) throws KettleValueException {
+      return valueMeta.compare( get( left ), get( right ) );
+    }
+
+    int compare( ValueMetaInterface valueMeta, int row, Object value ) throws KettleValueException {
+      return valueMeta.compare( get( row ), value );
+    }
+
+    void trim() {
+    }
+  }
+
+  private static final class LongColumn extends Column {
+    private final long[] values;
+    private final boolean date;
+
+    LongColumn( int size, boolean date ) {
+      this.values = new long[ size ];
+      this.date = date;
+    }
+
+    @Override void set( int row, Object value ) {
+      values[ row ] = date ? ( (Date) value ).getTime() : (Long) value;
+    }
+
+    @Override Object value( int row ) {
+      // Dates are mutable, every read gets its own copy
+      return date ? new Date( values[ row ] ) : Long.valueOf( values[ row ] );
+    }
+
+    @Override int compare( ValueMetaInterface valueMeta, int left, int right ) throws KettleValueException {
+      if ( nulls.get( left ) || nulls.get( right ) ) {
+        return super.compare( valueMeta, left, right );
+      }
+      int cmp = Long.compare( values[ left ], values[ right ] );
+      return valueMeta.isSortedDescending() ? -cmp : cmp;
+    }
+
+    @Override int compare( ValueMetaInterface valueMeta, int row, Object value ) throws KettleValueException {
+      if ( nulls.get( row ) || value == null || value.getClass() != ( date ? Date.class : Long.class ) ) {
+        return super.compare( valueMeta, row, value );
+      }
+      int cmp = Long.compare( values[ row ], date ? ( (Date) value ).getTime() : (Long) value );
+      return valueMeta.isSortedDescending() ? -cmp : cmp;
+    }
+  }
+
+  private static final class DoubleColumn extends Column {
+    private final double[] values;
+
+    DoubleColumn( int size ) {
+      this.values = new double[ size ];
+    }
+
+    @Override void set( int row, Object value ) {
+      values[ row ] = (Double) value;
+    }
+
+    @Override Object value( int row ) {
+      return values[ row ];
+    }
+
+    @Override int compare( ValueMetaInterface valueMeta, int left, int right ) throws KettleValueException {
+      if ( nulls.get( left ) || nulls.get( right ) ) {
+        return super.compare( valueMeta, left, right );
+      }
+      int cmp = Double.compare( values[ left ], values[ right ] );
+      return valueMeta.isSortedDescending() ? -cmp : cmp;
+    }
+
+    @Override int compare( ValueMetaInterface valueMeta, int row, Object value ) throws KettleValueException {
+      if ( nulls.get( row ) || !( value instanceof Double ) ) {
+        return super.compare( valueMeta, row, value );
+      }
+      int cmp = Double.compare( values[ row ], (Double) value );
+      return valueMeta.isSortedDescending() ? -cmp : cmp;
+    }
+  }
+
+  private static final class BooleanColumn extends Column {
+    private final BitSet values = new BitSet();
+
+    @Override void set( int row, Object value ) {
+      values.set( row, (Boolean) value );
+    }
+
+    @Override Object value( int row ) {
+      return values.get( row );
+    }
+  }
+
+  private static final class StringColumn extends Column {
+    private final int[] codes;
+    // Only needed while the column is built
+    private transient Map<String, Integer> codeMap = Maps.newHashMap();
+    private String[] dictionary;
+
+    StringColumn( int size ) {
+      this.codes = new int[ size ];
+    }
+
+    @Override void set( int row, Object value ) {
+      Integer code = codeMap.get( value );
+      if ( code == null ) {
+        code = codeMap.size();
+        codeMap.put( (String) value, code );
+      }
+      codes[ row ] = code;
+    }
+
+    @Override void trim() {
+      dictionary = new String[ codeMap.size() ];
+      for ( Map.Entry<String, Integer> entry : codeMap.entrySet() ) {
+        dictionary[ entry.getValue() ] = entry.getKey();
+      }
+      codeMap = null;
+    }
+
+    @Override Object value( int row ) {
+      return dictionary[ codes[ row ] ];
+    }
+  }
+
+  private static final class ObjectColumn extends Column {
+    private final Object[] values;
+
+    ObjectColumn( int size ) {
+      this.values = new Object[ size ];
+    }
+
+    @Override void set( int row, Object value ) {
+      values[ row ] = value;
+    }
+
+    @Override Object value( int row ) {
+      return values[ row ];
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableSet;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaAndData;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides whether every row matching one condition also matches another, so rows cached for a wider WHERE clause
+ * can answer a narrower one.
+ * <p>
+ * Conjunctions, disjunctions, ranges, equality and IN lists over the same field are compared. Anything else only
+ * subsumes an identical condition, so the answer may be a false negative but never a false positive.
+ */
+final class ConditionSubsumption {
+
+  private ConditionSubsumption() {
+  }
+
+  /**
+   * @return true if every row matching the specific condition matches the general condition
+   */
+  static boolean subsumes( Condition general, Condition specific ) {
+    if ( general.isEmpty() && !general.isNegated() ) {
+      return true;
+    }
+    if ( general.toString().equals( specific.toString() ) ) {
+      return true;
+    }
+
+    // Exact decompositions first: all conjuncts of the general condition, all disjuncts of the specific one
+    int generalOperator = operator( general );
+    if ( generalOperator == Condition.OPERATOR_AND ) {
+      for ( Condition child : general.getChildren() ) {
+        if ( !subsumes( child, specific ) ) {
+          return false;
+        }
+      }
+      return true;
+    }
+    int specificOperator = operator( specific );
+    if ( specificOperator == Condition.OPERATOR_OR ) {
+      for ( Condition child : specific.getChildren() ) {
+        if ( !subsumes( general, child ) ) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // Sufficient ones next: any disjunct of the general condition, any conjunct of the specific one
+    if ( generalOperator == Condition.OPERATOR_OR ) {
+      for ( Condition child : general.getChildren() ) {
+        if ( subsumes( child, specific ) ) {
+          return true;
+        }
+      }
+    }
+    if ( specificOperator == Condition.OPERATOR_AND ) {
+      for ( Condition child : specific.getChildren() ) {
+        if ( subsumes( general, child ) ) {
+          return true;
+        }
+      }
+    }
+
+    return general.isAtomic() && specific.isAtomic() && atomicSubsumes( general, specific );
+  }
+
+  /**
+   * @return the operator joining all children of a group that is not negated, OPERATOR_AND for a single child, or -1
+   */
+  static int operator( Condition condition ) {
+    if ( condition.isAtomic() || condition.isNegated() ) {
+      return -1;
+    }
+    List<Condition> children = condition.getChildren();
+    int operator = Condition.OPERATOR_AND;
+    for ( int i = 1; i < children.size(); i++ ) {
+      int childOperator = children.get( i ).getOperator();
+      if ( ( childOperator != Condition.OPERATOR_AND && childOperator != Condition.OPERATOR_OR )
+        || ( i > 1 && childOperator != operator ) ) {
+        return -1;
+      }
+      operator = childOperator;
+    }
+    return operator;
+  }
+
+  private static boolean atomicSubsumes( Condition general, Condition specific ) {
+    String field = general.getLeftValuename();
+    if ( general.isNegated() || specific.isNegated() || field == null
+      || !field.equalsIgnoreCase( specific.getLeftValuename() )
+      || general.getRightValuename() != null || specific.getRightValuename() != null ) {
+      return false;
+    }
+    ValueMetaAndData bound = general.getRightExact();
+    ValueMetaAndData value = specific.getRightExact();
+    int function = specific.getFunction();
+    try {
+      if ( general.getFunction() == Condition.FUNC_NOT_NULL ) {
+        // Nulls sort first, so they never equal or exceed a value
+        return isValue( value ) && ( function == Condition.FUNC_EQUAL || function == Condition.FUNC_LARGER
+          || function == Condition.FUNC_LARGER_EQUAL || function == Condition.FUNC_IN_LIST );
+      }
+      if ( !isValue( bound ) || !isValue( value ) ) {
+        return false;
+      }
+      switch ( general.getFunction() ) {
+        case Condition.FUNC_EQUAL:
+          return function == Condition.FUNC_EQUAL ? compare( value, bound ) == 0
+            : function == Condition.FUNC_IN_LIST && inList( value ).equals( ImmutableSet.of( string( bound ) ) );
+        case Condition.FUNC_NOT_EQUAL:
+          return function == Condition.FUNC_EQUAL && compare( value, bound ) != 0;
+        case Condition.FUNC_IN_LIST:
+          return function == Condition.FUNC_IN_LIST ? inList( bound ).containsAll( inList( value ) )
+            : function == Condition.FUNC_EQUAL && inList( bound ).contains( string( value ) );
+        case Condition.FUNC_LARGER:
+          return function == Condition.FUNC_LARGER ? compare( value, bound ) >= 0
+            : ( function == Condition.FUNC_LARGER_EQUAL || function == Condition.FUNC_EQUAL )
+            && compare( value, bound ) > 0;
+        case Condition.FUNC_LARGER_EQUAL:
+          return ( function == Condition.FUNC_LARGER || function == Condition.FUNC_LARGER_EQUAL
+            || function == Condition.FUNC_EQUAL ) && compare( value, bound ) >= 0;
+        case Condition.FUNC_SMALLER:
+          return function == Condition.FUNC_SMALLER ? compare( value, bound ) <= 0
+            : ( function == Condition.FUNC_SMALLER_EQUAL || function == Condition.FUNC_EQUAL )
+            && compare( value, bound ) < 0;
+        case Condition.FUNC_SMALLER_EQUAL:
+          return ( function == Condition.FUNC_SMALLER || function == Condition.FUNC_SMALLER_EQUAL
+            || function == Condition.FUNC_EQUAL ) && compare( value, bound ) <= 0;
+        default:
+          return false;
+      }
+    } catch ( KettleValueException e ) {
+      // Values that can not be compared are not known to be related
+      return false;
+    }
+  }
+
+  private static boolean isValue( ValueMetaAndData exact ) {
+    return exact != null && exact.getValueMeta() != null && exact.getValueData() != null;
+  }
+
+  /**
+   * @return how a value of the specific condition compares to the bound of the general one, in the bound's type
+   */
+  private static int compare( ValueMetaAndData value, ValueMetaAndData bound ) throws KettleValueException {
+    return -bound.getValueMeta().compare( bound.getValueData(), value.getValueMeta(), value.getValueData() );
+  }
+
+  private static String string( ValueMetaAndData exact ) throws KettleValueException {
+    return exact.getValueMeta().getString( exact.getValueData() );
+  }
+
+  // IN lists are matched by the string form of their values, like Condition does
+  private static Set<String> inList( ValueMetaAndData exact ) throws KettleValueException {
+    ImmutableSet.Builder<String> values = ImmutableSet.builder();
+    for ( String value : Const.splitString( string( exact ), ';', true ) ) {
+      if ( value != null ) {
+        values.add( value.replace( "\\", "" ) );
+      }
+    }
+    return values.build();
+  }
+}
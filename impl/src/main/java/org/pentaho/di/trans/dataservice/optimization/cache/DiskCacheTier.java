@@ -0,0 +1,350 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Second tier of a service cache, kept on disk so cached service results survive restarts.
+ * <p>
+ * Every entry is a segment file holding its key, write time, ranking and rows, followed by a CRC32 checksum.
+ * Segments are written to a temporary file and moved into place, so a crash leaves either the previous segment or
+ * the new one. The index of keys is rebuilt from segment headers when the tier is opened. Temporary files and
+ * unreadable segments are deleted then, and corrupt segments are deleted when they are read. Segments are memory
+ * mapped to be read, so a segment is limited to 2GB. Larger results are not written to disk.
+ * <p>
+ * Keys are written field by field rather than with Java serialization, so reading a segment never instantiates
+ * classes named by the file.
+ */
+class DiskCacheTier {
+
+  private static final int MAGIC = 0x4B445343;
+  private static final int FORMAT_VERSION = 2;
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".dat";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int CHECKSUM_BYTES = 8;
+  // A single mapped buffer is indexed by int
+  private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+  private final File directory;
+  private final Map<CachedService.CacheKey, Segment> index = new ConcurrentHashMap<>();
+  private final AtomicLong sequence = new AtomicLong();
+
+  private DiskCacheTier( File directory ) {
+    this.directory = directory;
+  }
+
+  /**
+   * Opens the tier in a directory, recovering the segments a previous process left there.
+   */
+  static DiskCacheTier open( File directory ) throws IOException {
+    if ( !directory.isDirectory() && !directory.mkdirs() ) {
+      throw new IOException( "Unable to create cache directory " + directory );
+    }
+    DiskCacheTier tier = new DiskCacheTier( directory );
+    File[] files = directory.listFiles();
+    for ( File file : files == null ? new File[0] : files ) {
+      String name = file.getName();
+      if ( name.endsWith( TEMP_SUFFIX ) ) {
+        // Left by a crash while writing
+        delete( file );
+      } else if ( name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX ) ) {
+        tier.recover( file );
+      }
+    }
+    return tier;
+  }
+
+  private void recover( File file ) {
+    long fileSequence;
+    Header header;
+    try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) ) {
+      fileSequence = Long.parseLong(
+        file.getName().substring( SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length() ) );
+      header = Header.read( in );
+    } catch ( IOException | RuntimeException e ) {
+      delete( file );
+      return;
+    }
+    sequence.set( Math.max( sequence.get(), fileSequence ) );
+
+    // A crash between moving a new segment into place and deleting the previous one leaves both, keep the newest
+    Segment segment = new Segment( file, fileSequence, header );
+    Segment existing = index.get( header.key );
+    if ( existing == null || existing.sequence < fileSequence ) {
+      index.put( header.key, segment );
+      if ( existing != null ) {
+        delete( existing.file );
+      }
+    } else {
+      delete( file );
+    }
+  }
+
+  /**
+   * Writes a cached service to disk, replacing any previous segment of the same key.
+   *
+   * @return false if the rows do not share a row meta or are too large for a segment, and can not be written
+   */
+  synchronized boolean put( CachedService.CacheKey key, CachedService cachedService ) throws IOException {
+    List<RowMetaAndData> rows = cachedService.getRowMetaAndData();
+    RowMetaInterface rowMeta = rows instanceof ColumnarRows ? ( (ColumnarRows) rows ).getRowMeta()
+      : rows.isEmpty() ? null : rows.get( 0 ).getRowMeta();
+    for ( int i = 0; !( rows instanceof ColumnarRows ) && i < rows.size(); i++ ) {
+      if ( rows.get( i ).getRowMeta() != rowMeta ) {
+        return false;
+      }
+    }
+
+    long fileSequence = sequence.incrementAndGet();
+    File file = new File( directory, SEGMENT_PREFIX + fileSequence + SEGMENT_SUFFIX );
+    File temp = new File( directory, file.getName() + TEMP_SUFFIX );
+    Header header = new Header( key, System.currentTimeMillis(), cachedService.getRanking(),
+      cachedService.getRankingServiceRows() );
+    try ( FileOutputStream fileOut = new FileOutputStream( temp ) ) {
+      CheckedOutputStream checked = new CheckedOutputStream( new BufferedOutputStream( fileOut ), new CRC32() );
+      DataOutputStream out = new DataOutputStream( checked );
+      header.write( out );
+      out.writeInt( rows.size() );
+      if ( rowMeta != null ) {
+        rowMeta.writeMeta( out );
+        for ( RowMetaAndData row : rows ) {
+          rowMeta.writeData( out, row.getData() );
+        }
+      }
+      out.flush();
+      out.writeLong( checked.getChecksum().getValue() );
+      out.flush();
+      fileOut.getFD().sync();
+    } catch ( IOException | KettleException e ) {
+      delete( temp );
+      throw e instanceof IOException ? (IOException) e : new IOException( "Unable to write cached rows", e );
+    }
+    if ( temp.length() > MAX_SEGMENT_BYTES ) {
+      delete( temp );
+      return false;
+    }
+    Files.move( temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE );
+
+    Segment previous = index.put( key, new Segment( file, fileSequence, header ) );
+    if ( previous != null ) {
+      delete( previous.file );
+    }
+    return true;
+  }
+
+  /**
+   * Reads a cached service back from disk.
+   *
+   * @param maxAge Milliseconds a segment is valid for after it was written
+   * @return the cached service, expiring with its segment, or absent if there is no valid segment for the key
+   */
+  Optional<CachedService> get( CachedService.CacheKey key, long maxAge ) {
+    Segment segment = index.get( key );
+    if ( segment == null ) {
+      return Optional.absent();
+    }
+    if ( System.currentTimeMillis() - segment.header.writtenAt > maxAge ) {
+      remove( key, segment );
+      return Optional.absent();
+    }
+
+    try ( FileChannel channel = FileChannel.open( segment.file.toPath(), StandardOpenOption.READ ) ) {
+      long size = channel.size();
+      if ( size < CHECKSUM_BYTES ) {
+        throw new IOException( "Truncated segment " + segment.file );
+      }
+      if ( size > MAX_SEGMENT_BYTES ) {
+        throw new IOException( "Segment too large to map " + segment.file );
+      }
+      ByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+      ByteBuffer body = buffer.duplicate();
+      body.limit( (int) size - CHECKSUM_BYTES );
+      CRC32 checksum = new CRC32();
+      checksum.update( body.duplicate() );
+      if ( checksum.getValue() != buffer.getLong( (int) size - CHECKSUM_BYTES ) ) {
+        throw new IOException( "Corrupt segment " + segment.file );
+      }
+
+      DataInputStream in = new DataInputStream( new BufferInputStream( body ) );
+      Header header = Header.read( in );
+      int rowCount = in.readInt();
+      List<RowMetaAndData> rows = Lists.newArrayListWithCapacity( rowCount );
+      if ( rowCount > 0 ) {
+        RowMetaInterface rowMeta = new RowMeta( in );
+        for ( int i = 0; i < rowCount; i++ ) {
+          rows.add( new RowMetaAndData( rowMeta, rowMeta.readData( in ) ) );
+        }
+      }
+      long expiresAt = maxAge < Long.MAX_VALUE - header.writtenAt ? header.writtenAt + maxAge : Long.MAX_VALUE;
+      return Optional.of( CachedService.restore( rows, header.ranking, header.rankingServiceRows, expiresAt ) );
+    } catch ( IOException | KettleException | RuntimeException e ) {
+      remove( key, segment );
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * @return keys of segments holding all rows of their query
+   */
+  ImmutableSet<CachedService.CacheKey> completeKeys() {
+    ImmutableSet.Builder<CachedService.CacheKey> keys = ImmutableSet.builder();
+    for ( Map.Entry<CachedService.CacheKey, Segment> entry : index.entrySet() ) {
+      if ( !entry.getValue().header.ranking.isPresent() && !entry.getValue().header.rankingServiceRows.isPresent() ) {
+        keys.add( entry.getKey() );
+      }
+    }
+    return keys.build();
+  }
+
+  /**
+   * Deletes segments written for other versions of the service transformation. Their keys can not match again.
+   */
+  void retainVersion( int transMetaVersionId ) {
+    for ( Map.Entry<CachedService.CacheKey, Segment> entry : index.entrySet() ) {
+      if ( entry.getKey().getTransMetaVersionId() != transMetaVersionId ) {
+        remove( entry.getKey(), entry.getValue() );
+      }
+    }
+  }
+
+  synchronized void clear() {
+    for ( Map.Entry<CachedService.CacheKey, Segment> entry : index.entrySet() ) {
+      remove( entry.getKey(), entry.getValue() );
+    }
+  }
+
+  int size() {
+    return index.size();
+  }
+
+  private void remove( CachedService.CacheKey key, Segment segment ) {
+    if ( index.remove( key, segment ) ) {
+      delete( segment.file );
+    }
+  }
+
+  private static void delete( File file ) {
+    if ( !file.delete() ) {
+      file.deleteOnExit();
+    }
+  }
+
+  private static final class Segment {
+    private final File file;
+    private final long sequence;
+    private final Header header;
+
+    Segment( File file, long sequence, Header header ) {
+      this.file = file;
+      this.sequence = sequence;
+      this.header = header;
+    }
+  }
+
+  private static final class Header {
+    private final CachedService.CacheKey key;
+    private final long writtenAt;
+    private final Optional<Integer> ranking;
+    private final Optional<Integer> rankingServiceRows;
+
+    Header( CachedService.CacheKey key, long writtenAt, Optional<Integer> ranking,
+            Optional<Integer> rankingServiceRows ) {
+      this.key = key;
+      this.writtenAt = writtenAt;
+      this.ranking = ranking;
+      this.rankingServiceRows = rankingServiceRows;
+    }
+
+    void write( DataOutputStream out ) throws IOException {
+      out.writeInt( MAGIC );
+      out.writeInt( FORMAT_VERSION );
+      out.writeLong( writtenAt );
+      out.writeInt( ranking.or( -1 ) );
+      out.writeInt( rankingServiceRows.or( -1 ) );
+      key.write( out );
+    }
+
+    static Header read( DataInputStream in ) throws IOException {
+      if ( in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION ) {
+        throw new IOException( "Not a cache segment" );
+      }
+      long writtenAt = in.readLong();
+      int ranking = in.readInt();
+      int rankingServiceRows = in.readInt();
+      return new Header( CachedService.CacheKey.read( in ), writtenAt,
+        ranking < 0 ? Optional.<Integer>absent() : Optional.of( ranking ),
+        rankingServiceRows < 0 ? Optional.<Integer>absent() : Optional.of( rankingServiceRows ) );
+    }
+  }
+
+  private static final class BufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    BufferInputStream( ByteBuffer buffer ) {
+      this.buffer = buffer;
+    }
+
+    @Override public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override public int read( byte[] bytes, int offset, int length ) {
+      if ( !buffer.hasRemaining() ) {
+        return -1;
+      }
+      int read = Math.min( length, buffer.remaining() );
+      buffer.get( bytes, offset, read );
+      return read;
+    }
+  }
+}
@@ -23,6 +23,7 @@
 package org.pentaho.di.trans.dataservice.optimization.cache;
 
 import com.google.common.base.Function;
+import com.google.common.base.Optional;
 import com.google.common.base.Predicates;
 import com.google.common.collect.FluentIterable;
 import com.google.common.net.MediaType;
@@ -77,6 +78,12 @@ public class ResetCacheServlet extends BaseCartePlugin {
     for ( Cache cache : cacheSet ) {
       cache.clear();
     }
+    for ( String name : names ) {
+      Optional<DiskCacheTier> diskTier = factory.getDiskTier( name );
+      if ( diskTier.isPresent() ) {
+        diskTier.get().clear();
+      }
+    }
 
     request
       .respond( 200 )
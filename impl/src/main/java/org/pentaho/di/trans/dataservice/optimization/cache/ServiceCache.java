@@ -26,12 +26,18 @@ import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import io.reactivex.Observer;
+import io.reactivex.disposables.Disposable;
 import org.pentaho.caching.api.PentahoCacheTemplateConfiguration;
+import org.pentaho.di.core.RowMetaAndData;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.sql.SQL;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.DataServiceMeta;
@@ -46,9 +52,13 @@ import javax.cache.Cache;
 import javax.cache.configuration.CompleteConfiguration;
 import javax.cache.expiry.Duration;
 import javax.cache.expiry.ExpiryPolicy;
+import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Predicates.instanceOf;
@@ -65,6 +75,9 @@ public class ServiceCache extends StepOptimization {
   private final ServiceCacheFactory factory;
   public static final String SERVICE_CACHE_TEMPLATE_NAME = "template_name";
   public static final String SERVICE_CACHE_TTL = "time_to_live";
+  public static final String SERVICE_CACHE_RESULTS = "cache_results";
+  // Results with more rows are not cached, the service rows are still cached to replay them
+  public static final int MAX_RESULT_ROWS = 10000;
 
   @MetaStoreAttribute( key = SERVICE_CACHE_TEMPLATE_NAME )
   private String templateName = DEFAULT_TEMPLATE;
@@ -72,6 +85,9 @@ public class ServiceCache extends StepOptimization {
   @MetaStoreAttribute( key = SERVICE_CACHE_TTL )
   private String timeToLive;
 
+  @MetaStoreAttribute( key = SERVICE_CACHE_RESULTS )
+  private boolean cacheResults;
+
   public ServiceCache( ServiceCacheFactory factory ) {
     this.factory = factory;
   }
@@ -130,12 +146,17 @@ public class ServiceCache extends StepOptimization {
           }
           if ( cache.putIfAbsent( key, result ) ) {
             logChannel.logBasic( "Service Transformation results cached", key );
+            addConditionKey( executor, key, result );
+            writeToDisk( executor, key, result );
           } else {
             try {
               CachedService existing = checkNotNull( cache.get( key ) );
               // If the existing result set can't answer this query, replace it
-              if ( !existing.answersQuery( executor ) && cache.replace( key, existing, result ) ) {
+              if ( ( !existing.answersQuery( executor ) || existing.isExpired() )
+                && cache.replace( key, existing, result ) ) {
                 logChannel.logBasic( "Service Transformation cache updated", key );
+                addConditionKey( executor, key, result );
+                writeToDisk( executor, key, result );
               } else {
                 logChannel.logDetailed( "Service Transformation cache was not updated", key );
               }
@@ -155,6 +176,34 @@ public class ServiceCache extends StepOptimization {
     return false;
   }
 
+  /**
+   * Remembers keys of complete rows cached for a where condition, as they may answer narrower conditions.
+   */
+  private void addConditionKey( DataServiceExecutor executor, CachedService.CacheKey key,
+                                CachedService cachedService ) {
+    if ( key.hasCondition() && cachedService.isComplete() ) {
+      factory.getConditionKeys( executor.getServiceName() ).add( key );
+    }
+  }
+
+  /**
+   * Copies cached service rows to the disk tier, if there is one, so they survive restarts.
+   */
+  private void writeToDisk( DataServiceExecutor executor, CachedService.CacheKey key, CachedService cachedService ) {
+    Optional<DiskCacheTier> diskTier = factory.getDiskTier( executor.getServiceName() );
+    if ( !diskTier.isPresent() ) {
+      return;
+    }
+    LogChannelInterface logChannel = executor.getServiceTrans().getLogChannel();
+    try {
+      if ( diskTier.get().put( key, cachedService ) ) {
+        logChannel.logDetailed( "Service Transformation results written to disk cache", key );
+      }
+    } catch ( IOException e ) {
+      logChannel.logError( "Unable to write disk cache", e );
+    }
+  }
+
   private void addReplayCallback( final LogChannelInterface logChannel, ListenableFuture<Integer> replay ) {
     Futures.addCallback( replay, new FutureCallback<Integer>() {
       @Override public void onSuccess( Integer rowCount ) {
@@ -192,31 +241,205 @@ public class ServiceCache extends StepOptimization {
     return rootKey;
   }
 
+  /**
+   * Looks up the final result of an identical query. Results are kept in the service cache, so they expire and are
+   * invalidated with the service rows.
+   *
+   * @return the result rows and their row meta, or null if they are not cached
+   */
+  public Result getCachedResult( DataServiceMeta service, SQL sql, Map<String, String> parameters,
+                                int rowLimit, int serviceRowLimit, LogChannelInterface logChannel ) {
+    if ( !cacheResults || service.isStreaming() ) {
+      return null;
+    }
+    Cache<CachedService.CacheKey, CachedService> cache = maybeInvalidateCache( service.getName(), logChannel );
+    if ( cache == null ) {
+      return null;
+    }
+    CachedService result =
+      cache.get( CachedService.CacheKey.forResult( service, sql, parameters, rowLimit, serviceRowLimit ) );
+    Optional<RowMetaInterface> rowMeta = result != null ? result.getRowMeta() : Optional.<RowMetaInterface>absent();
+    return rowMeta.isPresent() ? new Result( rowMeta.get(), result.getRowMetaAndData() ) : null;
+  }
+
+  /**
+   * Observes the rows a query gives its consumer, to cache them as its final result once the query completes
+   * without errors.
+   *
+   * @return an observer passing rows on to the consumer
+   */
+  public Observer<RowMetaAndData> recordResult( final DataServiceExecutor executor,
+                                                final Observer<RowMetaAndData> consumer ) {
+    if ( !cacheResults || executor.getService().isStreaming() ) {
+      return consumer;
+    }
+    final CachedService.CacheKey key = CachedService.CacheKey.forResult( executor.getService(), executor.getSql(),
+      executor.getParameters(), executor.getRowLimit(), executor.getServiceRowLimit() );
+    return new Observer<RowMetaAndData>() {
+      private List<RowMetaAndData> rows = Lists.newArrayList();
+
+      @Override public void onSubscribe( Disposable disposable ) {
+        consumer.onSubscribe( disposable );
+      }
+
+      @Override public void onNext( RowMetaAndData row ) {
+        if ( rows != null && rows.size() < MAX_RESULT_ROWS ) {
+          rows.add( row );
+        } else {
+          rows = null;
+        }
+        consumer.onNext( row );
+      }
+
+      @Override public void onError( Throwable e ) {
+        rows = null;
+        consumer.onError( e );
+      }
+
+      @Override public void onComplete() {
+        if ( rows != null && !executor.hasErrors() && !executor.isStopped() ) {
+          try {
+            // Kept with the result, so a hit is answered without building the generated transformation
+            RowMetaInterface rowMeta = rows.isEmpty()
+              ? executor.getGenTrans().getTransMeta().getStepFields( executor.getResultStepName() )
+              : rows.get( 0 ).getRowMeta();
+            factory.getCache( ServiceCache.this, executor.getServiceName() )
+              .put( key, CachedService.result( rowMeta, rows ) );
+          } catch ( Throwable t ) {
+            executor.getGenTrans().getLogChannel().logError( "Unable to cache query result", t );
+          }
+        }
+        rows = null;
+        consumer.onComplete();
+      }
+    };
+  }
+
   Map<CachedService.CacheKey, CachedService> getAvailableCache( final DataServiceExecutor executor ) {
     final Cache<CachedService.CacheKey, CachedService> cache =
-        maybeInvalidateCache( executor );
-    if ( cache == null ) {
+        maybeInvalidateCache( executor.getServiceName(), executor.getServiceTrans().getLogChannel() );
+    Optional<DiskCacheTier> diskTier = factory.getDiskTier( executor.getServiceName() );
+    if ( cache == null && !diskTier.isPresent() ) {
       return ImmutableMap.of();
     }
 
-    // First test if the rootKey entry answers the query
     CachedService.CacheKey rootKey = createRootKey( executor );
-    CachedService exactMatch = cache.get( rootKey );
+    Map<CachedService.CacheKey, CachedService> available = cache == null
+      ? ImmutableMap.<CachedService.CacheKey, CachedService>of() : getAvailableCache( cache, executor, rootKey );
+    // Rows cached before a restart are only on disk
+    if ( available.isEmpty() && diskTier.isPresent() ) {
+      available = promote( executor, rootKey, diskTier.get() );
+    }
+    return available;
+  }
+
+  private Map<CachedService.CacheKey, CachedService> getAvailableCache(
+    final Cache<CachedService.CacheKey, CachedService> cache, DataServiceExecutor executor,
+    CachedService.CacheKey rootKey ) {
+    // First test if the rootKey entry answers the query
+    CachedService exactMatch = get( cache, rootKey );
     if ( exactMatch != null && exactMatch.answersQuery( executor ) ) {
       return ImmutableMap.of( rootKey, exactMatch );
     }
 
     // Otherwise, check all related keys for a complete set
-    return FluentIterable.from( rootKey.all() )
+    Optional<Map<CachedService.CacheKey, CachedService>> related = FluentIterable.from( rootKey.all() )
       .transform( new Function<CachedService.CacheKey, Map<CachedService.CacheKey, CachedService>>() {
         @Override public Map<CachedService.CacheKey, CachedService> apply(
           CachedService.CacheKey key ) {
-          CachedService value = cache.get( key );
+          CachedService value = get( cache, key );
           return value != null && value.isComplete() ? ImmutableMap.of( key, value ) : null;
         }
       } )
       .filter( notNull() )
-      .first().or( ImmutableMap.<CachedService.CacheKey, CachedService>of() );
+      .first();
+    if ( related.isPresent() || !rootKey.hasCondition() ) {
+      return related.or( ImmutableMap.<CachedService.CacheKey, CachedService>of() );
+    }
+
+    // Finally, look for a complete set cached for a wider where clause. The query's own filter drops the extra rows.
+    Set<CachedService.CacheKey> conditionKeys = factory.getConditionKeys( executor.getServiceName() );
+    for ( CachedService.CacheKey key : conditionKeys ) {
+      // Unlike get, containsKey does not count as an access that extends the entry's life
+      if ( !cache.containsKey( key ) ) {
+        conditionKeys.remove( key );
+      } else if ( key.subsumes( rootKey ) ) {
+        CachedService value = get( cache, key );
+        if ( value != null && value.isComplete() ) {
+          return ImmutableMap.of( key, value );
+        }
+      }
+    }
+    return ImmutableMap.of();
+  }
+
+  /**
+   * Entries promoted from the disk tier keep the age of their segment. The memory cache only expires entries by its
+   * own time to live, so promoted entries past their segment's age are removed here.
+   */
+  private static CachedService get( Cache<CachedService.CacheKey, CachedService> cache, CachedService.CacheKey key ) {
+    CachedService value = cache.get( key );
+    if ( value != null && value.isExpired() ) {
+      cache.remove( key, value );
+      return null;
+    }
+    return value;
+  }
+
+  /**
+   * Looks up the disk tier the same way as the heap tier, and copies a match back to the heap tier.
+   */
+  private Map<CachedService.CacheKey, CachedService> promote( DataServiceExecutor executor,
+                                                            CachedService.CacheKey rootKey, DiskCacheTier diskTier ) {
+    long maxAge = getDiskTimeToLive();
+    // Validate segments against the current service transformation
+    diskTier.retainVersion( rootKey.getTransMetaVersionId() );
+    for ( CachedService.CacheKey key : rootKey.all() ) {
+      Optional<CachedService> value = diskTier.get( key, maxAge );
+      if ( value.isPresent()
+        && ( key.equals( rootKey ) ? value.get().answersQuery( executor ) : value.get().isComplete() ) ) {
+        return promote( executor, key, value.get() );
+      }
+    }
+    if ( rootKey.hasCondition() ) {
+      for ( CachedService.CacheKey key : diskTier.completeKeys() ) {
+        Optional<CachedService> value = key.subsumes( rootKey ) ? diskTier.get( key, maxAge )
+          : Optional.<CachedService>absent();
+        if ( value.isPresent() ) {
+          return promote( executor, key, value.get() );
+        }
+      }
+    }
+    return ImmutableMap.of();
+  }
+
+  private Map<CachedService.CacheKey, CachedService> promote( DataServiceExecutor executor,
+                                                            CachedService.CacheKey key, CachedService value ) {
+    LogChannelInterface logChannel = executor.getServiceTrans().getLogChannel();
+    try {
+      factory.getCache( this, executor.getServiceName() ).putIfAbsent( key, value );
+      addConditionKey( executor, key, value );
+      logChannel.logBasic( "Service Transformation results loaded from disk cache", key );
+    } catch ( RuntimeException e ) {
+      // Rows can still be replayed from the disk tier
+      logChannel.logError( "Unable to copy disk cache to memory", e );
+    }
+    return ImmutableMap.of( key, value );
+  }
+
+  /**
+   * Disk segments expire like memory entries would, counted from when they were written.
+   *
+   * @return milliseconds a disk segment is valid for
+   */
+  private long getDiskTimeToLive() {
+    try {
+      String timeToLive = getTimeToLive() != null ? getTimeToLive() : getConfiguredTimeToLive();
+      return TimeUnit.SECONDS.toMillis( Long.parseLong( timeToLive ) );
+    } catch ( RuntimeException e ) {
+      // No time to live configured
+      return Long.MAX_VALUE;
+    }
   }
 
   /**
@@ -224,15 +447,19 @@ public class ServiceCache extends StepOptimization {
    * no longer valid.  Will return the cache associated with the data service (if available) otherwise.
    */
   private Cache<CachedService.CacheKey, CachedService> maybeInvalidateCache(
-      DataServiceExecutor executor ) {
-    Optional<Cache<CachedService.CacheKey, CachedService>> cache = factory.getCache( executor.getServiceName() );
-    LogChannelInterface logChannel = executor.getServiceTrans().getLogChannel();
+      String serviceName, LogChannelInterface logChannel ) {
+    Optional<Cache<CachedService.CacheKey, CachedService>> cache = factory.getCache( serviceName );
     if ( cache.isPresent() ) {
       if ( !ttlMatches( cache.get(), logChannel ) ) {
-        logChannel.logBasic( "Dropping cache associated with " + executor.getServiceName() );
+        logChannel.logBasic( "Dropping cache associated with " + serviceName );
         dropCache( cache.get() );
+        factory.getConditionKeys( serviceName ).clear();
+        Optional<DiskCacheTier> diskTier = factory.getDiskTier( serviceName );
+        if ( diskTier.isPresent() ) {
+          diskTier.get().clear();
+        }
       } else {
-        logChannel.logDebug( "Found cache associated with " + executor.getServiceName() );
+        logChannel.logDebug( "Found cache associated with " + serviceName );
         return cache.get();
       }
     }
@@ -310,6 +537,14 @@ public class ServiceCache extends StepOptimization {
     this.timeToLive = timeToLive;
   }
 
+  public boolean isCacheResults() {
+    return cacheResults;
+  }
+
+  public void setCacheResults( boolean cacheResults ) {
+    this.cacheResults = cacheResults;
+  }
+
   public String getConfiguredTimeToLive() {
     PentahoCacheTemplateConfiguration configuration = factory.getPentahoCacheTemplateConfiguration( this );
     return configuration.getProperties().get( CONFIG_TTL );
@@ -323,4 +558,25 @@ public class ServiceCache extends StepOptimization {
     }
   }
 
+  /**
+   * Cached final result of a query, with the row meta of the result even if it has no rows.
+   */
+  public static final class Result {
+    private final RowMetaInterface rowMeta;
+    private final List<RowMetaAndData> rows;
+
+    public Result( RowMetaInterface rowMeta, List<RowMetaAndData> rows ) {
+      this.rowMeta = rowMeta;
+      this.rows = rows;
+    }
+
+    public RowMetaInterface getRowMeta() {
+      return rowMeta;
+    }
+
+    public List<RowMetaAndData> getRows() {
+      return rows;
+    }
+  }
+
 }
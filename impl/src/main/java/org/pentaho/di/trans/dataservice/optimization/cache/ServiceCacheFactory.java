@@ -24,20 +24,28 @@ package org.pentaho.di.trans.dataservice.optimization.cache;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import org.pentaho.caching.api.PentahoCacheManager;
 import org.pentaho.caching.api.PentahoCacheTemplateConfiguration;
 import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannel;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.optimization.PushDownFactory;
 import org.pentaho.di.trans.dataservice.optimization.cache.ui.ServiceCacheController;
 import org.pentaho.di.trans.dataservice.optimization.cache.ui.ServiceCacheOverlay;
+import org.pentaho.di.trans.dataservice.utils.DataServiceConstants;
+import org.pentaho.di.trans.dataservice.utils.KettleUtils;
 
 import javax.cache.Cache;
 import javax.cache.CacheException;
+import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.function.Supplier;
@@ -57,6 +65,10 @@ public class ServiceCacheFactory implements PushDownFactory {
 
   private final Map<CachedService.CacheKey, ServiceObserver> runningServices = new ConcurrentHashMap<>();
 
+  private final Map<String, Optional<DiskCacheTier>> diskTiers = new ConcurrentHashMap<>();
+
+  private final Map<String, Set<CachedService.CacheKey>> conditionKeys = new ConcurrentHashMap<>();
+
   public ServiceCacheFactory( PentahoCacheManager cacheManager, ExecutorService executorService ) {
     this.cacheManager = cacheManager;
     this.executorService = MoreExecutors.listeningDecorator( executorService );
@@ -105,6 +117,35 @@ public class ServiceCacheFactory implements PushDownFactory {
       );
   }
 
+  /**
+   * Disk tier of a data service's cache, present if {@link DataServiceConstants#CACHE_DISK_DIR_PROPERTY} names a
+   * directory.
+   */
+  public Optional<DiskCacheTier> getDiskTier( String dataServiceName ) {
+    return diskTiers.computeIfAbsent( dataServiceName, this::openDiskTier );
+  }
+
+  private Optional<DiskCacheTier> openDiskTier( String dataServiceName ) {
+    String directory;
+    try {
+      directory = KettleUtils.getInstance().getKettleProperty( DataServiceConstants.CACHE_DISK_DIR_PROPERTY );
+    } catch ( KettleException e ) {
+      directory = null;
+    }
+    if ( Strings.isNullOrEmpty( directory ) ) {
+      return Optional.absent();
+    }
+    // Service names may not be valid file names
+    String name = cacheName( dataServiceName ).replaceAll( "[^\\w.-]", "_" )
+      + "-" + Integer.toHexString( dataServiceName.hashCode() );
+    try {
+      return Optional.of( DiskCacheTier.open( new File( directory, name ) ) );
+    } catch ( IOException e ) {
+      LogChannel.GENERAL.logError( "Unable to open disk cache for " + dataServiceName, e );
+      return Optional.absent();
+    }
+  }
+
   public PentahoCacheTemplateConfiguration getPentahoCacheTemplateConfiguration( ServiceCache serviceCache ) {
     String templateName = serviceCache.getTemplateName();
     Map<String, PentahoCacheTemplateConfiguration> templates = cacheManager.getTemplates();
@@ -138,7 +179,7 @@ public class ServiceCacheFactory implements PushDownFactory {
   }
 
   public CachedServiceLoader createCachedServiceLoader( CachedService cachedService ) {
-    return new CachedServiceLoader( executorService, () -> cachedService.getRowMetaAndData().iterator() );
+    return new CachedServiceLoader( cachedService, executorService );
   }
 
   public CachedServiceLoader createCachedServiceLoader( Supplier<Iterator<RowMetaAndData>> supplier ) {
@@ -159,4 +200,12 @@ public class ServiceCacheFactory implements PushDownFactory {
   public Map<CachedService.CacheKey, ServiceObserver> getRunningServices() {
     return runningServices;
   }
+
+  /**
+   * Keys of complete service rows cached for a where condition, so narrower conditions find them without scanning
+   * the cache. Keys of expired entries are dropped when they are next looked up.
+   */
+  public Set<CachedService.CacheKey> getConditionKeys( String dataServiceName ) {
+    return conditionKeys.computeIfAbsent( dataServiceName, name -> Sets.newConcurrentHashSet() );
+  }
 }
@@ -104,7 +104,8 @@ public class ServiceObserver extends AbstractFuture<CachedService> implements Ru
       @Override public synchronized void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) {
         Object[] clonedRow;
         try {
-          clonedRow = rowMeta.cloneRow( row );
+          // Exact-length copies, replayed rows may then be shared with queries that only read them
+          clonedRow = rowMeta.cloneRow( row, new Object[ rowMeta.size() ] );
         } catch ( KettleValueException e ) {
           setException( e );
           return;
@@ -61,10 +61,12 @@ public class ServiceCacheController extends AbstractController {
 
     XulCheckbox serviceCacheCheckBox = getElementById( "service-cache-checkbox" );
     XulTextbox serviceCacheTextBox = getElementById( "service-cache-ttl" );
+    XulCheckbox serviceCacheResultsCheckBox = getElementById( "service-cache-results" );
 
     bindingFactory.setBindingType( Binding.Type.ONE_WAY );
 
     serviceCacheCheckBox.setChecked( meta.isEnabled() );
+    serviceCacheResultsCheckBox.setChecked( serviceCache.isCacheResults() );
 
     serviceCacheTab.setVisible( !model.isStreaming() );
 
@@ -74,10 +76,12 @@ public class ServiceCacheController extends AbstractController {
       getLogChannel().logError( "Unable to set default TTL", e );
     }
     bindingFactory.createBinding( serviceCacheTextBox, "value", serviceCache, "timeToLive" );
+    bindingFactory.createBinding( serviceCacheResultsCheckBox, "checked", serviceCache, "cacheResults" );
 
     bindingFactory.createBinding( serviceCacheCheckBox, "checked", meta, "enabled" );
 
     bindingFactory.createBinding( serviceCacheCheckBox, "checked", serviceCacheTextBox, "disabled", not() );
+    bindingFactory.createBinding( serviceCacheCheckBox, "checked", serviceCacheResultsCheckBox, "disabled", not() );
 
     bindingFactory.createBinding( normalModeRadio, "selected", serviceCacheTab, "visible" );
     bindingFactory.createBinding( streamingRadioButton, "!selected", serviceCacheTab, "visible" );
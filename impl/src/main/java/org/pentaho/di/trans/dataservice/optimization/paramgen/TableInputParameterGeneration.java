@@ -37,7 +37,10 @@ import org.pentaho.di.trans.steps.tableinput.TableInput;
 import org.pentaho.di.trans.steps.tableinput.TableInputData;
 import org.pentaho.di.trans.steps.tableinput.TableInputMeta;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -46,6 +49,11 @@ import java.util.List;
  */
 public class TableInputParameterGeneration implements ParameterGenerationService {
 
+  /**
+   * Largest number of values bound in a single IN list, larger lists are split into several OR'ed IN lists
+   */
+  public static final int IN_LIST_CHUNK_SIZE = 1000;
+
   private final ValueMetaResolver valueMetaResolver;
   protected DatabaseMeta dbMeta;
 
@@ -203,13 +211,17 @@ public class TableInputParameterGeneration implements ParameterGenerationService
         placeholder = "";
         break;
       case Condition.FUNC_IN_LIST:
-        Object[] inList = getInListArray( condition );
+        // Repeated values only add placeholders
+        List<Object> inList = new ArrayList<>( new LinkedHashSet<>( Arrays.asList( getInListArray( condition ) ) ) );
         ValueMetaInterface inListValueMeta = getResolvedValueMeta( condition );
-        for ( int i = 0; i < inList.length; i++ ) {
+        for ( Object inListValue : inList ) {
           paramsMeta.addValueMeta( inListValueMeta );
-          params.add( inList [ i ] );
+          params.add( inListValue );
+        }
+        if ( inList.size() > IN_LIST_CHUNK_SIZE ) {
+          return convertChunkedInList( condition, inList.size() );
         }
-        placeholder = String.format( "(%s)", StringUtils.join( Collections.nCopies( inList.length, "?" ).iterator(), "," ) );
+        placeholder = inListPlaceholder( inList.size() );
         function = " IN ";
         break;
       default:
@@ -224,6 +236,22 @@ public class TableInputParameterGeneration implements ParameterGenerationService
     return String.format( "%s %s %s", getQuotedFieldName( condition ), function, placeholder );
   }
 
+  /**
+   * Many databases limit the number of values in an IN list (e.g. 1000 on Oracle)
+   */
+  private String convertChunkedInList( Condition condition, int size ) {
+    List<String> chunks = new ArrayList<>();
+    for ( int start = 0; start < size; start += IN_LIST_CHUNK_SIZE ) {
+      chunks.add( String.format( "%s  IN  %s", getQuotedFieldName( condition ),
+        inListPlaceholder( Math.min( IN_LIST_CHUNK_SIZE, size - start ) ) ) );
+    }
+    return "( " + StringUtils.join( chunks, " OR " ) + " )";
+  }
+
+  private static String inListPlaceholder( int size ) {
+    return String.format( "(%s)", StringUtils.join( Collections.nCopies( size, "?" ).iterator(), "," ) );
+  }
+
   private Object[] getInListArray( Condition condition ) throws PushDownOptimizationException {
     String value = condition.getRightExactString();
     return valueMetaResolver.inListToTypedObjectArray(
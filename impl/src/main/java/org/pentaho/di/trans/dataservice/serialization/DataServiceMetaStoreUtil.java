@@ -45,7 +45,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicReference;
 import javax.cache.Cache;
 import org.pentaho.caching.api.Constants;
 import org.pentaho.caching.api.PentahoCacheManager;
@@ -57,6 +56,7 @@ import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.dataservice.DataServiceContext;
 import org.pentaho.di.trans.dataservice.DataServiceMeta;
 import org.pentaho.di.trans.dataservice.optimization.PushDownFactory;
+import org.pentaho.di.trans.dataservice.utils.KettleUtils;
 import org.pentaho.metastore.api.IMetaStore;
 import org.pentaho.metastore.api.exceptions.MetaStoreException;
 import org.pentaho.metastore.persist.MetaStoreFactory;
@@ -65,21 +65,31 @@ import org.pentaho.platform.engine.security.SecurityHelper;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.pentaho.di.i18n.BaseMessages.getString;
+import static org.pentaho.di.trans.dataservice.utils.DataServiceConstants.RESOLUTION_CACHE_SIZE_DEFAULT;
+import static org.pentaho.di.trans.dataservice.utils.DataServiceConstants.RESOLUTION_CACHE_SIZE_PROPERTY;
 import static org.pentaho.metastore.util.PentahoDefaults.NAMESPACE;
 
 public class DataServiceMetaStoreUtil {
   private static final Class<DataServiceMetaStoreUtil> PKG = DataServiceMetaStoreUtil.class;
   private static final HashFunction hashFunction = Hashing.goodFastHash( Integer.SIZE );
   private final Cache<Integer, String> stepCache;
+  private final ServiceResolutionCache resolutionCache;
   protected final DataServiceContext context;
 
   protected DataServiceMetaStoreUtil( DataServiceContext context, Cache<Integer, String> cache ) {
+    this( context, cache, null );
+  }
+
+  protected DataServiceMetaStoreUtil( DataServiceContext context, Cache<Integer, String> cache,
+                                      ServiceResolutionCache resolutionCache ) {
     this.context = context;
     this.stepCache = cache;
+    this.resolutionCache = resolutionCache != null ? resolutionCache : new ServiceResolutionCache(
+      KettleUtils.getInstance().getKettleProperty( RESOLUTION_CACHE_SIZE_PROPERTY, RESOLUTION_CACHE_SIZE_DEFAULT ) );
   }
 
   protected DataServiceMetaStoreUtil( DataServiceMetaStoreUtil metaStoreUtil ) {
-    this( metaStoreUtil.getContext(), metaStoreUtil.getStepCache() );
+    this( metaStoreUtil.getContext(), metaStoreUtil.getStepCache(), metaStoreUtil.getResolutionCache() );
   }
 
   public static DataServiceMetaStoreUtil create( DataServiceContext context ) {
@@ -99,23 +109,29 @@ public class DataServiceMetaStoreUtil {
       throw new MetaStoreException( MessageFormat.format( "Data Service {0} not found", serviceName ) );
     }
 
-    final AtomicReference<Exception> loadException = new AtomicReference<Exception>();
-    Optional<TransMeta> transMeta = FluentIterable.from( transReference.getReferences() ).
-      transform( createTransMetaLoader( repository, new Function<Exception, Void>() {
-        @Override public Void apply( Exception e ) {
-          loadException.compareAndSet( null, e );
-          return null;
-        }
-      } ) ).
-      transform( Suppliers.<TransMeta>supplierFunction() ).
-      firstMatch( Predicates.notNull() );
-
-    if ( transMeta.isPresent() ) {
-      return getDataService( serviceName, transMeta.get() );
-    } else {
-      throw new MetaStoreException( MessageFormat.format( "Failed to load Data Service {0}", serviceName ),
-        loadException.get() );
+    List<ServiceTrans.Reference> references = transReference.getReferences();
+    DataServiceMeta cached = resolutionCache.get( serviceName, repository, references );
+    if ( cached != null ) {
+      return cached;
     }
+
+    Exception loadException = null;
+    for ( ServiceTrans.Reference reference : references ) {
+      TransMeta transMeta;
+      try {
+        transMeta = reference.load( repository );
+      } catch ( KettleException e ) {
+        loadException = loadException != null ? loadException : e;
+        continue;
+      }
+      if ( transMeta != null ) {
+        DataServiceMeta dataServiceMeta = getDataService( serviceName, transMeta );
+        resolutionCache.put( serviceName, repository, references, reference, dataServiceMeta );
+        return dataServiceMeta;
+      }
+    }
+    throw new MetaStoreException( MessageFormat.format( "Failed to load Data Service {0}", serviceName ),
+      loadException );
   }
 
   public DataServiceMeta getDataService( String serviceName, TransMeta serviceTrans ) throws MetaStoreException {
@@ -296,6 +312,7 @@ public class DataServiceMetaStoreUtil {
 
     // Save to embedded MetaStore
     getDataServiceFactory( transMeta ).saveElement( dataService );
+    resolutionCache.invalidate( dataService.getName() );
     transMeta.setChanged();
   }
 
@@ -311,6 +328,7 @@ public class DataServiceMetaStoreUtil {
 
   public void deleteDataServiceElementAndCleanCache( DataServiceMeta dataService, TransMeta transMeta ) throws MetaStoreException {
     getDataServiceFactory( transMeta ).deleteElement( dataService.getName() );
+    resolutionCache.invalidate( dataService.getName() );
     for ( Integer key : createCacheKeys( transMeta, dataService.getStepname() ) ) {
       stepCache.replace( key, dataService.getName(), "" );
     }
@@ -350,6 +368,7 @@ public class DataServiceMetaStoreUtil {
 
       for ( String name : names ) {
         serviceTransFactory.deleteElement( name );
+        resolutionCache.invalidate( name );
       }
     } catch ( MetaStoreException e ) {
       getLogChannel().logError( "Unable to remove orphaned data service", e );
@@ -400,4 +419,8 @@ public class DataServiceMetaStoreUtil {
     return stepCache;
   }
 
+  public ServiceResolutionCache getResolutionCache() {
+    return resolutionCache;
+  }
+
 }
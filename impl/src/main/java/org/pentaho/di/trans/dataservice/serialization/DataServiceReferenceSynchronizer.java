@@ -89,6 +89,7 @@ public class DataServiceReferenceSynchronizer {
       } catch ( Exception e ) {
         exceptionHandler.apply( e );
       }
+      invalidateResolution( name );
     } );
     toDelete.forEach( name -> {
       try {
@@ -96,11 +97,19 @@ public class DataServiceReferenceSynchronizer {
       } catch ( MetaStoreException e ) {
         exceptionHandler.apply( e );
       }
+      invalidateResolution( name );
     } );
     nameConflicts.forEach( name ->
       exceptionHandler.apply( new DataServiceAlreadyExistsException( servicesInTrans.get( name ) ) ) );
   }
 
+  private void invalidateResolution( String name ) {
+    DataServiceMetaStoreUtil metaStoreUtil = context != null ? context.getMetaStoreUtil() : null;
+    if ( metaStoreUtil != null && metaStoreUtil.getResolutionCache() != null ) {
+      metaStoreUtil.getResolutionCache().invalidate( name );
+    }
+  }
+
   private Map<String, ServiceTrans> getPublishedServicesFromTransMeta( TransMeta transMeta,
                                                                        Map<String, ServiceTrans> publishedServices ) {
     return publishedServices.entrySet().stream()
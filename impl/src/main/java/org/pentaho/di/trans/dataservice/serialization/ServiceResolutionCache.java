@@ -0,0 +1,161 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.serialization;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.repository.ObjectId;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.DataServiceMeta;
+
+import java.util.List;
+
+/**
+ * Remembers which data service each published service name resolved to, so that queries do not reload and parse
+ * the service transformation every time.
+ * <p>
+ * Entries are validated against the stored revision of the transformation (repository modification date or file
+ * modification time) before they are used, and are dropped whenever a data service is saved, removed or synced.
+ * Cached data services also carry the {@link TransMeta#getCacheVersion() version} of their transformation.
+ */
+public class ServiceResolutionCache {
+
+  private final Cache<String, Entry> entries;
+
+  public ServiceResolutionCache( long maximumSize ) {
+    entries = CacheBuilder.newBuilder()
+      .maximumSize( maximumSize )
+      .recordStats()
+      .build();
+  }
+
+  /**
+   * Get a previously resolved data service, if its transformation has not changed since.
+   *
+   * @param serviceName Published data service name
+   * @param repository  Repository the service was resolved from, may be null
+   * @param references  Current published references for this service
+   * @return the cached data service or null
+   */
+  public DataServiceMeta get( String serviceName, Repository repository, List<ServiceTrans.Reference> references ) {
+    Entry entry = entries.getIfPresent( serviceName );
+    if ( entry == null ) {
+      return null;
+    }
+    if ( entry.matches( repository, references ) && entry.isCurrent( repository ) ) {
+      return entry.dataServiceMeta;
+    }
+    entries.invalidate( serviceName );
+    return null;
+  }
+
+  /**
+   * Remember a resolved data service. Nothing is cached if the revision of its source can not be determined.
+   *
+   * @param source          Reference the service transformation was loaded from
+   * @param dataServiceMeta Resolved data service
+   */
+  public void put( String serviceName, Repository repository, List<ServiceTrans.Reference> references,
+                   ServiceTrans.Reference source, DataServiceMeta dataServiceMeta ) {
+    TransMeta serviceTrans = dataServiceMeta.getServiceTrans();
+    ObjectId objectId = serviceTrans.getObjectId();
+    String revision;
+    try {
+      revision = source.getRevision( repository, objectId );
+    } catch ( KettleException e ) {
+      revision = null;
+    }
+    if ( revision == null ) {
+      return;
+    }
+    try {
+      // Same lock as queries reading the service transformation
+      synchronized ( serviceTrans ) {
+        dataServiceMeta.setServiceTransVersion( serviceTrans.getCacheVersion() );
+      }
+    } catch ( Exception e ) {
+      // Version will be calculated on demand instead
+      dataServiceMeta.setServiceTransVersion( null );
+    }
+    entries.put( serviceName,
+      new Entry( getRepositoryName( repository ), references, source, objectId, revision, dataServiceMeta ) );
+  }
+
+  public void invalidate( String serviceName ) {
+    entries.invalidate( serviceName );
+  }
+
+  public void invalidateAll() {
+    entries.invalidateAll();
+  }
+
+  public long size() {
+    return entries.size();
+  }
+
+  public CacheStats getStats() {
+    return entries.stats();
+  }
+
+  private static String getRepositoryName( Repository repository ) {
+    return repository != null ? repository.getName() : null;
+  }
+
+  private static class Entry {
+    private final String repositoryName;
+    private final ImmutableList<ServiceTrans.Reference> references;
+    private final ServiceTrans.Reference source;
+    private final ObjectId objectId;
+    private final String revision;
+    private final DataServiceMeta dataServiceMeta;
+
+    Entry( String repositoryName, List<ServiceTrans.Reference> references, ServiceTrans.Reference source,
+           ObjectId objectId, String revision, DataServiceMeta dataServiceMeta ) {
+      this.repositoryName = repositoryName;
+      this.references = ImmutableList.copyOf( references );
+      this.source = source;
+      this.objectId = objectId;
+      this.revision = revision;
+      this.dataServiceMeta = dataServiceMeta;
+    }
+
+    boolean matches( Repository repository, List<ServiceTrans.Reference> references ) {
+      return Objects.equal( repositoryName, getRepositoryName( repository ) )
+        && this.references.equals( ImmutableList.copyOf( references ) );
+    }
+
+    boolean isCurrent( Repository repository ) {
+      try {
+        return revision.equals( source.getRevision( repository, objectId ) );
+      } catch ( KettleException e ) {
+        return false;
+      }
+    }
+  }
+}
@@ -194,6 +194,10 @@ public class ServiceTrans implements MetaStoreElement {
     public TransMeta load( Repository repository ) throws KettleException {
       return method.load( repository, location );
     }
+
+    public String getRevision( Repository repository, ObjectId objectId ) throws KettleException {
+      return method.getRevision( repository, location, objectId );
+    }
   }
   public enum StorageMethod {
     FILE {
@@ -207,6 +211,11 @@ public class ServiceTrans implements MetaStoreElement {
         }
         return null;
       }
+
+      @Override public String getRevision( Repository repository, String location, ObjectId objectId ) {
+        File file = new File( location );
+        return file.exists() ? file.lastModified() + ":" + file.length() : null;
+      }
     },
     REPO_PATH {
       @Override public boolean exists( Repository repository, String location ) {
@@ -261,6 +270,11 @@ public class ServiceTrans implements MetaStoreElement {
 
         return transId;
       }
+
+      @Override public String getRevision( Repository repository, String location, ObjectId objectId )
+        throws KettleException {
+        return getRepositoryRevision( repository, objectId );
+      }
     },
     REPO_ID {
       @Override public boolean exists( Repository repository, String location ) {
@@ -280,10 +294,37 @@ public class ServiceTrans implements MetaStoreElement {
         }
         return trans;
       }
+
+      @Override public String getRevision( Repository repository, String location, ObjectId objectId )
+        throws KettleException {
+        return getRepositoryRevision( repository, objectId );
+      }
     };
 
     public abstract TransMeta load( Repository repository, String location ) throws KettleException;
 
+    /**
+     * Identify the stored revision of a transformation loaded from this location.
+     * Checking the revision must be much cheaper than loading the transformation.
+     *
+     * @param objectId Object id of the loaded transformation, if any
+     * @return revision identifier, or null if the transformation is gone or its revision is unknown
+     */
+    public String getRevision( Repository repository, String location, ObjectId objectId ) throws KettleException {
+      return null;
+    }
+
+    private static String getRepositoryRevision( Repository repository, ObjectId objectId ) throws KettleException {
+      if ( repository == null || objectId == null ) {
+        return null;
+      }
+      RepositoryObject transInfo = repository.getObjectInformation( objectId, RepositoryObjectType.TRANSFORMATION );
+      if ( transInfo == null || transInfo.isDeleted() || transInfo.getModifiedDate() == null ) {
+        return null;
+      }
+      return objectId.getId() + "@" + transInfo.getModifiedDate().getTime();
+    }
+
     public boolean exists( Repository repository, String location ) {
       // Assume true, unless we know otherwise.
       return true;
@@ -0,0 +1,123 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.conditional;
+
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.execution.ConditionCompiler;
+import org.pentaho.di.trans.dataservice.execution.RowPredicate;
+import org.pentaho.di.trans.step.BaseStep;
+import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+
+/**
+ * Evaluates the {@link ConditionCompiler compiled} conditions of all conditional fields on each row and appends the
+ * chosen values, in a single pass.
+ */
+public class ConditionalFields extends BaseStep implements StepInterface {
+
+  public ConditionalFields( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr,
+                            TransMeta transMeta, Trans trans ) {
+    super( stepMeta, stepDataInterface, copyNr, transMeta, trans );
+  }
+
+  @Override public boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
+    ConditionalFieldsMeta meta = (ConditionalFieldsMeta) smi;
+    ConditionalFieldsData data = (ConditionalFieldsData) sdi;
+
+    Object[] row = getRow();
+    if ( row == null ) {
+      setOutputDone();
+      return false;
+    }
+
+    if ( first ) {
+      first = false;
+      initialize( meta, data, getInputRowMeta() );
+    }
+
+    // Resizing copies exact-length rows, so injected rows are never written to
+    Object[] outputRow = RowDataUtil.resizeArray( row, data.outputRowMeta.size() );
+    for ( int i = 0; i < data.conditions.length; i++ ) {
+      ConditionalFieldsData.Outcome outcome = data.conditions[ i ].test( row )
+        ? data.trueOutcomes[ i ] : data.falseOutcomes[ i ];
+      outputRow[ data.inputSize + i ] = outcome.get( row );
+    }
+    putRow( data.outputRowMeta, outputRow );
+    return true;
+  }
+
+  private void initialize( ConditionalFieldsMeta meta, ConditionalFieldsData data, RowMetaInterface inputRowMeta )
+    throws KettleException {
+    data.inputSize = inputRowMeta.size();
+    data.outputRowMeta = inputRowMeta.clone();
+    meta.getFields( data.outputRowMeta, getStepname(), null, null, this, repository, metaStore );
+
+    int nrFields = meta.getFieldName().length;
+    data.conditions = new RowPredicate[ nrFields ];
+    data.trueOutcomes = new ConditionalFieldsData.Outcome[ nrFields ];
+    data.falseOutcomes = new ConditionalFieldsData.Outcome[ nrFields ];
+    for ( int i = 0; i < nrFields; i++ ) {
+      // Copies of the step each compile their own condition
+      Condition condition = (Condition) meta.getCondition()[ i ].clone();
+      data.conditions[ i ] = ConditionCompiler.compile( condition, inputRowMeta );
+      ValueMetaInterface targetMeta = data.outputRowMeta.getValueMeta( data.inputSize + i );
+      data.trueOutcomes[ i ] = outcome( meta, inputRowMeta, i, true, targetMeta );
+      data.falseOutcomes[ i ] = outcome( meta, inputRowMeta, i, false, targetMeta );
+    }
+  }
+
+  private ConditionalFieldsData.Outcome outcome( ConditionalFieldsMeta meta, RowMetaInterface inputRowMeta, int i,
+                                                 boolean isTrue, ValueMetaInterface targetMeta )
+    throws KettleException {
+    String value = isTrue ? meta.getTrueValue()[ i ] : meta.getFalseValue()[ i ];
+    if ( isTrue ? meta.getTrueField()[ i ] : meta.getFalseField()[ i ] ) {
+      int fieldIndex = inputRowMeta.indexOfValue( value );
+      if ( fieldIndex < 0 ) {
+        throw new KettleStepException( "Unable to find field for " + meta.getFieldName()[ i ] + ": " + value );
+      }
+      return ConditionalFieldsData.Outcome.ofField( fieldIndex, inputRowMeta.getValueMeta( fieldIndex ),
+        targetMeta );
+    }
+
+    // Constants are parsed with their own type and format, like the Add constants step does
+    ValueMetaInterface constantMeta = meta.getValueMeta( inputRowMeta, i, isTrue );
+    ValueMetaInterface stringMeta = new ValueMetaString( constantMeta.getName() );
+    stringMeta.setConversionMask( constantMeta.getConversionMask() );
+    Object constant = constantMeta.convertData( stringMeta, value );
+    if ( constantMeta.getType() != targetMeta.getType() ) {
+      constant = targetMeta.convertData( constantMeta, constant );
+    }
+    return ConditionalFieldsData.Outcome.ofConstant( constant );
+  }
+}
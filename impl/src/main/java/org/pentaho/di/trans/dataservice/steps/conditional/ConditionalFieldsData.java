@@ -0,0 +1,82 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.conditional;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.dataservice.execution.RowPredicate;
+import org.pentaho.di.trans.step.BaseStepData;
+import org.pentaho.di.trans.step.StepDataInterface;
+
+public class ConditionalFieldsData extends BaseStepData implements StepDataInterface {
+  public RowMetaInterface outputRowMeta;
+  // Added fields start after the input fields
+  int inputSize;
+  RowPredicate[] conditions;
+  Outcome[] trueOutcomes;
+  Outcome[] falseOutcomes;
+
+  public ConditionalFieldsData() {
+    super();
+  }
+
+  /**
+   * The true or false value of a conditional field, of the type of the field
+   */
+  static class Outcome {
+    private final int fieldIndex;
+    private final ValueMetaInterface fieldMeta;
+    private final ValueMetaInterface targetMeta;
+    private final boolean convert;
+    private final Object constant;
+
+    private Outcome( int fieldIndex, ValueMetaInterface fieldMeta, ValueMetaInterface targetMeta, Object constant ) {
+      this.fieldIndex = fieldIndex;
+      this.fieldMeta = fieldMeta;
+      this.targetMeta = targetMeta;
+      this.convert = fieldMeta != null
+        && ( fieldMeta.isStorageBinaryString() || fieldMeta.getType() != targetMeta.getType() );
+      this.constant = constant;
+    }
+
+    static Outcome ofField( int fieldIndex, ValueMetaInterface fieldMeta, ValueMetaInterface targetMeta ) {
+      return new Outcome( fieldIndex, fieldMeta, targetMeta, null );
+    }
+
+    /**
+     * @param constant Value already converted to the type of the field
+     */
+    static Outcome ofConstant( Object constant ) {
+      return new Outcome( -1, null, null, constant );
+    }
+
+    Object get( Object[] row ) throws KettleValueException {
+      if ( fieldIndex < 0 ) {
+        return constant;
+      }
+      return convert ? targetMeta.convertData( fieldMeta, row[ fieldIndex ] ) : row[ fieldIndex ];
+    }
+  }
+}
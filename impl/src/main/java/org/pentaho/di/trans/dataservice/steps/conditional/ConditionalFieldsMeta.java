@@ -0,0 +1,354 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.conditional;
+
+import org.pentaho.di.core.CheckResult;
+import org.pentaho.di.core.CheckResultInterface;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.annotations.Step;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettlePluginException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.repository.ObjectId;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.BaseStepMeta;
+import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.metastore.api.IMetaStore;
+import org.w3c.dom.Node;
+
+import java.util.List;
+
+/**
+ * Adds one field per IIF function, taking the true or the false value depending on a condition, as generated for IIF
+ * in data service queries.
+ * <p>
+ * Either value is an input field or a constant of the given type and format. The added field has the type of the true
+ * value, false values of another type are converted to it.
+ */
+@Step( id = ConditionalFieldsMeta.STEP_ID, name = "Conditional fields",
+  description = "Adds fields set to one of two values by a condition, as generated for IIF in data service queries",
+  categoryDescription = "i18n:org.pentaho.di.trans.step:BaseStep.Category.Transform" )
+public class ConditionalFieldsMeta extends BaseStepMeta implements StepMetaInterface {
+
+  public static final String STEP_ID = "DataServiceConditionalFields";
+
+  private String[] fieldName;
+  private Condition[] condition;
+  private boolean[] trueField;
+  private String[] trueValue;
+  private String[] trueType;
+  private String[] trueFormat;
+  private boolean[] falseField;
+  private String[] falseValue;
+  private String[] falseType;
+  private String[] falseFormat;
+
+  public ConditionalFieldsMeta() {
+    super();
+  }
+
+  public void allocate( int nrFields ) {
+    fieldName = new String[ nrFields ];
+    condition = new Condition[ nrFields ];
+    trueField = new boolean[ nrFields ];
+    trueValue = new String[ nrFields ];
+    trueType = new String[ nrFields ];
+    trueFormat = new String[ nrFields ];
+    falseField = new boolean[ nrFields ];
+    falseValue = new String[ nrFields ];
+    falseType = new String[ nrFields ];
+    falseFormat = new String[ nrFields ];
+  }
+
+  @Override public void setDefault() {
+    allocate( 0 );
+  }
+
+  @Override public Object clone() {
+    ConditionalFieldsMeta clone = (ConditionalFieldsMeta) super.clone();
+    clone.fieldName = fieldName.clone();
+    clone.condition = new Condition[ condition.length ];
+    for ( int i = 0; i < condition.length; i++ ) {
+      clone.condition[ i ] = condition[ i ] == null ? null : (Condition) condition[ i ].clone();
+    }
+    clone.trueField = trueField.clone();
+    clone.trueValue = trueValue.clone();
+    clone.trueType = trueType.clone();
+    clone.trueFormat = trueFormat.clone();
+    clone.falseField = falseField.clone();
+    clone.falseValue = falseValue.clone();
+    clone.falseType = falseType.clone();
+    clone.falseFormat = falseFormat.clone();
+    return clone;
+  }
+
+  @Override public void loadXML( Node stepnode, List<DatabaseMeta> databases, IMetaStore metaStore )
+    throws KettleXMLException {
+    try {
+      Node fields = XMLHandler.getSubNode( stepnode, "fields" );
+      int nrFields = XMLHandler.countNodes( fields, "field" );
+      allocate( nrFields );
+      for ( int i = 0; i < nrFields; i++ ) {
+        Node fieldNode = XMLHandler.getSubNodeByNr( fields, "field", i );
+        fieldName[ i ] = XMLHandler.getTagValue( fieldNode, "name" );
+        condition[ i ] = new Condition( XMLHandler.getSubNode( XMLHandler.getSubNode( fieldNode, "compare" ),
+          "condition" ) );
+        trueField[ i ] = "Y".equalsIgnoreCase( XMLHandler.getTagValue( fieldNode, "true_field" ) );
+        trueValue[ i ] = XMLHandler.getTagValue( fieldNode, "true_value" );
+        trueType[ i ] = XMLHandler.getTagValue( fieldNode, "true_type" );
+        trueFormat[ i ] = XMLHandler.getTagValue( fieldNode, "true_format" );
+        falseField[ i ] = "Y".equalsIgnoreCase( XMLHandler.getTagValue( fieldNode, "false_field" ) );
+        falseValue[ i ] = XMLHandler.getTagValue( fieldNode, "false_value" );
+        falseType[ i ] = XMLHandler.getTagValue( fieldNode, "false_type" );
+        falseFormat[ i ] = XMLHandler.getTagValue( fieldNode, "false_format" );
+      }
+    } catch ( Exception e ) {
+      throw new KettleXMLException( "Unable to load step info from XML", e );
+    }
+  }
+
+  @Override public String getXML() throws KettleException {
+    StringBuilder xml = new StringBuilder();
+    xml.append( "    " ).append( XMLHandler.openTag( "fields" ) ).append( Const.CR );
+    for ( int i = 0; i < fieldName.length; i++ ) {
+      xml.append( "      " ).append( XMLHandler.openTag( "field" ) ).append( Const.CR );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "name", fieldName[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.openTag( "compare" ) ).append( Const.CR );
+      xml.append( condition[ i ].getXML() );
+      xml.append( "        " ).append( XMLHandler.closeTag( "compare" ) ).append( Const.CR );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "true_field", trueField[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "true_value", trueValue[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "true_type", trueType[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "true_format", trueFormat[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "false_field", falseField[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "false_value", falseValue[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "false_type", falseType[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "false_format", falseFormat[ i ] ) );
+      xml.append( "      " ).append( XMLHandler.closeTag( "field" ) ).append( Const.CR );
+    }
+    xml.append( "    " ).append( XMLHandler.closeTag( "fields" ) ).append( Const.CR );
+    return xml.toString();
+  }
+
+  @Override public void readRep( Repository rep, IMetaStore metaStore, ObjectId idStep,
+                                 List<DatabaseMeta> databases ) throws KettleException {
+    int nrFields = rep.countNrStepAttributes( idStep, "field_name" );
+    allocate( nrFields );
+    for ( int i = 0; i < nrFields; i++ ) {
+      fieldName[ i ] = rep.getStepAttributeString( idStep, i, "field_name" );
+      condition[ i ] = new Condition( XMLHandler.getSubNode(
+        XMLHandler.loadXMLString( rep.getStepAttributeString( idStep, i, "field_condition" ) ), "condition" ) );
+      trueField[ i ] = rep.getStepAttributeBoolean( idStep, i, "field_true_field" );
+      trueValue[ i ] = rep.getStepAttributeString( idStep, i, "field_true_value" );
+      trueType[ i ] = rep.getStepAttributeString( idStep, i, "field_true_type" );
+      trueFormat[ i ] = rep.getStepAttributeString( idStep, i, "field_true_format" );
+      falseField[ i ] = rep.getStepAttributeBoolean( idStep, i, "field_false_field" );
+      falseValue[ i ] = rep.getStepAttributeString( idStep, i, "field_false_value" );
+      falseType[ i ] = rep.getStepAttributeString( idStep, i, "field_false_type" );
+      falseFormat[ i ] = rep.getStepAttributeString( idStep, i, "field_false_format" );
+    }
+  }
+
+  @Override public void saveRep( Repository rep, IMetaStore metaStore, ObjectId idTransformation, ObjectId idStep )
+    throws KettleException {
+    for ( int i = 0; i < fieldName.length; i++ ) {
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_name", fieldName[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_condition", condition[ i ].getXML() );
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_true_field", trueField[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_true_value", trueValue[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_true_type", trueType[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_true_format", trueFormat[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_false_field", falseField[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_false_value", falseValue[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_false_type", falseType[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_false_format", falseFormat[ i ] );
+    }
+  }
+
+  @Override public void getFields( RowMetaInterface inputRowMeta, String name, RowMetaInterface[] info,
+                                   StepMeta nextStep, VariableSpace space, Repository repository,
+                                   IMetaStore metaStore ) throws KettleStepException {
+    ValueMetaInterface[] added = new ValueMetaInterface[ fieldName.length ];
+    for ( int i = 0; i < fieldName.length; i++ ) {
+      added[ i ] = getValueMeta( inputRowMeta, i, true );
+      added[ i ].setName( fieldName[ i ] );
+      added[ i ].setOrigin( name );
+    }
+    for ( ValueMetaInterface valueMeta : added ) {
+      inputRowMeta.addValueMeta( valueMeta );
+    }
+  }
+
+  /**
+   * @return the type of the true or false value of a field: a copy of the input field, or the type of the constant
+   */
+  ValueMetaInterface getValueMeta( RowMetaInterface inputRowMeta, int i, boolean isTrue )
+    throws KettleStepException {
+    String value = isTrue ? trueValue[ i ] : falseValue[ i ];
+    if ( isTrue ? trueField[ i ] : falseField[ i ] ) {
+      ValueMetaInterface valueMeta = inputRowMeta.searchValueMeta( value );
+      if ( valueMeta == null ) {
+        throw new KettleStepException( "Unable to find field for " + fieldName[ i ] + ": " + value );
+      }
+      valueMeta = valueMeta.clone();
+      valueMeta.setStorageType( ValueMetaInterface.STORAGE_TYPE_NORMAL );
+      valueMeta.setStorageMetadata( null );
+      return valueMeta;
+    }
+    try {
+      ValueMetaInterface valueMeta = ValueMetaFactory.createValueMeta( fieldName[ i ],
+        ValueMetaFactory.getIdForValueMeta( isTrue ? trueType[ i ] : falseType[ i ] ) );
+      valueMeta.setConversionMask( isTrue ? trueFormat[ i ] : falseFormat[ i ] );
+      return valueMeta;
+    } catch ( KettlePluginException e ) {
+      throw new KettleStepException( "Unable to create value type for " + fieldName[ i ], e );
+    }
+  }
+
+  @Override public void check( List<CheckResultInterface> remarks, TransMeta transMeta, StepMeta stepMeta,
+                               RowMetaInterface prev, String[] input, String[] output, RowMetaInterface info,
+                               VariableSpace space, Repository repository, IMetaStore metaStore ) {
+    if ( prev == null || prev.isEmpty() ) {
+      return;
+    }
+    for ( int i = 0; i < fieldName.length; i++ ) {
+      for ( String usedField : condition[ i ].getUsedFields() ) {
+        if ( prev.indexOfValue( usedField ) < 0 ) {
+          remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+            "Condition field not found in input: " + usedField, stepMeta ) );
+        }
+      }
+      if ( trueField[ i ] && prev.indexOfValue( trueValue[ i ] ) < 0 ) {
+        remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          "True value field not found in input: " + trueValue[ i ], stepMeta ) );
+      }
+      if ( falseField[ i ] && prev.indexOfValue( falseValue[ i ] ) < 0 ) {
+        remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          "False value field not found in input: " + falseValue[ i ], stepMeta ) );
+      }
+    }
+  }
+
+  @Override public StepInterface getStep( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr,
+                                          TransMeta transMeta, Trans trans ) {
+    return new ConditionalFields( stepMeta, stepDataInterface, copyNr, transMeta, trans );
+  }
+
+  @Override public StepDataInterface getStepData() {
+    return new ConditionalFieldsData();
+  }
+
+  public String[] getFieldName() {
+    return fieldName;
+  }
+
+  public void setFieldName( String[] fieldName ) {
+    this.fieldName = fieldName;
+  }
+
+  public Condition[] getCondition() {
+    return condition;
+  }
+
+  public void setCondition( Condition[] condition ) {
+    this.condition = condition;
+  }
+
+  public boolean[] getTrueField() {
+    return trueField;
+  }
+
+  public void setTrueField( boolean[] trueField ) {
+    this.trueField = trueField;
+  }
+
+  public String[] getTrueValue() {
+    return trueValue;
+  }
+
+  public void setTrueValue( String[] trueValue ) {
+    this.trueValue = trueValue;
+  }
+
+  public String[] getTrueType() {
+    return trueType;
+  }
+
+  public void setTrueType( String[] trueType ) {
+    this.trueType = trueType;
+  }
+
+  public String[] getTrueFormat() {
+    return trueFormat;
+  }
+
+  public void setTrueFormat( String[] trueFormat ) {
+    this.trueFormat = trueFormat;
+  }
+
+  public boolean[] getFalseField() {
+    return falseField;
+  }
+
+  public void setFalseField( boolean[] falseField ) {
+    this.falseField = falseField;
+  }
+
+  public String[] getFalseValue() {
+    return falseValue;
+  }
+
+  public void setFalseValue( String[] falseValue ) {
+    this.falseValue = falseValue;
+  }
+
+  public String[] getFalseType() {
+    return falseType;
+  }
+
+  public void setFalseType( String[] falseType ) {
+    this.falseType = falseType;
+  }
+
+  public String[] getFalseFormat() {
+    return falseFormat;
+  }
+
+  public void setFalseFormat( String[] falseFormat ) {
+    this.falseFormat = falseFormat;
+  }
+}
@@ -0,0 +1,237 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.externalsort;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.logging.Metrics;
+import org.pentaho.di.core.logging.MetricsInterface;
+import org.pentaho.di.core.metrics.MetricsSnapshotType;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.steps.spill.SpillFile;
+import org.pentaho.di.trans.step.BaseStep;
+import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+
+import java.util.List;
+
+/**
+ * Sorts rows in runs sized to the memory limit, spilling full runs to disk and merging them at end of input. Without
+ * any spilled run the rows never leave memory.
+ */
+public class ExternalSort extends BaseStep implements StepInterface {
+
+  public static final MetricsInterface METRIC_SPILLED_RUNS = new Metrics( MetricsSnapshotType.SUM,
+    "DATASERVICE_SORT_SPILLED_RUNS", "Sorted runs spilled to disk" );
+  public static final MetricsInterface METRIC_SPILLED_ROWS = new Metrics( MetricsSnapshotType.SUM,
+    "DATASERVICE_SORT_SPILLED_ROWS", "Rows spilled to disk by the sort" );
+
+  // Fewer rows per run would only add files, whatever the estimate
+  static final int MIN_RUN_SIZE = 100;
+  // Runs merged at once, more are merged into bigger runs first
+  static final int MAX_MERGE_RUNS = 16;
+
+  public ExternalSort( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta,
+                       Trans trans ) {
+    super( stepMeta, stepDataInterface, copyNr, transMeta, trans );
+  }
+
+  @Override public boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
+    ExternalSortMeta meta = (ExternalSortMeta) smi;
+    ExternalSortData data = (ExternalSortData) sdi;
+
+    Object[] row = getRow();
+    if ( row == null ) {
+      if ( !first ) {
+        writeRows( data );
+        // Spill counts for the query metrics, recorded when gathering them
+        log.snap( METRIC_SPILLED_RUNS, getStepname(), data.spilledRuns );
+        log.snap( METRIC_SPILLED_ROWS, getStepname(), data.spilledRows );
+      }
+      setOutputDone();
+      return false;
+    }
+
+    if ( first ) {
+      first = false;
+      data.outputRowMeta = getInputRowMeta().clone();
+      meta.getFields( data.outputRowMeta, getStepname(), null, null, this, repository, metaStore );
+
+      String[] fieldName = meta.getFieldName();
+      data.fieldIndexes = new int[ fieldName.length ];
+      for ( int i = 0; i < fieldName.length; i++ ) {
+        data.fieldIndexes[ i ] = data.outputRowMeta.indexOfValue( fieldName[ i ] );
+        if ( data.fieldIndexes[ i ] < 0 ) {
+          throw new KettleStepException( "Unable to find field to sort on: " + fieldName[ i ] );
+        }
+      }
+      data.order = new RowOrder( data.outputRowMeta, data.fieldIndexes );
+      data.runSize = getRunSize( meta.getMemoryLimit(), data.outputRowMeta );
+    }
+
+    data.buffer.add( row );
+    if ( data.buffer.size() >= data.runSize ) {
+      spill( data );
+    }
+    return true;
+  }
+
+  /**
+   * @return the rows buffered for a run, Integer.MAX_VALUE without a memory limit
+   */
+  static int getRunSize( long memoryLimit, RowMetaInterface rowMeta ) {
+    if ( memoryLimit <= 0 ) {
+      return Integer.MAX_VALUE;
+    }
+    return (int) Math.min( Integer.MAX_VALUE, Math.max( memoryLimit / estimateRowBytes( rowMeta ), MIN_RUN_SIZE ) );
+  }
+
+  /**
+   * @return rough estimate of the bytes a buffered row takes, from the types and lengths of its fields
+   */
+  static long estimateRowBytes( RowMetaInterface rowMeta ) {
+    long bytes = 16 + 8L * rowMeta.size();
+    for ( ValueMetaInterface valueMeta : rowMeta.getValueMetaList() ) {
+      // Unknown or huge declared lengths are usually far from filled
+      int length = valueMeta.getLength() > 0 ? Math.min( valueMeta.getLength(), 256 ) : 32;
+      if ( valueMeta.isStorageBinaryString() ) {
+        bytes += 16 + length;
+        continue;
+      }
+      switch ( valueMeta.getType() ) {
+        case ValueMetaInterface.TYPE_STRING:
+          bytes += 40 + 2 * length;
+          break;
+        case ValueMetaInterface.TYPE_BINARY:
+          bytes += 16 + length;
+          break;
+        case ValueMetaInterface.TYPE_BIGNUMBER:
+          bytes += 64;
+          break;
+        case ValueMetaInterface.TYPE_BOOLEAN:
+          bytes += 16;
+          break;
+        default:
+          bytes += 24;
+          break;
+      }
+    }
+    return bytes;
+  }
+
+  private void spill( ExternalSortData data ) throws KettleException {
+    data.order.sort( data.buffer );
+    SpillFile run = SpillFile.create( "dataservice-sort-" );
+    data.runs.add( run );
+    for ( Object[] row : data.buffer ) {
+      run.write( data.outputRowMeta, row );
+    }
+    run.close();
+    data.spilledRuns++;
+    data.spilledRows += data.buffer.size();
+    data.buffer.clear();
+    if ( log.isDetailed() ) {
+      logDetailed( "Spilled sorted run " + data.spilledRuns + " to disk" );
+    }
+  }
+
+  private void writeRows( ExternalSortData data ) throws KettleException {
+    data.order.sort( data.buffer );
+    if ( data.runs.isEmpty() ) {
+      for ( int i = 0; i < data.buffer.size() && !isStopped(); i++ ) {
+        putRow( data.outputRowMeta, data.buffer.get( i ) );
+      }
+      data.buffer.clear();
+      return;
+    }
+
+    // The first runs hold the first rows, merging them into one keeps the order of equal rows
+    while ( data.runs.size() > MAX_MERGE_RUNS && !isStopped() ) {
+      List<SpillFile> first = data.runs.subList( 0, MAX_MERGE_RUNS );
+      data.merger = new RunMerger( data.order, open( first, data.outputRowMeta ) );
+      first.clear();
+      SpillFile merged = SpillFile.create( "dataservice-sort-" );
+      data.runs.add( 0, merged );
+      for ( Object[] row = data.merger.next(); row != null && !isStopped(); row = data.merger.next() ) {
+        merged.write( data.outputRowMeta, row );
+      }
+      merged.close();
+      data.merger.close();
+      data.merger = null;
+    }
+
+    List<RunMerger.Run> runs = open( data.runs, data.outputRowMeta );
+    data.runs.clear();
+    runs.add( RunMerger.of( data.buffer ) );
+    data.merger = new RunMerger( data.order, runs );
+    for ( Object[] row = data.merger.next(); row != null && !isStopped(); row = data.merger.next() ) {
+      putRow( data.outputRowMeta, row );
+    }
+    data.merger.close();
+    data.merger = null;
+    data.buffer.clear();
+  }
+
+  private static List<RunMerger.Run> open( List<SpillFile> files, RowMetaInterface rowMeta ) throws KettleException {
+    List<RunMerger.Run> runs = Lists.newArrayList();
+    try {
+      for ( SpillFile file : files ) {
+        runs.add( RunMerger.of( file, rowMeta ) );
+      }
+    } catch ( KettleException e ) {
+      for ( RunMerger.Run run : runs ) {
+        run.close();
+      }
+      throw e;
+    }
+    return runs;
+  }
+
+  @VisibleForTesting
+  long getSpilledRuns() {
+    return ( (ExternalSortData) getStepDataInterface() ).spilledRuns;
+  }
+
+  @Override public void dispose( StepMetaInterface smi, StepDataInterface sdi ) {
+    ExternalSortData data = (ExternalSortData) sdi;
+    // Stopped or failed before all runs were merged
+    if ( data.merger != null ) {
+      data.merger.close();
+      data.merger = null;
+    }
+    for ( SpillFile run : data.runs ) {
+      run.delete();
+    }
+    data.runs.clear();
+    data.buffer.clear();
+    super.dispose( smi, sdi );
+  }
+}
@@ -0,0 +1,50 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.externalsort;
+
+import com.google.common.collect.Lists;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.dataservice.steps.spill.SpillFile;
+import org.pentaho.di.trans.step.BaseStepData;
+import org.pentaho.di.trans.step.StepDataInterface;
+
+import java.util.List;
+
+public class ExternalSortData extends BaseStepData implements StepDataInterface {
+  public RowMetaInterface outputRowMeta;
+  public int[] fieldIndexes;
+  RowOrder order;
+  // Rows buffered before the next run is spilled
+  int runSize;
+  List<Object[]> buffer = Lists.newArrayList();
+  // Spilled runs in input order
+  List<SpillFile> runs = Lists.newArrayList();
+  RunMerger merger;
+  long spilledRuns;
+  long spilledRows;
+
+  public ExternalSortData() {
+    super();
+  }
+}
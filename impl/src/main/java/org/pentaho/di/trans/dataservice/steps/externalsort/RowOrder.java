@@ -0,0 +1,76 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.externalsort;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders rows on the sort fields, using the sort direction and case sensitivity set on their value metas.
+ */
+class RowOrder implements Comparator<Object[]> {
+  private final RowMetaInterface rowMeta;
+  private final int[] fieldIndexes;
+
+  RowOrder( RowMetaInterface rowMeta, int[] fieldIndexes ) {
+    this.rowMeta = rowMeta;
+    this.fieldIndexes = fieldIndexes;
+  }
+
+  @Override public int compare( Object[] left, Object[] right ) {
+    try {
+      return rowMeta.compare( left, right, fieldIndexes );
+    } catch ( KettleValueException e ) {
+      throw new ComparisonException( e );
+    }
+  }
+
+  /**
+   * Stable sort, rows that compare equal keep their order
+   */
+  void sort( List<Object[]> rows ) throws KettleValueException {
+    try {
+      Collections.sort( rows, this );
+    } catch ( ComparisonException e ) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Carries a failed value comparison through collections that only take a {@link Comparator}
+   */
+  static class ComparisonException extends RuntimeException {
+    ComparisonException( KettleValueException cause ) {
+      super( cause );
+    }
+
+    @Override public synchronized KettleValueException getCause() {
+      return (KettleValueException) super.getCause();
+    }
+  }
+}
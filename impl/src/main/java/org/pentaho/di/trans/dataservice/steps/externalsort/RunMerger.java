@@ -0,0 +1,147 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.externalsort;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.dataservice.steps.spill.SpillFile;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * K-way merge of sorted runs. Rows that compare equal come out in the order of their runs, so merging consecutive
+ * runs of a stable sort keeps it stable.
+ */
+class RunMerger {
+
+  /**
+   * Sorted rows, read once
+   */
+  interface Run {
+    /**
+     * @return the next row, or null after the last one
+     */
+    Object[] next() throws KettleException;
+
+    void close();
+  }
+
+  private final List<Run> runs;
+  private final PriorityQueue<Head> heads;
+
+  /**
+   * @param runs Runs to merge, closed by {@link #close()} or when the merge cannot start
+   */
+  RunMerger( RowOrder order, List<Run> runs ) throws KettleException {
+    this.runs = runs;
+    heads = new PriorityQueue<>( Math.max( runs.size(), 1 ), ( left, right ) -> {
+      int cmp = order.compare( left.row, right.row );
+      return cmp != 0 ? cmp : Integer.compare( left.run, right.run );
+    } );
+    try {
+      for ( int i = 0; i < runs.size(); i++ ) {
+        advance( i );
+      }
+    } catch ( KettleException e ) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the next row in sort order, or null after the last one
+   */
+  Object[] next() throws KettleException {
+    try {
+      Head head = heads.poll();
+      if ( head == null ) {
+        return null;
+      }
+      advance( head.run );
+      return head.row;
+    } catch ( RowOrder.ComparisonException e ) {
+      throw e.getCause();
+    }
+  }
+
+  private void advance( int run ) throws KettleException {
+    Object[] row = runs.get( run ).next();
+    if ( row != null ) {
+      try {
+        heads.add( new Head( row, run ) );
+      } catch ( RowOrder.ComparisonException e ) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  void close() {
+    for ( Run run : runs ) {
+      run.close();
+    }
+    heads.clear();
+  }
+
+  static Run of( final List<Object[]> rows ) {
+    return new Run() {
+      private final Iterator<Object[]> iterator = rows.iterator();
+
+      @Override public Object[] next() {
+        return iterator.hasNext() ? iterator.next() : null;
+      }
+
+      @Override public void close() {
+      }
+    };
+  }
+
+  /**
+   * @return a run reading a spilled file, deleted when the run is closed
+   */
+  static Run of( final SpillFile file, RowMetaInterface rowMeta ) throws KettleException {
+    final SpillFile.Reader reader = file.open( rowMeta );
+    return new Run() {
+      @Override public Object[] next() throws KettleException {
+        return reader.next();
+      }
+
+      @Override public void close() {
+        reader.close();
+        file.delete();
+      }
+    };
+  }
+
+  private static class Head {
+    private final Object[] row;
+    private final int run;
+
+    private Head( Object[] row, int run ) {
+      this.row = row;
+      this.run = run;
+    }
+  }
+}
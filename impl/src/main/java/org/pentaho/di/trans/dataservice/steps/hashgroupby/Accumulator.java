@@ -0,0 +1,412 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.hashgroupby;
+
+import com.google.common.collect.Sets;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueDataUtil;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta.TYPE_AVERAGE;
+import static org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta.TYPE_COUNT_ALL;
+import static org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta.TYPE_COUNT_ANY;
+import static org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta.TYPE_COUNT_DISTINCT;
+import static org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta.TYPE_MAX;
+import static org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta.TYPE_MIN;
+import static org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta.TYPE_SUM;
+
+/**
+ * One aggregate for all groups, indexed by {@link GroupTable group number}.
+ * <p>
+ * Integer and Number subjects are accumulated in primitive arrays. Other types, such as strings, dates and
+ * BigNumbers, keep an object per group and use value meta arithmetic and comparison.
+ */
+abstract class Accumulator {
+  private static final ValueMetaInterface COUNT_META = new ValueMetaInteger( "count" );
+
+  /**
+   * Adds a value of the subject field to a group
+   */
+  abstract void add( int group, Object value ) throws KettleValueException;
+
+  /**
+   * @return the aggregate of a group, in normal storage
+   */
+  abstract Object result( int group ) throws KettleValueException;
+
+  /**
+   * Makes room for groups up to the given number
+   */
+  abstract void ensureCapacity( int groups );
+
+  /**
+   * @return rough estimate of the bytes taken by the aggregates of all groups
+   */
+  abstract long memory();
+
+  static Accumulator create( int type, ValueMetaInterface subject ) {
+    // Counting rows needs no subject
+    int subjectType = subject == null ? ValueMetaInterface.TYPE_NONE : subject.getType();
+    boolean integer = subjectType == ValueMetaInterface.TYPE_INTEGER;
+    boolean number = subjectType == ValueMetaInterface.TYPE_NUMBER;
+    switch ( type ) {
+      case TYPE_COUNT_ANY:
+        return new Count( null );
+      case TYPE_COUNT_ALL:
+        return new Count( subject );
+      case TYPE_COUNT_DISTINCT:
+        return new DistinctCount( subject );
+      case TYPE_SUM:
+        return integer ? new LongSum( subject, false ) : number ? new DoubleSum( subject, false )
+          : new ObjectAggregate( type, subject );
+      case TYPE_AVERAGE:
+        return integer ? new LongSum( subject, true ) : number ? new DoubleSum( subject, true )
+          : new ObjectAggregate( type, subject );
+      case TYPE_MIN:
+      case TYPE_MAX:
+        return integer ? new LongExtreme( subject, type == TYPE_MAX )
+          : number ? new DoubleExtreme( subject, type == TYPE_MAX ) : new ObjectAggregate( type, subject );
+      default:
+        throw new IllegalArgumentException( "Unknown aggregate type " + type );
+    }
+  }
+
+  static int grow( int length, int groups ) {
+    return Math.max( groups, length * 2 );
+  }
+
+  /**
+   * Counts rows, or the non-null values of a subject
+   */
+  static class Count extends Accumulator {
+    private final ValueMetaInterface subject;
+    private long[] counts = new long[ 8 ];
+
+    Count( ValueMetaInterface subject ) {
+      this.subject = subject;
+    }
+
+    @Override void add( int group, Object value ) throws KettleValueException {
+      if ( subject == null || !subject.isNull( value ) ) {
+        counts[ group ]++;
+      }
+    }
+
+    @Override Object result( int group ) {
+      return counts[ group ];
+    }
+
+    @Override void ensureCapacity( int groups ) {
+      if ( groups > counts.length ) {
+        counts = Arrays.copyOf( counts, grow( counts.length, groups ) );
+      }
+    }
+
+    @Override long memory() {
+      return 8L * counts.length;
+    }
+  }
+
+  /**
+   * Keeps the distinct non-null values of each group in a set of its own
+   */
+  static class DistinctCount extends Accumulator {
+    private final ValueMetaInterface subject;
+    private Set<?>[] values = new Set<?>[ 8 ];
+    private long valueBytes;
+
+    DistinctCount( ValueMetaInterface subject ) {
+      this.subject = subject;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    @Override void add( int group, Object value ) throws KettleValueException {
+      if ( subject.isNull( value ) ) {
+        return;
+      }
+      if ( values[ group ] == null ) {
+        values[ group ] = Sets.newHashSet();
+        valueBytes += 64;
+      }
+      Object normal = subject.convertToNormalStorageType( value );
+      if ( ( (Set<Object>) values[ group ] ).add( normal ) ) {
+        valueBytes += 40 + GroupTable.sizeOf( normal );
+      }
+    }
+
+    @Override Object result( int group ) {
+      return values[ group ] == null ? 0L : (long) values[ group ].size();
+    }
+
+    @Override void ensureCapacity( int groups ) {
+      if ( groups > values.length ) {
+        values = Arrays.copyOf( values, grow( values.length, groups ) );
+      }
+    }
+
+    @Override long memory() {
+      return 8L * values.length + valueBytes;
+    }
+  }
+
+  /**
+   * Sum or average of Integer values. Like the value meta arithmetic it replaces, the average divides integers.
+   */
+  static class LongSum extends Accumulator {
+    private final ValueMetaInterface subject;
+    private final boolean average;
+    private long[] sums = new long[ 8 ];
+    private long[] counts = new long[ 8 ];
+
+    LongSum( ValueMetaInterface subject, boolean average ) {
+      this.subject = subject;
+      this.average = average;
+    }
+
+    @Override void add( int group, Object value ) throws KettleValueException {
+      Long longValue = subject.getInteger( value );
+      if ( longValue != null ) {
+        sums[ group ] += longValue;
+        counts[ group ]++;
+      }
+    }
+
+    @Override Object result( int group ) {
+      if ( counts[ group ] == 0 ) {
+        return null;
+      }
+      return average ? sums[ group ] / counts[ group ] : sums[ group ];
+    }
+
+    @Override void ensureCapacity( int groups ) {
+      if ( groups > sums.length ) {
+        sums = Arrays.copyOf( sums, grow( sums.length, groups ) );
+        counts = Arrays.copyOf( counts, sums.length );
+      }
+    }
+
+    @Override long memory() {
+      return 16L * sums.length;
+    }
+  }
+
+  /**
+   * Sum or average of Number values
+   */
+  static class DoubleSum extends Accumulator {
+    private final ValueMetaInterface subject;
+    private final boolean average;
+    private double[] sums = new double[ 8 ];
+    private long[] counts = new long[ 8 ];
+
+    DoubleSum( ValueMetaInterface subject, boolean average ) {
+      this.subject = subject;
+      this.average = average;
+    }
+
+    @Override void add( int group, Object value ) throws KettleValueException {
+      Double doubleValue = subject.getNumber( value );
+      if ( doubleValue != null ) {
+        sums[ group ] += doubleValue;
+        counts[ group ]++;
+      }
+    }
+
+    @Override Object result( int group ) {
+      if ( counts[ group ] == 0 ) {
+        return null;
+      }
+      return average ? sums[ group ] / counts[ group ] : sums[ group ];
+    }
+
+    @Override void ensureCapacity( int groups ) {
+      if ( groups > sums.length ) {
+        sums = Arrays.copyOf( sums, grow( sums.length, groups ) );
+        counts = Arrays.copyOf( counts, sums.length );
+      }
+    }
+
+    @Override long memory() {
+      return 16L * sums.length;
+    }
+  }
+
+  /**
+   * Minimum or maximum of Integer values
+   */
+  static class LongExtreme extends Accumulator {
+    private final ValueMetaInterface subject;
+    private final boolean max;
+    private long[] values = new long[ 8 ];
+    private boolean[] set = new boolean[ 8 ];
+
+    LongExtreme( ValueMetaInterface subject, boolean max ) {
+      this.subject = subject;
+      this.max = max;
+    }
+
+    @Override void add( int group, Object value ) throws KettleValueException {
+      Long longValue = subject.getInteger( value );
+      if ( longValue == null ) {
+        return;
+      }
+      if ( !set[ group ] || ( max ? longValue > values[ group ] : longValue < values[ group ] ) ) {
+        values[ group ] = longValue;
+        set[ group ] = true;
+      }
+    }
+
+    @Override Object result( int group ) {
+      return set[ group ] ? values[ group ] : null;
+    }
+
+    @Override void ensureCapacity( int groups ) {
+      if ( groups > values.length ) {
+        values = Arrays.copyOf( values, grow( values.length, groups ) );
+        set = Arrays.copyOf( set, values.length );
+      }
+    }
+
+    @Override long memory() {
+      return 9L * values.length;
+    }
+  }
+
+  /**
+   * Minimum or maximum of Number values, ordered like the value meta compares them
+   */
+  static class DoubleExtreme extends Accumulator {
+    private final ValueMetaInterface subject;
+    private final boolean max;
+    private double[] values = new double[ 8 ];
+    private boolean[] set = new boolean[ 8 ];
+
+    DoubleExtreme( ValueMetaInterface subject, boolean max ) {
+      this.subject = subject;
+      this.max = max;
+    }
+
+    @Override void add( int group, Object value ) throws KettleValueException {
+      Double doubleValue = subject.getNumber( value );
+      if ( doubleValue == null ) {
+        return;
+      }
+      int cmp = set[ group ] ? Double.compare( doubleValue, values[ group ] ) : 0;
+      if ( !set[ group ] || ( max ? cmp > 0 : cmp < 0 ) ) {
+        values[ group ] = doubleValue;
+        set[ group ] = true;
+      }
+    }
+
+    @Override Object result( int group ) {
+      return set[ group ] ? values[ group ] : null;
+    }
+
+    @Override void ensureCapacity( int groups ) {
+      if ( groups > values.length ) {
+        values = Arrays.copyOf( values, grow( values.length, groups ) );
+        set = Arrays.copyOf( set, values.length );
+      }
+    }
+
+    @Override long memory() {
+      return 9L * values.length;
+    }
+  }
+
+  /**
+   * Any other subject type, such as strings, dates and BigNumbers
+   */
+  static class ObjectAggregate extends Accumulator {
+    private final int type;
+    private final ValueMetaInterface subject;
+    private final ValueMetaInterface normal;
+    private Object[] values = new Object[ 8 ];
+    private long[] counts = new long[ 8 ];
+    private long valueBytes;
+
+    ObjectAggregate( int type, ValueMetaInterface subject ) {
+      this.type = type;
+      this.subject = subject;
+      // Values are kept in normal storage
+      normal = subject.clone();
+      normal.setStorageType( ValueMetaInterface.STORAGE_TYPE_NORMAL );
+    }
+
+    @Override void add( int group, Object value ) throws KettleValueException {
+      if ( subject.isNull( value ) ) {
+        return;
+      }
+      value = subject.convertToNormalStorageType( value );
+      Object current = values[ group ];
+      counts[ group ]++;
+      if ( current == null ) {
+        set( group, value );
+        return;
+      }
+      switch ( type ) {
+        case TYPE_MIN:
+          if ( normal.compare( value, current ) < 0 ) {
+            set( group, value );
+          }
+          break;
+        case TYPE_MAX:
+          if ( normal.compare( value, current ) > 0 ) {
+            set( group, value );
+          }
+          break;
+        default:
+          set( group, ValueDataUtil.plus( normal, current, normal, value ) );
+          break;
+      }
+    }
+
+    private void set( int group, Object value ) {
+      valueBytes += GroupTable.sizeOf( value ) - GroupTable.sizeOf( values[ group ] );
+      values[ group ] = value;
+    }
+
+    @Override Object result( int group ) throws KettleValueException {
+      if ( type == TYPE_AVERAGE && values[ group ] != null ) {
+        return ValueDataUtil.divide( normal, values[ group ], COUNT_META, counts[ group ] );
+      }
+      return values[ group ];
+    }
+
+    @Override void ensureCapacity( int groups ) {
+      if ( groups > values.length ) {
+        values = Arrays.copyOf( values, grow( values.length, groups ) );
+        counts = Arrays.copyOf( counts, values.length );
+      }
+    }
+
+    @Override long memory() {
+      return 16L * values.length + valueBytes;
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.hashgroupby;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table from group keys to dense group numbers, 0 for the first group seen, 1 for the next one
+ * and so on. Keys are hashed and compared with their value metas, like {@link
+ * org.pentaho.di.core.row.RowMetaInterface#hashCode(Object[])} does, but without an entry object per group.
+ */
+class GroupTable {
+  static final int EMPTY = -1;
+  private static final float LOAD_FACTOR = 0.5f;
+
+  private final ValueMetaInterface[] keyMeta;
+  private final int[] keyIndexes;
+
+  // Slots hold group numbers, linear probing on the hash of the key
+  private int[] slots;
+  private int mask;
+
+  // Per group number
+  private int[] hashes;
+  private Object[][] keys;
+  private int size;
+  private long keyBytes;
+
+  /**
+   * @param keyMeta    Value metas of the group fields
+   * @param keyIndexes Positions of the group fields in the rows looked up
+   */
+  GroupTable( ValueMetaInterface[] keyMeta, int[] keyIndexes ) {
+    this.keyMeta = keyMeta;
+    this.keyIndexes = keyIndexes;
+    slots = new int[ 16 ];
+    Arrays.fill( slots, EMPTY );
+    mask = slots.length - 1;
+    hashes = new int[ 8 ];
+    keys = new Object[ 8 ][];
+  }
+
+  /**
+   * @return the group number of the row, adding a group if its key was not seen before
+   */
+  int groupOf( Object[] row ) throws KettleValueException {
+    return groupOf( row, hash( row ), true );
+  }
+
+  /**
+   * @param hash {@link #hash(Object[]) Hash} of the row key
+   * @param add  Whether to add a group for a key not seen before
+   * @return the group number of the row, or {@link #EMPTY} if its key was not seen before and no group was added
+   */
+  int groupOf( Object[] row, int hash, boolean add ) throws KettleValueException {
+    int slot = hash & mask;
+    for ( int group = slots[ slot ]; group != EMPTY; group = slots[ slot ] ) {
+      if ( hashes[ group ] == hash && matches( keys[ group ], row ) ) {
+        return group;
+      }
+      slot = ( slot + 1 ) & mask;
+    }
+    return add ? add( slot, hash, row ) : EMPTY;
+  }
+
+  private int add( int slot, int hash, Object[] row ) {
+    int group = size++;
+    if ( group == hashes.length ) {
+      hashes = Arrays.copyOf( hashes, group * 2 );
+      keys = Arrays.copyOf( keys, group * 2 );
+    }
+    Object[] key = new Object[ keyIndexes.length ];
+    keyBytes += 16 + 8 * key.length;
+    for ( int i = 0; i < keyIndexes.length; i++ ) {
+      key[ i ] = row[ keyIndexes[ i ] ];
+      keyBytes += sizeOf( key[ i ] );
+    }
+    hashes[ group ] = hash;
+    keys[ group ] = key;
+    slots[ slot ] = group;
+    if ( size > slots.length * LOAD_FACTOR ) {
+      rehash();
+    }
+    return group;
+  }
+
+  private void rehash() {
+    slots = new int[ slots.length * 2 ];
+    Arrays.fill( slots, EMPTY );
+    mask = slots.length - 1;
+    for ( int group = 0; group < size; group++ ) {
+      int slot = hashes[ group ] & mask;
+      while ( slots[ slot ] != EMPTY ) {
+        slot = ( slot + 1 ) & mask;
+      }
+      slots[ slot ] = group;
+    }
+  }
+
+  int hash( Object[] row ) throws KettleValueException {
+    int hash = 0;
+    for ( int i = 0; i < keyIndexes.length; i++ ) {
+      hash = hash * 31 + keyMeta[ i ].hashCode( row[ keyIndexes[ i ] ] );
+    }
+    // Spread the bits, linear probing only looks at the low ones
+    return hash ^ ( hash >>> 16 );
+  }
+
+  private boolean matches( Object[] key, Object[] row ) throws KettleValueException {
+    for ( int i = 0; i < keyIndexes.length; i++ ) {
+      if ( keyMeta[ i ].compare( key[ i ], row[ keyIndexes[ i ] ] ) != 0 ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the key values of a group, in the order of the group fields
+   */
+  Object[] getKey( int group ) {
+    return keys[ group ];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return rough estimate of the bytes taken by the table and the group keys
+   */
+  long memory() {
+    return 4L * slots.length + 12L * hashes.length + keyBytes;
+  }
+
+  /**
+   * @return rough estimate of the bytes taken by a value, shared with the row it came from or not
+   */
+  static long sizeOf( Object value ) {
+    if ( value == null ) {
+      return 0;
+    } else if ( value instanceof String ) {
+      return 40 + 2L * ( (String) value ).length();
+    } else if ( value instanceof byte[] ) {
+      return 16 + ( (byte[]) value ).length;
+    }
+    return 24;
+  }
+}
@@ -0,0 +1,130 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.hashgroupby;
+
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Groups and aggregates of one pass over the input, or over one spilled partition of it.
+ */
+class HashAggregation {
+  private final GroupTable groups;
+  private final int[] subjectIndexes;
+  private final Accumulator[] accumulators;
+  private int capacity = 8;
+
+  HashAggregation( HashGroupByMeta meta, RowMetaInterface inputRowMeta ) throws KettleStepException {
+    String[] groupField = meta.getGroupField();
+    ValueMetaInterface[] keyMeta = new ValueMetaInterface[ groupField.length ];
+    int[] keyIndexes = new int[ groupField.length ];
+    for ( int i = 0; i < groupField.length; i++ ) {
+      keyIndexes[ i ] = indexOf( inputRowMeta, groupField[ i ] );
+      keyMeta[ i ] = inputRowMeta.getValueMeta( keyIndexes[ i ] );
+    }
+    groups = new GroupTable( keyMeta, keyIndexes );
+
+    int[] types = meta.getAggregateType();
+    subjectIndexes = new int[ types.length ];
+    accumulators = new Accumulator[ types.length ];
+    for ( int i = 0; i < types.length; i++ ) {
+      if ( types[ i ] == HashGroupByMeta.TYPE_COUNT_ANY ) {
+        subjectIndexes[ i ] = -1;
+        accumulators[ i ] = Accumulator.create( types[ i ], null );
+      } else {
+        subjectIndexes[ i ] = indexOf( inputRowMeta, meta.getSubjectField()[ i ] );
+        accumulators[ i ] = Accumulator.create( types[ i ], inputRowMeta.getValueMeta( subjectIndexes[ i ] ) );
+      }
+      accumulators[ i ].ensureCapacity( capacity );
+    }
+  }
+
+  private static int indexOf( RowMetaInterface rowMeta, String name ) throws KettleStepException {
+    int index = rowMeta.indexOfValue( name );
+    if ( index < 0 ) {
+      throw new KettleStepException( "Unable to find field " + name );
+    }
+    return index;
+  }
+
+  int hash( Object[] row ) throws KettleValueException {
+    return groups.hash( row );
+  }
+
+  /**
+   * Aggregates a row into its group.
+   *
+   * @param hash     {@link #hash(Object[]) Hash} of the row key
+   * @param addGroup Whether a group may be added for a key not seen before
+   * @return false if the row was left out because its group was not there and could not be added
+   */
+  boolean add( Object[] row, int hash, boolean addGroup ) throws KettleValueException {
+    int group = groups.groupOf( row, hash, addGroup );
+    if ( group == GroupTable.EMPTY ) {
+      return false;
+    }
+    if ( group == capacity ) {
+      capacity *= 2;
+      for ( Accumulator accumulator : accumulators ) {
+        accumulator.ensureCapacity( capacity );
+      }
+    }
+    for ( int i = 0; i < accumulators.length; i++ ) {
+      int index = subjectIndexes[ i ];
+      accumulators[ i ].add( group, index < 0 ? null : row[ index ] );
+    }
+    return true;
+  }
+
+  int size() {
+    return groups.size();
+  }
+
+  /**
+   * @return rough estimate of the bytes taken by all groups
+   */
+  long memory() {
+    long memory = groups.memory();
+    for ( Accumulator accumulator : accumulators ) {
+      memory += accumulator.memory();
+    }
+    return memory;
+  }
+
+  /**
+   * @return the output row of a group: the group fields followed by the aggregates
+   */
+  Object[] getRow( int group, int rowSize ) throws KettleValueException {
+    Object[] key = groups.getKey( group );
+    Object[] row = RowDataUtil.allocateRowData( rowSize );
+    System.arraycopy( key, 0, row, 0, key.length );
+    for ( int i = 0; i < accumulators.length; i++ ) {
+      row[ key.length + i ] = accumulators[ i ].result( group );
+    }
+    return row;
+  }
+}
@@ -0,0 +1,188 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.hashgroupby;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.Metrics;
+import org.pentaho.di.core.logging.MetricsInterface;
+import org.pentaho.di.core.metrics.MetricsSnapshotType;
+import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.trans.dataservice.steps.spill.SpillFile;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.BaseStep;
+import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+
+/**
+ * Aggregates every row into its group and writes one row per group at end of input. Groups are written in the order
+ * they were first seen, unless some were spilled to disk: those follow, partition by partition. Streaming, groups are
+ * written as they are first seen instead.
+ */
+public class HashGroupBy extends BaseStep implements StepInterface {
+
+  public static final MetricsInterface METRIC_SPILLED_PARTITIONS = new Metrics( MetricsSnapshotType.SUM,
+    "DATASERVICE_GROUPBY_SPILLED_PARTITIONS", "Group partitions spilled to disk" );
+  public static final MetricsInterface METRIC_SPILLED_ROWS = new Metrics( MetricsSnapshotType.SUM,
+    "DATASERVICE_GROUPBY_SPILLED_ROWS", "Rows spilled to disk by the group by" );
+
+  public HashGroupBy( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta,
+                      Trans trans ) {
+    super( stepMeta, stepDataInterface, copyNr, transMeta, trans );
+  }
+
+  @Override public boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
+    HashGroupByMeta meta = (HashGroupByMeta) smi;
+    HashGroupByData data = (HashGroupByData) sdi;
+
+    Object[] row = getRow();
+    if ( row == null ) {
+      if ( !first ) {
+        writeGroups( meta, data );
+        // Spill counts for the query metrics, recorded when gathering them
+        log.snap( METRIC_SPILLED_PARTITIONS, getStepname(), data.spilledPartitions );
+        log.snap( METRIC_SPILLED_ROWS, getStepname(), data.spilledRows );
+      } else if ( meta.isAlwaysGivingBackOneRow() ) {
+        // No row to learn the layout from, derive it from the previous steps
+        data.outputRowMeta = getTransMeta().getPrevStepFields( getStepMeta() );
+        meta.getFields( data.outputRowMeta, getStepname(), null, null, this, repository, metaStore );
+        putRow( data.outputRowMeta, emptyResult( meta, data.outputRowMeta.size() ) );
+      }
+      setOutputDone();
+      return false;
+    }
+
+    if ( first ) {
+      first = false;
+      data.inputRowMeta = getInputRowMeta();
+      data.outputRowMeta = data.inputRowMeta.clone();
+      meta.getFields( data.outputRowMeta, getStepname(), null, null, this, repository, metaStore );
+      data.aggregation = new HashAggregation( meta, data.inputRowMeta );
+      data.streaming = meta.isStreaming() && meta.getAggregateType().length == 0;
+    }
+
+    aggregate( meta, data, row );
+    return true;
+  }
+
+  private void aggregate( HashGroupByMeta meta, HashGroupByData data, Object[] row ) throws KettleException {
+    int hash = data.aggregation.hash( row );
+    int groups = data.aggregation.size();
+    if ( !data.aggregation.add( row, hash, data.spill == null ) ) {
+      data.spill.write( row, hash );
+      return;
+    }
+    if ( data.streaming && data.aggregation.size() > groups ) {
+      putRow( data.outputRowMeta, data.aggregation.getRow( groups, data.outputRowMeta.size() ) );
+    }
+    if ( data.spill == null && meta.getMemoryLimit() > 0 && data.level < SpillPartitions.MAX_LEVELS
+      && data.aggregation.memory() > meta.getMemoryLimit() ) {
+      // Keep aggregating the groups there are, rows of other groups are aggregated from disk afterwards
+      if ( log.isDetailed() ) {
+        logDetailed( "Spilling rows of new groups to disk after " + data.aggregation.size() + " groups" );
+      }
+      data.spill = new SpillPartitions( data.inputRowMeta, data.level );
+    }
+  }
+
+  /**
+   * Writes the groups in memory, then aggregates and writes the spilled partitions one by one.
+   */
+  private void writeGroups( HashGroupByMeta meta, HashGroupByData data ) throws KettleException {
+    while ( !isStopped() ) {
+      // Streamed groups were written already
+      for ( int group = 0; !data.streaming && group < data.aggregation.size() && !isStopped(); group++ ) {
+        putRow( data.outputRowMeta, data.aggregation.getRow( group, data.outputRowMeta.size() ) );
+      }
+      data.aggregation = null;
+      if ( data.spill != null ) {
+        // Depth first, a partition spilled again is done before its siblings
+        data.spill.close();
+        data.spilledPartitions += data.spill.getPartitions();
+        data.spilledRows += data.spill.getRows();
+        data.spilled.push( data.spill );
+        data.spill = null;
+      }
+
+      SpillFile file = null;
+      while ( file == null && !data.spilled.isEmpty() ) {
+        file = data.spilled.peek().next();
+        if ( file == null ) {
+          data.spilled.pop();
+        }
+      }
+      if ( file == null ) {
+        return;
+      }
+      data.level = data.spilled.peek().getLevel() + 1;
+      data.aggregation = new HashAggregation( meta, data.inputRowMeta );
+      SpillFile.Reader reader = file.open( data.inputRowMeta );
+      try {
+        for ( Object[] row = reader.next(); row != null && !isStopped(); row = reader.next() ) {
+          aggregate( meta, data, row );
+        }
+      } finally {
+        reader.close();
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * @return the row given back when there was no input: counts are 0, everything else is null
+   */
+  static Object[] emptyResult( HashGroupByMeta meta, int rowSize ) {
+    Object[] row = RowDataUtil.allocateRowData( rowSize );
+    int[] types = meta.getAggregateType();
+    for ( int i = 0; i < types.length; i++ ) {
+      if ( HashGroupByMeta.isCount( types[ i ] ) ) {
+        row[ meta.getGroupField().length + i ] = 0L;
+      }
+    }
+    return row;
+  }
+
+  @VisibleForTesting
+  long getSpilledRows() {
+    return ( (HashGroupByData) getStepDataInterface() ).spilledRows;
+  }
+
+  @Override public void dispose( StepMetaInterface smi, StepDataInterface sdi ) {
+    HashGroupByData data = (HashGroupByData) sdi;
+    data.aggregation = null;
+    // Stopped or failed before all spilled rows were read
+    if ( data.spill != null ) {
+      data.spill.delete();
+      data.spill = null;
+    }
+    for ( SpillPartitions partitions : data.spilled ) {
+      partitions.delete();
+    }
+    data.spilled.clear();
+    super.dispose( smi, sdi );
+  }
+}
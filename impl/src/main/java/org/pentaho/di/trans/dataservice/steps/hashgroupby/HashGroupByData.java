@@ -0,0 +1,50 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.hashgroupby;
+
+import com.google.common.collect.Lists;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.step.BaseStepData;
+import org.pentaho.di.trans.step.StepDataInterface;
+
+import java.util.LinkedList;
+
+public class HashGroupByData extends BaseStepData implements StepDataInterface {
+  public RowMetaInterface inputRowMeta;
+  public RowMetaInterface outputRowMeta;
+  HashAggregation aggregation;
+  // Groups are written as soon as they are added
+  boolean streaming;
+  // Times the rows being aggregated were partitioned, 0 for the input rows
+  int level;
+  SpillPartitions spill;
+  // Partitions still to read, the last ones spilled first
+  LinkedList<SpillPartitions> spilled = Lists.newLinkedList();
+  long spilledPartitions;
+  long spilledRows;
+
+  public HashGroupByData() {
+    super();
+  }
+}
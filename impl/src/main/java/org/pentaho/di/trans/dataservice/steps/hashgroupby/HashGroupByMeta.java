@@ -0,0 +1,343 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.hashgroupby;
+
+import org.pentaho.di.core.CheckResult;
+import org.pentaho.di.core.CheckResultInterface;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.annotations.Step;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.repository.ObjectId;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.BaseStepMeta;
+import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.metastore.api.IMetaStore;
+import org.w3c.dom.Node;
+
+import java.util.List;
+
+/**
+ * Groups unsorted rows in memory and aggregates each group, as generated for GROUP BY data service queries.
+ * <p>
+ * Output rows hold the group fields followed by the aggregates, like {@link
+ * org.pentaho.di.trans.steps.memgroupby.MemoryGroupByMeta} writes them. Group keys are looked up in an open-addressing
+ * hash table and aggregates of Integer and Number fields are kept in primitive arrays.
+ * <p>
+ * With a memory limit, groups first seen once the estimated size of the table is over the limit are spilled to
+ * compressed temp files, partitioned by the hash of their key, and aggregated one partition at a time afterwards.
+ * <p>
+ * Without aggregates, as generated for DISTINCT, the step can stream: each group is written as soon as it is first
+ * seen, so the first rows reach the client, or a LIMIT, before the input ends.
+ */
+@Step( id = HashGroupByMeta.STEP_ID, name = "Hash group by",
+  description = "Groups and aggregates rows in a hash table, as generated for GROUP BY data service queries",
+  categoryDescription = "i18n:org.pentaho.di.trans.step:BaseStep.Category.Statistics" )
+public class HashGroupByMeta extends BaseStepMeta implements StepMetaInterface {
+
+  public static final String STEP_ID = "DataServiceHashGroupBy";
+
+  public static final int TYPE_SUM = 0;
+  public static final int TYPE_COUNT_ANY = 1;
+  public static final int TYPE_COUNT_ALL = 2;
+  public static final int TYPE_COUNT_DISTINCT = 3;
+  public static final int TYPE_MIN = 4;
+  public static final int TYPE_MAX = 5;
+  public static final int TYPE_AVERAGE = 6;
+
+  static final String[] TYPE_CODES = { "SUM", "COUNT_ANY", "COUNT_ALL", "COUNT_DISTINCT", "MIN", "MAX", "AVERAGE" };
+
+  private String[] groupField;
+  private String[] aggregateField;
+  private String[] subjectField;
+  private int[] aggregateType;
+  private boolean alwaysGivingBackOneRow;
+  private long memoryLimit;
+  private boolean streaming;
+
+  public HashGroupByMeta() {
+    super();
+  }
+
+  public void allocate( int nrGroups, int nrAggregates ) {
+    groupField = new String[ nrGroups ];
+    aggregateField = new String[ nrAggregates ];
+    subjectField = new String[ nrAggregates ];
+    aggregateType = new int[ nrAggregates ];
+  }
+
+  @Override public void setDefault() {
+    allocate( 0, 0 );
+    alwaysGivingBackOneRow = false;
+    memoryLimit = 0;
+    streaming = false;
+  }
+
+  @Override public Object clone() {
+    HashGroupByMeta clone = (HashGroupByMeta) super.clone();
+    clone.groupField = groupField.clone();
+    clone.aggregateField = aggregateField.clone();
+    clone.subjectField = subjectField.clone();
+    clone.aggregateType = aggregateType.clone();
+    return clone;
+  }
+
+  static int getTypeByCode( String code ) {
+    for ( int i = 0; i < TYPE_CODES.length; i++ ) {
+      if ( TYPE_CODES[ i ].equalsIgnoreCase( code ) ) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException( "Unknown aggregate type " + code );
+  }
+
+  static boolean isCount( int type ) {
+    return type == TYPE_COUNT_ANY || type == TYPE_COUNT_ALL || type == TYPE_COUNT_DISTINCT;
+  }
+
+  @Override public void loadXML( Node stepnode, List<DatabaseMeta> databases, IMetaStore metaStore )
+    throws KettleXMLException {
+    try {
+      Node groups = XMLHandler.getSubNode( stepnode, "group" );
+      Node fields = XMLHandler.getSubNode( stepnode, "fields" );
+      int nrGroups = XMLHandler.countNodes( groups, "field" );
+      int nrAggregates = XMLHandler.countNodes( fields, "field" );
+      allocate( nrGroups, nrAggregates );
+      for ( int i = 0; i < nrGroups; i++ ) {
+        groupField[ i ] = XMLHandler.getTagValue( XMLHandler.getSubNodeByNr( groups, "field", i ), "name" );
+      }
+      for ( int i = 0; i < nrAggregates; i++ ) {
+        Node fieldNode = XMLHandler.getSubNodeByNr( fields, "field", i );
+        aggregateField[ i ] = XMLHandler.getTagValue( fieldNode, "aggregate" );
+        subjectField[ i ] = XMLHandler.getTagValue( fieldNode, "subject" );
+        aggregateType[ i ] = getTypeByCode( XMLHandler.getTagValue( fieldNode, "type" ) );
+      }
+      alwaysGivingBackOneRow = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "give_back_row" ) );
+      memoryLimit = Const.toLong( XMLHandler.getTagValue( stepnode, "memory_limit" ), 0 );
+      streaming = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "streaming" ) );
+    } catch ( Exception e ) {
+      throw new KettleXMLException( "Unable to load step info from XML", e );
+    }
+  }
+
+  @Override public String getXML() {
+    StringBuilder xml = new StringBuilder();
+    xml.append( "    " ).append( XMLHandler.addTagValue( "give_back_row", alwaysGivingBackOneRow ) );
+    xml.append( "    " ).append( XMLHandler.addTagValue( "memory_limit", memoryLimit ) );
+    xml.append( "    " ).append( XMLHandler.addTagValue( "streaming", streaming ) );
+    xml.append( "    " ).append( XMLHandler.openTag( "group" ) ).append( Const.CR );
+    for ( String name : groupField ) {
+      xml.append( "      " ).append( XMLHandler.openTag( "field" ) ).append( Const.CR );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "name", name ) );
+      xml.append( "      " ).append( XMLHandler.closeTag( "field" ) ).append( Const.CR );
+    }
+    xml.append( "    " ).append( XMLHandler.closeTag( "group" ) ).append( Const.CR );
+    xml.append( "    " ).append( XMLHandler.openTag( "fields" ) ).append( Const.CR );
+    for ( int i = 0; i < aggregateField.length; i++ ) {
+      xml.append( "      " ).append( XMLHandler.openTag( "field" ) ).append( Const.CR );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "aggregate", aggregateField[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "subject", subjectField[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "type", TYPE_CODES[ aggregateType[ i ] ] ) );
+      xml.append( "      " ).append( XMLHandler.closeTag( "field" ) ).append( Const.CR );
+    }
+    xml.append( "    " ).append( XMLHandler.closeTag( "fields" ) ).append( Const.CR );
+    return xml.toString();
+  }
+
+  @Override public void readRep( Repository rep, IMetaStore metaStore, ObjectId idStep,
+                                 List<DatabaseMeta> databases ) throws KettleException {
+    int nrGroups = rep.countNrStepAttributes( idStep, "group_name" );
+    int nrAggregates = rep.countNrStepAttributes( idStep, "aggregate_name" );
+    allocate( nrGroups, nrAggregates );
+    for ( int i = 0; i < nrGroups; i++ ) {
+      groupField[ i ] = rep.getStepAttributeString( idStep, i, "group_name" );
+    }
+    for ( int i = 0; i < nrAggregates; i++ ) {
+      aggregateField[ i ] = rep.getStepAttributeString( idStep, i, "aggregate_name" );
+      subjectField[ i ] = rep.getStepAttributeString( idStep, i, "aggregate_subject" );
+      aggregateType[ i ] = getTypeByCode( rep.getStepAttributeString( idStep, i, "aggregate_type" ) );
+    }
+    alwaysGivingBackOneRow = rep.getStepAttributeBoolean( idStep, "give_back_row" );
+    memoryLimit = rep.getStepAttributeInteger( idStep, "memory_limit" );
+    streaming = rep.getStepAttributeBoolean( idStep, "streaming" );
+  }
+
+  @Override public void saveRep( Repository rep, IMetaStore metaStore, ObjectId idTransformation, ObjectId idStep )
+    throws KettleException {
+    rep.saveStepAttribute( idTransformation, idStep, "give_back_row", alwaysGivingBackOneRow );
+    rep.saveStepAttribute( idTransformation, idStep, "memory_limit", memoryLimit );
+    rep.saveStepAttribute( idTransformation, idStep, "streaming", streaming );
+    for ( int i = 0; i < groupField.length; i++ ) {
+      rep.saveStepAttribute( idTransformation, idStep, i, "group_name", groupField[ i ] );
+    }
+    for ( int i = 0; i < aggregateField.length; i++ ) {
+      rep.saveStepAttribute( idTransformation, idStep, i, "aggregate_name", aggregateField[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "aggregate_subject", subjectField[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "aggregate_type", TYPE_CODES[ aggregateType[ i ] ] );
+    }
+  }
+
+  /**
+   * The input fields are replaced by the group fields and the aggregates. Counts are Integers, other aggregates have
+   * the type of their subject, in normal storage.
+   */
+  @Override public void getFields( RowMetaInterface inputRowMeta, String name, RowMetaInterface[] info,
+                                   StepMeta nextStep, VariableSpace space, Repository repository,
+                                   IMetaStore metaStore ) throws KettleStepException {
+    RowMetaInterface fields = new RowMeta();
+    for ( String group : groupField ) {
+      ValueMetaInterface valueMeta = inputRowMeta.searchValueMeta( group );
+      if ( valueMeta == null ) {
+        throw new KettleStepException( "Unable to find group field " + group );
+      }
+      fields.addValueMeta( valueMeta.clone() );
+    }
+    for ( int i = 0; i < aggregateField.length; i++ ) {
+      ValueMetaInterface valueMeta;
+      if ( isCount( aggregateType[ i ] ) ) {
+        valueMeta = new ValueMetaInteger( aggregateField[ i ] );
+      } else {
+        ValueMetaInterface subject = inputRowMeta.searchValueMeta( subjectField[ i ] );
+        if ( subject == null ) {
+          throw new KettleStepException( "Unable to find field to aggregate " + subjectField[ i ] );
+        }
+        valueMeta = subject.clone();
+        valueMeta.setName( aggregateField[ i ] );
+        valueMeta.setStorageType( ValueMetaInterface.STORAGE_TYPE_NORMAL );
+      }
+      valueMeta.setOrigin( name );
+      fields.addValueMeta( valueMeta );
+    }
+    inputRowMeta.clear();
+    inputRowMeta.addRowMeta( fields );
+  }
+
+  @Override public void check( List<CheckResultInterface> remarks, TransMeta transMeta, StepMeta stepMeta,
+                               RowMetaInterface prev, String[] input, String[] output, RowMetaInterface info,
+                               VariableSpace space, Repository repository, IMetaStore metaStore ) {
+    if ( streaming && aggregateField.length > 0 ) {
+      remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_WARNING,
+        "Groups with aggregates are only written at end of input", stepMeta ) );
+    }
+    if ( prev == null || prev.isEmpty() ) {
+      return;
+    }
+    for ( String group : groupField ) {
+      if ( prev.indexOfValue( group ) < 0 ) {
+        remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          "Group field not found in input: " + group, stepMeta ) );
+      }
+    }
+    for ( int i = 0; i < aggregateField.length; i++ ) {
+      if ( aggregateType[ i ] != TYPE_COUNT_ANY && prev.indexOfValue( subjectField[ i ] ) < 0 ) {
+        remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          "Field to aggregate not found in input: " + subjectField[ i ], stepMeta ) );
+      }
+    }
+  }
+
+  @Override public StepInterface getStep( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr,
+                                          TransMeta transMeta, Trans trans ) {
+    return new HashGroupBy( stepMeta, stepDataInterface, copyNr, transMeta, trans );
+  }
+
+  @Override public StepDataInterface getStepData() {
+    return new HashGroupByData();
+  }
+
+  public String[] getGroupField() {
+    return groupField;
+  }
+
+  public void setGroupField( String[] groupField ) {
+    this.groupField = groupField;
+  }
+
+  public String[] getAggregateField() {
+    return aggregateField;
+  }
+
+  public void setAggregateField( String[] aggregateField ) {
+    this.aggregateField = aggregateField;
+  }
+
+  public String[] getSubjectField() {
+    return subjectField;
+  }
+
+  public void setSubjectField( String[] subjectField ) {
+    this.subjectField = subjectField;
+  }
+
+  public int[] getAggregateType() {
+    return aggregateType;
+  }
+
+  public void setAggregateType( int[] aggregateType ) {
+    this.aggregateType = aggregateType;
+  }
+
+  public boolean isAlwaysGivingBackOneRow() {
+    return alwaysGivingBackOneRow;
+  }
+
+  public void setAlwaysGivingBackOneRow( boolean alwaysGivingBackOneRow ) {
+    this.alwaysGivingBackOneRow = alwaysGivingBackOneRow;
+  }
+
+  /**
+   * @return Estimated bytes the hash table may take before new groups are spilled to disk, 0 for no limit
+   */
+  public long getMemoryLimit() {
+    return memoryLimit;
+  }
+
+  public void setMemoryLimit( long memoryLimit ) {
+    this.memoryLimit = memoryLimit;
+  }
+
+  /**
+   * @return Whether groups are written when first seen instead of at end of input, only when there are no aggregates
+   */
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  public void setStreaming( boolean streaming ) {
+    this.streaming = streaming;
+  }
+}
@@ -0,0 +1,126 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.hashgroupby;
+
+import com.google.common.collect.Lists;
+import org.pentaho.di.core.exception.KettleFileException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.dataservice.steps.spill.SpillFile;
+
+import java.util.LinkedList;
+
+/**
+ * Spills rows to one of {@link #PARTITIONS} files by the hash of their group key, so each file holds all rows of its
+ * groups and can be aggregated on its own.
+ */
+class SpillPartitions {
+  static final int PARTITIONS = 16;
+
+  /**
+   * Times rows can be partitioned again, each level takes 4 other bits of the hash
+   */
+  static final int MAX_LEVELS = 4;
+
+  private final RowMetaInterface rowMeta;
+  private final int level;
+  private final SpillFile[] files = new SpillFile[ PARTITIONS ];
+  private final LinkedList<SpillFile> written = Lists.newLinkedList();
+  private int partitions;
+  private long rows;
+
+  SpillPartitions( RowMetaInterface rowMeta, int level ) {
+    this.rowMeta = rowMeta;
+    this.level = level;
+  }
+
+  void write( Object[] row, int hash ) throws KettleFileException {
+    int partition = partition( hash, level );
+    if ( files[ partition ] == null ) {
+      files[ partition ] = SpillFile.create( "dataservice-groupby-" );
+      partitions++;
+    }
+    files[ partition ].write( rowMeta, row );
+    rows++;
+  }
+
+  /**
+   * Finishes writing, the partitions rows were written to can be {@link #next() read} afterwards
+   */
+  void close() throws KettleFileException {
+    for ( int i = 0; i < files.length; i++ ) {
+      if ( files[ i ] != null ) {
+        files[ i ].close();
+        written.add( files[ i ] );
+        files[ i ] = null;
+      }
+    }
+  }
+
+  /**
+   * @return the next partition to read, or null when all were handed out. The caller deletes it.
+   */
+  SpillFile next() {
+    return written.poll();
+  }
+
+  int getLevel() {
+    return level;
+  }
+
+  /**
+   * @return number of partition files rows were written to
+   */
+  int getPartitions() {
+    return partitions;
+  }
+
+  long getRows() {
+    return rows;
+  }
+
+  /**
+   * Deletes all partitions not handed out yet
+   */
+  void delete() {
+    for ( SpillFile file : files ) {
+      if ( file != null ) {
+        file.delete();
+      }
+    }
+    for ( SpillFile file : written ) {
+      file.delete();
+    }
+    written.clear();
+  }
+
+  static int partition( int hash, int level ) {
+    // The table probes by the low bits, mix them all into the high ones taken here
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return ( hash >>> ( 28 - 4 * level ) ) & ( PARTITIONS - 1 );
+  }
+}
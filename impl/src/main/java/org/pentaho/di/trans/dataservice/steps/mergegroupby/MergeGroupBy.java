@@ -0,0 +1,89 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.mergegroupby;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.BaseStep;
+import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+
+/**
+ * Reads the partial aggregates of all copies of the previous step and writes the merged groups at end of input.
+ */
+public class MergeGroupBy extends BaseStep implements StepInterface {
+
+  public MergeGroupBy( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta,
+                       Trans trans ) {
+    super( stepMeta, stepDataInterface, copyNr, transMeta, trans );
+  }
+
+  @Override public boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
+    MergeGroupByMeta meta = (MergeGroupByMeta) smi;
+    MergeGroupByData data = (MergeGroupByData) sdi;
+
+    Object[] row = getRow();
+    if ( row == null ) {
+      if ( !first ) {
+        writeGroups( data );
+      } else if ( meta.isAlwaysGivingBackOneRow() ) {
+        // No row to learn the layout from, derive it from the previous steps
+        data.outputRowMeta = getTransMeta().getPrevStepFields( getStepMeta() );
+        meta.getFields( data.outputRowMeta, getStepname(), null, null, this, repository, metaStore );
+        putRow( data.outputRowMeta, PartialAggregates.emptyResult( meta, data.outputRowMeta.size() ) );
+      }
+      setOutputDone();
+      return false;
+    }
+
+    if ( first ) {
+      first = false;
+      RowMetaInterface inputRowMeta = getInputRowMeta();
+      data.outputRowMeta = inputRowMeta.clone();
+      meta.getFields( data.outputRowMeta, getStepname(), null, null, this, repository, metaStore );
+      data.aggregates = new PartialAggregates( inputRowMeta, meta );
+    }
+
+    data.aggregates.merge( row );
+    return true;
+  }
+
+  private void writeGroups( MergeGroupByData data ) throws KettleException {
+    for ( Object[] row : data.aggregates.results( data.outputRowMeta.size() ) ) {
+      if ( isStopped() ) {
+        break;
+      }
+      putRow( data.outputRowMeta, row );
+    }
+  }
+
+  @Override public void dispose( StepMetaInterface smi, StepDataInterface sdi ) {
+    ( (MergeGroupByData) sdi ).aggregates = null;
+    super.dispose( smi, sdi );
+  }
+}
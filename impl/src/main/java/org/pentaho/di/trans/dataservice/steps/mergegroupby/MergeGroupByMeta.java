@@ -0,0 +1,298 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.mergegroupby;
+
+import org.pentaho.di.core.CheckResult;
+import org.pentaho.di.core.CheckResultInterface;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.annotations.Step;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.repository.ObjectId;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.BaseStepMeta;
+import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.metastore.api.IMetaStore;
+import org.w3c.dom.Node;
+
+import java.util.List;
+
+/**
+ * Merges partial aggregates, as written by parallel copies of a group by step, into one row per group.
+ * <p>
+ * Sums and counts are added up, minimums and maximums compared, and averages divide the merged sum of a subject by
+ * the merged count of its non-null values. Output rows hold the group fields followed by the aggregates.
+ */
+@Step( id = MergeGroupByMeta.STEP_ID, name = "Merge group by",
+  description = "Merges partial aggregates from parallel group by steps, as generated for data service queries",
+  categoryDescription = "i18n:org.pentaho.di.trans.step:BaseStep.Category.Statistics" )
+public class MergeGroupByMeta extends BaseStepMeta implements StepMetaInterface {
+
+  public static final String STEP_ID = "DataServiceMergeGroupBy";
+
+  public static final int TYPE_SUM = 0;
+  public static final int TYPE_COUNT = 1;
+  public static final int TYPE_MIN = 2;
+  public static final int TYPE_MAX = 3;
+  public static final int TYPE_AVERAGE = 4;
+
+  static final String[] TYPE_CODES = { "SUM", "COUNT", "MIN", "MAX", "AVERAGE" };
+
+  private String[] groupField;
+  private String[] aggregateField;
+  private String[] subjectField;
+  private String[] countField;
+  private int[] aggregateType;
+  private boolean alwaysGivingBackOneRow;
+
+  public MergeGroupByMeta() {
+    super();
+  }
+
+  public void allocate( int nrGroups, int nrAggregates ) {
+    groupField = new String[ nrGroups ];
+    aggregateField = new String[ nrAggregates ];
+    subjectField = new String[ nrAggregates ];
+    countField = new String[ nrAggregates ];
+    aggregateType = new int[ nrAggregates ];
+  }
+
+  @Override public void setDefault() {
+    allocate( 0, 0 );
+    alwaysGivingBackOneRow = false;
+  }
+
+  @Override public Object clone() {
+    MergeGroupByMeta clone = (MergeGroupByMeta) super.clone();
+    clone.groupField = groupField.clone();
+    clone.aggregateField = aggregateField.clone();
+    clone.subjectField = subjectField.clone();
+    clone.countField = countField.clone();
+    clone.aggregateType = aggregateType.clone();
+    return clone;
+  }
+
+  static int getTypeByCode( String code ) {
+    for ( int i = 0; i < TYPE_CODES.length; i++ ) {
+      if ( TYPE_CODES[ i ].equalsIgnoreCase( code ) ) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException( "Unknown aggregate type " + code );
+  }
+
+  @Override public void loadXML( Node stepnode, List<DatabaseMeta> databases, IMetaStore metaStore )
+    throws KettleXMLException {
+    try {
+      Node groups = XMLHandler.getSubNode( stepnode, "group" );
+      Node fields = XMLHandler.getSubNode( stepnode, "fields" );
+      int nrGroups = XMLHandler.countNodes( groups, "field" );
+      int nrAggregates = XMLHandler.countNodes( fields, "field" );
+      allocate( nrGroups, nrAggregates );
+      for ( int i = 0; i < nrGroups; i++ ) {
+        groupField[ i ] = XMLHandler.getTagValue( XMLHandler.getSubNodeByNr( groups, "field", i ), "name" );
+      }
+      for ( int i = 0; i < nrAggregates; i++ ) {
+        Node fieldNode = XMLHandler.getSubNodeByNr( fields, "field", i );
+        aggregateField[ i ] = XMLHandler.getTagValue( fieldNode, "aggregate" );
+        subjectField[ i ] = XMLHandler.getTagValue( fieldNode, "subject" );
+        countField[ i ] = XMLHandler.getTagValue( fieldNode, "count" );
+        aggregateType[ i ] = getTypeByCode( XMLHandler.getTagValue( fieldNode, "type" ) );
+      }
+      alwaysGivingBackOneRow = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "give_back_row" ) );
+    } catch ( Exception e ) {
+      throw new KettleXMLException( "Unable to load step info from XML", e );
+    }
+  }
+
+  @Override public String getXML() {
+    StringBuilder xml = new StringBuilder();
+    xml.append( "    " ).append( XMLHandler.addTagValue( "give_back_row", alwaysGivingBackOneRow ) );
+    xml.append( "    " ).append( XMLHandler.openTag( "group" ) ).append( Const.CR );
+    for ( String name : groupField ) {
+      xml.append( "      " ).append( XMLHandler.openTag( "field" ) ).append( Const.CR );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "name", name ) );
+      xml.append( "      " ).append( XMLHandler.closeTag( "field" ) ).append( Const.CR );
+    }
+    xml.append( "    " ).append( XMLHandler.closeTag( "group" ) ).append( Const.CR );
+    xml.append( "    " ).append( XMLHandler.openTag( "fields" ) ).append( Const.CR );
+    for ( int i = 0; i < aggregateField.length; i++ ) {
+      xml.append( "      " ).append( XMLHandler.openTag( "field" ) ).append( Const.CR );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "aggregate", aggregateField[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "subject", subjectField[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "count", countField[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "type", TYPE_CODES[ aggregateType[ i ] ] ) );
+      xml.append( "      " ).append( XMLHandler.closeTag( "field" ) ).append( Const.CR );
+    }
+    xml.append( "    " ).append( XMLHandler.closeTag( "fields" ) ).append( Const.CR );
+    return xml.toString();
+  }
+
+  @Override public void readRep( Repository rep, IMetaStore metaStore, ObjectId idStep,
+                                 List<DatabaseMeta> databases ) throws KettleException {
+    int nrGroups = rep.countNrStepAttributes( idStep, "group_name" );
+    int nrAggregates = rep.countNrStepAttributes( idStep, "aggregate_name" );
+    allocate( nrGroups, nrAggregates );
+    for ( int i = 0; i < nrGroups; i++ ) {
+      groupField[ i ] = rep.getStepAttributeString( idStep, i, "group_name" );
+    }
+    for ( int i = 0; i < nrAggregates; i++ ) {
+      aggregateField[ i ] = rep.getStepAttributeString( idStep, i, "aggregate_name" );
+      subjectField[ i ] = rep.getStepAttributeString( idStep, i, "aggregate_subject" );
+      countField[ i ] = rep.getStepAttributeString( idStep, i, "aggregate_count" );
+      aggregateType[ i ] = getTypeByCode( rep.getStepAttributeString( idStep, i, "aggregate_type" ) );
+    }
+    alwaysGivingBackOneRow = rep.getStepAttributeBoolean( idStep, "give_back_row" );
+  }
+
+  @Override public void saveRep( Repository rep, IMetaStore metaStore, ObjectId idTransformation, ObjectId idStep )
+    throws KettleException {
+    rep.saveStepAttribute( idTransformation, idStep, "give_back_row", alwaysGivingBackOneRow );
+    for ( int i = 0; i < groupField.length; i++ ) {
+      rep.saveStepAttribute( idTransformation, idStep, i, "group_name", groupField[ i ] );
+    }
+    for ( int i = 0; i < aggregateField.length; i++ ) {
+      rep.saveStepAttribute( idTransformation, idStep, i, "aggregate_name", aggregateField[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "aggregate_subject", subjectField[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "aggregate_count", countField[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "aggregate_type", TYPE_CODES[ aggregateType[ i ] ] );
+    }
+  }
+
+  /**
+   * The partial fields are replaced by the group fields and the merged aggregates, which keep the layout of their
+   * subjects.
+   */
+  @Override public void getFields( RowMetaInterface inputRowMeta, String name, RowMetaInterface[] info,
+                                   StepMeta nextStep, VariableSpace space, Repository repository,
+                                   IMetaStore metaStore ) throws KettleStepException {
+    RowMetaInterface fields = new RowMeta();
+    for ( String group : groupField ) {
+      ValueMetaInterface valueMeta = inputRowMeta.searchValueMeta( group );
+      if ( valueMeta == null ) {
+        throw new KettleStepException( "Unable to find group field " + group );
+      }
+      fields.addValueMeta( valueMeta.clone() );
+    }
+    for ( int i = 0; i < aggregateField.length; i++ ) {
+      ValueMetaInterface subject = inputRowMeta.searchValueMeta( subjectField[ i ] );
+      if ( subject == null ) {
+        throw new KettleStepException( "Unable to find partial aggregate " + subjectField[ i ] );
+      }
+      ValueMetaInterface valueMeta = subject.clone();
+      valueMeta.setName( aggregateField[ i ] );
+      valueMeta.setOrigin( name );
+      fields.addValueMeta( valueMeta );
+    }
+    inputRowMeta.clear();
+    inputRowMeta.addRowMeta( fields );
+  }
+
+  @Override public void check( List<CheckResultInterface> remarks, TransMeta transMeta, StepMeta stepMeta,
+                               RowMetaInterface prev, String[] input, String[] output, RowMetaInterface info,
+                               VariableSpace space, Repository repository, IMetaStore metaStore ) {
+    if ( prev == null || prev.isEmpty() ) {
+      return;
+    }
+    for ( int i = 0; i < aggregateField.length; i++ ) {
+      if ( prev.indexOfValue( subjectField[ i ] ) < 0
+        || ( aggregateType[ i ] == TYPE_AVERAGE && prev.indexOfValue( countField[ i ] ) < 0 ) ) {
+        remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          "Partial aggregate not found in input: " + aggregateField[ i ], stepMeta ) );
+      }
+    }
+  }
+
+  @Override public StepInterface getStep( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr,
+                                          TransMeta transMeta, Trans trans ) {
+    return new MergeGroupBy( stepMeta, stepDataInterface, copyNr, transMeta, trans );
+  }
+
+  @Override public StepDataInterface getStepData() {
+    return new MergeGroupByData();
+  }
+
+  public String[] getGroupField() {
+    return groupField;
+  }
+
+  public void setGroupField( String[] groupField ) {
+    this.groupField = groupField;
+  }
+
+  public String[] getAggregateField() {
+    return aggregateField;
+  }
+
+  public void setAggregateField( String[] aggregateField ) {
+    this.aggregateField = aggregateField;
+  }
+
+  public String[] getSubjectField() {
+    return subjectField;
+  }
+
+  public void setSubjectField( String[] subjectField ) {
+    this.subjectField = subjectField;
+  }
+
+  /**
+   * @return for averages, the partial count of the non-null values summed up in the subject field
+   */
+  public String[] getCountField() {
+    return countField;
+  }
+
+  public void setCountField( String[] countField ) {
+    this.countField = countField;
+  }
+
+  public int[] getAggregateType() {
+    return aggregateType;
+  }
+
+  public void setAggregateType( int[] aggregateType ) {
+    this.aggregateType = aggregateType;
+  }
+
+  public boolean isAlwaysGivingBackOneRow() {
+    return alwaysGivingBackOneRow;
+  }
+
+  public void setAlwaysGivingBackOneRow( boolean alwaysGivingBackOneRow ) {
+    this.alwaysGivingBackOneRow = alwaysGivingBackOneRow;
+  }
+}
@@ -0,0 +1,237 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.mergegroupby;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueDataUtil;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.pentaho.di.trans.dataservice.steps.mergegroupby.MergeGroupByMeta.TYPE_AVERAGE;
+import static org.pentaho.di.trans.dataservice.steps.mergegroupby.MergeGroupByMeta.TYPE_COUNT;
+import static org.pentaho.di.trans.dataservice.steps.mergegroupby.MergeGroupByMeta.TYPE_MAX;
+import static org.pentaho.di.trans.dataservice.steps.mergegroupby.MergeGroupByMeta.TYPE_MIN;
+import static org.pentaho.di.trans.dataservice.steps.mergegroupby.MergeGroupByMeta.TYPE_SUM;
+
+/**
+ * Merged aggregates per group, in the order groups were first seen.
+ */
+class PartialAggregates {
+  private static final ValueMetaInterface COUNT_META = new ValueMetaInteger( "count" );
+
+  private final RowMetaInterface groupMeta = new RowMeta();
+  private final int[] groupIndexes;
+  private final int[] types;
+  private final ValueMetaInterface[] subjectMeta;
+  private final int[] subjectIndexes;
+  private final ValueMetaInterface[] countMeta;
+  private final int[] countIndexes;
+  private final Map<Group, Aggregate> groups = Maps.newLinkedHashMap();
+
+  PartialAggregates( RowMetaInterface inputRowMeta, MergeGroupByMeta meta ) throws KettleStepException {
+    String[] groupField = meta.getGroupField();
+    groupIndexes = new int[ groupField.length ];
+    for ( int i = 0; i < groupField.length; i++ ) {
+      groupIndexes[ i ] = indexOf( inputRowMeta, groupField[ i ] );
+      groupMeta.addValueMeta( inputRowMeta.getValueMeta( groupIndexes[ i ] ) );
+    }
+
+    types = meta.getAggregateType().clone();
+    subjectMeta = new ValueMetaInterface[ types.length ];
+    subjectIndexes = new int[ types.length ];
+    countMeta = new ValueMetaInterface[ types.length ];
+    countIndexes = new int[ types.length ];
+    for ( int i = 0; i < types.length; i++ ) {
+      subjectIndexes[ i ] = indexOf( inputRowMeta, meta.getSubjectField()[ i ] );
+      subjectMeta[ i ] = inputRowMeta.getValueMeta( subjectIndexes[ i ] );
+      if ( types[ i ] == TYPE_AVERAGE ) {
+        countIndexes[ i ] = indexOf( inputRowMeta, meta.getCountField()[ i ] );
+        countMeta[ i ] = inputRowMeta.getValueMeta( countIndexes[ i ] );
+      } else {
+        countIndexes[ i ] = -1;
+      }
+    }
+  }
+
+  private static int indexOf( RowMetaInterface rowMeta, String name ) throws KettleStepException {
+    int index = rowMeta.indexOfValue( name );
+    if ( index < 0 ) {
+      throw new KettleStepException( "Unable to find field " + name );
+    }
+    return index;
+  }
+
+  /**
+   * Adds a row of partial aggregates to its group
+   */
+  void merge( Object[] row ) throws KettleValueException {
+    Object[] groupData = new Object[ groupIndexes.length ];
+    for ( int i = 0; i < groupIndexes.length; i++ ) {
+      groupData[ i ] = row[ groupIndexes[ i ] ];
+    }
+    Group group = new Group( groupMeta, groupData );
+    Aggregate aggregate = groups.get( group );
+    if ( aggregate == null ) {
+      aggregate = new Aggregate( types.length );
+      groups.put( group, aggregate );
+    }
+
+    for ( int i = 0; i < types.length; i++ ) {
+      Object value = row[ subjectIndexes[ i ] ];
+      switch ( types[ i ] ) {
+        case TYPE_COUNT:
+          aggregate.counts[ i ] += value == null ? 0 : subjectMeta[ i ].getInteger( value );
+          break;
+        case TYPE_AVERAGE:
+          Object count = row[ countIndexes[ i ] ];
+          aggregate.counts[ i ] += count == null ? 0 : countMeta[ i ].getInteger( count );
+          aggregate.values[ i ] = add( subjectMeta[ i ], aggregate.values[ i ], value );
+          break;
+        case TYPE_SUM:
+          aggregate.values[ i ] = add( subjectMeta[ i ], aggregate.values[ i ], value );
+          break;
+        case TYPE_MIN:
+          if ( value != null && ( aggregate.values[ i ] == null
+            || subjectMeta[ i ].compare( value, aggregate.values[ i ] ) < 0 ) ) {
+            aggregate.values[ i ] = value;
+          }
+          break;
+        case TYPE_MAX:
+          if ( value != null && ( aggregate.values[ i ] == null
+            || subjectMeta[ i ].compare( value, aggregate.values[ i ] ) > 0 ) ) {
+            aggregate.values[ i ] = value;
+          }
+          break;
+        default:
+          throw new KettleValueException( "Unknown aggregate type " + types[ i ] );
+      }
+    }
+  }
+
+  private static Object add( ValueMetaInterface valueMeta, Object sum, Object value ) throws KettleValueException {
+    if ( value == null ) {
+      return sum;
+    }
+    return sum == null ? value : ValueDataUtil.plus( valueMeta, sum, valueMeta, value );
+  }
+
+  /**
+   * @return one row per group, with the group fields followed by the merged aggregates
+   */
+  List<Object[]> results( int rowSize ) throws KettleValueException {
+    List<Object[]> results = Lists.newArrayListWithCapacity( groups.size() );
+    for ( Map.Entry<Group, Aggregate> entry : groups.entrySet() ) {
+      Object[] row = RowDataUtil.allocateRowData( rowSize );
+      Object[] groupData = entry.getKey().data;
+      System.arraycopy( groupData, 0, row, 0, groupData.length );
+      Aggregate aggregate = entry.getValue();
+      for ( int i = 0; i < types.length; i++ ) {
+        row[ groupData.length + i ] = result( i, aggregate );
+      }
+      results.add( row );
+    }
+    return results;
+  }
+
+  private Object result( int i, Aggregate aggregate ) throws KettleValueException {
+    switch ( types[ i ] ) {
+      case TYPE_COUNT:
+        return aggregate.counts[ i ];
+      case TYPE_AVERAGE:
+        if ( aggregate.values[ i ] == null || aggregate.counts[ i ] == 0 ) {
+          return null;
+        }
+        return ValueDataUtil.divide( subjectMeta[ i ], aggregate.values[ i ], COUNT_META, aggregate.counts[ i ] );
+      default:
+        return aggregate.values[ i ];
+    }
+  }
+
+  int size() {
+    return groups.size();
+  }
+
+  /**
+   * @return the row given back when nothing was aggregated: counts are 0, everything else is null
+   */
+  static Object[] emptyResult( MergeGroupByMeta meta, int rowSize ) {
+    Object[] row = RowDataUtil.allocateRowData( rowSize );
+    int[] types = meta.getAggregateType();
+    for ( int i = 0; i < types.length; i++ ) {
+      if ( types[ i ] == TYPE_COUNT ) {
+        row[ meta.getGroupField().length + i ] = 0L;
+      }
+    }
+    return row;
+  }
+
+  private static class Aggregate {
+    private final Object[] values;
+    private final long[] counts;
+
+    Aggregate( int size ) {
+      values = new Object[ size ];
+      counts = new long[ size ];
+    }
+  }
+
+  private static class Group {
+    private final RowMetaInterface groupMeta;
+    private final Object[] data;
+    private final int hashCode;
+
+    Group( RowMetaInterface groupMeta, Object[] data ) throws KettleValueException {
+      this.groupMeta = groupMeta;
+      this.data = data;
+      this.hashCode = groupMeta.hashCode( data );
+    }
+
+    @Override public boolean equals( Object o ) {
+      if ( this == o ) {
+        return true;
+      }
+      if ( !( o instanceof Group ) ) {
+        return false;
+      }
+      try {
+        return groupMeta.compare( data, ( (Group) o ).data ) == 0;
+      } catch ( KettleValueException e ) {
+        throw new IllegalStateException( e );
+      }
+    }
+
+    @Override public int hashCode() {
+      return hashCode;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.queryfilter;
+
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaFactory;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.execution.ConditionCompiler;
+import org.pentaho.di.trans.step.BaseStep;
+import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+
+/**
+ * Tests each row against a {@link ConditionCompiler compiled} condition and passes on the matching rows, projected to
+ * the selected fields if any.
+ */
+public class QueryFilter extends BaseStep implements StepInterface {
+
+  public QueryFilter( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta,
+                      Trans trans ) {
+    super( stepMeta, stepDataInterface, copyNr, transMeta, trans );
+  }
+
+  @Override public boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
+    QueryFilterMeta meta = (QueryFilterMeta) smi;
+    QueryFilterData data = (QueryFilterData) sdi;
+
+    Object[] row = getRow();
+    if ( row == null ) {
+      setOutputDone();
+      return false;
+    }
+
+    if ( first ) {
+      first = false;
+      initialize( meta, data, getInputRowMeta() );
+    }
+
+    if ( !data.predicate.test( conditionRow( data, row ) ) ) {
+      return true;
+    }
+
+    if ( data.selectIndexes == null ) {
+      putRow( data.outputRowMeta, row );
+    } else {
+      Object[] outputRow = RowDataUtil.allocateRowData( data.outputRowMeta.size() );
+      for ( int i = 0; i < data.selectIndexes.length; i++ ) {
+        outputRow[ i ] = row[ data.selectIndexes[ i ] ];
+      }
+      putRow( data.outputRowMeta, outputRow );
+    }
+    return true;
+  }
+
+  /**
+   * @return the row with its formatted fields appended, in a buffer reused for every row
+   */
+  private Object[] conditionRow( QueryFilterData data, Object[] row ) throws KettleException {
+    if ( data.formatIndexes.length == 0 ) {
+      return row;
+    }
+    System.arraycopy( row, 0, data.conditionRow, 0, data.inputSize );
+    for ( int i = 0; i < data.formatIndexes.length; i++ ) {
+      Object value = data.formatSourceMetas[ i ].convertToNormalStorageType( row[ data.formatIndexes[ i ] ] );
+      data.conditionRow[ data.inputSize + i ] = data.formatMetas[ i ].getString( value );
+    }
+    return data.conditionRow;
+  }
+
+  private void initialize( QueryFilterMeta meta, QueryFilterData data, RowMetaInterface inputRowMeta )
+    throws KettleException {
+    data.inputSize = inputRowMeta.size();
+    data.outputRowMeta = inputRowMeta.clone();
+    meta.getFields( data.outputRowMeta, getStepname(), null, null, this, repository, metaStore );
+
+    String[] formatSource = meta.getFormatSource();
+    data.formatIndexes = new int[ formatSource.length ];
+    data.formatSourceMetas = new ValueMetaInterface[ formatSource.length ];
+    data.formatMetas = new ValueMetaInterface[ formatSource.length ];
+    for ( int i = 0; i < formatSource.length; i++ ) {
+      data.formatIndexes[ i ] = indexOf( inputRowMeta, formatSource[ i ] );
+      data.formatSourceMetas[ i ] = inputRowMeta.getValueMeta( data.formatIndexes[ i ] );
+      // Formatted like a Calculator copy of the field to a string with a conversion mask
+      data.formatMetas[ i ] = ValueMetaFactory.createValueMeta( formatSource[ i ],
+        data.formatSourceMetas[ i ].getType() );
+      data.formatMetas[ i ].setConversionMask( meta.getFormatMask()[ i ] );
+    }
+    RowMetaInterface conditionFields = meta.getConditionFields( inputRowMeta );
+    data.conditionRow = RowDataUtil.allocateRowData( conditionFields.size() );
+
+    // Copies of the step each compile their own condition
+    Condition condition = (Condition) meta.getCondition().clone();
+    data.predicate = ConditionCompiler.compile( condition, conditionFields );
+
+    String[] selectName = meta.getSelectName();
+    if ( selectName.length > 0 ) {
+      data.selectIndexes = new int[ selectName.length ];
+      for ( int i = 0; i < selectName.length; i++ ) {
+        data.selectIndexes[ i ] = indexOf( inputRowMeta, selectName[ i ] );
+      }
+    }
+  }
+
+  private static int indexOf( RowMetaInterface rowMeta, String field ) throws KettleStepException {
+    int index = rowMeta.indexOfValue( field );
+    if ( index < 0 ) {
+      throw new KettleStepException( "Unable to find field in input: " + field );
+    }
+    return index;
+  }
+}
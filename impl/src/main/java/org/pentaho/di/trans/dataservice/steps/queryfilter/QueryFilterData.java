@@ -0,0 +1,47 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.queryfilter;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.dataservice.execution.RowPredicate;
+import org.pentaho.di.trans.step.BaseStepData;
+import org.pentaho.di.trans.step.StepDataInterface;
+
+public class QueryFilterData extends BaseStepData implements StepDataInterface {
+  public RowMetaInterface outputRowMeta;
+  RowPredicate predicate;
+  int inputSize;
+  // Formatted fields, appended to a copy of the input row to test the condition
+  int[] formatIndexes;
+  ValueMetaInterface[] formatSourceMetas;
+  ValueMetaInterface[] formatMetas;
+  Object[] conditionRow;
+  // Input indexes of the selected fields, null to pass rows on unchanged
+  int[] selectIndexes;
+
+  public QueryFilterData() {
+    super();
+  }
+}
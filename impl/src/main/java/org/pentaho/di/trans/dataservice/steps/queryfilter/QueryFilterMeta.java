@@ -0,0 +1,303 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.queryfilter;
+
+import org.pentaho.di.core.CheckResult;
+import org.pentaho.di.core.CheckResultInterface;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.annotations.Step;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.util.Utils;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.repository.ObjectId;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.BaseStepMeta;
+import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.metastore.api.IMetaStore;
+import org.w3c.dom.Node;
+
+import java.util.List;
+
+/**
+ * Passes on the rows matching a condition, optionally keeping only some of their fields, as rewritten from a filter
+ * and the steps around it in generated transformations.
+ * <p>
+ * The condition may refer to {@link #getFormatField() formatted fields}: copies of input fields converted to strings
+ * with a format mask, which are only used to test the condition and never passed on. Without
+ * {@link #getSelectName() selected fields}, rows are passed on unchanged.
+ */
+@Step( id = QueryFilterMeta.STEP_ID, name = "Query filter",
+  description = "Filters and projects rows in one step, as generated for data service queries",
+  categoryDescription = "i18n:org.pentaho.di.trans.step:BaseStep.Category.Flow" )
+public class QueryFilterMeta extends BaseStepMeta implements StepMetaInterface {
+
+  public static final String STEP_ID = "DataServiceQueryFilter";
+
+  private Condition condition;
+  private String[] formatField;
+  private String[] formatSource;
+  private String[] formatMask;
+  private String[] selectName;
+  private String[] selectRename;
+
+  public QueryFilterMeta() {
+    super();
+  }
+
+  public void allocate( int nrFormats, int nrSelect ) {
+    formatField = new String[ nrFormats ];
+    formatSource = new String[ nrFormats ];
+    formatMask = new String[ nrFormats ];
+    selectName = new String[ nrSelect ];
+    selectRename = new String[ nrSelect ];
+  }
+
+  @Override public void setDefault() {
+    condition = new Condition();
+    allocate( 0, 0 );
+  }
+
+  @Override public Object clone() {
+    QueryFilterMeta clone = (QueryFilterMeta) super.clone();
+    clone.condition = (Condition) condition.clone();
+    clone.formatField = formatField.clone();
+    clone.formatSource = formatSource.clone();
+    clone.formatMask = formatMask.clone();
+    clone.selectName = selectName.clone();
+    clone.selectRename = selectRename.clone();
+    return clone;
+  }
+
+  @Override public void loadXML( Node stepnode, List<DatabaseMeta> databases, IMetaStore metaStore )
+    throws KettleXMLException {
+    try {
+      condition = new Condition( XMLHandler.getSubNode( XMLHandler.getSubNode( stepnode, "compare" ), "condition" ) );
+      Node formats = XMLHandler.getSubNode( stepnode, "formats" );
+      Node fields = XMLHandler.getSubNode( stepnode, "fields" );
+      allocate( XMLHandler.countNodes( formats, "format" ), XMLHandler.countNodes( fields, "field" ) );
+      for ( int i = 0; i < formatField.length; i++ ) {
+        Node formatNode = XMLHandler.getSubNodeByNr( formats, "format", i );
+        formatField[ i ] = XMLHandler.getTagValue( formatNode, "name" );
+        formatSource[ i ] = XMLHandler.getTagValue( formatNode, "source" );
+        formatMask[ i ] = XMLHandler.getTagValue( formatNode, "mask" );
+      }
+      for ( int i = 0; i < selectName.length; i++ ) {
+        Node fieldNode = XMLHandler.getSubNodeByNr( fields, "field", i );
+        selectName[ i ] = XMLHandler.getTagValue( fieldNode, "name" );
+        selectRename[ i ] = XMLHandler.getTagValue( fieldNode, "rename" );
+      }
+    } catch ( Exception e ) {
+      throw new KettleXMLException( "Unable to load step info from XML", e );
+    }
+  }
+
+  @Override public String getXML() throws KettleException {
+    StringBuilder xml = new StringBuilder();
+    xml.append( "    " ).append( XMLHandler.openTag( "compare" ) ).append( Const.CR );
+    xml.append( condition.getXML() );
+    xml.append( "    " ).append( XMLHandler.closeTag( "compare" ) ).append( Const.CR );
+    xml.append( "    " ).append( XMLHandler.openTag( "formats" ) ).append( Const.CR );
+    for ( int i = 0; i < formatField.length; i++ ) {
+      xml.append( "      " ).append( XMLHandler.openTag( "format" ) ).append( Const.CR );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "name", formatField[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "source", formatSource[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "mask", formatMask[ i ] ) );
+      xml.append( "      " ).append( XMLHandler.closeTag( "format" ) ).append( Const.CR );
+    }
+    xml.append( "    " ).append( XMLHandler.closeTag( "formats" ) ).append( Const.CR );
+    xml.append( "    " ).append( XMLHandler.openTag( "fields" ) ).append( Const.CR );
+    for ( int i = 0; i < selectName.length; i++ ) {
+      xml.append( "      " ).append( XMLHandler.openTag( "field" ) ).append( Const.CR );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "name", selectName[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "rename", selectRename[ i ] ) );
+      xml.append( "      " ).append( XMLHandler.closeTag( "field" ) ).append( Const.CR );
+    }
+    xml.append( "    " ).append( XMLHandler.closeTag( "fields" ) ).append( Const.CR );
+    return xml.toString();
+  }
+
+  @Override public void readRep( Repository rep, IMetaStore metaStore, ObjectId idStep,
+                                 List<DatabaseMeta> databases ) throws KettleException {
+    condition = new Condition( XMLHandler.getSubNode(
+      XMLHandler.loadXMLString( rep.getStepAttributeString( idStep, "condition" ) ), "condition" ) );
+    allocate( rep.countNrStepAttributes( idStep, "format_name" ), rep.countNrStepAttributes( idStep, "field_name" ) );
+    for ( int i = 0; i < formatField.length; i++ ) {
+      formatField[ i ] = rep.getStepAttributeString( idStep, i, "format_name" );
+      formatSource[ i ] = rep.getStepAttributeString( idStep, i, "format_source" );
+      formatMask[ i ] = rep.getStepAttributeString( idStep, i, "format_mask" );
+    }
+    for ( int i = 0; i < selectName.length; i++ ) {
+      selectName[ i ] = rep.getStepAttributeString( idStep, i, "field_name" );
+      selectRename[ i ] = rep.getStepAttributeString( idStep, i, "field_rename" );
+    }
+  }
+
+  @Override public void saveRep( Repository rep, IMetaStore metaStore, ObjectId idTransformation, ObjectId idStep )
+    throws KettleException {
+    rep.saveStepAttribute( idTransformation, idStep, "condition", condition.getXML() );
+    for ( int i = 0; i < formatField.length; i++ ) {
+      rep.saveStepAttribute( idTransformation, idStep, i, "format_name", formatField[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "format_source", formatSource[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "format_mask", formatMask[ i ] );
+    }
+    for ( int i = 0; i < selectName.length; i++ ) {
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_name", selectName[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_rename", selectRename[ i ] );
+    }
+  }
+
+  /**
+   * Formatted fields are not passed on, selected fields replace the input fields.
+   */
+  @Override public void getFields( RowMetaInterface inputRowMeta, String name, RowMetaInterface[] info,
+                                   StepMeta nextStep, VariableSpace space, Repository repository,
+                                   IMetaStore metaStore ) throws KettleStepException {
+    if ( selectName.length == 0 ) {
+      return;
+    }
+    ValueMetaInterface[] selected = new ValueMetaInterface[ selectName.length ];
+    for ( int i = 0; i < selectName.length; i++ ) {
+      ValueMetaInterface valueMeta = inputRowMeta.searchValueMeta( selectName[ i ] );
+      if ( valueMeta == null ) {
+        throw new KettleStepException( "Unable to find field to select: " + selectName[ i ] );
+      }
+      selected[ i ] = valueMeta.clone();
+      if ( !Utils.isEmpty( selectRename[ i ] ) ) {
+        selected[ i ].setName( selectRename[ i ] );
+      }
+    }
+    inputRowMeta.clear();
+    for ( ValueMetaInterface valueMeta : selected ) {
+      inputRowMeta.addValueMeta( valueMeta );
+    }
+  }
+
+  /**
+   * @return the fields the condition is tested against: the input fields followed by the formatted fields
+   */
+  RowMetaInterface getConditionFields( RowMetaInterface inputRowMeta ) {
+    RowMetaInterface conditionFields = inputRowMeta.clone();
+    for ( String field : formatField ) {
+      conditionFields.addValueMeta( new ValueMetaString( field ) );
+    }
+    return conditionFields;
+  }
+
+  @Override public void check( List<CheckResultInterface> remarks, TransMeta transMeta, StepMeta stepMeta,
+                               RowMetaInterface prev, String[] input, String[] output, RowMetaInterface info,
+                               VariableSpace space, Repository repository, IMetaStore metaStore ) {
+    if ( prev == null || prev.isEmpty() ) {
+      return;
+    }
+    RowMetaInterface conditionFields = getConditionFields( prev );
+    for ( String usedField : condition.getUsedFields() ) {
+      if ( conditionFields.indexOfValue( usedField ) < 0 ) {
+        remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          "Condition field not found in input: " + usedField, stepMeta ) );
+      }
+    }
+    for ( String source : formatSource ) {
+      if ( prev.indexOfValue( source ) < 0 ) {
+        remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          "Field to format not found in input: " + source, stepMeta ) );
+      }
+    }
+    for ( String name : selectName ) {
+      if ( prev.indexOfValue( name ) < 0 ) {
+        remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          "Field to select not found in input: " + name, stepMeta ) );
+      }
+    }
+  }
+
+  @Override public StepInterface getStep( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr,
+                                          TransMeta transMeta, Trans trans ) {
+    return new QueryFilter( stepMeta, stepDataInterface, copyNr, transMeta, trans );
+  }
+
+  @Override public StepDataInterface getStepData() {
+    return new QueryFilterData();
+  }
+
+  public Condition getCondition() {
+    return condition;
+  }
+
+  public void setCondition( Condition condition ) {
+    this.condition = condition;
+  }
+
+  public String[] getFormatField() {
+    return formatField;
+  }
+
+  public void setFormatField( String[] formatField ) {
+    this.formatField = formatField;
+  }
+
+  public String[] getFormatSource() {
+    return formatSource;
+  }
+
+  public void setFormatSource( String[] formatSource ) {
+    this.formatSource = formatSource;
+  }
+
+  public String[] getFormatMask() {
+    return formatMask;
+  }
+
+  public void setFormatMask( String[] formatMask ) {
+    this.formatMask = formatMask;
+  }
+
+  public String[] getSelectName() {
+    return selectName;
+  }
+
+  public void setSelectName( String[] selectName ) {
+    this.selectName = selectName;
+  }
+
+  public String[] getSelectRename() {
+    return selectRename;
+  }
+
+  public void setSelectRename( String[] selectRename ) {
+    this.selectRename = selectRename;
+  }
+}
@@ -0,0 +1,147 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.spill;
+
+import org.pentaho.di.core.exception.KettleFileException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressed temp file of rows that did not fit in memory, written once and read back once.
+ */
+public class SpillFile {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File file;
+  private DataOutputStream out;
+  private long rowCount;
+
+  private SpillFile( File file ) {
+    this.file = file;
+  }
+
+  /**
+   * @param prefix Prefix of the temp file name, telling what spilled the rows
+   */
+  public static SpillFile create( String prefix ) throws KettleFileException {
+    File file = null;
+    try {
+      file = File.createTempFile( prefix, ".tmp" );
+      SpillFile spillFile = new SpillFile( file );
+      spillFile.out = new DataOutputStream( new BufferedOutputStream(
+        new GZIPOutputStream( new FileOutputStream( file ), BUFFER_SIZE ), BUFFER_SIZE ) );
+      return spillFile;
+    } catch ( IOException e ) {
+      if ( file != null ) {
+        file.delete();
+      }
+      throw new KettleFileException( "Unable to create temp file to spill rows to", e );
+    }
+  }
+
+  public void write( RowMetaInterface rowMeta, Object[] row ) throws KettleFileException {
+    rowMeta.writeData( out, row );
+    rowCount++;
+  }
+
+  /**
+   * Finishes writing, the file can be {@link #open(RowMetaInterface) read} afterwards
+   */
+  public void close() throws KettleFileException {
+    try {
+      out.close();
+    } catch ( IOException e ) {
+      throw new KettleFileException( "Unable to write spilled rows to " + file, e );
+    }
+  }
+
+  public Reader open( RowMetaInterface rowMeta ) throws KettleFileException {
+    try {
+      return new Reader( rowMeta, new DataInputStream( new BufferedInputStream(
+        new GZIPInputStream( new FileInputStream( file ), BUFFER_SIZE ), BUFFER_SIZE ) ) );
+    } catch ( IOException e ) {
+      throw new KettleFileException( "Unable to read spilled rows from " + file, e );
+    }
+  }
+
+  public void delete() {
+    try {
+      if ( out != null ) {
+        out.close();
+      }
+    } catch ( IOException e ) {
+      // Deleted anyway
+    }
+    file.delete();
+  }
+
+  public long getRowCount() {
+    return rowCount;
+  }
+
+  public class Reader {
+    private final RowMetaInterface rowMeta;
+    private final DataInputStream in;
+    private long remaining = rowCount;
+
+    private Reader( RowMetaInterface rowMeta, DataInputStream in ) {
+      this.rowMeta = rowMeta;
+      this.in = in;
+    }
+
+    /**
+     * @return the next row, or null after the last one
+     */
+    public Object[] next() throws KettleFileException {
+      if ( remaining == 0 ) {
+        return null;
+      }
+      remaining--;
+      try {
+        return rowMeta.readData( in );
+      } catch ( SocketTimeoutException e ) {
+        throw new KettleFileException( "Unable to read spilled rows from " + file, e );
+      }
+    }
+
+    public void close() {
+      try {
+        in.close();
+      } catch ( IOException e ) {
+        // Nothing left to read
+      }
+    }
+  }
+}
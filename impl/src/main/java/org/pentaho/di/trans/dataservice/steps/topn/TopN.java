@@ -0,0 +1,93 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.topn;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.BaseStep;
+import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+
+import java.util.List;
+
+/**
+ * Keeps the first offset + limit rows in sort order and writes the requested window at end of input.
+ * Memory use is bounded by the window rather than by the input, and nothing is spilled to disk.
+ */
+public class TopN extends BaseStep implements StepInterface {
+
+  public TopN( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta,
+               Trans trans ) {
+    super( stepMeta, stepDataInterface, copyNr, transMeta, trans );
+  }
+
+  @Override public boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
+    TopNMeta meta = (TopNMeta) smi;
+    TopNData data = (TopNData) sdi;
+
+    Object[] row = getRow();
+    if ( row == null ) {
+      if ( !first ) {
+        writeRows( meta, data );
+      }
+      setOutputDone();
+      return false;
+    }
+
+    if ( first ) {
+      first = false;
+      data.outputRowMeta = getInputRowMeta().clone();
+      meta.getFields( data.outputRowMeta, getStepname(), null, null, this, repository, metaStore );
+
+      String[] fieldName = meta.getFieldName();
+      data.fieldIndexes = new int[ fieldName.length ];
+      for ( int i = 0; i < fieldName.length; i++ ) {
+        data.fieldIndexes[ i ] = data.outputRowMeta.indexOfValue( fieldName[ i ] );
+        if ( data.fieldIndexes[ i ] < 0 ) {
+          throw new KettleStepException( "Unable to find field to sort on: " + fieldName[ i ] );
+        }
+      }
+      data.heap = new TopNHeap( data.outputRowMeta, data.fieldIndexes, meta.getCapacity() );
+    }
+
+    data.heap.offer( row );
+    return true;
+  }
+
+  private void writeRows( TopNMeta meta, TopNData data ) throws KettleException {
+    List<Object[]> rows = data.heap.drain();
+    for ( int i = Math.max( meta.getOffset(), 0 ); i < rows.size() && !isStopped(); i++ ) {
+      putRow( data.outputRowMeta, rows.get( i ) );
+    }
+  }
+
+  @Override public void dispose( StepMetaInterface smi, StepDataInterface sdi ) {
+    ( (TopNData) sdi ).heap = null;
+    super.dispose( smi, sdi );
+  }
+}
@@ -0,0 +1,149 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.topn;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bounded max-heap keeping the first {@code capacity} rows in sort order.
+ * <p>
+ * The root is the last kept row, so each new row is compared against it once and usually rejected without any
+ * further work. Rows that compare equal keep their arrival order, as with a stable sort.
+ */
+class TopNHeap {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final RowMetaInterface rowMeta;
+  private final int[] fieldIndexes;
+  private final int capacity;
+
+  private Object[][] rows;
+  private long[] sequence;
+  private int size;
+  private long nextSequence;
+
+  TopNHeap( RowMetaInterface rowMeta, int[] fieldIndexes, int capacity ) {
+    this.rowMeta = rowMeta;
+    this.fieldIndexes = fieldIndexes;
+    this.capacity = capacity;
+    int initial = Math.max( 1, Math.min( capacity, INITIAL_CAPACITY ) );
+    this.rows = new Object[ initial ][];
+    this.sequence = new long[ initial ];
+  }
+
+  /**
+   * @return true if the row is kept, possibly evicting the last kept row
+   */
+  boolean offer( Object[] row ) throws KettleValueException {
+    long rowSequence = nextSequence++;
+    if ( size < capacity ) {
+      if ( size == rows.length ) {
+        int grown = (int) Math.min( capacity, 2L * rows.length );
+        rows = Arrays.copyOf( rows, grown );
+        sequence = Arrays.copyOf( sequence, grown );
+      }
+      rows[ size ] = row;
+      sequence[ size ] = rowSequence;
+      siftUp( size++ );
+      return true;
+    }
+    if ( capacity == 0 || compare( row, rowSequence, rows[ 0 ], sequence[ 0 ] ) > 0 ) {
+      return false;
+    }
+    rows[ 0 ] = row;
+    sequence[ 0 ] = rowSequence;
+    siftDown( 0 );
+    return true;
+  }
+
+  /**
+   * Empty the heap
+   *
+   * @return kept rows in sort order
+   */
+  List<Object[]> drain() throws KettleValueException {
+    Object[][] sorted = new Object[ size ][];
+    for ( int i = size - 1; i >= 0; i-- ) {
+      sorted[ i ] = rows[ 0 ];
+      size--;
+      rows[ 0 ] = rows[ size ];
+      sequence[ 0 ] = sequence[ size ];
+      rows[ size ] = null;
+      siftDown( 0 );
+    }
+    return Arrays.asList( sorted );
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void siftUp( int index ) throws KettleValueException {
+    while ( index > 0 ) {
+      int parent = ( index - 1 ) >>> 1;
+      if ( compare( index, parent ) <= 0 ) {
+        break;
+      }
+      swap( index, parent );
+      index = parent;
+    }
+  }
+
+  private void siftDown( int index ) throws KettleValueException {
+    int child;
+    while ( ( child = 2 * index + 1 ) < size ) {
+      if ( child + 1 < size && compare( child + 1, child ) > 0 ) {
+        child++;
+      }
+      if ( compare( index, child ) >= 0 ) {
+        break;
+      }
+      swap( index, child );
+      index = child;
+    }
+  }
+
+  private int compare( int left, int right ) throws KettleValueException {
+    return compare( rows[ left ], sequence[ left ], rows[ right ], sequence[ right ] );
+  }
+
+  private int compare( Object[] left, long leftSequence, Object[] right, long rightSequence )
+    throws KettleValueException {
+    int cmp = rowMeta.compare( left, right, fieldIndexes );
+    return cmp != 0 ? cmp : Long.compare( leftSequence, rightSequence );
+  }
+
+  private void swap( int left, int right ) {
+    Object[] row = rows[ left ];
+    rows[ left ] = rows[ right ];
+    rows[ right ] = row;
+    long rowSequence = sequence[ left ];
+    sequence[ left ] = sequence[ right ];
+    sequence[ right ] = rowSequence;
+  }
+}
@@ -0,0 +1,238 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.topn;
+
+import org.pentaho.di.core.CheckResult;
+import org.pentaho.di.core.CheckResultInterface;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.annotations.Step;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleXMLException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.repository.ObjectId;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.BaseStepMeta;
+import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.metastore.api.IMetaStore;
+import org.w3c.dom.Node;
+
+import java.util.List;
+
+/**
+ * Sorts its input and only passes on the rows from {@link #getOffset() offset} to offset + {@link #getLimit() limit}.
+ * <p>
+ * Generated for ORDER BY queries with a LIMIT clause in place of a full sort followed by a limit.
+ */
+@Step( id = TopNMeta.STEP_ID, name = "Top N rows",
+  description = "Sorts rows and keeps the first N, as generated for ORDER BY ... LIMIT data service queries",
+  categoryDescription = "i18n:org.pentaho.di.trans.step:BaseStep.Category.Transform" )
+public class TopNMeta extends BaseStepMeta implements StepMetaInterface {
+
+  public static final String STEP_ID = "DataServiceTopN";
+
+  private String[] fieldName;
+  private boolean[] ascending;
+  private boolean[] caseSensitive;
+  private int limit;
+  private int offset;
+
+  public TopNMeta() {
+    super();
+  }
+
+  public void allocate( int nrFields ) {
+    fieldName = new String[ nrFields ];
+    ascending = new boolean[ nrFields ];
+    caseSensitive = new boolean[ nrFields ];
+  }
+
+  @Override public void setDefault() {
+    allocate( 0 );
+    limit = 0;
+    offset = 0;
+  }
+
+  @Override public Object clone() {
+    TopNMeta clone = (TopNMeta) super.clone();
+    clone.fieldName = fieldName.clone();
+    clone.ascending = ascending.clone();
+    clone.caseSensitive = caseSensitive.clone();
+    return clone;
+  }
+
+  /**
+   * @return The number of rows kept in memory: offset + limit
+   */
+  public int getCapacity() {
+    return (int) Math.min( Integer.MAX_VALUE, (long) Math.max( offset, 0 ) + Math.max( limit, 0 ) );
+  }
+
+  @Override public void loadXML( Node stepnode, List<DatabaseMeta> databases, IMetaStore metaStore )
+    throws KettleXMLException {
+    try {
+      Node fields = XMLHandler.getSubNode( stepnode, "fields" );
+      int nrFields = XMLHandler.countNodes( fields, "field" );
+      allocate( nrFields );
+      for ( int i = 0; i < nrFields; i++ ) {
+        Node fieldNode = XMLHandler.getSubNodeByNr( fields, "field", i );
+        fieldName[ i ] = XMLHandler.getTagValue( fieldNode, "name" );
+        ascending[ i ] = "Y".equalsIgnoreCase( XMLHandler.getTagValue( fieldNode, "ascending" ) );
+        caseSensitive[ i ] = "Y".equalsIgnoreCase( XMLHandler.getTagValue( fieldNode, "case_sensitive" ) );
+      }
+      limit = Integer.parseInt( XMLHandler.getTagValue( stepnode, "limit" ) );
+      offset = Integer.parseInt( XMLHandler.getTagValue( stepnode, "offset" ) );
+    } catch ( Exception e ) {
+      throw new KettleXMLException( "Unable to load step info from XML", e );
+    }
+  }
+
+  @Override public String getXML() {
+    StringBuilder xml = new StringBuilder();
+    xml.append( "    " ).append( XMLHandler.openTag( "fields" ) ).append( Const.CR );
+    for ( int i = 0; i < fieldName.length; i++ ) {
+      xml.append( "      " ).append( XMLHandler.openTag( "field" ) ).append( Const.CR );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "name", fieldName[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "ascending", ascending[ i ] ) );
+      xml.append( "        " ).append( XMLHandler.addTagValue( "case_sensitive", caseSensitive[ i ] ) );
+      xml.append( "      " ).append( XMLHandler.closeTag( "field" ) ).append( Const.CR );
+    }
+    xml.append( "    " ).append( XMLHandler.closeTag( "fields" ) ).append( Const.CR );
+    xml.append( "    " ).append( XMLHandler.addTagValue( "limit", limit ) );
+    xml.append( "    " ).append( XMLHandler.addTagValue( "offset", offset ) );
+    return xml.toString();
+  }
+
+  @Override public void readRep( Repository rep, IMetaStore metaStore, ObjectId idStep,
+                                 List<DatabaseMeta> databases ) throws KettleException {
+    int nrFields = rep.countNrStepAttributes( idStep, "field_name" );
+    allocate( nrFields );
+    for ( int i = 0; i < nrFields; i++ ) {
+      fieldName[ i ] = rep.getStepAttributeString( idStep, i, "field_name" );
+      ascending[ i ] = rep.getStepAttributeBoolean( idStep, i, "field_ascending" );
+      caseSensitive[ i ] = rep.getStepAttributeBoolean( idStep, i, "field_case_sensitive" );
+    }
+    limit = (int) rep.getStepAttributeInteger( idStep, "limit" );
+    offset = (int) rep.getStepAttributeInteger( idStep, "offset" );
+  }
+
+  @Override public void saveRep( Repository rep, IMetaStore metaStore, ObjectId idTransformation, ObjectId idStep )
+    throws KettleException {
+    for ( int i = 0; i < fieldName.length; i++ ) {
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_name", fieldName[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_ascending", ascending[ i ] );
+      rep.saveStepAttribute( idTransformation, idStep, i, "field_case_sensitive", caseSensitive[ i ] );
+    }
+    rep.saveStepAttribute( idTransformation, idStep, "limit", limit );
+    rep.saveStepAttribute( idTransformation, idStep, "offset", offset );
+  }
+
+  /**
+   * Rows are passed on unchanged, but flagged with their sort order like {@link
+   * org.pentaho.di.trans.steps.sort.SortRowsMeta} does.
+   */
+  @Override public void getFields( RowMetaInterface inputRowMeta, String name, RowMetaInterface[] info,
+                                   StepMeta nextStep, VariableSpace space, Repository repository,
+                                   IMetaStore metaStore ) throws KettleStepException {
+    for ( int i = 0; i < fieldName.length; i++ ) {
+      ValueMetaInterface valueMeta = inputRowMeta.searchValueMeta( fieldName[ i ] );
+      if ( valueMeta != null ) {
+        valueMeta.setSortedDescending( !ascending[ i ] );
+        valueMeta.setCaseInsensitive( !caseSensitive[ i ] );
+      }
+    }
+  }
+
+  @Override public void check( List<CheckResultInterface> remarks, TransMeta transMeta, StepMeta stepMeta,
+                               RowMetaInterface prev, String[] input, String[] output, RowMetaInterface info,
+                               VariableSpace space, Repository repository, IMetaStore metaStore ) {
+    if ( prev == null || prev.isEmpty() ) {
+      return;
+    }
+    for ( String name : fieldName ) {
+      if ( prev.indexOfValue( name ) < 0 ) {
+        remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR,
+          "Sort field not found in input: " + name, stepMeta ) );
+      }
+    }
+  }
+
+  @Override public StepInterface getStep( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr,
+                                          TransMeta transMeta, Trans trans ) {
+    return new TopN( stepMeta, stepDataInterface, copyNr, transMeta, trans );
+  }
+
+  @Override public StepDataInterface getStepData() {
+    return new TopNData();
+  }
+
+  public String[] getFieldName() {
+    return fieldName;
+  }
+
+  public void setFieldName( String[] fieldName ) {
+    this.fieldName = fieldName;
+  }
+
+  public boolean[] getAscending() {
+    return ascending;
+  }
+
+  public void setAscending( boolean[] ascending ) {
+    this.ascending = ascending;
+  }
+
+  public boolean[] getCaseSensitive() {
+    return caseSensitive;
+  }
+
+  public void setCaseSensitive( boolean[] caseSensitive ) {
+    this.caseSensitive = caseSensitive;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public void setLimit( int limit ) {
+    this.limit = limit;
+  }
+
+  public int getOffset() {
+    return offset;
+  }
+
+  public void setOffset( int offset ) {
+    this.offset = offset;
+  }
+}
@@ -40,6 +40,7 @@ import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.RowProducer;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.dataservice.client.api.IDataServiceClientService;
+import org.pentaho.di.trans.dataservice.execution.BatchingRowSet;
 import org.pentaho.di.trans.dataservice.utils.DataServiceConstants;
 import org.pentaho.di.trans.step.RowAdapter;
 import org.pentaho.di.trans.step.StepInterface;
@@ -176,7 +177,7 @@ public class StreamingGeneratedTransExecution implements Runnable {
             return;
           }
           genTrans.prepareExecution( null );
-          rowProducer = genTrans.addRowProducer( injectorStepName, 0 );
+          rowProducer = BatchingRowSet.batching( genTrans.addRowProducer( injectorStepName, 0 ) );
           genTrans.startThreads();
         }
 
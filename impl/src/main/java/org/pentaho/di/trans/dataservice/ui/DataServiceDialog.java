@@ -185,6 +185,9 @@ public class DataServiceDialog {
       model.setStreaming( dataService.isStreaming() );
       model.setServiceMaxRows( dataService.getRowLimit() );
       model.setServiceMaxTime( dataService.getTimeLimit() );
+      model.setPoolMinSize( dataService.getPoolMinSize() );
+      model.setPoolMaxSize( dataService.getPoolMaxSize() );
+      model.setPoolIdleTimeout( dataService.getPoolIdleTimeout() );
       model.setServiceName( dataService.getName() );
       model.setServiceStep( dataService.getStepname() );
       model.setPushDownOptimizations( dataService.getPushDownOptimizationMeta() );
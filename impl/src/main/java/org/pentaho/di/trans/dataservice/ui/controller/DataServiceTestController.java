@@ -571,10 +571,12 @@ public class DataServiceTestController extends AbstractXulEventHandler {
           windowEvery( model.getWindowEvery() ).
           windowLimit( model.getWindowLimit() );
       } else {
+        // Test runs show the logs and metrics of the transformations, so they always run them
         builder = new DataServiceExecutor.Builder( new SQL( model.getSql() ), dataService, context ).
           rowLimit( model.getMaxRows() ).
           logLevel( model.getLogLevel() ).
-          enableMetrics( enableMetrics );
+          enableMetrics( enableMetrics ).
+          cachedResults( false );
       }
 
       return builder.build();
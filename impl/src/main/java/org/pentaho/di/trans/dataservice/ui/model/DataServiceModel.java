@@ -46,6 +46,9 @@ public class DataServiceModel extends XulEventSourceAdapter {
   private String serviceStep;
   private int serviceMaxRows;
   private long serviceMaxTime;
+  private int poolMinSize;
+  private int poolMaxSize;
+  private long poolIdleTimeout;
   private boolean streaming;
   private final TransMeta transMeta;
 
@@ -92,6 +95,36 @@ public class DataServiceModel extends XulEventSourceAdapter {
     firePropertyChange( "serviceMaxTime", previous, serviceMaxTime );
   }
 
+  public int getPoolMinSize() {
+    return poolMinSize;
+  }
+
+  public void setPoolMinSize( int poolMinSize ) {
+    int previous = this.poolMinSize;
+    this.poolMinSize = poolMinSize;
+    firePropertyChange( "poolMinSize", previous, poolMinSize );
+  }
+
+  public int getPoolMaxSize() {
+    return poolMaxSize;
+  }
+
+  public void setPoolMaxSize( int poolMaxSize ) {
+    int previous = this.poolMaxSize;
+    this.poolMaxSize = poolMaxSize;
+    firePropertyChange( "poolMaxSize", previous, poolMaxSize );
+  }
+
+  public long getPoolIdleTimeout() {
+    return poolIdleTimeout;
+  }
+
+  public void setPoolIdleTimeout( long poolIdleTimeout ) {
+    long previous = this.poolIdleTimeout;
+    this.poolIdleTimeout = poolIdleTimeout;
+    firePropertyChange( "poolIdleTimeout", previous, poolIdleTimeout );
+  }
+
   public void setStreaming( boolean streaming ) {
     this.streaming = streaming;
   }
@@ -184,6 +217,9 @@ public class DataServiceModel extends XulEventSourceAdapter {
     dataService.setStreaming( isStreaming() );
     dataService.setRowLimit( serviceMaxRows );
     dataService.setTimeLimit( serviceMaxTime );
+    dataService.setPoolMinSize( poolMinSize );
+    dataService.setPoolMaxSize( poolMaxSize );
+    dataService.setPoolIdleTimeout( poolIdleTimeout );
 
     for ( PushDownOptimizationMeta pushDownOptimization : pushDownOptimizations ) {
       pushDownOptimization.getType().init( transMeta, dataService, pushDownOptimization );
@@ -51,6 +51,37 @@ public final class DataServiceConstants {
   public static final int KETTLE_STREAMING_ROW_LIMIT = 5000;
   public static final int KETTLE_STREAMING_TIME_LIMIT = 10000;
 
+  // Generated transformation plan cache
+  public static final String PLAN_CACHE_SIZE_PROPERTY = "dataservice.plan.cache.size";
+  public static final long PLAN_CACHE_SIZE_DEFAULT = 500;
+
+  // Published data service resolution cache
+  public static final String RESOLUTION_CACHE_SIZE_PROPERTY = "dataservice.resolution.cache.size";
+  public static final long RESOLUTION_CACHE_SIZE_DEFAULT = 100;
+
+  // Prepared service transformation template cache
+  public static final String TEMPLATE_CACHE_SIZE_PROPERTY = "dataservice.template.cache.size";
+  public static final long TEMPLATE_CACHE_SIZE_DEFAULT = 100;
+
+  // Copies aggregating generated transformations are split over, 0 for one per available processor
+  public static final String PARALLELISM_PROPERTY = "dataservice.parallelism";
+  public static final long PARALLELISM_DEFAULT = 1;
+
+  // Megabytes a query holds in memory to group, deduplicate and sort before spilling to disk, 0 for no limit
+  public static final String QUERY_MEMORY_PROPERTY = "dataservice.query.memory.mb";
+  public static final long QUERY_MEMORY_DEFAULT = 256;
+
+  // Rewrite generated transformations into fewer steps, 0 to run the plan exactly as generated
+  public static final String PLAN_REWRITE_PROPERTY = "dataservice.plan.rewrite";
+  public static final long PLAN_REWRITE_DEFAULT = 1;
+
+  // Directory service caches are also kept in, so they survive restarts. Empty to keep them in memory only
+  public static final String CACHE_DISK_DIR_PROPERTY = "dataservice.cache.disk.dir";
+
+  // Warm pool of prepared service transformations
+  public static final long POOL_IDLE_TIMEOUT_DEFAULT = 300000;
+  public static final long POOL_EVICTION_INTERVAL = 10000;
+
   private DataServiceConstants() {
     throw new AssertionError();
   }
@@ -22,6 +22,7 @@
 
 package org.pentaho.di.trans.dataservice.utils;
 
+import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
 
 public class KettleUtils {
@@ -66,4 +67,16 @@ public class KettleUtils {
     }
   }
 
+  /**
+   * Get the numeric value of a specific Kettle Property, falling back to a default value when the property
+   * is missing or can not be parsed
+   *
+   * @param propertyName The name of the property to retrieve
+   * @param defaultValue The value to use if the property is not set or is not a number
+   * @return The property value
+   */
+  public long getKettleProperty( String propertyName, long defaultValue ) {
+    return Const.toLong( System.getProperty( propertyName ), defaultValue );
+  }
+
 }
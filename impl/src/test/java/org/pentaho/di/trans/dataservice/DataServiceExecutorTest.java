@@ -41,6 +41,7 @@ import org.mockito.stubbing.Answer;
 import org.pentaho.di.core.Condition;
 import org.pentaho.di.core.RowMetaAndData;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannelInterface;
 import org.pentaho.di.core.logging.LogLevel;
 import org.pentaho.di.core.row.RowMeta;
 import org.pentaho.di.core.row.RowMetaInterface;
@@ -57,6 +58,7 @@ import org.pentaho.di.trans.dataservice.client.api.IDataServiceClientService;
 import org.pentaho.di.trans.dataservice.execution.CopyParameters;
 import org.pentaho.di.trans.dataservice.optimization.OptimizationImpactInfo;
 import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
+import org.pentaho.di.trans.dataservice.optimization.cache.ServiceCache;
 import org.pentaho.di.trans.dataservice.optimization.pushdown.ParameterPushdown;
 import org.pentaho.di.trans.dataservice.streaming.StreamServiceKey;
 import org.pentaho.di.trans.dataservice.streaming.WindowParametersHelper;
@@ -68,7 +70,9 @@ import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepListener;
 import org.pentaho.metastore.api.IMetaStore;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.util.Calendar;
 import java.util.Collections;
@@ -98,6 +102,8 @@ import static org.mockito.AdditionalMatchers.and;
 import static org.mockito.AdditionalMatchers.not;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
@@ -196,6 +202,111 @@ public class DataServiceExecutorTest extends BaseTest {
   }
 
 
+  @Test
+  public void testInlineEvaluation() throws Exception {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "aString" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "anInt" ) );
+    when( transMeta.getStepFields( DATA_SERVICE_STEP ) ).thenReturn( rowMeta );
+
+    DataServiceExecutor executor = new DataServiceExecutor.Builder(
+      new SQL( "SELECT aString FROM " + DATA_SERVICE_NAME + " WHERE anInt > 2 LIMIT 10" ), dataService, context ).
+      serviceTrans( transMeta ).
+      inlineEvaluation( true ).
+      build();
+
+    // Only the service transformation is prepared and started
+    assertThat( executor.isInline(), is( true ) );
+    assertEquals( 2, executor.getListenerMap().get( DataServiceExecutor.ExecutionPoint.PREPARE ).size() );
+    assertEquals( 0, executor.getListenerMap().get( DataServiceExecutor.ExecutionPoint.READY ).size() );
+    assertEquals( 1, executor.getListenerMap().get( DataServiceExecutor.ExecutionPoint.START ).size() );
+    assertNotNull( executor.getGenTransMeta().findStep( executor.getResultStepName() ) );
+
+    // Anything else still runs the generated transformation
+    executor = new DataServiceExecutor.Builder(
+      new SQL( "SELECT aString FROM " + DATA_SERVICE_NAME + " ORDER BY aString" ), dataService, context ).
+      serviceTrans( transMeta ).
+      inlineEvaluation( true ).
+      build();
+    assertThat( executor.isInline(), is( false ) );
+    assertEquals( 2, executor.getListenerMap().get( DataServiceExecutor.ExecutionPoint.START ).size() );
+  }
+
+  @Test
+  public void testCachedResult() throws Exception {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "aString" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "anInt" ) );
+    when( transMeta.getStepFields( DATA_SERVICE_STEP ) ).thenReturn( rowMeta );
+
+    ServiceCache serviceCache = mock( ServiceCache.class );
+    PushDownOptimizationMeta optimizationMeta = new PushDownOptimizationMeta();
+    optimizationMeta.setType( serviceCache );
+    optimizationMeta.setEnabled( true );
+    dataService.setPushDownOptimizationMeta( ImmutableList.of( optimizationMeta ) );
+    RowMetaAndData row = new RowMetaAndData( rowMeta, "a", 2L );
+    when( serviceCache.getCachedResult( same( dataService ), any( SQL.class ), anyMapOf( String.class, String.class ),
+      anyInt(), anyInt(), any( LogChannelInterface.class ) ) )
+      .thenReturn( new ServiceCache.Result( rowMeta, ImmutableList.<RowMetaAndData>of( row ) ) );
+
+    DataServiceExecutor executor = new DataServiceExecutor.Builder(
+      new SQL( "SELECT aString, SUM(anInt) FROM " + DATA_SERVICE_NAME + " GROUP BY aString" ), dataService, context ).
+      build();
+
+    // Neither transformation is built, prepared or started
+    assertThat( executor.isCachedResult(), is( true ) );
+    assertNull( executor.getServiceTrans() );
+    assertNull( executor.getGenTrans() );
+    assertNotNull( executor.getId() );
+    assertNull( context.getExecutor( executor.getId() ) );
+    verify( transMeta, never() ).realClone( anyBoolean() );
+    assertEquals( 0, executor.getListenerMap().get( DataServiceExecutor.ExecutionPoint.PREPARE ).size() );
+    assertEquals( 0, executor.getListenerMap().get( DataServiceExecutor.ExecutionPoint.START ).size() );
+
+    @SuppressWarnings( "unchecked" )
+    Observer<RowMetaAndData> results = mock( Observer.class );
+    executor.executeQuery( results );
+    executor.waitUntilFinished();
+
+    InOrder inOrder = inOrder( results );
+    inOrder.verify( results ).onNext( row );
+    inOrder.verify( results ).onComplete();
+    verify( serviceCache, never() ).activate( any( DataServiceExecutor.class ), any( PushDownOptimizationMeta.class ) );
+  }
+
+  @Test
+  public void testCachedEmptyResultWritesRowMeta() throws Exception {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "aString" ) );
+    when( transMeta.getStepFields( DATA_SERVICE_STEP ) ).thenReturn( rowMeta );
+
+    ServiceCache serviceCache = mock( ServiceCache.class );
+    PushDownOptimizationMeta optimizationMeta = new PushDownOptimizationMeta();
+    optimizationMeta.setType( serviceCache );
+    optimizationMeta.setEnabled( true );
+    dataService.setPushDownOptimizationMeta( ImmutableList.of( optimizationMeta ) );
+    when( serviceCache.getCachedResult( same( dataService ), any( SQL.class ), anyMapOf( String.class, String.class ),
+      anyInt(), anyInt(), any( LogChannelInterface.class ) ) )
+      .thenReturn( new ServiceCache.Result( rowMeta, ImmutableList.<RowMetaAndData>of() ) );
+
+    DataServiceExecutor executor = new DataServiceExecutor.Builder(
+      new SQL( "SELECT aString FROM " + DATA_SERVICE_NAME + " ), dataService, context ).
+      build();
+    assertThat( executor.isCachedResult(), is( true ) );
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    executor.executeQuery( new DataOutputStream( outputStream ) );
+
+    DataInputStream input = new DataInputStream( new ByteArrayInputStream( outputStream.toByteArray() ) );
+    assertEquals( DATA_SERVICE_NAME, input.readUTF() );
+    input.readUTF();
+    assertEquals( executor.getId(), input.readUTF() );
+    input.readUTF();
+    assertEquals( executor.getId(), input.readUTF() );
+    assertEquals( rowMeta.getFieldNames()[0], new RowMeta( input ).getFieldNames()[0] );
+    assertEquals( 0, input.available() );
+  }
+
   @Test( expected =  KettleException.class )
   public void testBuilderBuildWrongServiceName() throws Exception {
     SQL sql = new SQL( "SELECT * FROM " + DATA_SERVICE_NAME2 );
@@ -1252,6 +1363,26 @@ public class DataServiceExecutorTest extends BaseTest {
     assertTrue( executor.isStopped() );
   }
 
+  @Test
+  public void testInlineQueryStoppedAtLimitCompletes() throws KettleException {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "aString" ) );
+    when( transMeta.getStepFields( DATA_SERVICE_STEP ) ).thenReturn( rowMeta );
+    when( serviceTrans.isStopped() ).thenReturn( true );
+
+    DataServiceExecutor executor = new DataServiceExecutor.Builder(
+      new SQL( "SELECT aString FROM " + DATA_SERVICE_NAME + " LIMIT 1" ), dataService, context ).
+      serviceTrans( serviceTrans ).
+      inlineEvaluation( true ).
+      build();
+    assertThat( executor.isInline(), is( true ) );
+    assertTrue( executor.isStopped() );
+
+    // Stopping the service transformation for the limit does not stop the query
+    executor.setLimitReached();
+    assertFalse( executor.isStopped() );
+  }
+
   @Test
   public void testExecuteConcurrentModification() throws Exception {
 
@@ -0,0 +1,108 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaAndData;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ParameterizedQueryTest {
+
+  private RowMetaInterface rowMeta;
+
+  @Before
+  public void setUp() throws Exception {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "foo" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "bar" ) );
+  }
+
+  @Test
+  public void testShape() throws Exception {
+    ParameterizedQuery first = query( "SELECT foo FROM service WHERE foo = 'a' AND bar > 1" );
+    ParameterizedQuery second = query( "SELECT  foo FROM service WHERE foo = 'b' AND bar > 100" );
+
+    assertThat( second.getShape(), equalTo( first.getShape() ) );
+    assertThat( first.getWhereValues().get( 0 ).getValueData(), equalTo( (Object) "a" ) );
+    assertThat( second.getWhereValues().get( 1 ).getValueData(), equalTo( (Object) 100L ) );
+
+    assertThat( query( "SELECT foo FROM service WHERE foo = 'a' OR bar > 1" ).getShape(),
+      not( equalTo( first.getShape() ) ) );
+    assertThat( query( "SELECT foo FROM service WHERE foo = 'a' AND bar < 1" ).getShape(),
+      not( equalTo( first.getShape() ) ) );
+  }
+
+  @Test
+  public void testBind() throws Exception {
+    SQL sql = parse( "SELECT foo FROM service WHERE foo = 'a' AND bar > 1" );
+    Condition condition = (Condition) sql.getWhereCondition().getCondition().clone();
+
+    ParameterizedQuery.bind( condition,
+      query( "SELECT foo FROM service WHERE foo = 'b' AND bar > 5" ).getWhereValues().iterator() );
+
+    assertThat( condition.evaluate( rowMeta, new Object[] { "b", 6L } ), equalTo( true ) );
+    assertThat( condition.evaluate( rowMeta, new Object[] { "a", 6L } ), equalTo( false ) );
+    assertThat( condition.evaluate( rowMeta, new Object[] { "b", 2L } ), equalTo( false ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testBindMissingValues() throws Exception {
+    Condition condition = parse( "SELECT foo FROM service WHERE bar > 1" ).getWhereCondition().getCondition();
+    ParameterizedQuery.bind( condition, Collections.<ValueMetaAndData>emptyIterator() );
+  }
+
+  @Test
+  public void testNormalize() throws Exception {
+    assertThat( ParameterizedQuery.normalize( "  SELECT *\n\tFROM  \"my  service\" WHERE a = ' x '  " ),
+      equalTo( "SELECT * FROM \"my  service\" WHERE a = ' x '" ) );
+  }
+
+  private ParameterizedQuery query( String sqlString ) throws KettleException {
+    return ParameterizedQuery.create( parse( sqlString ) );
+  }
+
+  private SQL parse( String sqlString ) throws KettleException {
+    SQL sql = new SQL( sqlString );
+    sql.parse( rowMeta );
+    return sql;
+  }
+}
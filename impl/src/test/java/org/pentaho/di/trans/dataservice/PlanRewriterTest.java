@@ -0,0 +1,135 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.steps.queryfilter.QueryFilterMeta;
+import org.pentaho.di.trans.steps.selectvalues.SelectValuesMeta;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContaining;
+
+public class PlanRewriterTest {
+
+  private RowMetaInterface rowMeta;
+
+  @Before
+  public void setUp() throws Exception {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "a" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "b" ) );
+    rowMeta.addValueMeta( new ValueMetaDate( "d" ) );
+  }
+
+  @Test
+  public void testFilterAndProjectionAreFused() throws Exception {
+    SqlTransGenerator generator = generator( "SELECT a AS x FROM service WHERE b = 1" );
+    TransMeta transMeta = generator.generateTransMeta();
+
+    assertThat( transMeta.getStepNames(), arrayContaining( "Injector", SqlTransGenerator.WHERE_FILTER_STEP ) );
+    assertThat( generator.getResultStepName(), equalTo( SqlTransGenerator.WHERE_FILTER_STEP ) );
+    assertThat( transMeta.nrTransHops(), is( 1 ) );
+
+    QueryFilterMeta filter = queryFilter( transMeta );
+    assertThat( filter.getCondition().getLeftValuename(), equalTo( "b" ) );
+    assertThat( filter.getSelectName(), arrayContaining( "a" ) );
+    assertThat( filter.getSelectRename(), arrayContaining( "x" ) );
+    assertThat( transMeta.getStepFields( generator.getResultStepName() ).getFieldNames(), arrayContaining( "x" ) );
+  }
+
+  @Test
+  public void testDateToStrIsFormattedByFilter() throws Exception {
+    SqlTransGenerator generator = generator( "SELECT a FROM service WHERE DATE_TO_STR(d, 'MM') = '01'" );
+    TransMeta transMeta = generator.generateTransMeta();
+
+    assertThat( transMeta.getStepNames(), arrayContaining( "Injector", SqlTransGenerator.WHERE_FILTER_STEP ) );
+    QueryFilterMeta filter = queryFilter( transMeta );
+    assertThat( filter.getFormatSource(), arrayContaining( "d" ) );
+    assertThat( filter.getFormatMask(), arrayContaining( "MM" ) );
+    assertThat( filter.getFormatField()[0], equalTo( filter.getCondition().getLeftValuename() ) );
+    assertThat( filter.getSelectName(), arrayContaining( "a" ) );
+  }
+
+  @Test
+  public void testNoOpStepsAreDropped() throws Exception {
+    SqlTransGenerator generator = generator( "SELECT * FROM service" );
+    TransMeta transMeta = generator.generateTransMeta();
+
+    // The injector can not give the result rows itself
+    assertThat( transMeta.getStepNames(), arrayContaining( "Injector", "RESULT" ) );
+    assertThat( generator.getResultStepName(), equalTo( "RESULT" ) );
+  }
+
+  @Test
+  public void testChangingStepsAreKept() throws Exception {
+    SqlTransGenerator generator = generator( "SELECT 'k' AS c, a FROM service ORDER BY a" );
+    TransMeta transMeta = generator.generateTransMeta();
+    TransMeta generated = generator( "SELECT 'k' AS c, a FROM service ORDER BY a", false ).generateTransMeta();
+
+    assertThat( transMeta.getStepFields( generator.getResultStepName() ).getFieldNames(),
+      equalTo( generated.getStepFields( "RESULT" ).getFieldNames() ) );
+    assertThat( transMeta.nrSteps() < generated.nrSteps(), is( true ) );
+  }
+
+  @Test
+  public void testRewriteIsOptional() throws Exception {
+    SqlTransGenerator generator = generator( "SELECT a FROM service WHERE b = 1", false );
+    TransMeta transMeta = generator.generateTransMeta();
+
+    assertThat( generator.getResultStepName(), equalTo( "RESULT" ) );
+    assertThat( transMeta.findStep( "Select values" ).getStepMetaInterface(), instanceOf( SelectValuesMeta.class ) );
+  }
+
+  private QueryFilterMeta queryFilter( TransMeta transMeta ) {
+    return (QueryFilterMeta) transMeta.findStep( SqlTransGenerator.WHERE_FILTER_STEP ).getStepMetaInterface();
+  }
+
+  private SqlTransGenerator generator( String query ) throws Exception {
+    return generator( query, true );
+  }
+
+  private SqlTransGenerator generator( String query, boolean rewrite ) throws Exception {
+    SQL sql = new SQL( query );
+    sql.parse( rowMeta );
+    SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+    generator.setRewritePlan( rewrite );
+    return generator;
+  }
+}
@@ -0,0 +1,180 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.steps.queryfilter.QueryFilterMeta;
+import org.pentaho.di.trans.steps.filterrows.FilterRowsMeta;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class QueryPlanCacheTest {
+
+  private QueryPlanCache planCache;
+  private RowMetaInterface rowMeta;
+
+  @Before
+  public void setUp() throws Exception {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+
+    planCache = new QueryPlanCache( 10 );
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "foo" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "bar" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "baz" ) );
+  }
+
+  @Test
+  public void testHitReturnsClone() throws Exception {
+    SqlTransGenerator first = generator( "SELECT foo FROM service WHERE bar > 1", 0 );
+    TransMeta generated = planCache.generateTransMeta( "service", first, true );
+
+    assertThat( planCache.getMissCount(), is( 1L ) );
+    assertThat( planCache.getHitCount(), is( 0L ) );
+
+    SqlTransGenerator second = generator( "SELECT  foo\n FROM service   WHERE bar > 1", 0 );
+    TransMeta cached = planCache.generateTransMeta( "service", second, true );
+
+    assertThat( planCache.getHitCount(), is( 1L ) );
+    assertThat( cached, not( sameInstance( generated ) ) );
+    assertThat( cached.getStepNames(), equalTo( generated.getStepNames() ) );
+    assertThat( cached.getName(), equalTo( second.getTransName() ) );
+    assertThat( second.getInjectorStepName(), equalTo( first.getInjectorStepName() ) );
+    assertThat( second.getResultStepName(), equalTo( first.getResultStepName() ) );
+
+    // Each hit gets its own copy
+    assertThat( planCache.generateTransMeta( "service", generator( "SELECT foo FROM service WHERE bar > 1", 0 ), true ),
+      not( sameInstance( cached ) ) );
+    assertThat( planCache.getHitCount(), is( 2L ) );
+  }
+
+  @Test
+  public void testKeyIncludesPlanInputs() throws Exception {
+    planCache.generateTransMeta( "service", generator( "SELECT foo FROM service", 0 ), true );
+
+    // Select literals and condition structure are part of the plan
+    planCache.generateTransMeta( "service", generator( "SELECT foo, 'a  b' FROM service", 0 ), true );
+    planCache.generateTransMeta( "service", generator( "SELECT foo FROM service WHERE bar = 1", 0 ), true );
+    planCache.generateTransMeta( "service", generator( "SELECT foo FROM service WHERE bar > 1", 0 ), true );
+    planCache.generateTransMeta( "service", generator( "SELECT foo FROM service WHERE bar = baz", 0 ), true );
+    planCache.generateTransMeta( "service", generator( "SELECT foo FROM service WHERE bar = 1 AND foo = 'a'", 0 ),
+      true );
+    planCache.generateTransMeta( "service", generator( "SELECT foo FROM service WHERE bar = 1 OR foo = 'a'", 0 ),
+      true );
+    // Row limits and normalization change the plan
+    planCache.generateTransMeta( "service", generator( "SELECT foo FROM service", 10 ), true );
+    planCache.generateTransMeta( "service", generator( "SELECT foo FROM service", 0 ), false );
+    // Same query on a different service
+    planCache.generateTransMeta( "other", generator( "SELECT foo FROM service", 0 ), true );
+
+    assertThat( planCache.getHitCount(), is( 0L ) );
+    assertThat( planCache.size(), is( 10L ) );
+
+    // Service fields changed
+    rowMeta.addValueMeta( new ValueMetaString( "qux" ) );
+    planCache.generateTransMeta( "service", generator( "SELECT foo FROM service", 0 ), true );
+    assertThat( planCache.getHitCount(), is( 0L ) );
+
+    planCache.invalidateAll();
+    assertThat( planCache.size(), is( 0L ) );
+  }
+
+  @Test
+  public void testLiteralsAreBound() throws Exception {
+    TransMeta eu = planCache.generateTransMeta( "service",
+      generator( "SELECT foo FROM service WHERE foo = 'EU' AND bar > 5", 0 ), true );
+    TransMeta us = planCache.generateTransMeta( "service",
+      generator( "SELECT foo FROM service WHERE foo = 'US' AND bar > 10", 0 ), true );
+
+    assertThat( planCache.getHitCount(), is( 1L ) );
+
+    Object[] row = { "US", 7L, 0L };
+    assertThat( whereCondition( eu ).evaluate( rowMeta, row ), is( false ) );
+    assertThat( whereCondition( us ).evaluate( rowMeta, row ), is( false ) );
+    row[1] = 11L;
+    assertThat( whereCondition( us ).evaluate( rowMeta, row ), is( true ) );
+    row[0] = "EU";
+    assertThat( whereCondition( eu ).evaluate( rowMeta, row ), is( true ) );
+    assertThat( whereCondition( us ).evaluate( rowMeta, row ), is( false ) );
+  }
+
+  @Test
+  public void testHavingLiteralsAreBound() throws Exception {
+    planCache.generateTransMeta( "service",
+      generator( "SELECT foo, SUM(bar) FROM service GROUP BY foo HAVING SUM(bar) > 5", 0 ), true );
+    TransMeta cached = planCache.generateTransMeta( "service",
+      generator( "SELECT foo, SUM(bar) FROM service GROUP BY foo HAVING SUM(bar) > 50", 0 ), true );
+
+    assertThat( planCache.getHitCount(), is( 1L ) );
+    Condition having = ( (FilterRowsMeta) cached.findStep( SqlTransGenerator.HAVING_FILTER_STEP )
+      .getStepMetaInterface() ).getCondition();
+    assertThat( having.getRightExact().getValueData(), equalTo( (Object) 50L ) );
+  }
+
+  @Test
+  public void testRewrittenPlans() throws Exception {
+    SqlTransGenerator rewritten = generator( "SELECT foo FROM service WHERE bar > 5", 0 );
+    rewritten.setRewritePlan( true );
+    planCache.generateTransMeta( "service", rewritten, true );
+    planCache.generateTransMeta( "service", generator( "SELECT foo FROM service WHERE bar > 5", 0 ), true );
+    assertThat( planCache.getHitCount(), is( 0L ) );
+
+    SqlTransGenerator second = generator( "SELECT foo FROM service WHERE bar > 10", 0 );
+    second.setRewritePlan( true );
+    TransMeta cached = planCache.generateTransMeta( "service", second, true );
+
+    assertThat( planCache.getHitCount(), is( 1L ) );
+    assertThat( second.getResultStepName(), equalTo( SqlTransGenerator.WHERE_FILTER_STEP ) );
+    Condition where = ( (QueryFilterMeta) cached.findStep( SqlTransGenerator.WHERE_FILTER_STEP )
+      .getStepMetaInterface() ).getCondition();
+    assertThat( where.getRightExact().getValueData(), equalTo( (Object) 10L ) );
+  }
+
+  private Condition whereCondition( TransMeta transMeta ) {
+    return ( (FilterRowsMeta) transMeta.findStep( SqlTransGenerator.WHERE_FILTER_STEP ).getStepMetaInterface() )
+      .getCondition();
+  }
+
+  private SqlTransGenerator generator( String sqlString, int rowLimit ) throws KettleException {
+    SQL sql = new SQL( sqlString );
+    sql.parse( rowMeta );
+    return new SqlTransGenerator( sql, rowLimit );
+  }
+}
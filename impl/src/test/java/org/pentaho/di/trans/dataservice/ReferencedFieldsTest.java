@@ -0,0 +1,105 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContaining;
+
+public class ReferencedFieldsTest {
+
+  private RowMetaInterface rowMeta;
+
+  @Before
+  public void setUp() throws Exception {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "a" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "b" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "c" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "d" ) );
+    rowMeta.addValueMeta( new ValueMetaDate( "e" ) );
+  }
+
+  @Test
+  public void testSelectAll() throws Exception {
+    assertThat( referenced( "SELECT * FROM service" ), arrayContaining( "a", "b", "c", "d", "e" ) );
+  }
+
+  @Test
+  public void testKeepsServiceOrder() throws Exception {
+    assertThat( referenced( "SELECT d, b FROM service" ), arrayContaining( "b", "d" ) );
+  }
+
+  @Test
+  public void testClauses() throws Exception {
+    assertThat( referenced( "SELECT a FROM service WHERE c > 1" ), arrayContaining( "a", "c" ) );
+    assertThat( referenced( "SELECT a, SUM(b) FROM service GROUP BY a" ), arrayContaining( "a", "b" ) );
+    assertThat( referenced( "SELECT a FROM service ORDER BY d" ), arrayContaining( "a", "d" ) );
+    assertThat( referenced( "SELECT a AS x FROM service ORDER BY x" ), arrayContaining( "a" ) );
+    assertThat( referenced( "SELECT a, SUM(b) FROM service GROUP BY a HAVING SUM(c) > 5" ),
+      arrayContaining( "a", "b", "c" ) );
+  }
+
+  @Test
+  public void testCountStarKeepsOneField() throws Exception {
+    assertThat( referenced( "SELECT COUNT(*) FROM service" ), arrayContaining( "a" ) );
+    assertThat( referenced( "SELECT COUNT(*) FROM service WHERE d = 'x'" ), arrayContaining( "d" ) );
+  }
+
+  @Test
+  public void testIif() throws Exception {
+    assertThat( referenced( "SELECT IIF( c > 1, b, 0 ) AS x FROM service" ), arrayContaining( "b", "c" ) );
+  }
+
+  @Test
+  public void testGeneratorInjectsReferencedFields() throws Exception {
+    SQL sql = new SQL( "SELECT a FROM service WHERE b > 1" );
+    sql.parse( rowMeta );
+    SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+
+    assertThat( generator.generateTransMeta().getStepFields( generator.getInjectorStepName() ).getFieldNames(),
+      equalTo( new String[] { "a", "b" } ) );
+  }
+
+  private String[] referenced( String query ) throws KettleException {
+    SQL sql = new SQL( query );
+    sql.parse( rowMeta );
+    return ReferencedFields.of( sql ).getFieldNames();
+  }
+}
@@ -0,0 +1,186 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMetaDataCombi;
+import org.pentaho.metastore.api.IMetaStore;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ServiceTransPoolTest {
+
+  private ServiceTransPool pool;
+  private ScheduledExecutorService scheduler;
+  private DataServiceMeta dataService;
+  private IMetaStore metaStore;
+  private int prepared;
+
+  @Before
+  public void setUp() throws Exception {
+    scheduler = mock( ScheduledExecutorService.class );
+    doAnswer( new Answer<Void>() {
+      @Override public Void answer( InvocationOnMock invocation ) throws Throwable {
+        ( (Runnable) invocation.getArguments()[ 0 ] ).run();
+        return null;
+      }
+    } ).when( scheduler ).execute( any( Runnable.class ) );
+
+    pool = new ServiceTransPool( mock( ServiceTransTemplateCache.class ), scheduler ) {
+      @Override Trans prepare( DataServiceMeta service, IMetaStore metaStore ) {
+        prepared++;
+        Trans trans = mock( Trans.class );
+        when( trans.getTransMeta() ).thenReturn( mock( TransMeta.class ) );
+        when( trans.getSteps() ).thenReturn( ImmutableList.<StepMetaDataCombi>of() );
+        return trans;
+      }
+    };
+
+    dataService = new DataServiceMeta( mock( TransMeta.class ) );
+    dataService.setName( "service" );
+    dataService.setStepname( "OUTPUT" );
+    dataService.setServiceTransVersion( 1 );
+    dataService.setPoolMinSize( 1 );
+    dataService.setPoolMaxSize( 2 );
+    dataService.setPoolIdleTimeout( 1000 );
+    metaStore = mock( IMetaStore.class );
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    dataService.setPoolMaxSize( 0 );
+    assertThat( pool.borrow( dataService, metaStore ), nullValue() );
+
+    dataService.setPoolMaxSize( 2 );
+    dataService.setServiceTransVersion( null );
+    assertThat( pool.borrow( dataService, metaStore ), nullValue() );
+
+    assertThat( prepared, is( 0 ) );
+  }
+
+  @Test
+  public void testGrowsOnDemand() throws Exception {
+    // First query finds an empty pool, which is filled up to the next expected demand
+    assertThat( pool.borrow( dataService, metaStore ), nullValue() );
+    assertThat( pool.size(), is( 2 ) );
+
+    Trans first = pool.borrow( dataService, metaStore );
+    Trans second = pool.borrow( dataService, metaStore );
+    assertThat( first, not( nullValue() ) );
+    assertThat( second, not( sameInstance( first ) ) );
+    // Replenished in the background
+    assertThat( pool.size(), is( 2 ) );
+    assertThat( prepared, is( 4 ) );
+
+    // Never above the maximum size
+    pool.borrow( dataService, metaStore );
+    pool.borrow( dataService, metaStore );
+    pool.borrow( dataService, metaStore );
+    assertThat( pool.size(), is( 2 ) );
+  }
+
+  @Test
+  public void testEvictIdle() throws Exception {
+    pool.borrow( dataService, metaStore );
+    Trans trans = pool.borrow( dataService, metaStore );
+    assertThat( pool.size(), is( 2 ) );
+
+    // Shrinks back to the minimum size
+    pool.evictIdle( System.currentTimeMillis() + 500 );
+    assertThat( pool.size(), is( 2 ) );
+
+    // Whole pool is dropped once unused for too long
+    pool.evictIdle( System.currentTimeMillis() + 5000 );
+    assertThat( pool.size(), is( 0 ) );
+    verify( trans, never() ).stopAll();
+  }
+
+  @Test
+  public void testShrinksToMinimum() throws Exception {
+    dataService.setPoolIdleTimeout( 50 );
+    pool.borrow( dataService, metaStore );
+    assertThat( pool.size(), is( 2 ) );
+    Thread.sleep( 100 );
+
+    // Pool is still in use, but the oldest instance is not
+    pool.borrow( dataService, metaStore );
+    pool.evictIdle( System.currentTimeMillis() );
+    assertThat( pool.size(), is( 1 ) );
+  }
+
+  @Test
+  public void testNewVersionRetiresPool() throws Exception {
+    pool.borrow( dataService, metaStore );
+    assertThat( pool.size(), is( 2 ) );
+
+    dataService.setServiceTransVersion( 2 );
+    assertThat( pool.borrow( dataService, metaStore ), nullValue() );
+    assertThat( pool.size(), is( 2 ) );
+
+    pool.invalidateAll();
+    assertThat( pool.size(), is( 0 ) );
+  }
+
+  @Test
+  public void testRetiresPoolOfSameMetaStoreOnly() throws Exception {
+    IMetaStore otherMetaStore = mock( IMetaStore.class );
+    pool.borrow( dataService, metaStore );
+    pool.borrow( dataService, otherMetaStore );
+    assertThat( pool.size(), is( 4 ) );
+
+    pool.retire( "service", otherMetaStore );
+    assertThat( pool.size(), is( 2 ) );
+    assertThat( pool.borrow( dataService, metaStore ), not( nullValue() ) );
+  }
+
+  @Test
+  public void testShutdown() throws Exception {
+    pool.borrow( dataService, metaStore );
+    assertThat( pool.size(), is( 2 ) );
+
+    pool.shutdown();
+    verify( scheduler ).shutdownNow();
+    assertThat( pool.size(), is( 0 ) );
+    assertThat( pool.borrow( dataService, metaStore ), nullValue() );
+    assertThat( prepared, is( 2 ) );
+  }
+}
@@ -0,0 +1,114 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.trans.TransMeta;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ServiceTransTemplateCacheTest {
+
+  private ServiceTransTemplateCache templateCache;
+  private TransMeta serviceTrans;
+  private DataServiceMeta dataService;
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    if ( !KettleClientEnvironment.isInitialized() ) {
+      KettleClientEnvironment.init();
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    templateCache = new ServiceTransTemplateCache( 10 );
+    serviceTrans = new TransMeta( getClass().getResource( "/TransMutatorsTest.ktr" ).getPath() );
+    dataService = new DataServiceMeta( serviceTrans );
+    dataService.setName( "service" );
+    dataService.setStepname( "Write Unfiltered" );
+  }
+
+  @Test
+  public void testUnknownVersion() throws Exception {
+    assertThat( templateCache.copy( dataService ), nullValue() );
+    assertThat( templateCache.size(), is( 0L ) );
+  }
+
+  @Test
+  public void testCopy() throws Exception {
+    dataService.setServiceTransVersion( 1 );
+
+    TransMeta first = templateCache.copy( dataService );
+    TransMeta second = templateCache.copy( dataService );
+
+    assertThat( first, notNullValue() );
+    assertThat( second, not( sameInstance( first ) ) );
+    assertThat( templateCache.getStats().hitCount(), is( 1L ) );
+    assertThat( first.nrSteps(), is( 2 ) );
+    assertThat( first.nrTransHops(), is( 1 ) );
+
+    // Service transformation itself is left alone
+    assertThat( serviceTrans.nrSteps(), is( 7 ) );
+    assertThat( serviceTrans.getTransHop( 1 ).isEnabled(), is( true ) );
+
+    // Changes to a copy do not affect the template
+    first.removeStep( 0 );
+    assertThat( templateCache.copy( dataService ).nrSteps(), is( 2 ) );
+  }
+
+  @Test
+  public void testCopiesActivatedParameters() throws Exception {
+    serviceTrans.addParameterDefinition( "TEMPLATE_PARAM", "default", "" );
+    dataService.setServiceTransVersion( 1 );
+
+    templateCache.copy( dataService );
+    TransMeta copy = templateCache.copy( dataService );
+
+    assertThat( copy.getVariable( "TEMPLATE_PARAM" ), is( "default" ) );
+    // Template is activated, not the service transformation
+    assertThat( serviceTrans.getVariable( "TEMPLATE_PARAM" ), nullValue() );
+  }
+
+  @Test
+  public void testVersionChange() throws Exception {
+    dataService.setServiceTransVersion( 1 );
+    templateCache.copy( dataService );
+
+    dataService.setServiceTransVersion( 2 );
+    dataService.setStepname( "Write Again" );
+    TransMeta copy = templateCache.copy( dataService );
+
+    assertThat( templateCache.getStats().hitCount(), is( 0L ) );
+    assertThat( copy.nrSteps(), is( 7 ) );
+  }
+}
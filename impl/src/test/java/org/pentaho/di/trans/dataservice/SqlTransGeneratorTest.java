@@ -38,6 +38,12 @@ import org.pentaho.di.core.row.value.ValueMetaString;
 import org.pentaho.di.core.sql.SQL;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.dataservice.optimization.ValueMetaResolver;
+import org.pentaho.di.trans.dataservice.steps.conditional.ConditionalFieldsMeta;
+import org.pentaho.di.trans.dataservice.steps.externalsort.ExternalSortMeta;
+import org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta;
+import org.pentaho.di.trans.dataservice.steps.mergegroupby.MergeGroupByMeta;
+import org.pentaho.di.trans.dataservice.steps.topn.TopNMeta;
+import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
 import org.pentaho.di.trans.steps.calculator.CalculatorMeta;
 import org.pentaho.di.trans.steps.filterrows.FilterRowsMeta;
@@ -51,11 +57,14 @@ import java.util.logging.Filter;
 
 import static junit.framework.TestCase.fail;
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.arrayContaining;
 import static org.junit.Assert.*;
+import static org.pentaho.di.core.row.ValueMetaInterface.TYPE_INTEGER;
 import static org.pentaho.di.core.row.ValueMetaInterface.TYPE_NONE;
 import static org.pentaho.di.core.row.ValueMetaInterface.TYPE_NUMBER;
 import static org.pentaho.di.core.row.ValueMetaInterface.TYPE_STRING;
@@ -195,6 +204,141 @@ public class SqlTransGeneratorTest {
     assertThat( sql.getLimitClause(), notNullValue() );
   }
 
+  @Test
+  public void testOrderByWithLimitUsesTopN() throws KettleException {
+    SQL sql = new SQL( "SELECT foo AS f FROM table ORDER BY f DESC, bar LIMIT 10 OFFSET 5" );
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "foo" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "bar" ) );
+    sql.parse( rowMeta );
+
+    TransMeta transMeta = new SqlTransGenerator( sql, 0 ).generateTransMeta();
+
+    TopNMeta topNMeta = (TopNMeta) transMeta.findStep( "Top N rows" ).getStepMetaInterface();
+    assertThat( topNMeta.getFieldName(), equalTo( new String[] { "foo", "bar" } ) );
+    assertThat( topNMeta.getAscending()[0], is( false ) );
+    assertThat( topNMeta.getAscending()[1], is( true ) );
+    assertThat( topNMeta.getLimit(), is( 10 ) );
+    assertThat( topNMeta.getOffset(), is( 5 ) );
+    assertThat( topNMeta.getCapacity(), is( 15 ) );
+    assertStepNotPresent( transMeta, "Sort rows" );
+    assertStepNotPresent( transMeta, "Limit rows" );
+  }
+
+  @Test
+  public void testOrderByWithoutLimitSorts() throws KettleException {
+    SQL sql = new SQL( "SELECT foo FROM table ORDER BY foo" );
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "foo" ) );
+    sql.parse( rowMeta );
+
+    TransMeta transMeta = new SqlTransGenerator( sql, 0 ).generateTransMeta();
+
+    assertThat( transMeta.findStep( "Sort rows" ).getStepMetaInterface(), instanceOf( ExternalSortMeta.class ) );
+    assertStepNotPresent( transMeta, "Top N rows" );
+  }
+
+  @Test
+  public void testQueryMemoryLimitIsShared() throws KettleException {
+    SQL sql = new SQL( "SELECT foo, COUNT(*) FROM table GROUP BY foo ORDER BY foo" );
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "foo" ) );
+    sql.parse( rowMeta );
+
+    SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+    generator.setQueryMemoryLimit( 1000 );
+    TransMeta transMeta = generator.generateTransMeta();
+
+    HashGroupByMeta groupBy = (HashGroupByMeta) transMeta.findStep( "Group by" ).getStepMetaInterface();
+    ExternalSortMeta sort = (ExternalSortMeta) transMeta.findStep( "Sort rows" ).getStepMetaInterface();
+    assertThat( groupBy.getMemoryLimit(), is( 500L ) );
+    assertThat( sort.getMemoryLimit(), is( 500L ) );
+  }
+
+  @Test
+  public void testParallelAggregation() throws KettleException {
+    SQL sql = new SQL( "SELECT foo, SUM(bar), AVG(bar), COUNT(*) FROM table WHERE bar > 1 GROUP BY foo" );
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "foo" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "bar" ) );
+    sql.parse( rowMeta );
+
+    SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+    generator.setParallelism( 4 );
+    generator.setQueryMemoryLimit( 1000 );
+    TransMeta transMeta = generator.generateTransMeta();
+
+    assertThat( transMeta.findStep( generator.getInjectorStepName() ).getCopies(), is( 1 ) );
+    assertThat( transMeta.findStep( "Set Conversion" ).getCopies(), is( 4 ) );
+    assertThat( transMeta.findStep( SqlTransGenerator.WHERE_FILTER_STEP ).getCopies(), is( 4 ) );
+
+    StepMeta partialStep = transMeta.findStep( "Partial group by" );
+    assertThat( partialStep.getCopies(), is( 4 ) );
+    HashGroupByMeta partial = (HashGroupByMeta) partialStep.getStepMetaInterface();
+    assertThat( partial.getAggregateType().length, is( 4 ) );
+    assertThat( partial.getAggregateType()[1], is( HashGroupByMeta.TYPE_SUM ) );
+    assertThat( partial.getAggregateType()[2], is( HashGroupByMeta.TYPE_COUNT_ALL ) );
+    assertThat( partial.isAlwaysGivingBackOneRow(), is( false ) );
+    assertThat( partial.getMemoryLimit(), is( 250L ) );
+
+    StepMeta mergeStep = transMeta.findStep( "Group by" );
+    assertThat( mergeStep.getCopies(), is( 1 ) );
+    MergeGroupByMeta merge = (MergeGroupByMeta) mergeStep.getStepMetaInterface();
+    assertThat( merge.getGroupField(), equalTo( new String[] { "foo" } ) );
+    assertThat( merge.getAggregateType()[0], is( MergeGroupByMeta.TYPE_SUM ) );
+    assertThat( merge.getAggregateType()[1], is( MergeGroupByMeta.TYPE_AVERAGE ) );
+    assertThat( merge.getSubjectField()[1], equalTo( partial.getAggregateField()[1] ) );
+    assertThat( merge.getCountField()[1], equalTo( partial.getAggregateField()[2] ) );
+    assertThat( merge.getAggregateType()[2], is( MergeGroupByMeta.TYPE_COUNT ) );
+    assertThat( merge.isAlwaysGivingBackOneRow(), is( true ) );
+
+    // The partial sum and count of the average are merged back into one field
+    assertThat( transMeta.getStepFields( partialStep ).size(), is( 5 ) );
+    RowMetaInterface mergedFields = transMeta.getStepFields( mergeStep );
+    assertThat( mergedFields.size(), is( 4 ) );
+    assertThat( mergedFields.getValueMeta( 2 ).getName(), equalTo( merge.getAggregateField()[1] ) );
+  }
+
+  @Test
+  public void testParallelismFallsBackToSingleCopy() throws KettleException {
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "foo" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "bar" ) );
+
+    for ( String query : new String[] {
+      "SELECT foo, COUNT(DISTINCT bar) FROM table GROUP BY foo",
+      "SELECT foo, bar FROM table WHERE bar > 1" } ) {
+      SQL sql = new SQL( query );
+      sql.parse( rowMeta );
+      SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+      generator.setParallelism( 4 );
+      TransMeta transMeta = generator.generateTransMeta();
+
+      assertStepNotPresent( transMeta, "Partial group by" );
+      for ( StepMeta stepMeta : transMeta.getSteps() ) {
+        assertThat( query, stepMeta.getCopies(), is( 1 ) );
+      }
+    }
+  }
+
+  @Test
+  public void testResultRowLimit() throws KettleException {
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "foo" ) );
+
+    assertThat( resultRowLimit( "SELECT * FROM table", 0, rowMeta ), is( 0 ) );
+    assertThat( resultRowLimit( "SELECT * FROM table", 50, rowMeta ), is( 50 ) );
+    assertThat( resultRowLimit( "SELECT * FROM table LIMIT 10", 0, rowMeta ), is( 10 ) );
+    assertThat( resultRowLimit( "SELECT * FROM table LIMIT 10 OFFSET 100", 50, rowMeta ), is( 10 ) );
+    assertThat( resultRowLimit( "SELECT * FROM table LIMIT 100", 50, rowMeta ), is( 50 ) );
+  }
+
+  private int resultRowLimit( String query, int rowLimit, RowMetaInterface rowMeta ) throws KettleException {
+    SQL sql = new SQL( query );
+    sql.parse( rowMeta );
+    return new SqlTransGenerator( sql, rowLimit ).getResultRowLimit();
+  }
+
   @Test
   public void testGenerateIifStep() throws KettleException {
     SQL sql = new SQL( "SELECT IIF(10 > 1, 'TRUE', 'FALSE') FROM table" );
@@ -204,9 +348,48 @@ public class SqlTransGeneratorTest {
 
     SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
 
-    SelectValuesMeta selectValuesMeta = getSelectStepValuesMeta( generator.generateTransMeta() );
+    TransMeta transMeta = generator.generateTransMeta();
+    SelectValuesMeta selectValuesMeta = getSelectStepValuesMeta( transMeta );
     assertThat( selectValuesMeta.getSelectName(), equalTo( new String[] { "IIF(10 > 1, 'TRUE', 'FALSE')" } ) );
     assertThat( selectValuesMeta.getSelectRename(), equalTo( new String[] { null } ) );
+
+    ConditionalFieldsMeta iifMeta =
+      (ConditionalFieldsMeta) transMeta.findStep( "IIF fields" ).getStepMetaInterface();
+    assertThat( iifMeta.getFieldName(), equalTo( new String[] { "IIF(10 > 1, 'TRUE', 'FALSE')" } ) );
+    assertThat( iifMeta.getTrueValue(), equalTo( new String[] { "TRUE" } ) );
+    assertThat( iifMeta.getFalseValue(), equalTo( new String[] { "FALSE" } ) );
+    assertThat( iifMeta.getTrueField(), equalTo( new boolean[] { false } ) );
+  }
+
+  @Test
+  public void testIifFieldsShareOneStep() throws KettleException {
+    SQL sql = new SQL( "SELECT foo, IIF( bar > 1, 'a', 'b' ) AS x, IIF( bar < 5, bar, 0 ) AS y, "
+      + "IIF( foo = 'c', foo, 'd' ) AS z, COUNT(*) FROM table GROUP BY foo" );
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "foo" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "bar" ) );
+    sql.parse( rowMeta );
+
+    SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+    generator.setParallelism( 4 );
+    TransMeta transMeta = generator.generateTransMeta();
+
+    StepMeta iifStep = transMeta.findStep( "IIF fields" );
+    ConditionalFieldsMeta iifMeta = (ConditionalFieldsMeta) iifStep.getStepMetaInterface();
+    assertThat( iifMeta.getFieldName(), equalTo( new String[] { "x", "y", "z" } ) );
+    assertThat( iifMeta.getTrueField(), equalTo( new boolean[] { false, true, true } ) );
+    assertThat( iifMeta.getTrueValue()[1], equalTo( "bar" ) );
+    for ( StepMeta stepMeta : transMeta.getSteps() ) {
+      assertThat( stepMeta.getStepMetaInterface(), not( instanceOf( FilterRowsMeta.class ) ) );
+    }
+
+    // Conditional fields no longer hold back parallel aggregation
+    assertThat( iifStep.getCopies(), is( 4 ) );
+    assertThat( transMeta.findStep( "Partial group by" ).getCopies(), is( 4 ) );
+
+    RowMetaInterface iifFields = transMeta.getStepFields( iifStep );
+    assertThat( iifFields.searchValueMeta( "y" ).getType(), is( TYPE_INTEGER ) );
+    assertThat( iifFields.searchValueMeta( "z" ).getType(), is( TYPE_STRING ) );
   }
 
   @Test
@@ -245,10 +428,15 @@ public class SqlTransGeneratorTest {
     sql.parse( rowMeta );
 
     SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+    generator.setQueryMemoryLimit( 1000 );
+    TransMeta transMeta = generator.generateTransMeta();
 
-    SelectValuesMeta selectValuesMeta = getSelectStepValuesMeta( generator.generateTransMeta() );
+    SelectValuesMeta selectValuesMeta = getSelectStepValuesMeta( transMeta );
     assertThat( selectValuesMeta.getSelectName(), equalTo( new String[] { "foo" } ) );
     assertThat( selectValuesMeta.getSelectRename(), equalTo( new String[] { null } ) );
+    HashGroupByMeta distinct = (HashGroupByMeta) transMeta.findStep( "DISTINCT" ).getStepMetaInterface();
+    assertThat( distinct.getMemoryLimit(), is( 1000L ) );
+    assertThat( distinct.isStreaming(), is( true ) );
   }
 
   @Test
@@ -49,6 +49,7 @@ import java.util.HashMap;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertSame;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.argThat;
@@ -102,6 +103,7 @@ public class ExecutorQueryServiceTest {
     when( builder.windowEvery( anyLong() ) ).thenReturn( builder );
     when( builder.windowLimit( anyLong() ) ).thenReturn( builder );
     when( builder.rowLimit( anyInt() ) ).thenReturn( builder );
+    when( builder.inlineEvaluation( anyBoolean() ) ).thenReturn( builder );
     when( builder.build() ).thenReturn( dataServiceExecutor );
     when( dataServiceExecutor.getServiceTrans() ).thenReturn( serviceTrans );
     when( dataServiceExecutor.getGenTrans() ).thenReturn( genTrans );
@@ -115,6 +117,15 @@ public class ExecutorQueryServiceTest {
     verify( builder ).rowLimit( rowLimit );
     verify( builder ).parameters( parameters );
     verify( builder ).metastore( metastore );
+    verify( builder ).inlineEvaluation( true );
+  }
+
+  @Test
+  public void testInlineQueryOnlyExposesServiceTrans() throws Exception {
+    when( dataServiceExecutor.isInline() ).thenReturn( true );
+    result = executorQueryService.prepareQuery( sql.getSqlString(), rowLimit, parameters );
+
+    assertEquals( ImmutableList.of( serviceTrans ), result.getTransList() );
   }
 
   @Test
@@ -31,6 +31,7 @@ import org.pentaho.di.trans.step.errorhandling.StreamInterface;
 import java.util.function.BiConsumer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -92,6 +93,28 @@ public class TransMutatorsTest {
     assertHopsEnabled( transMeta, true, false, false, false, true, false );
   }
 
+  @Test
+  public void testRemoveUnusedSteps() throws Exception {
+    TransMeta transMeta = prepareTrans( "Write Unfiltered", ( stepName, serviceTrans ) -> {
+      TransMutators.disableAllUnrelatedHops( stepName, serviceTrans, true );
+      TransMutators.removeUnusedSteps( stepName, serviceTrans );
+    } );
+    assertEquals( 2, transMeta.nrSteps() );
+    assertEquals( 1, transMeta.nrTransHops() );
+    assertEquals( "Write Unfiltered", transMeta.getTransHop( 0 ).getToStep().getName() );
+  }
+
+  @Test
+  public void testRemoveUnusedStepsKeepsRequiredDownstreamSteps() throws Exception {
+    TransMeta transMeta = prepareTrans( "Filter Rows", ( stepName, serviceTrans ) -> {
+      TransMutators.disableAllUnrelatedHops( stepName, serviceTrans, true );
+      TransMutators.removeUnusedSteps( stepName, serviceTrans );
+    } );
+    assertEquals( 6, transMeta.nrSteps() );
+    assertEquals( 6, transMeta.nrTransHops() );
+    assertNull( transMeta.findStep( "Write Again" ) );
+  }
+
   private TransMeta prepareTrans( String stepname, BiConsumer<String, TransMeta> mutator ) throws KettleException {
     String transPath = this.getClass().getResource( "/TransMutatorsTest.ktr" ).getPath();
     TransMeta transMeta = new TransMeta( transPath );
@@ -0,0 +1,186 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.pentaho.di.core.BlockingRowSet;
+import org.pentaho.di.core.RowSet;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.step.StepInterface;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BatchingRowSetTest {
+
+  private final RowMetaInterface rowMeta = new RowMeta();
+
+  @Test
+  public void testFirstRowIsHandedOverImmediately() throws Exception {
+    BatchingRowSet rowSet = new BatchingRowSet();
+    Object[] row = { 1L };
+    assertThat( rowSet.putRow( rowMeta, row ), is( true ) );
+
+    assertThat( rowSet.getRowImmediate(), sameInstance( row ) );
+    assertThat( rowSet.getRowMeta(), sameInstance( rowMeta ) );
+    assertThat( rowSet.getRowImmediate(), nullValue() );
+  }
+
+  @Test
+  public void testBatchesGrowWhileConsumerIsBusy() throws Exception {
+    BatchingRowSet rowSet = new BatchingRowSet();
+    for ( long i = 0; i < 1000; i++ ) {
+      rowSet.putRow( rowMeta, new Object[] { i } );
+    }
+    assertThat( rowSet.getTargetSize(), is( BatchingRowSet.MAX_BATCH_SIZE ) );
+
+    // Partially filled batch is handed over when done
+    rowSet.setDone();
+    assertThat( rowSet.size(), is( 1000 ) );
+    for ( long i = 0; i < 1000; i++ ) {
+      assertThat( rowSet.getRowWait( 1, TimeUnit.MILLISECONDS ), is( new Object[] { i } ) );
+    }
+    assertThat( rowSet.getRowWait( 1, TimeUnit.MILLISECONDS ), nullValue() );
+    assertThat( rowSet.isDone(), is( true ) );
+  }
+
+  @Test
+  public void testConsumerTakesRowsOfIdleProducer() throws Exception {
+    BatchingRowSet rowSet = new BatchingRowSet();
+    for ( long i = 0; i < 1000; i++ ) {
+      rowSet.putRow( rowMeta, new Object[] { i } );
+    }
+
+    // The producer never publishes its last batch, nor is it done
+    for ( long i = 0; i < 1000; i++ ) {
+      assertThat( rowSet.getRowWait( 1, TimeUnit.SECONDS ), is( new Object[] { i } ) );
+    }
+    assertThat( rowSet.size(), is( 0 ) );
+    assertThat( rowSet.getRowWait( 1, TimeUnit.MILLISECONDS ), nullValue() );
+
+    // Producer continues with a new batch
+    rowSet.putRow( rowMeta, new Object[] { 1000L } );
+    assertThat( rowSet.getRowWait( 1, TimeUnit.SECONDS ), is( new Object[] { 1000L } ) );
+  }
+
+  @Test
+  public void testDoneByAnotherThread() throws Exception {
+    final BatchingRowSet rowSet = new BatchingRowSet();
+    for ( long i = 0; i < 1000; i++ ) {
+      rowSet.putRow( rowMeta, new Object[] { i } );
+    }
+    Thread thread = new Thread( new Runnable() {
+      @Override public void run() {
+        rowSet.setDone();
+      }
+    } );
+    thread.start();
+    thread.join();
+
+    for ( long i = 0; i < 1000; i++ ) {
+      assertThat( rowSet.getRowImmediate(), is( new Object[] { i } ) );
+    }
+    assertThat( rowSet.getRowImmediate(), nullValue() );
+  }
+
+  @Test
+  public void testFullRingTimesOut() throws Exception {
+    BatchingRowSet rowSet = new BatchingRowSet();
+    int capacity = BatchingRowSet.MAX_BATCH_SIZE * ( BatchingRowSet.RING_SIZE + 1 );
+    int accepted = 0;
+    while ( rowSet.putRowWait( rowMeta, new Object[] { accepted }, 1, TimeUnit.MILLISECONDS ) ) {
+      accepted++;
+      assertThat( accepted <= capacity, is( true ) );
+    }
+
+    assertThat( rowSet.getRowImmediate(), is( new Object[] { 0 } ) );
+  }
+
+  @Test
+  public void testHandOffBetweenThreads() throws Exception {
+    final BatchingRowSet rowSet = new BatchingRowSet();
+    final int rows = 100000;
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    try {
+      Future<Integer> produced = executorService.submit( new Callable<Integer>() {
+        @Override public Integer call() throws Exception {
+          for ( int i = 0; i < rows; i++ ) {
+            while ( !rowSet.putRowWait( rowMeta, new Object[] { i }, 1, TimeUnit.SECONDS ) ) {
+              // Consumer is behind
+            }
+          }
+          rowSet.setDone();
+          return rows;
+        }
+      } );
+
+      List<Integer> consumed = Lists.newArrayListWithCapacity( rows );
+      Object[] row;
+      while ( ( row = rowSet.getRowWait( 10, TimeUnit.MILLISECONDS ) ) != null || !rowSet.isDone()
+        || rowSet.size() > 0 ) {
+        if ( row != null ) {
+          consumed.add( (Integer) row[0] );
+        }
+      }
+
+      assertThat( produced.get( 10, TimeUnit.SECONDS ), is( rows ) );
+      assertThat( consumed.size(), is( rows ) );
+      for ( int i = 0; i < rows; i++ ) {
+        assertThat( consumed.get( i ), is( i ) );
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testReplacesProducerRowSet() throws Exception {
+    StepInterface step = mock( StepInterface.class );
+    RowSet original = new BlockingRowSet( 10 );
+    List<RowSet> inputRowSets = Lists.newArrayList( original );
+    when( step.getInputRowSets() ).thenReturn( inputRowSets );
+
+    RowProducer rowProducer = BatchingRowSet.batching( new RowProducer( step, original ) );
+    assertThat( rowProducer.getRowSet(), instanceOf( BatchingRowSet.class ) );
+    assertThat( inputRowSets.get( 0 ), sameInstance( rowProducer.getRowSet() ) );
+
+    RowProducer unknown = new RowProducer( step, new BlockingRowSet( 10 ) );
+    assertThat( BatchingRowSet.batching( unknown ), sameInstance( unknown ) );
+  }
+}
@@ -0,0 +1,111 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ConditionCompilerTest {
+  private RowMetaInterface rowMeta;
+  private List<Object[]> rows;
+
+  @Before
+  public void setUp() throws Exception {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "name" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "count" ) );
+    rowMeta.addValueMeta( new ValueMetaNumber( "price" ) );
+
+    rows = Arrays.asList(
+      new Object[] { "apple", 1L, 0.5 },
+      new Object[] { "banana", 12L, 1.25 },
+      new Object[] { "cherry", 7L, 10.0 },
+      new Object[] { "date", null, null },
+      new Object[] { null, 3L, 2.0 },
+      new Object[] { "", 0L, -1.0 }
+    );
+  }
+
+  @Test
+  public void testComparisons() throws Exception {
+    assertSameAsCondition( "count = 7" );
+    assertSameAsCondition( "count <> 7" );
+    assertSameAsCondition( "count < 7" );
+    assertSameAsCondition( "count <= 7" );
+    assertSameAsCondition( "count > 3" );
+    assertSameAsCondition( "count >= 3" );
+    assertSameAsCondition( "price > 1" );
+    assertSameAsCondition( "price < 2.5" );
+    assertSameAsCondition( "name = 'banana'" );
+    assertSameAsCondition( "name > 'b'" );
+    assertSameAsCondition( "count = price" );
+  }
+
+  @Test
+  public void testNullsAndLists() throws Exception {
+    assertSameAsCondition( "name IS NULL" );
+    assertSameAsCondition( "count IS NOT NULL" );
+    assertSameAsCondition( "name IN ('apple', 'cherry', 'fig')" );
+    assertSameAsCondition( "count IN (1, 3, 12)" );
+    assertSameAsCondition( "name LIKE 'b%'" );
+  }
+
+  @Test
+  public void testComposites() throws Exception {
+    assertSameAsCondition( "name IN ('apple', 'cherry') AND count > 2 AND price IS NOT NULL" );
+    assertSameAsCondition( "name = 'date' OR count < 2 OR price > 5" );
+    assertSameAsCondition( "NOT ( count > 2 AND price < 5 )" );
+    assertSameAsCondition( "( count > 2 OR name = 'apple' ) AND NOT price > 5" );
+    assertSameAsCondition( "count > 2 AND price < 5 OR name = 'apple'" );
+  }
+
+  private void assertSameAsCondition( String where ) throws Exception {
+    SQL sql = new SQL( "SELECT * FROM service WHERE " + where );
+    sql.parse( rowMeta );
+    Condition condition = sql.getWhereCondition().getCondition();
+    RowPredicate predicate = ConditionCompiler.compile( condition, rowMeta );
+
+    for ( Object[] row : rows ) {
+      assertThat( where + " " + Arrays.toString( row ), predicate.test( row ), is( condition.evaluate( rowMeta, row ) ) );
+    }
+  }
+}
@@ -37,6 +37,7 @@ import org.pentaho.di.trans.dataservice.DataServiceContext;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.DataServiceMeta;
 import org.pentaho.di.trans.dataservice.optimization.cache.ServiceCacheFactory;
+import org.pentaho.di.trans.dataservice.testing.DataServiceSteps;
 import org.pentaho.di.trans.dataservice.ui.UIFactory;
 
 import java.util.HashMap;
@@ -52,6 +53,7 @@ public class DataServiceRealTest {
     KettleClientEnvironment.init();
     PluginRegistry.addPluginType( StepPluginType.getInstance() );
     PluginRegistry.init();
+    DataServiceSteps.register();
     if ( !Props.isInitialized() ) {
       Props.init( 0 );
     }
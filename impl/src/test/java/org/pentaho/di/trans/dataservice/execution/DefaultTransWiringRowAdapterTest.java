@@ -118,4 +118,31 @@ public class DefaultTransWiringRowAdapterTest {
       throw e;
     }
   }
+
+  @Test
+  public void testInputLimitStopsServiceTrans() throws KettleStepException {
+    when( rowProducer.putRowWait( same( rowMetaInterface ), any( Object[].class ), eq( 1L ), eq( TimeUnit.SECONDS ) ) )
+      .thenReturn( true );
+    defaultTransWiringRowAdapter = new DefaultTransWiringRowAdapter( serviceTrans, genTrans, rowProducer, 2 );
+
+    defaultTransWiringRowAdapter.rowWrittenEvent( rowMetaInterface, row );
+    verify( serviceTrans, never() ).stopAll();
+
+    defaultTransWiringRowAdapter.rowWrittenEvent( rowMetaInterface, row );
+    verify( rowProducer ).finished();
+    verify( serviceTrans ).stopAll();
+
+    // Rows written while the service is stopping are not passed along
+    defaultTransWiringRowAdapter.rowWrittenEvent( rowMetaInterface, row );
+    verify( rowProducer, times( 2 ) ).putRowWait( same( rowMetaInterface ), any( Object[].class ), eq( 1L ),
+      eq( TimeUnit.SECONDS ) );
+  }
+
+  @Test
+  public void testStoppedServiceTransIsNotPassedAlong() throws KettleStepException {
+    when( serviceTrans.isStopped() ).thenReturn( true );
+    defaultTransWiringRowAdapter.rowWrittenEvent( rowMetaInterface, row );
+    verify( rowProducer, never() ).putRowWait( any( RowMetaInterface.class ), any( Object[].class ), eq( 1L ),
+      eq( TimeUnit.SECONDS ) );
+  }
 }
@@ -23,16 +23,31 @@
 package org.pentaho.di.trans.dataservice.execution;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.RowProducer;
 import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.DataServiceMeta;
+import org.pentaho.di.trans.step.RowListener;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMeta;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 public class DefaultTransWiringTest {
   private Trans serviceTrans;
@@ -67,4 +82,85 @@ public class DefaultTransWiringTest {
     }
   }
 
+  @Test
+  public void testResultLimitStopsServiceTrans() throws KettleException {
+    StepInterface serviceStep = mock( StepInterface.class );
+    StepInterface resultStep = mock( StepInterface.class );
+    when( serviceTrans.findRunThread( "step" ) ).thenReturn( serviceStep );
+    when( dataServiceExecutor.getResultStepName() ).thenReturn( "result" );
+    when( genTrans.findRunThread( "result" ) ).thenReturn( resultStep );
+    when( dataServiceExecutor.getResultRowLimit() ).thenReturn( 2 );
+    when( serviceTrans.isRunning() ).thenReturn( true );
+    when( serviceTrans.getLogChannel() ).thenReturn( mock( LogChannelInterface.class ) );
+
+    defaultTransWiring.run();
+
+    ArgumentCaptor<RowListener> rowListener = ArgumentCaptor.forClass( RowListener.class );
+    verify( resultStep ).addRowListener( rowListener.capture() );
+    RowMetaInterface rowMeta = mock( RowMetaInterface.class );
+
+    rowListener.getValue().rowWrittenEvent( rowMeta, new Object[] { "a" } );
+    verify( serviceTrans, never() ).stopAll();
+
+    rowListener.getValue().rowWrittenEvent( rowMeta, new Object[] { "b" } );
+    verify( serviceTrans ).stopAll();
+    verify( rowProducer ).finished();
+  }
+
+  @Test
+  public void testNoResultLimit() throws KettleException {
+    StepInterface resultStep = mock( StepInterface.class );
+    when( serviceTrans.findRunThread( "step" ) ).thenReturn( mock( StepInterface.class ) );
+    when( dataServiceExecutor.getResultStepName() ).thenReturn( "result" );
+    when( genTrans.findRunThread( "result" ) ).thenReturn( resultStep );
+
+    defaultTransWiring.run();
+
+    verify( resultStep, never() ).addRowListener( any( RowListener.class ) );
+  }
+
+  @Test
+  public void testRowsAreTransferredFromFreshRowStep() throws KettleException {
+    Object[] row = wireServiceRow( "TableInput", true );
+    verify( rowProducer ).putRowWait( any( RowMetaInterface.class ), same( row ), anyInt(), any( TimeUnit.class ) );
+  }
+
+  @Test
+  public void testRowsAreCopiedUnlessTransferIsSafe() throws KettleException {
+    Object[] row = wireServiceRow( "TableInput", false );
+    verify( rowProducer, never() )
+      .putRowWait( any( RowMetaInterface.class ), same( row ), anyInt(), any( TimeUnit.class ) );
+
+    setup();
+    row = wireServiceRow( "Dummy", true );
+    verify( rowProducer, never() )
+      .putRowWait( any( RowMetaInterface.class ), same( row ), anyInt(), any( TimeUnit.class ) );
+  }
+
+  private Object[] wireServiceRow( String stepId, boolean readOnly ) throws KettleException {
+    StepInterface serviceStep = mock( StepInterface.class );
+    StepMeta stepMeta = mock( StepMeta.class );
+    TransMeta transMeta = mock( TransMeta.class );
+    when( serviceTrans.findRunThread( "step" ) ).thenReturn( serviceStep );
+    when( serviceStep.getStepMeta() ).thenReturn( stepMeta );
+    when( stepMeta.getStepID() ).thenReturn( stepId );
+    when( serviceTrans.getTransMeta() ).thenReturn( transMeta );
+    when( transMeta.findNextSteps( stepMeta ) ).thenReturn( Collections.<StepMeta>emptyList() );
+    when( serviceTrans.getLogChannel() ).thenReturn( mock( LogChannelInterface.class ) );
+    when( dataServiceExecutor.getResultStepName() ).thenReturn( "result" );
+    when( genTrans.findRunThread( "result" ) ).thenReturn( mock( StepInterface.class ) );
+    when( dataServiceExecutor.isReadOnlyInjection() ).thenReturn( readOnly );
+    when( rowProducer.putRowWait( any( RowMetaInterface.class ), any( Object[].class ), anyInt(),
+      any( TimeUnit.class ) ) ).thenReturn( true );
+
+    defaultTransWiring.run();
+
+    ArgumentCaptor<RowListener> rowListener = ArgumentCaptor.forClass( RowListener.class );
+    verify( serviceStep ).addRowListener( rowListener.capture() );
+    RowMetaInterface rowMeta = mock( RowMetaInterface.class );
+    Object[] row = { "a" };
+    when( rowMeta.cloneRow( row ) ).thenReturn( new Object[] { "a" } );
+    rowListener.getValue().rowWrittenEvent( rowMeta, row );
+    return row;
+  }
 }
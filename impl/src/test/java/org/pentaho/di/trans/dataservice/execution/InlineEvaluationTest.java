@@ -0,0 +1,181 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import io.reactivex.Observer;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+import org.pentaho.di.trans.dataservice.DataServiceMeta;
+import org.pentaho.di.trans.step.RowListener;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class InlineEvaluationTest {
+  private RowMetaInterface rowMeta;
+
+  @Before
+  public void setUp() throws Exception {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "foo" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "bar" ) );
+  }
+
+  @Test
+  public void testIsSupported() throws Exception {
+    assertThat( InlineEvaluation.isSupported( sql( "SELECT * FROM service" ) ), is( true ) );
+    assertThat( InlineEvaluation.isSupported( sql( "SELECT foo AS f FROM service WHERE bar > 1 LIMIT 5" ) ),
+      is( true ) );
+
+    assertThat( InlineEvaluation.isSupported( sql( "SELECT DISTINCT foo FROM service" ) ), is( false ) );
+    assertThat( InlineEvaluation.isSupported( sql( "SELECT foo, SUM(bar) FROM service GROUP BY foo" ) ),
+      is( false ) );
+    assertThat( InlineEvaluation.isSupported( sql( "SELECT COUNT(*) FROM service" ) ), is( false ) );
+    assertThat( InlineEvaluation.isSupported( sql( "SELECT foo FROM service ORDER BY foo" ) ), is( false ) );
+    assertThat( InlineEvaluation.isSupported( sql( "SELECT foo, 'x' FROM service" ) ), is( false ) );
+    assertThat( InlineEvaluation.isSupported( sql( "SELECT IIF(bar > 1, 'a', 'b') AS c FROM service" ) ),
+      is( false ) );
+  }
+
+  @Test
+  public void testEvaluator() throws Exception {
+    InlineEvaluation.Evaluator evaluator =
+      new InlineEvaluation.Evaluator( sql( "SELECT bar, foo AS f FROM service WHERE bar > 1 LIMIT 1, 2" ), 0, 0 );
+
+    List<RowMetaAndData> results = new ArrayList<>();
+    for ( long bar = 0; bar < 6 && !evaluator.isDone(); bar++ ) {
+      RowMetaAndData result = evaluator.evaluate( rowMeta, new Object[] { "row" + bar, bar } );
+      if ( result != null ) {
+        results.add( result );
+      }
+    }
+
+    assertThat( evaluator.isDone(), is( true ) );
+    assertThat( results.size(), is( 2 ) );
+    RowMetaInterface outputMeta = results.get( 0 ).getRowMeta();
+    assertThat( outputMeta.getFieldNames(), equalTo( new String[] { "bar", "f" } ) );
+    assertThat( results.get( 0 ).getData(), equalTo( new Object[] { 3L, "row3" } ) );
+    assertThat( results.get( 1 ).getData(), equalTo( new Object[] { 4L, "row4" } ) );
+  }
+
+  @Test
+  public void testRowLimits() throws Exception {
+    // Service row limit applies to the input, row limit to the result
+    InlineEvaluation.Evaluator evaluator =
+      new InlineEvaluation.Evaluator( sql( "SELECT foo FROM service WHERE bar > 0" ), 3, 0 );
+    assertThat( evaluator.evaluate( rowMeta, new Object[] { "a", 0L } ), nullValue() );
+    assertThat( evaluator.evaluate( rowMeta, new Object[] { "b", 1L } ).getData(), equalTo( new Object[] { "b" } ) );
+    assertThat( evaluator.isDone(), is( false ) );
+    assertThat( evaluator.evaluate( rowMeta, new Object[] { "c", 1L } ).getData(), equalTo( new Object[] { "c" } ) );
+    assertThat( evaluator.isDone(), is( true ) );
+    assertThat( evaluator.evaluate( rowMeta, new Object[] { "d", 1L } ), nullValue() );
+
+    evaluator = new InlineEvaluation.Evaluator( sql( "SELECT foo FROM service LIMIT 5" ), 0, 2 );
+    evaluator.evaluate( rowMeta, new Object[] { "a", 0L } );
+    assertThat( evaluator.isDone(), is( false ) );
+    evaluator.evaluate( rowMeta, new Object[] { "b", 0L } );
+    assertThat( evaluator.isDone(), is( true ) );
+  }
+
+  @Test
+  public void testWiring() throws Exception {
+    SQL sql = sql( "SELECT foo FROM service LIMIT 2" );
+    DataServiceExecutor executor = mock( DataServiceExecutor.class );
+    DataServiceMeta service = mock( DataServiceMeta.class );
+    Trans serviceTrans = mock( Trans.class );
+    StepInterface serviceStep = mock( StepInterface.class );
+    @SuppressWarnings( "unchecked" )
+    Observer<RowMetaAndData> consumer = mock( Observer.class );
+
+    when( executor.getSql() ).thenReturn( sql );
+    when( executor.getService() ).thenReturn( service );
+    when( executor.getServiceTrans() ).thenReturn( serviceTrans );
+    when( service.getStepname() ).thenReturn( "OUTPUT" );
+    when( serviceTrans.findRunThread( "OUTPUT" ) ).thenReturn( serviceStep );
+    when( serviceTrans.isRunning() ).thenReturn( true );
+    when( serviceTrans.getLogChannel() ).thenReturn( mock( LogChannelInterface.class ) );
+
+    new InlineEvaluation( executor, consumer ).run();
+
+    ArgumentCaptor<RowListener> rowListener = ArgumentCaptor.forClass( RowListener.class );
+    ArgumentCaptor<StepListener> stepListener = ArgumentCaptor.forClass( StepListener.class );
+    verify( serviceStep ).addRowListener( rowListener.capture() );
+    verify( serviceStep ).addStepListener( stepListener.capture() );
+
+    rowListener.getValue().rowWrittenEvent( rowMeta, new Object[] { "a", 1L } );
+    rowListener.getValue().rowWrittenEvent( rowMeta, new Object[] { "b", 2L } );
+    rowListener.getValue().rowWrittenEvent( rowMeta, new Object[] { "c", 3L } );
+    stepListener.getValue().stepFinished( serviceTrans, null, serviceStep );
+
+    verify( consumer, times( 2 ) ).onNext( any( RowMetaAndData.class ) );
+    verify( consumer ).onComplete();
+    verify( serviceTrans ).stopAll();
+  }
+
+  @Test( expected = RuntimeException.class )
+  public void testInaccessibleServiceStep() throws Exception {
+    DataServiceExecutor executor = mock( DataServiceExecutor.class );
+    DataServiceMeta service = mock( DataServiceMeta.class );
+    when( executor.getService() ).thenReturn( service );
+    when( executor.getServiceTrans() ).thenReturn( mock( Trans.class ) );
+
+    @SuppressWarnings( "unchecked" )
+    Observer<RowMetaAndData> consumer = mock( Observer.class );
+    new InlineEvaluation( executor, consumer ).run();
+  }
+
+  private SQL sql( String sqlString ) throws KettleException {
+    SQL sql = new SQL( sqlString );
+    sql.parse( rowMeta );
+    return sql;
+  }
+}
@@ -0,0 +1,118 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.dataservice.SqlTransGenerator;
+import org.pentaho.di.trans.dataservice.testing.DataServiceSteps;
+import org.pentaho.di.trans.step.RowAdapter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Runs aggregating queries in a single copy and split over parallel copies, which have to give the same results.
+ */
+public class ParallelAggregationTest {
+
+  private RowMetaInterface serviceRowMeta;
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    KettleClientEnvironment.init();
+    PluginRegistry.addPluginType( StepPluginType.getInstance() );
+    PluginRegistry.init();
+    DataServiceSteps.register();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    serviceRowMeta = new RowMeta();
+    serviceRowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    serviceRowMeta.addValueMeta( new ValueMetaInteger( "amount" ) );
+  }
+
+  @Test
+  public void testParallelPlanGivesSameResults() throws Exception {
+    List<String> queries = ImmutableList.of(
+      "SELECT region, SUM(amount), COUNT(*), COUNT(amount), MIN(amount), MAX(amount) FROM service GROUP BY region",
+      "SELECT region, AVG(amount) AS average FROM service WHERE amount > 10 GROUP BY region ORDER BY region",
+      "SELECT COUNT(*), SUM(amount), AVG(amount) FROM service",
+      "SELECT COUNT(*), SUM(amount) FROM service WHERE amount < 0",
+      "SELECT region, COUNT(*) FROM service WHERE amount < 0 GROUP BY region",
+      "SELECT region, SUM(amount) FROM service GROUP BY region HAVING SUM(amount) > 1000"
+    );
+    for ( String query : queries ) {
+      assertThat( query, run( query, 4 ), equalTo( run( query, 1 ) ) );
+    }
+  }
+
+  private List<String> run( String query, int parallelism ) throws Exception {
+    SQL sql = new SQL( query );
+    sql.parse( serviceRowMeta );
+    SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+    generator.setParallelism( parallelism );
+
+    Trans trans = new Trans( generator.generateTransMeta() );
+    trans.prepareExecution( null );
+    RowProducer rowProducer = trans.addRowProducer( generator.getInjectorStepName(), 0 );
+    final List<String> results = Collections.synchronizedList( Lists.<String>newArrayList() );
+    trans.findRunThread( generator.getResultStepName() ).addRowListener( new RowAdapter() {
+      @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) {
+        results.add( Arrays.toString( Arrays.copyOf( row, rowMeta.size() ) ) );
+      }
+    } );
+    trans.startThreads();
+    for ( int i = 0; i < 1000; i++ ) {
+      Object[] row = { "r" + i % 7, i % 11 == 0 ? null : (long) i };
+      rowProducer.putRow( serviceRowMeta, row );
+    }
+    rowProducer.finished();
+    trans.waitUntilFinished();
+    assertThat( trans.getErrors(), is( 0 ) );
+
+    // Groups come out in any order without ORDER BY
+    Collections.sort( results );
+    return results;
+  }
+}
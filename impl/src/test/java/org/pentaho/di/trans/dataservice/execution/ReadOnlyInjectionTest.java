@@ -0,0 +1,169 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.dataservice.SqlTransGenerator;
+import org.pentaho.di.trans.dataservice.testing.DataServiceSteps;
+import org.pentaho.di.trans.step.RowAdapter;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs generated transformations on rows handed over without copying them, and checks whether the injected rows are
+ * written to.
+ */
+public class ReadOnlyInjectionTest {
+
+  private RowMetaInterface serviceRowMeta;
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    KettleClientEnvironment.init();
+    PluginRegistry.addPluginType( StepPluginType.getInstance() );
+    PluginRegistry.init();
+    DataServiceSteps.register();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    serviceRowMeta = new RowMeta();
+    serviceRowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    serviceRowMeta.addValueMeta( new ValueMetaInteger( "amount" ) );
+    serviceRowMeta.addValueMeta( new ValueMetaDate( "day" ) );
+  }
+
+  @Test
+  public void testReadOnlyPlansLeaveInjectedRowsUntouched() throws Exception {
+    List<String> queries = ImmutableList.of(
+      "SELECT region, amount FROM service WHERE amount > 3 ORDER BY region DESC, amount LIMIT 5",
+      "SELECT region, amount FROM service ORDER BY day DESC",
+      "SELECT region, SUM(amount), COUNT(*) FROM service GROUP BY region HAVING SUM(amount) > 10 ORDER BY region",
+      "SELECT DISTINCT region FROM service",
+      "SELECT region, IIF( amount > 5, 'high', 'low' ) AS band, 'constant' FROM service",
+      "SELECT * FROM service WHERE region = 'r1' LIMIT 3"
+    );
+    for ( String query : queries ) {
+      SqlTransGenerator generator = generator( query );
+      assertTrue( query, generator.isReadOnlyInjection() );
+
+      AliasingDetector detector = new AliasingDetector( serviceRowMeta );
+      assertThat( query, run( generator, detector ), greaterThan( 0 ) );
+      assertThat( query, detector.modifiedRows(), is( 0 ) );
+    }
+  }
+
+  @Test
+  public void testConvertingPlanIsNotReadOnly() throws Exception {
+    SqlTransGenerator generator = generator( "SELECT region, AVG(amount) FROM service GROUP BY region" );
+    assertFalse( generator.isReadOnlyInjection() );
+
+    // Integers are converted in place before they are averaged, the detector has to notice
+    AliasingDetector detector = new AliasingDetector( serviceRowMeta );
+    run( generator, detector );
+    assertThat( detector.modifiedRows(), greaterThan( 0 ) );
+  }
+
+  private SqlTransGenerator generator( String query ) throws Exception {
+    SQL sql = new SQL( query );
+    sql.parse( serviceRowMeta );
+    return new SqlTransGenerator( sql, 0 );
+  }
+
+  private int run( SqlTransGenerator generator, AliasingDetector detector ) throws Exception {
+    Trans trans = new Trans( generator.generateTransMeta() );
+    trans.prepareExecution( null );
+    RowProducer rowProducer = trans.addRowProducer( generator.getInjectorStepName(), 0 );
+    final AtomicInteger results = new AtomicInteger();
+    trans.findRunThread( generator.getResultStepName() ).addRowListener( new RowAdapter() {
+      @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) {
+        results.incrementAndGet();
+      }
+    } );
+    trans.startThreads();
+
+    // Exact-length rows, as handed over by the service step or shared from the cache
+    for ( int i = 0; i < 20; i++ ) {
+      Object[] row = { "r" + i % 3, (long) i, new Date( i * 86400000L ) };
+      detector.track( row );
+      rowProducer.putRow( serviceRowMeta, row );
+    }
+    rowProducer.finished();
+    trans.waitUntilFinished();
+    assertThat( trans.getErrors(), is( 0 ) );
+    return results.get();
+  }
+
+  /**
+   * Keeps a deep copy of every row given away, to compare with the row once the consumer is done with it.
+   */
+  private static class AliasingDetector {
+    private final RowMetaInterface rowMeta;
+    private final List<Object[]> rows = Lists.newArrayList();
+    private final List<Object[]> snapshots = Lists.newArrayList();
+
+    AliasingDetector( RowMetaInterface rowMeta ) {
+      this.rowMeta = rowMeta;
+    }
+
+    void track( Object[] row ) throws Exception {
+      rows.add( row );
+      snapshots.add( rowMeta.cloneRow( row ) );
+    }
+
+    int modifiedRows() {
+      int modified = 0;
+      for ( int i = 0; i < rows.size(); i++ ) {
+        if ( !Arrays.equals( rows.get( i ), snapshots.get( i ) ) ) {
+          modified++;
+        }
+      }
+      return modified;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class RowProjectionTest {
+
+  private RowMetaInterface serviceRowMeta;
+  private Object[] row;
+
+  @Before
+  public void setUp() throws Exception {
+    serviceRowMeta = new RowMeta();
+    serviceRowMeta.addValueMeta( new ValueMetaString( "a" ) );
+    serviceRowMeta.addValueMeta( new ValueMetaInteger( "b" ) );
+    serviceRowMeta.addValueMeta( new ValueMetaString( "c" ) );
+    row = new Object[] { "x", 1L, "z" };
+  }
+
+  @Test
+  public void testProjectsReferencedFields() throws Exception {
+    RowMetaInterface fields = new RowMeta();
+    fields.addValueMeta( new ValueMetaString( "c" ) );
+    fields.addValueMeta( new ValueMetaInteger( "b" ) );
+    RowProjection projection = new RowProjection( fields );
+
+    RowMetaInterface rowMeta = projection.getRowMeta( serviceRowMeta );
+    assertThat( rowMeta.getFieldNames(), equalTo( new String[] { "c", "b" } ) );
+    assertThat( rowMeta.getValueMeta( 0 ), sameInstance( serviceRowMeta.getValueMeta( 2 ) ) );
+    assertThat( projection.project( serviceRowMeta, row ), equalTo( new Object[] { "z", 1L } ) );
+    assertThat( projection.getRowMeta( serviceRowMeta ), sameInstance( rowMeta ) );
+  }
+
+  @Test
+  public void testAllFieldsAreCloned() throws Exception {
+    RowProjection projection = new RowProjection( serviceRowMeta.clone() );
+
+    assertThat( projection.getRowMeta( serviceRowMeta ), sameInstance( serviceRowMeta ) );
+    Object[] projected = projection.project( serviceRowMeta, row );
+    assertThat( projected, not( sameInstance( row ) ) );
+    assertThat( projected, equalTo( row ) );
+
+    assertThat( new RowProjection( null ).project( serviceRowMeta, row ), equalTo( row ) );
+  }
+
+  @Test
+  public void testValuesAreCopied() throws Exception {
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaDate( "d" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "i" ) );
+    RowMetaInterface fields = new RowMeta();
+    fields.addValueMeta( new ValueMetaDate( "d" ) );
+
+    Date date = new Date( 0 );
+    Object[] projected = new RowProjection( fields ).project( rowMeta, new Object[] { date, 1L } );
+    assertThat( projected[0], equalTo( (Object) date ) );
+    assertThat( projected[0], not( sameInstance( (Object) date ) ) );
+  }
+
+  @Test
+  public void testTransferredRowsAreNotCopied() throws Exception {
+    RowProjection projection = new RowProjection( serviceRowMeta.clone(), RowProjection.Ownership.TRANSFER );
+    Object[] wide = Arrays.copyOf( row, 8 );
+    assertThat( projection.project( serviceRowMeta, wide ), sameInstance( wide ) );
+
+    RowMetaInterface fields = new RowMeta();
+    fields.addValueMeta( new ValueMetaDate( "d" ) );
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "i" ) );
+    rowMeta.addValueMeta( new ValueMetaDate( "d" ) );
+    Date date = new Date( 0 );
+    Object[] projected =
+      new RowProjection( fields, RowProjection.Ownership.TRANSFER ).project( rowMeta, new Object[] { 1L, date } );
+    assertThat( projected.length, is( 1 ) );
+    assertThat( projected[0], sameInstance( (Object) date ) );
+  }
+
+  @Test
+  public void testSharedRowsHaveExactLength() throws Exception {
+    RowProjection projection = new RowProjection( null, RowProjection.Ownership.SHARE );
+    assertThat( projection.project( serviceRowMeta, row ), sameInstance( row ) );
+
+    Object[] wide = Arrays.copyOf( row, 8 );
+    Object[] projected = projection.project( serviceRowMeta, wide );
+    assertThat( projected, not( sameInstance( wide ) ) );
+    assertThat( projected, equalTo( row ) );
+    assertThat( projected[0], sameInstance( wide[0] ) );
+  }
+
+  @Test
+  public void testProjectsValuesReadByIndex() throws Exception {
+    RowMetaInterface fields = new RowMeta();
+    fields.addValueMeta( new ValueMetaString( "c" ) );
+    fields.addValueMeta( new ValueMetaString( "a" ) );
+    RowProjection projection = new RowProjection( fields, RowProjection.Ownership.SHARE );
+
+    Object[] projected = projection.project( serviceRowMeta, index -> row[ index ] );
+    assertThat( projected, equalTo( new Object[] { "z", "x" } ) );
+    assertThat( projected[ 0 ], sameInstance( row[ 2 ] ) );
+
+    projection = new RowProjection( null, RowProjection.Ownership.SHARE );
+    Object[] all = projection.project( serviceRowMeta, index -> row[ index ] );
+    assertThat( all, not( sameInstance( row ) ) );
+    assertThat( all, equalTo( row ) );
+  }
+
+  @Test( expected = KettleValueException.class )
+  public void testMissingField() throws Exception {
+    RowMetaInterface fields = new RowMeta();
+    fields.addValueMeta( new ValueMetaString( "missing" ) );
+    new RowProjection( fields ).project( serviceRowMeta, row );
+  }
+
+  @Test
+  public void testRowMetaChange() throws Exception {
+    RowMetaInterface fields = new RowMeta();
+    fields.addValueMeta( new ValueMetaString( "c" ) );
+    RowProjection projection = new RowProjection( fields );
+    projection.project( serviceRowMeta, row );
+
+    RowMetaInterface reordered = new RowMeta();
+    reordered.addValueMeta( new ValueMetaString( "c" ) );
+    reordered.addValueMeta( new ValueMetaString( "a" ) );
+    assertThat( projection.project( reordered, new Object[] { "c", "a" } )[0], is( (Object) "c" ) );
+  }
+}
@@ -0,0 +1,123 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.dataservice.SqlTransGenerator;
+import org.pentaho.di.trans.dataservice.testing.DataServiceSteps;
+import org.pentaho.di.trans.step.RowAdapter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Runs aggregating queries with and without a memory limit small enough to spill nearly every group to disk, which
+ * have to give the same results.
+ */
+public class SpillingAggregationTest {
+
+  private RowMetaInterface serviceRowMeta;
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    KettleClientEnvironment.init();
+    PluginRegistry.addPluginType( StepPluginType.getInstance() );
+    PluginRegistry.init();
+    DataServiceSteps.register();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    serviceRowMeta = new RowMeta();
+    serviceRowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    serviceRowMeta.addValueMeta( new ValueMetaInteger( "amount" ) );
+    serviceRowMeta.addValueMeta( new ValueMetaNumber( "price" ) );
+  }
+
+  @Test
+  public void testSpilledAggregationGivesSameResults() throws Exception {
+    List<String> queries = ImmutableList.of(
+      "SELECT region, amount, SUM(price), COUNT(*), MIN(price), MAX(region) FROM service GROUP BY region, amount",
+      "SELECT region, COUNT(DISTINCT amount), AVG(price) FROM service GROUP BY region",
+      "SELECT amount, COUNT(amount) FROM service GROUP BY amount",
+      "SELECT DISTINCT region, amount FROM service",
+      "SELECT COUNT(*), SUM(amount) FROM service"
+    );
+    for ( String query : queries ) {
+      List<String> inMemory = run( query, 0, 1 );
+      assertThat( query, run( query, 1, 1 ), equalTo( inMemory ) );
+      assertThat( query, run( query, 1, 4 ), equalTo( inMemory ) );
+    }
+  }
+
+  private List<String> run( String query, long memoryLimit, int parallelism ) throws Exception {
+    SQL sql = new SQL( query );
+    sql.parse( serviceRowMeta );
+    SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+    generator.setQueryMemoryLimit( memoryLimit );
+    generator.setParallelism( parallelism );
+
+    Trans trans = new Trans( generator.generateTransMeta() );
+    trans.prepareExecution( null );
+    RowProducer rowProducer = trans.addRowProducer( generator.getInjectorStepName(), 0 );
+    final List<String> results = Collections.synchronizedList( Lists.<String>newArrayList() );
+    trans.findRunThread( generator.getResultStepName() ).addRowListener( new RowAdapter() {
+      @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) {
+        results.add( Arrays.toString( Arrays.copyOf( row, rowMeta.size() ) ) );
+      }
+    } );
+    trans.startThreads();
+    for ( int i = 0; i < 2000; i++ ) {
+      Object[] row = { i % 13 == 0 ? null : "r" + i % 37, i % 11 == 0 ? null : (long) ( i % 101 ), i * 0.5 };
+      rowProducer.putRow( serviceRowMeta, row );
+    }
+    rowProducer.finished();
+    trans.waitUntilFinished();
+    assertThat( trans.getErrors(), is( 0 ) );
+
+    // Spilled groups come out after the ones kept in memory
+    Collections.sort( results );
+    return results;
+  }
+}
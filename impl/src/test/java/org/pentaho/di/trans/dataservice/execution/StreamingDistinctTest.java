@@ -0,0 +1,102 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.execution;
+
+import com.google.common.collect.Lists;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.dataservice.SqlTransGenerator;
+import org.pentaho.di.trans.dataservice.testing.DataServiceSteps;
+import org.pentaho.di.trans.step.RowAdapter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * DISTINCT rows reach the result before the service rows end.
+ */
+public class StreamingDistinctTest {
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    KettleClientEnvironment.init();
+    PluginRegistry.addPluginType( StepPluginType.getInstance() );
+    PluginRegistry.init();
+    DataServiceSteps.register();
+  }
+
+  @Test
+  public void testDistinctRowsBeforeEndOfInput() throws Exception {
+    RowMetaInterface serviceRowMeta = new RowMeta();
+    serviceRowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    serviceRowMeta.addValueMeta( new ValueMetaInteger( "amount" ) );
+    SQL sql = new SQL( "SELECT DISTINCT region FROM service" );
+    sql.parse( serviceRowMeta );
+    SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+
+    Trans trans = new Trans( generator.generateTransMeta() );
+    trans.prepareExecution( null );
+    RowProducer rowProducer = trans.addRowProducer( generator.getInjectorStepName(), 0 );
+    final List<Object> results = Collections.synchronizedList( Lists.newArrayList() );
+    trans.findRunThread( generator.getResultStepName() ).addRowListener( new RowAdapter() {
+      @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) {
+        results.add( row[0] );
+      }
+    } );
+    trans.startThreads();
+    rowProducer.putRow( serviceRowMeta, new Object[] { "a", 1L } );
+    rowProducer.putRow( serviceRowMeta, new Object[] { "b", 2L } );
+    rowProducer.putRow( serviceRowMeta, new Object[] { "a", 3L } );
+
+    // Still waiting for more service rows
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis( 10 );
+    while ( results.size() < 2 && System.currentTimeMillis() < deadline ) {
+      Thread.sleep( 10 );
+    }
+    assertThat( results, equalTo( Arrays.<Object>asList( "a", "b" ) ) );
+    assertThat( trans.isFinished(), is( false ) );
+
+    rowProducer.putRow( serviceRowMeta, new Object[] { "c", 4L } );
+    rowProducer.finished();
+    trans.waitUntilFinished();
+    assertThat( trans.getErrors(), is( 0 ) );
+    assertThat( results, equalTo( Arrays.<Object>asList( "a", "b", "c" ) ) );
+  }
+}
@@ -0,0 +1,235 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.ValueMetaAndData;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBigNumber;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CachedServiceIndexTest {
+
+  private RowMeta rowMeta;
+  private List<RowMetaAndData> rows;
+  private CachedServiceIndex index;
+
+  @BeforeClass
+  public static void initPlugins() throws Exception {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "ID" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "A" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "B" ) );
+
+    rows = Lists.newArrayListWithExpectedSize( 100 );
+    for ( long i = 0; i < 100; i++ ) {
+      rows.add( new RowMetaAndData( rowMeta, String.valueOf( i ), i % 13, i % 17 ) );
+    }
+    index = new CachedServiceIndex( rows );
+  }
+
+  @Test
+  public void testBloomFilterRulesOutMissingValues() throws Exception {
+    assertThat( lookup( "ID = 'missing'" ).get().length, is( 0 ) );
+    assertThat( lookup( "A = 42" ).get().length, is( 0 ) );
+    assertThat( lookup( "ID IN ('x', 'y')" ).get().length, is( 0 ) );
+  }
+
+  @Test
+  public void testIndexesColumnsFilteredOften() throws Exception {
+    assertIndexed( "ID = '42'" );
+    assertIndexed( "A = 5" );
+    assertIndexed( "ID IN ('7', '8', 'missing')" );
+    assertIndexed( "A > 10" );
+    assertIndexed( "A >= 10" );
+    assertIndexed( "A < 2" );
+    assertIndexed( "A <= 2" );
+    assertIndexed( "B > 20" );
+  }
+
+  @Test
+  public void testCombinesConditions() throws Exception {
+    lookup( "A = 1" );
+    lookup( "B = 1" );
+    assertThat( lookup( "A = 1 AND B = 1" ).get(), equalTo( matching( "A = 1 AND B = 1" ) ) );
+    assertThat( lookup( "A = 1 OR B = 1" ).get(), equalTo( matching( "A = 1 OR B = 1" ) ) );
+
+    // Conjuncts narrow the rows even if some of them are not indexed
+    assertThat( lookup( "A = 1 AND B = A" ).get(), equalTo( matching( "A = 1" ) ) );
+    // Disjuncts are only indexed together
+    assertThat( lookup( "A = 1 OR B = A" ).isPresent(), is( false ) );
+    assertThat( lookup( "NOT ( A = 1 )" ).isPresent(), is( false ) );
+  }
+
+  @Test
+  public void testEqualBigNumbersOfOtherScale() throws Exception {
+    RowMeta bigNumberMeta = new RowMeta();
+    bigNumberMeta.addValueMeta( new ValueMetaBigNumber( "BN" ) );
+    index = new CachedServiceIndex( ImmutableList.of(
+      new RowMetaAndData( bigNumberMeta, new BigDecimal( "1.0" ) ),
+      new RowMetaAndData( bigNumberMeta, new BigDecimal( "2" ) ),
+      new RowMetaAndData( bigNumberMeta, new BigDecimal( "1.00" ) ),
+      new RowMetaAndData( bigNumberMeta, (Object) null )
+    ) );
+    Condition condition = new Condition( "BN", Condition.FUNC_EQUAL, null,
+      new ValueMetaAndData( new ValueMetaBigNumber( "constant" ), new BigDecimal( "1" ) ) );
+
+    // Strings of equal BigNumbers differ, so they are never ruled out by string
+    assertThat( index.lookup( condition ).isPresent(), is( false ) );
+    assertThat( index.lookup( condition ).get(), equalTo( new int[] { 0, 2 } ) );
+  }
+
+  @Test
+  public void testInListOfNumbers() throws Exception {
+    ValueMetaNumber valueMeta = new ValueMetaNumber( "N" );
+    valueMeta.setConversionMask( "0.000" );
+    assertInList( valueMeta, 1.5, 2.25, null, 1.5, 3.0 );
+  }
+
+  @Test
+  public void testInListOfDates() throws Exception {
+    ValueMetaDate valueMeta = new ValueMetaDate( "D" );
+    valueMeta.setConversionMask( "yyyy-MM-dd" );
+    assertInList( valueMeta, new Date( 86400000L ), new Date( 86400000L * 2 ), null, new Date( 86400000L ),
+      new Date( 86400000L * 5 ) );
+  }
+
+  @Test
+  public void testInListOfMaskedIntegers() throws Exception {
+    ValueMetaInteger valueMeta = new ValueMetaInteger( "I" );
+    valueMeta.setConversionMask( "#,##0" );
+    assertInList( valueMeta, 1234L, 5678L, null, 1234L, 9999999L );
+  }
+
+  @Test
+  public void testCachedServiceRows() throws Exception {
+    CachedService cachedService = CachedService.complete( rows );
+    DataServiceExecutor executor = mock( DataServiceExecutor.class );
+
+    when( executor.getSql() ).thenReturn( sql( "SELECT * FROM service" ) );
+    assertThat( Iterators.size( cachedService.rows( executor ) ), is( 100 ) );
+
+    SQL sql = sql( "SELECT * FROM service WHERE A = 3 AND B > 5" );
+    when( executor.getSql() ).thenReturn( sql );
+    assertThat( Iterators.size( cachedService.rows( executor ) ), is( 100 ) );
+    List<RowMetaAndData> expected = Lists.newArrayList();
+    for ( int position : matching( "A = 3 AND B > 5" ) ) {
+      expected.add( rows.get( position ) );
+    }
+    assertThat( ImmutableList.copyOf( cachedService.rows( executor ) ), equalTo( expected ) );
+  }
+
+  /**
+   * Index rows of a masked column, and look up the first and second value with an IN list encoded the way queries
+   * encode it. Format masks must not make the index miss matching rows.
+   */
+  private void assertInList( ValueMetaInterface valueMeta, Object... values ) throws KettleException {
+    RowMeta columnMeta = new RowMeta();
+    columnMeta.addValueMeta( valueMeta );
+    List<RowMetaAndData> columnRows = Lists.newArrayList();
+    for ( Object value : values ) {
+      columnRows.add( new RowMetaAndData( columnMeta, value ) );
+    }
+    index = new CachedServiceIndex( columnRows );
+    String inList = valueMeta.getCompatibleString( values[ 0 ] ) + ";" + valueMeta.getCompatibleString( values[ 1 ] );
+    Condition condition = new Condition( valueMeta.getName(), Condition.FUNC_IN_LIST, null,
+      new ValueMetaAndData( new ValueMetaString( "constant" ), inList ) );
+
+    List<Integer> expected = Lists.newArrayList();
+    for ( int i = 0; i < columnRows.size(); i++ ) {
+      if ( condition.evaluate( columnMeta, columnRows.get( i ).getData() ) ) {
+        expected.add( i );
+      }
+    }
+    assertThat( expected, equalTo( ImmutableList.of( 0, 1, 3 ) ) );
+    assertThat( index.lookup( condition ).isPresent(), is( false ) );
+    assertThat( index.lookup( condition ).get(), equalTo( Ints.toArray( expected ) ) );
+  }
+
+  private void assertIndexed( String where ) throws KettleException {
+    // Only columns filtered on more than once are indexed
+    index = new CachedServiceIndex( rows );
+    assertThat( lookup( where ).isPresent(), is( false ) );
+    assertThat( lookup( where ).get(), equalTo( matching( where ) ) );
+  }
+
+  private Optional<int[]> lookup( String where ) throws KettleException {
+    return index.lookup( condition( where ) );
+  }
+
+  private int[] matching( String where ) throws KettleException {
+    Condition condition = condition( where );
+    List<Integer> positions = Lists.newArrayList();
+    for ( int i = 0; i < rows.size(); i++ ) {
+      if ( condition.evaluate( rowMeta, rows.get( i ).getData() ) ) {
+        positions.add( i );
+      }
+    }
+    return Ints.toArray( positions );
+  }
+
+  private Condition condition( String where ) throws KettleException {
+    return sql( "SELECT * FROM service WHERE " + where ).getWhereCondition().getCondition();
+  }
+
+  private SQL sql( String query ) throws KettleException {
+    SQL sql = new SQL( query );
+    sql.parse( rowMeta );
+    return sql;
+  }
+}
@@ -31,7 +31,6 @@ import com.google.common.util.concurrent.ListenableFuture;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.AdditionalMatchers;
 import org.mockito.Answers;
 import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
@@ -81,11 +80,10 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
-import static org.mockito.AdditionalMatchers.and;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
-import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -364,10 +362,10 @@ public class CachedServiceTest {
     InOrder rowsProduced = inOrder( rowProducer );
     for ( int i = 0; i < testData.size(); i++ ) {
       RowMetaAndData metaAndData = testData.get( i );
-      // Tenth row was called twice, since row set was full
+      // Tenth row was called twice, since row set was full. Cached rows are materialized from columnar storage
       Object[] data = metaAndData.getData();
       rowsProduced.verify( rowProducer, times( i == 9 ? 2 : 1 ) )
-        .putRowWait( eq( metaAndData.getRowMeta() ), and( eq( data ), AdditionalMatchers.not( same( data ) ) ), anyInt(), any( TimeUnit.class ) );
+        .putRowWait( eq( metaAndData.getRowMeta() ), aryEq( data ), anyInt(), any( TimeUnit.class ) );
     }
     rowsProduced.verify( rowProducer ).finished();
     rowsProduced.verifyNoMoreInteractions();
@@ -430,7 +428,7 @@ public class CachedServiceTest {
     for ( RowMetaAndData metaAndData : Iterables.limit( testData, 20 ) ) {
       Object[] data = metaAndData.getData();
       verify( rowProducer )
-        .putRowWait( eq( metaAndData.getRowMeta() ), and( eq( data ), AdditionalMatchers.not( same( data ) ) ), anyInt(), any( TimeUnit.class ) );
+        .putRowWait( eq( metaAndData.getRowMeta() ), aryEq( data ), anyInt(), any( TimeUnit.class ) );
     }
   }
 
@@ -0,0 +1,205 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaBigNumber;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class ColumnarRowsTest {
+
+  private RowMeta rowMeta;
+  private List<RowMetaAndData> rows;
+
+  @BeforeClass
+  public static void initPlugins() throws Exception {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "S" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "I" ) );
+    rowMeta.addValueMeta( new ValueMetaNumber( "N" ) );
+    rowMeta.addValueMeta( new ValueMetaDate( "D" ) );
+    rowMeta.addValueMeta( new ValueMetaBoolean( "B" ) );
+    rowMeta.addValueMeta( new ValueMetaBigNumber( "BN" ) );
+
+    rows = Lists.newArrayList();
+    for ( int i = 0; i < 50; i++ ) {
+      rows.add( new RowMetaAndData( rowMeta,
+        i % 7 == 0 ? null : "value " + i % 3,
+        i % 5 == 0 ? null : (long) i,
+        i % 4 == 0 ? null : i / 4.0,
+        i % 6 == 0 ? null : new Date( 1000L * i ),
+        i % 8 == 0 ? null : i % 2 == 0,
+        i % 9 == 0 ? null : BigDecimal.valueOf( i, 2 ) ) );
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    List<RowMetaAndData> compact = ColumnarRows.compact( rows );
+
+    assertThat( compact, instanceOf( ColumnarRows.class ) );
+    assertThat( compact.size(), is( rows.size() ) );
+    for ( int i = 0; i < rows.size(); i++ ) {
+      RowMetaAndData row = compact.get( i );
+      assertThat( row.getRowMeta(), sameInstance( (Object) rowMeta ) );
+      assertThat( row.getData(), equalTo( rows.get( i ).getData() ) );
+      for ( int column = 0; column < rowMeta.size(); column++ ) {
+        assertThat( ( (ColumnarRows) compact ).getValue( i, column ), equalTo( rows.get( i ).getData()[ column ] ) );
+      }
+    }
+    assertThat( ColumnarRows.compact( compact ), sameInstance( compact ) );
+  }
+
+  @Test
+  public void testRowsAreMaterializedOnRead() throws Exception {
+    List<RowMetaAndData> compact = ColumnarRows.compact( rows );
+
+    Object[] first = compact.get( 1 ).getData();
+    Object[] second = compact.get( 1 ).getData();
+    assertThat( first, not( sameInstance( second ) ) );
+    // Dates are mutable and never shared
+    assertThat( first[ 3 ], not( sameInstance( second[ 3 ] ) ) );
+    // Strings share one dictionary entry
+    assertThat( first[ 0 ], sameInstance( second[ 0 ] ) );
+  }
+
+  @Test
+  public void testValuesOfOtherClassesAreKept() throws Exception {
+    Timestamp timestamp = new Timestamp( 1234L );
+    rows.get( 1 ).getData()[ 3 ] = timestamp;
+
+    List<RowMetaAndData> compact = ColumnarRows.compact( rows );
+    assertThat( compact.get( 1 ).getData()[ 3 ], sameInstance( (Object) timestamp ) );
+    assertThat( compact.get( 2 ).getData()[ 3 ], equalTo( rows.get( 2 ).getData()[ 3 ] ) );
+  }
+
+  @Test
+  public void testMixedRowMetasAreCopied() throws Exception {
+    rows.add( new RowMetaAndData( rowMeta.clone(), rows.get( 0 ).getData() ) );
+
+    List<RowMetaAndData> copy = ColumnarRows.compact( rows );
+    assertThat( copy, instanceOf( ImmutableList.class ) );
+    assertThat( copy.get( 3 ), sameInstance( rows.get( 3 ) ) );
+    assertThat( ColumnarRows.compact( ImmutableList.<RowMetaAndData>of() ).isEmpty(), is( true ) );
+  }
+
+  @Test
+  public void testCursor() throws Exception {
+    ColumnarRows compact = (ColumnarRows) ColumnarRows.compact( rows );
+
+    ColumnarRows.Cursor cursor = compact.cursor( new int[] { 3, 1 } );
+    assertThat( cursor.getRowMeta(), sameInstance( (Object) rowMeta ) );
+    assertThat( cursor.next(), is( true ) );
+    assertThat( cursor.apply( 1 ), equalTo( rows.get( 3 ).getData()[ 1 ] ) );
+    assertThat( cursor.next(), is( true ) );
+    assertThat( cursor.apply( 0 ), equalTo( rows.get( 1 ).getData()[ 0 ] ) );
+    assertThat( cursor.next(), is( false ) );
+
+    cursor = compact.cursor( null );
+    for ( int i = 0; i < rows.size(); i++ ) {
+      assertThat( cursor.next(), is( true ) );
+      assertThat( cursor.apply( 3 ), equalTo( rows.get( i ).getData()[ 3 ] ) );
+    }
+    assertThat( cursor.next(), is( false ) );
+  }
+
+  @Test
+  public void testCompareMatchesValueMeta() throws Exception {
+    ColumnarRows compact = (ColumnarRows) ColumnarRows.compact( rows );
+
+    for ( int column = 0; column < rowMeta.size(); column++ ) {
+      for ( int left = 0; left < 10; left++ ) {
+        for ( int right = 0; right < 10; right++ ) {
+          Object leftValue = rows.get( left ).getData()[ column ], rightValue = rows.get( right ).getData()[ column ];
+          int expected = Integer.signum( rowMeta.getValueMeta( column ).compare( leftValue, rightValue ) );
+          assertThat( Integer.signum( compact.compare( left, right, column ) ), is( expected ) );
+          assertThat( Integer.signum( compact.compare( left, column, rightValue ) ), is( expected ) );
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSerializable() throws Exception {
+    ColumnarRows compact = (ColumnarRows) ColumnarRows.compact( rows );
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try ( ObjectOutputStream out = new ObjectOutputStream( bytes ) ) {
+      out.writeObject( compact );
+    }
+    ColumnarRows copy;
+    try ( ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ) ) {
+      copy = (ColumnarRows) in.readObject();
+    }
+
+    assertThat( copy.getRowMeta().getFieldNames(), equalTo( rowMeta.getFieldNames() ) );
+    assertThat( copy.size(), is( rows.size() ) );
+    for ( int i = 0; i < rows.size(); i++ ) {
+      assertThat( copy.get( i ).getData(), equalTo( rows.get( i ).getData() ) );
+    }
+  }
+
+  @Test
+  public void testNulls() throws Exception {
+    Object[] data = ColumnarRows.compact( rows ).get( 0 ).getData();
+    for ( Object value : data ) {
+      assertThat( value, nullValue() );
+    }
+  }
+}
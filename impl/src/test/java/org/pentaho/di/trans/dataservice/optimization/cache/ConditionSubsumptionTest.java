@@ -0,0 +1,116 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConditionSubsumptionTest {
+
+  private static RowMetaInterface rowMeta;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "ID" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "A" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "B" ) );
+  }
+
+  @Test
+  public void testRanges() throws Exception {
+    assertTrue( subsumes( "A > 2", "A > 5" ) );
+    assertTrue( subsumes( "A > 2", "A > 2" ) );
+    assertTrue( subsumes( "A > 2", "A >= 3" ) );
+    assertTrue( subsumes( "A > 2", "A = 3" ) );
+    assertTrue( subsumes( "A >= 2", "A > 2" ) );
+    assertTrue( subsumes( "A < 10", "A <= 9" ) );
+    assertTrue( subsumes( "A <= 10", "A = 10" ) );
+
+    assertFalse( subsumes( "A > 2", "A > 1" ) );
+    assertFalse( subsumes( "A > 2", "A >= 2" ) );
+    assertFalse( subsumes( "A > 2", "A = 2" ) );
+    assertFalse( subsumes( "A > 2", "A < 5" ) );
+    assertFalse( subsumes( "A < 10", "A <= 10" ) );
+    assertFalse( subsumes( "B > 2", "A > 5" ) );
+  }
+
+  @Test
+  public void testEqualityAndInLists() throws Exception {
+    assertTrue( subsumes( "ID = 'a'", "ID = 'a'" ) );
+    assertTrue( subsumes( "ID IN ('a', 'b')", "ID = 'a'" ) );
+    assertTrue( subsumes( "ID IN ('a', 'b')", "ID IN ('b')" ) );
+    assertTrue( subsumes( "ID <> 'a'", "ID = 'b'" ) );
+    assertTrue( subsumes( "A IS NOT NULL", "A > 5" ) );
+
+    assertFalse( subsumes( "ID = 'a'", "ID = 'b'" ) );
+    assertFalse( subsumes( "ID IN ('a', 'b')", "ID IN ('a', 'c')" ) );
+    assertFalse( subsumes( "ID <> 'a'", "ID = 'a'" ) );
+    assertFalse( subsumes( "A IS NOT NULL", "A < 5" ) );
+  }
+
+  @Test
+  public void testConjunctionsAndDisjunctions() throws Exception {
+    assertTrue( subsumes( "A > 2", "A > 5 AND ID = 'x'" ) );
+    assertTrue( subsumes( "A > 2 AND ID = 'x'", "ID = 'x' AND A > 5" ) );
+    assertTrue( subsumes( "ID = 'a' OR ID = 'b'", "ID = 'a'" ) );
+    assertTrue( subsumes( "A > 2", "A > 5 OR A = 3" ) );
+
+    assertFalse( subsumes( "A > 2 AND ID = 'x'", "A > 5" ) );
+    assertFalse( subsumes( "A > 2", "A > 5 OR B = 1" ) );
+    assertFalse( subsumes( "ID = 'a'", "ID = 'a' OR ID = 'b'" ) );
+  }
+
+  @Test
+  public void testNegationOnlyMatchesIdentical() throws Exception {
+    assertTrue( subsumes( "NOT ( A > 5 )", "NOT ( A > 5 )" ) );
+    assertFalse( subsumes( "NOT ( A > 5 )", "NOT ( A > 7 )" ) );
+    assertFalse( subsumes( "A > 2", "NOT ( A < 5 )" ) );
+  }
+
+  private static boolean subsumes( String general, String specific ) throws KettleException {
+    return ConditionSubsumption.subsumes( condition( general ), condition( specific ) );
+  }
+
+  private static Condition condition( String where ) throws KettleException {
+    SQL sql = new SQL( "SELECT * FROM service WHERE " + where );
+    sql.parse( rowMeta );
+    return sql.getWhereCondition().getCondition();
+  }
+}
@@ -0,0 +1,203 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.DataServiceMeta;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class DiskCacheTierTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private RowMeta rowMeta;
+  private List<RowMetaAndData> rows;
+  private File directory;
+  private DiskCacheTier diskTier;
+
+  @BeforeClass
+  public static void initPlugins() throws Exception {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "ID" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "A" ) );
+
+    rows = Lists.newArrayList();
+    for ( long i = 0; i < 20; i++ ) {
+      rows.add( new RowMetaAndData( rowMeta, i % 5 == 0 ? null : String.valueOf( i ), i ) );
+    }
+    directory = temporaryFolder.newFolder();
+    diskTier = DiskCacheTier.open( directory );
+  }
+
+  @Test
+  public void testEntriesSurviveRestart() throws Exception {
+    CachedService.CacheKey complete = key( 1, "SELECT * FROM service WHERE A > 2" );
+    CachedService.CacheKey partial = key( 1, "SELECT * FROM service" );
+    assertThat( diskTier.put( complete, CachedService.complete( rows ) ), is( true ) );
+    assertThat( diskTier.put( partial,
+      CachedService.restore( rows, Optional.of( 10 ), Optional.<Integer>absent(), Long.MAX_VALUE ) ), is( true ) );
+
+    DiskCacheTier reopened = DiskCacheTier.open( directory );
+    assertThat( reopened.size(), is( 2 ) );
+    assertThat( reopened.completeKeys(), contains( complete ) );
+
+    CachedService cachedService = reopened.get( complete, Long.MAX_VALUE ).get();
+    assertThat( cachedService.isComplete(), is( true ) );
+    assertThat( cachedService.isExpired(), is( false ) );
+    assertThat( reopened.get( complete, TimeUnit.HOURS.toMillis( 1 ) ).get().isExpired(), is( false ) );
+    assertThat( cachedService.getRowMetaAndData().size(), is( rows.size() ) );
+    for ( int i = 0; i < rows.size(); i++ ) {
+      assertThat( cachedService.getRowMetaAndData().get( i ).getData(), equalTo( rows.get( i ).getData() ) );
+    }
+    assertThat( reopened.get( partial, Long.MAX_VALUE ).get().getRanking(), equalTo( Optional.of( 10 ) ) );
+  }
+
+  @Test
+  public void testKeysSurviveRestart() throws Exception {
+    DataServiceMeta service = new DataServiceMeta( mock( TransMeta.class ) );
+    service.setServiceTransVersion( 3 );
+    SQL sql = new SQL( "SELECT * FROM service WHERE A > 2 ORDER BY ID" );
+    sql.parse( rowMeta );
+    ImmutableMap<String, String> parameters = ImmutableMap.of( "P", "\u00e9t\u00e9", "Q", "" );
+    CachedService.CacheKey key = CachedService.CacheKey.create( service, sql, parameters );
+    CachedService.CacheKey result = CachedService.CacheKey.forResult( service, sql, parameters, 10, 0 );
+    diskTier.put( key, CachedService.complete( rows ) );
+    diskTier.put( result, CachedService.complete( rows ) );
+
+    ImmutableSet<CachedService.CacheKey> recovered = DiskCacheTier.open( directory ).completeKeys();
+    assertThat( recovered, containsInAnyOrder( key, result ) );
+
+    // Condition of the recovered key is restored too
+    SQL narrower = new SQL( "SELECT * FROM service WHERE A > 5" );
+    narrower.parse( rowMeta );
+    CachedService.CacheKey narrowerKey = CachedService.CacheKey.create( service, narrower, parameters );
+    for ( CachedService.CacheKey recoveredKey : recovered ) {
+      assertThat( recoveredKey.withoutOrder().subsumes( narrowerKey ), is( !recoveredKey.isResult() ) );
+    }
+  }
+
+  @Test
+  public void testSegmentsAreReplaced() throws Exception {
+    CachedService.CacheKey key = key( 1, "SELECT * FROM service" );
+    diskTier.put( key, CachedService.complete( rows ) );
+    diskTier.put( key, CachedService.complete( rows.subList( 0, 5 ) ) );
+
+    assertThat( directory.listFiles(), arrayWithSize( 1 ) );
+    assertThat( DiskCacheTier.open( directory ).get( key, Long.MAX_VALUE ).get().getRowMetaAndData().size(), is( 5 ) );
+  }
+
+  @Test
+  public void testExpiredAndOutdatedSegmentsAreDeleted() throws Exception {
+    CachedService.CacheKey first = key( 1, "SELECT * FROM service" );
+    CachedService.CacheKey second = key( 2, "SELECT * FROM service" );
+    diskTier.put( first, CachedService.complete( rows ) );
+    diskTier.put( second, CachedService.complete( rows ) );
+
+    diskTier.retainVersion( 2 );
+    assertThat( diskTier.get( first, Long.MAX_VALUE ).isPresent(), is( false ) );
+    assertThat( diskTier.get( second, -1 ).isPresent(), is( false ) );
+    assertThat( diskTier.size(), is( 0 ) );
+    assertThat( directory.listFiles(), arrayWithSize( 0 ) );
+  }
+
+  @Test
+  public void testRecoversFromCrashes() throws Exception {
+    CachedService.CacheKey key = key( 1, "SELECT * FROM service" );
+    diskTier.put( key, CachedService.complete( rows ) );
+    File segment = directory.listFiles()[ 0 ];
+
+    // Interrupted writes and unreadable segments are dropped when the tier is opened
+    assertThat( new File( directory, "segment-7.dat.tmp" ).createNewFile(), is( true ) );
+    assertThat( new File( directory, "segment-8.dat" ).createNewFile(), is( true ) );
+    assertThat( DiskCacheTier.open( directory ).size(), is( 1 ) );
+    assertThat( directory.listFiles(), arrayWithSize( 1 ) );
+
+    // Corrupt rows are detected when read
+    try ( RandomAccessFile file = new RandomAccessFile( segment, "rw" ) ) {
+      long position = file.length() - 12;
+      file.seek( position );
+      int value = file.read();
+      file.seek( position );
+      file.write( ~value );
+    }
+    DiskCacheTier reopened = DiskCacheTier.open( directory );
+    assertThat( reopened.get( key, Long.MAX_VALUE ).isPresent(), is( false ) );
+    assertThat( reopened.size(), is( 0 ) );
+    assertThat( directory.listFiles(), arrayWithSize( 0 ) );
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    diskTier.put( key( 1, "SELECT * FROM service" ), CachedService.complete( rows ) );
+    diskTier.put( key( 1, "SELECT * FROM service WHERE A = 1" ),
+      CachedService.complete( ImmutableList.<RowMetaAndData>of() ) );
+
+    diskTier.clear();
+    assertThat( diskTier.size(), is( 0 ) );
+    assertThat( directory.listFiles(), arrayWithSize( 0 ) );
+  }
+
+  private CachedService.CacheKey key( int version, String query ) throws Exception {
+    DataServiceMeta service = new DataServiceMeta( mock( TransMeta.class ) );
+    service.setServiceTransVersion( version );
+    SQL sql = new SQL( query );
+    sql.parse( rowMeta );
+    return CachedService.CacheKey.create( service, sql, ImmutableMap.<String, String>of() );
+  }
+}
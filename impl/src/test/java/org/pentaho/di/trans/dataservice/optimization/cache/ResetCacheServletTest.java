@@ -65,6 +65,7 @@ public class ResetCacheServletTest {
     when( factory.getCache( anyString() ) )
       .thenReturn( Optional.<Cache<CachedService.CacheKey, CachedService>>absent() );
     when( factory.getCache( "cache1" ) ).thenReturn( Optional.of( cache ) );
+    when( factory.getDiskTier( anyString() ) ).thenReturn( Optional.<DiskCacheTier>absent() );
   }
 
   @Test
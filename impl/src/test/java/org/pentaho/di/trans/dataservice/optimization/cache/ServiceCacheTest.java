@@ -25,19 +25,26 @@ package org.pentaho.di.trans.dataservice.optimization.cache;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.MoreExecutors;
+import io.reactivex.Observer;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.pentaho.di.core.RowMetaAndData;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.plugins.PluginRegistry;
 import org.pentaho.di.core.row.RowMeta;
 import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
 import org.pentaho.di.core.row.value.ValueMetaString;
 import org.pentaho.di.core.sql.SQL;
 import org.pentaho.di.trans.Trans;
@@ -59,14 +66,18 @@ import javax.cache.expiry.ExpiryPolicy;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.collection.IsMapContaining.hasEntry;
 import static org.hamcrest.core.IsNot.not;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 import static org.pentaho.caching.api.Constants.CONFIG_TTL;
 
@@ -89,10 +100,12 @@ public class ServiceCacheTest {
   @Mock DataServiceContext context;
 
   @InjectMocks ServiceCache serviceCache;
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
   DataServiceMeta dataServiceMeta;
   RowMeta rowMeta;
   PushDownOptimizationMeta serviceCacheOpt;
   PushDownOptimizationMeta otherOpt;
+  Set<CachedService.CacheKey> conditionKeys = Sets.newConcurrentHashSet();
 
   StepInterface serviceStep;
   private static final long DEFAULT_TTL = 3600l;
@@ -117,6 +130,7 @@ public class ServiceCacheTest {
     when( transMeta.getStepFields( SERVICE_STEP ) ).thenReturn( rowMeta );
 
     when( factory.getExecutorService() ).thenReturn( MoreExecutors.sameThreadExecutor() );
+    when( factory.getDiskTier( anyString() ) ).thenReturn( Optional.<DiskCacheTier>absent() );
 
     serviceCacheOpt =
       when( mock( PushDownOptimizationMeta.class ).getType() ).thenReturn( mock( ServiceCache.class ) ).getMock();
@@ -131,6 +145,7 @@ public class ServiceCacheTest {
     when( expiryPolicy.getExpiryForAccess() ).thenReturn( duration );
 
     when( duration.getDurationAmount() ).thenReturn( DEFAULT_TTL );
+    when( factory.getConditionKeys( "MOCK_SERVICE" ) ).thenReturn( conditionKeys );
   }
 
   @Test
@@ -281,6 +296,62 @@ public class ServiceCacheTest {
     verify( cachedServiceLoader ).replay( executor );
   }
 
+  @Test
+  public void testReplayWiderCondition() throws Exception {
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A > 5 AND ID = 'x'" );
+    CachedService.CacheKey partialKey =
+      CachedService.CacheKey.create( dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A > 0" ) );
+    CachedService.CacheKey unrelatedKey =
+      CachedService.CacheKey.create( dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A > 7" ) );
+    CachedService.CacheKey widerKey =
+      CachedService.CacheKey.create( dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A > 2" ) );
+    CachedService.CacheKey expiredKey =
+      CachedService.CacheKey.create( dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A > 1" ) );
+    CachedService partial = mock( CachedService.class );
+    CachedService cachedService = mock( CachedService.class );
+    CachedServiceLoader cachedServiceLoader = mock( CachedServiceLoader.class );
+    conditionKeys.addAll( ImmutableList.of( partialKey, unrelatedKey, widerKey, expiredKey ) );
+    for ( CachedService.CacheKey key : ImmutableList.of( partialKey, unrelatedKey, widerKey ) ) {
+      when( cache.containsKey( key ) ).thenReturn( true );
+    }
+    when( cache.get( partialKey ) ).thenReturn( partial );
+    when( cache.get( unrelatedKey ) ).thenReturn( cachedService );
+    when( cache.get( widerKey ) ).thenReturn( cachedService );
+
+    when( cachedService.isComplete() ).thenReturn( true );
+    when( factory.createCachedServiceLoader( cachedService ) ).thenReturn( cachedServiceLoader );
+    when( cachedServiceLoader.replay( executor ) ).thenReturn( Futures.immediateFuture( 2000 ) );
+
+    assertThat( serviceCache.getAvailableCache( executor ), hasEntry( widerKey, cachedService ) );
+    // Keys of expired entries are forgotten
+    assertThat( conditionKeys.contains( expiredKey ), is( false ) );
+    assertThat( serviceCache.activate( executor, serviceStep ), is( true ) );
+    verify( cachedServiceLoader ).replay( executor );
+  }
+
+  @Test
+  public void testReplayFromDiskTier() throws Exception {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A = 2" );
+    CachedService.CacheKey key = serviceCache.createRootKey( executor ).withoutOrder();
+    CachedServiceLoader cachedServiceLoader = mock( CachedServiceLoader.class );
+
+    // Only the disk tier survived a restart
+    DiskCacheTier diskTier = DiskCacheTier.open( temporaryFolder.newFolder() );
+    diskTier.put( key, CachedService.complete( ImmutableList.of( new RowMetaAndData( rowMeta, "a", 2L, 3L ) ) ) );
+    when( factory.getCache( "MOCK_SERVICE" ) )
+      .thenReturn( Optional.<Cache<CachedService.CacheKey, CachedService>>absent() );
+    when( factory.getDiskTier( "MOCK_SERVICE" ) ).thenReturn( Optional.of( diskTier ) );
+    when( factory.createCachedServiceLoader( any( CachedService.class ) ) ).thenReturn( cachedServiceLoader );
+    when( cachedServiceLoader.replay( executor ) ).thenReturn( Futures.immediateFuture( 1 ) );
+
+    assertThat( serviceCache.activate( executor, serviceStep ), is( true ) );
+    verify( cachedServiceLoader ).replay( executor );
+    // Promoted back to memory
+    verify( cache ).putIfAbsent( eq( key ), any( CachedService.class ) );
+  }
+
   @Test
   public void testReplayFromRunning() throws Exception {
 
@@ -334,6 +405,98 @@ public class ServiceCacheTest {
     assertThat( serviceCache.getAvailableCache( executor ).get( key ), equalTo( existingCache ) );
   }
 
+  @Test
+  public void testPromotedEntryExpiresWithItsSegment() throws KettleException {
+    CachedService promoted = mock( CachedService.class );
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE" );
+    CachedService.CacheKey key = CachedService.CacheKey.create( executor );
+    when( cache.get( key ) ).thenReturn( promoted );
+    when( promoted.answersQuery( executor ) ).thenReturn( true );
+    when( promoted.isComplete() ).thenReturn( true );
+    when( promoted.isExpired() ).thenReturn( true );
+
+    assertThat( serviceCache.getAvailableCache( executor ).isEmpty(), is( true ) );
+    verify( cache ).remove( key, promoted );
+  }
+
+  @Test
+  public void testResultCache() throws Exception {
+    serviceCache.setCacheResults( true );
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT ID, SUM(A) FROM MOCK_SERVICE WHERE B > 1 GROUP BY ID" );
+    @SuppressWarnings( "unchecked" )
+    Observer<RowMetaAndData> consumer = mock( Observer.class );
+    RowMetaAndData row = new RowMetaAndData( rowMeta, "a", 1L, 2L );
+
+    Observer<RowMetaAndData> recorder = serviceCache.recordResult( executor, consumer );
+    recorder.onNext( row );
+    recorder.onComplete();
+
+    verify( consumer ).onNext( row );
+    verify( consumer ).onComplete();
+    ArgumentCaptor<CachedService> result = ArgumentCaptor.forClass( CachedService.class );
+    CachedService.CacheKey key = CachedService.CacheKey.forResult( dataServiceMeta, executor.getSql(),
+      executor.getParameters(), 0, 0 );
+    verify( cache ).put( eq( key ), result.capture() );
+    when( cache.get( key ) ).thenReturn( result.getValue() );
+
+    ServiceCache.Result cached = serviceCache.getCachedResult( dataServiceMeta, executor.getSql(),
+      executor.getParameters(), 0, 0, genTrans.getLogChannel() );
+    assertThat( cached.getRows(), equalTo( (List<RowMetaAndData>) ImmutableList.of( row ) ) );
+    assertThat( cached.getRowMeta().getFieldNames(), equalTo( rowMeta.getFieldNames() ) );
+    // Results are not shared with other row limits or literals, nor with the service rows
+    assertThat( serviceCache.getCachedResult( dataServiceMeta, executor.getSql(), executor.getParameters(), 10, 0,
+      genTrans.getLogChannel() ), nullValue() );
+    SQL other = new SQL( "SELECT ID, SUM(A) FROM MOCK_SERVICE WHERE B > 2 GROUP BY ID" );
+    other.parse( rowMeta );
+    assertThat( serviceCache.getCachedResult( dataServiceMeta, other, executor.getParameters(), 0, 0,
+      genTrans.getLogChannel() ), nullValue() );
+    assertThat( key, not( equalTo( CachedService.CacheKey.create( executor ) ) ) );
+  }
+
+  @Test
+  public void testEmptyResultCache() throws Exception {
+    serviceCache.setCacheResults( true );
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT ID, SUM(A) FROM MOCK_SERVICE WHERE B > 1 GROUP BY ID" );
+    when( genTrans.getTransMeta().getStepFields( executor.getResultStepName() ) ).thenReturn( rowMeta );
+    @SuppressWarnings( "unchecked" )
+    Observer<RowMetaAndData> consumer = mock( Observer.class );
+
+    serviceCache.recordResult( executor, consumer ).onComplete();
+
+    // The row meta of the result is kept even without rows, so a hit needs no generated transformation
+    ArgumentCaptor<CachedService> result = ArgumentCaptor.forClass( CachedService.class );
+    CachedService.CacheKey key = CachedService.CacheKey.forResult( dataServiceMeta, executor.getSql(),
+      executor.getParameters(), 0, 0 );
+    verify( cache ).put( eq( key ), result.capture() );
+    when( cache.get( key ) ).thenReturn( result.getValue() );
+
+    ServiceCache.Result cached = serviceCache.getCachedResult( dataServiceMeta, executor.getSql(),
+      executor.getParameters(), 0, 0, genTrans.getLogChannel() );
+    assertThat( cached.getRows().isEmpty(), is( true ) );
+    assertThat( cached.getRowMeta().getFieldNames(), equalTo( rowMeta.getFieldNames() ) );
+  }
+
+  @Test
+  public void testResultCacheSkipsFailedQueries() throws Exception {
+    @SuppressWarnings( "unchecked" )
+    Observer<RowMetaAndData> consumer = mock( Observer.class );
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT ID FROM MOCK_SERVICE" );
+
+    // Disabled by default
+    assertThat( serviceCache.recordResult( executor, consumer ), sameInstance( consumer ) );
+    assertThat( serviceCache.getCachedResult( dataServiceMeta, executor.getSql(), executor.getParameters(), 0, 0,
+      genTrans.getLogChannel() ), nullValue() );
+
+    serviceCache.setCacheResults( true );
+    when( genTrans.getErrors() ).thenReturn( 1 );
+    Observer<RowMetaAndData> recorder = serviceCache.recordResult( executor, consumer );
+    recorder.onNext( new RowMetaAndData( rowMeta, "a", 1L, 2L ) );
+    recorder.onComplete();
+
+    verify( consumer ).onComplete();
+    verify( cache, never() ).put( any( CachedService.CacheKey.class ), any( CachedService.class ) );
+  }
+
   private DataServiceExecutor dataServiceExecutor( String query ) throws KettleException {
     return new DataServiceExecutor.Builder( new SQL( query ), dataServiceMeta, context )
       .sqlTransGenerator( sqlTransGenerator )
@@ -51,6 +51,8 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -82,9 +84,9 @@ public class ServiceObserverTest {
     RowAdapter rowAdapter = rowAdapterCaptor.getValue();
     StepAdapter stepAdapter = stepAdapterCaptor.getValue();
     Object[] clonedRow = new Object[0];
-    when( rowMeta.cloneRow( row ) ).thenReturn( clonedRow );
+    when( rowMeta.cloneRow( same( row ), any( Object[].class ) ) ).thenReturn( clonedRow );
     rowAdapter.rowWrittenEvent( rowMeta, row );
-    verify( rowMeta ).cloneRow( row );
+    verify( rowMeta ).cloneRow( same( row ), any( Object[].class ) );
     stepAdapter.stepFinished( null, null, stepInterface );
 
     CachedService cachedService = observer.get();
@@ -128,7 +130,7 @@ public class ServiceObserverTest {
   @Test
   public void cloneErrorIsPropogated()
     throws KettleValueException, ExecutionException, InterruptedException, KettleStepException {
-    when( rowMeta.cloneRow( row ) ).thenThrow( exception );
+    when( rowMeta.cloneRow( same( row ), any( Object[].class ) ) ).thenThrow( exception );
     observer.run();
     verify( stepInterface ).addRowListener( rowAdapterCaptor.capture() );
     RowAdapter rowAdapter = rowAdapterCaptor.getValue();
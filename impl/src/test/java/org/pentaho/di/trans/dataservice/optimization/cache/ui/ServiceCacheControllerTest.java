@@ -65,6 +65,7 @@ public class ServiceCacheControllerTest {
   @Mock BindingFactory bindingFactory;
   @Mock XulCheckbox checkbox;
   @Mock XulTextbox ttl;
+  @Mock XulCheckbox results;
   @Mock XulTab serviceCacheTab;
   @Mock XulRadio regularTypeRadio;
   @Mock XulRadio streamingTypeRadio;
@@ -81,6 +82,7 @@ public class ServiceCacheControllerTest {
 
     when( document.getElementById( "service-cache-checkbox" ) ).thenReturn( checkbox );
     when( document.getElementById( "service-cache-ttl" ) ).thenReturn( ttl );
+    when( document.getElementById( "service-cache-results" ) ).thenReturn( results );
     when( document.getElementById( "service-cache-tab" ) ).thenReturn( serviceCacheTab );
     when( document.getElementById( "regular-type-radio" ) ).thenReturn( regularTypeRadio );
     when( document.getElementById( "streaming-type-radio" ) ).thenReturn( streamingTypeRadio );
@@ -97,6 +99,8 @@ public class ServiceCacheControllerTest {
     verify( ttl ).setValue( "1200" );
     verify( bindingFactory ).createBinding( checkbox, "checked", meta, "enabled" );
     verify( bindingFactory ).createBinding( ttl, "value", serviceCache, "timeToLive" );
+    verify( results ).setChecked( true );
+    verify( bindingFactory ).createBinding( results, "checked", serviceCache, "cacheResults" );
     verify( serviceCacheTab ).setVisible( true );
     verify( bindingFactory ).createBinding( streamingTypeRadio, "!selected", serviceCacheTab,
       "visible" );
@@ -155,6 +159,7 @@ public class ServiceCacheControllerTest {
 
     meta.setEnabled( true );
     when( serviceCache.getConfiguredTimeToLive() ).thenReturn( "1200" );
+    when( serviceCache.isCacheResults() ).thenReturn( true );
   }
 
   @Test
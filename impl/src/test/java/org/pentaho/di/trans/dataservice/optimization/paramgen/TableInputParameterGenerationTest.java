@@ -25,6 +25,7 @@ package org.pentaho.di.trans.dataservice.optimization.paramgen;
 import org.pentaho.di.trans.dataservice.optimization.OptimizationImpactInfo;
 import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationException;
 import org.pentaho.di.trans.dataservice.optimization.ValueMetaResolver;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -257,6 +258,29 @@ public class TableInputParameterGenerationTest {
     }
   }
 
+  @Test
+  public void testLargeInListIsChunked() throws Exception {
+    List<String> values = new LinkedList<String>();
+    for ( int i = 0; i < 2500; i++ ) {
+      values.add( "v" + i );
+    }
+    // Duplicates are only bound once
+    values.add( "v0" );
+    ValueMetaAndData rightExact = new ValueMetaAndData( "mock_value", StringUtils.join( values, ';' ) );
+    Condition condition = new Condition( "field_name", Condition.FUNC_IN_LIST, null, rightExact );
+    RowMeta paramsMeta = new RowMeta();
+    List<Object> params = new LinkedList<Object>();
+
+    String sql = service.convertAtomicCondition( condition, paramsMeta, params );
+
+    String chunk = "(" + StringUtils.repeat( "?", ",", TableInputParameterGeneration.IN_LIST_CHUNK_SIZE ) + ")";
+    assertThat( sql, equalTo( "( field_name  IN  " + chunk + " OR field_name  IN  " + chunk
+      + " OR field_name  IN  (" + StringUtils.repeat( "?", ",", 500 ) + ") )" ) );
+    assertThat( params.size(), is( 2500 ) );
+    assertThat( paramsMeta.size(), is( 2500 ) );
+    assertThat( params.get( 2499 ), equalTo( (Object) "v2499" ) );
+  }
+
   @SuppressWarnings( "unchecked" )
   protected void testInListCondition( String valueData, String[] inListExpectedValues, String expectedSql )
     throws KettleValueException, PushDownOptimizationException {
@@ -72,6 +72,7 @@ import static org.hamcrest.Matchers.hasProperty;
 import static org.hamcrest.Matchers.in;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
@@ -82,6 +83,7 @@ import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -351,6 +353,21 @@ public class DataServiceMetaStoreUtilTest extends BaseTest {
     assertThat( metaStoreUtil.getDataServiceNames( metaStore ), contains( otherName ) );
   }
 
+  @Test public void testResolutionCache() throws Exception {
+    metaStoreUtil.save( dataService );
+    metaStoreUtil.sync( transMeta, exceptionHandler );
+
+    DataServiceMeta resolved = metaStoreUtil.getDataService( DATA_SERVICE_NAME, repository, metaStore );
+    assertThat( resolved, validDataService() );
+    assertThat( metaStoreUtil.getDataService( DATA_SERVICE_NAME, repository, metaStore ), sameInstance( resolved ) );
+    verify( repository, times( 1 ) ).loadTransformation( any( ObjectId.class ), isNull( String.class ) );
+
+    // Saving a data service drops its resolution
+    metaStoreUtil.save( dataService );
+    assertThat( metaStoreUtil.getDataService( DATA_SERVICE_NAME, repository, metaStore ),
+      allOf( validDataService(), not( sameInstance( resolved ) ) ) );
+  }
+
   @Test public void testInaccessibleTransMeta() throws Exception {
     metaStoreUtil.save( dataService );
     metaStoreUtil.sync( transMeta, exceptionHandler );
@@ -0,0 +1,147 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.serialization;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.pentaho.di.repository.ObjectId;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.repository.RepositoryObject;
+import org.pentaho.di.repository.RepositoryObjectType;
+import org.pentaho.di.repository.StringObjectId;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.DataServiceMeta;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+@RunWith( MockitoJUnitRunner.class )
+public class ServiceResolutionCacheTest {
+  private static final String SERVICE_NAME = "service";
+
+  @Mock TransMeta transMeta;
+  @Mock Repository repository;
+  @Mock RepositoryObject transInfo;
+
+  private ServiceResolutionCache resolutionCache;
+  private DataServiceMeta dataServiceMeta;
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    resolutionCache = new ServiceResolutionCache( 10 );
+    dataServiceMeta = new DataServiceMeta( transMeta );
+    dataServiceMeta.setName( SERVICE_NAME );
+    when( transMeta.getCacheVersion() ).thenReturn( 42 );
+
+    file = File.createTempFile( "service", ".ktr" );
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    file.delete();
+  }
+
+  @Test
+  public void testFileRevision() throws Exception {
+    ServiceTrans.Reference reference = new ServiceTrans.Reference( ServiceTrans.StorageMethod.FILE, file.getPath() );
+    List<ServiceTrans.Reference> references = ImmutableList.of( reference );
+    file.setLastModified( 10000L );
+
+    resolutionCache.put( SERVICE_NAME, null, references, reference, dataServiceMeta );
+
+    assertThat( resolutionCache.get( SERVICE_NAME, null, references ), sameInstance( dataServiceMeta ) );
+    assertThat( dataServiceMeta.getServiceTransVersion(), is( 42 ) );
+    assertThat( resolutionCache.get( "other", null, references ), nullValue() );
+
+    // Published references changed
+    ServiceTrans.Reference moved = new ServiceTrans.Reference( ServiceTrans.StorageMethod.FILE, "moved.ktr" );
+    assertThat( resolutionCache.get( SERVICE_NAME, null, ImmutableList.of( moved ) ), nullValue() );
+
+    resolutionCache.put( SERVICE_NAME, null, references, reference, dataServiceMeta );
+    file.setLastModified( 20000L );
+    assertThat( resolutionCache.get( SERVICE_NAME, null, references ), nullValue() );
+    assertThat( resolutionCache.size(), is( 0L ) );
+  }
+
+  @Test
+  public void testRepositoryRevision() throws Exception {
+    ObjectId objectId = new StringObjectId( "transId" );
+    when( transMeta.getObjectId() ).thenReturn( objectId );
+    when( repository.getObjectInformation( objectId, RepositoryObjectType.TRANSFORMATION ) ).thenReturn( transInfo );
+    when( transInfo.getModifiedDate() ).thenReturn( new Date( 1000L ) );
+
+    ServiceTrans.Reference reference = new ServiceTrans.Reference( ServiceTrans.StorageMethod.REPO_ID, "transId" );
+    List<ServiceTrans.Reference> references = ImmutableList.of( reference );
+
+    resolutionCache.put( SERVICE_NAME, repository, references, reference, dataServiceMeta );
+    assertThat( resolutionCache.get( SERVICE_NAME, repository, references ), sameInstance( dataServiceMeta ) );
+    assertThat( resolutionCache.get( SERVICE_NAME, null, references ), nullValue() );
+
+    resolutionCache.put( SERVICE_NAME, repository, references, reference, dataServiceMeta );
+    when( transInfo.getModifiedDate() ).thenReturn( new Date( 2000L ) );
+    assertThat( resolutionCache.get( SERVICE_NAME, repository, references ), nullValue() );
+
+    resolutionCache.put( SERVICE_NAME, repository, references, reference, dataServiceMeta );
+    when( transInfo.isDeleted() ).thenReturn( true );
+    assertThat( resolutionCache.get( SERVICE_NAME, repository, references ), nullValue() );
+  }
+
+  @Test
+  public void testUnknownRevision() throws Exception {
+    ServiceTrans.Reference reference = new ServiceTrans.Reference( ServiceTrans.StorageMethod.REPO_ID, "transId" );
+
+    // No object id to check the revision with
+    resolutionCache.put( SERVICE_NAME, repository, ImmutableList.of( reference ), reference, dataServiceMeta );
+
+    assertThat( resolutionCache.size(), is( 0L ) );
+    assertThat( dataServiceMeta.getServiceTransVersion(), nullValue() );
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    ServiceTrans.Reference reference = new ServiceTrans.Reference( ServiceTrans.StorageMethod.FILE, file.getPath() );
+    List<ServiceTrans.Reference> references = ImmutableList.of( reference );
+
+    resolutionCache.put( SERVICE_NAME, null, references, reference, dataServiceMeta );
+    resolutionCache.invalidate( SERVICE_NAME );
+    assertThat( resolutionCache.get( SERVICE_NAME, null, references ), nullValue() );
+
+    resolutionCache.put( SERVICE_NAME, null, references, reference, dataServiceMeta );
+    resolutionCache.invalidateAll();
+    assertThat( resolutionCache.size(), is( 0L ) );
+  }
+}
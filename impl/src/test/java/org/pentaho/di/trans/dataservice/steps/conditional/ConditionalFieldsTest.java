@@ -0,0 +1,123 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.conditional;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.dataservice.SqlTransGenerator;
+import org.pentaho.di.trans.dataservice.testing.DataServiceSteps;
+import org.pentaho.di.trans.step.RowAdapter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ConditionalFieldsTest {
+
+  private RowMetaInterface serviceRowMeta;
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    KettleClientEnvironment.init();
+    PluginRegistry.addPluginType( StepPluginType.getInstance() );
+    PluginRegistry.init();
+    DataServiceSteps.register();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    serviceRowMeta = new RowMeta();
+    serviceRowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    serviceRowMeta.addValueMeta( new ValueMetaInteger( "amount" ) );
+  }
+
+  @Test
+  public void testFieldsAndConstants() throws Exception {
+    List<Object[]> rows = Lists.newArrayList();
+    rows.add( new Object[] { "EU", 3L } );
+    rows.add( new Object[] { "US", 10L } );
+    rows.add( new Object[] { null, null } );
+
+    List<String> results = run( "SELECT region, IIF( amount > 5, 'high', 'low' ) AS band, "
+      + "IIF( region = 'EU', amount, 0 ) AS eu, IIF( amount IS NULL, region, 'known' ) AS known FROM service",
+      rows );
+
+    assertThat( results, equalTo( Arrays.asList(
+      "[EU, low, 3, known]",
+      "[US, high, 0, known]",
+      "[null, low, 0, null]" ) ) );
+  }
+
+  @Test
+  public void testOrderByIif() throws Exception {
+    List<Object[]> rows = Lists.newArrayList();
+    for ( long i = 0; i < 6; i++ ) {
+      rows.add( new Object[] { "r" + i, i } );
+    }
+
+    List<String> results = run( "SELECT region FROM service ORDER BY IIF( amount > 2, 0, 1 ), region DESC", rows );
+
+    assertThat( results, equalTo( Arrays.asList( "[r5]", "[r4]", "[r3]", "[r2]", "[r1]", "[r0]" ) ) );
+  }
+
+  private List<String> run( String query, List<Object[]> rows ) throws Exception {
+    SQL sql = new SQL( query );
+    sql.parse( serviceRowMeta );
+    SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+
+    Trans trans = new Trans( generator.generateTransMeta() );
+    trans.prepareExecution( null );
+    RowProducer rowProducer = trans.addRowProducer( generator.getInjectorStepName(), 0 );
+    final List<String> results = Collections.synchronizedList( Lists.<String>newArrayList() );
+    trans.findRunThread( generator.getResultStepName() ).addRowListener( new RowAdapter() {
+      @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) {
+        results.add( Arrays.toString( Arrays.copyOf( row, rowMeta.size() ) ) );
+      }
+    } );
+    trans.startThreads();
+    for ( Object[] row : rows ) {
+      rowProducer.putRow( serviceRowMeta, row.clone() );
+    }
+    rowProducer.finished();
+    trans.waitUntilFinished();
+    assertThat( trans.getErrors(), is( 0 ) );
+    return results;
+  }
+}
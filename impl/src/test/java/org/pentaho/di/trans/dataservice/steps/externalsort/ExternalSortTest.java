@@ -0,0 +1,132 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.externalsort;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.dataservice.SqlTransGenerator;
+import org.pentaho.di.trans.dataservice.testing.DataServiceSteps;
+import org.pentaho.di.trans.step.RowAdapter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Runs ORDER BY queries with and without a memory limit small enough to spill more runs than one merge takes.
+ */
+public class ExternalSortTest {
+
+  private RowMetaInterface serviceRowMeta;
+  private long spilledRuns;
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    KettleClientEnvironment.init();
+    PluginRegistry.addPluginType( StepPluginType.getInstance() );
+    PluginRegistry.init();
+    DataServiceSteps.register();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    serviceRowMeta = new RowMeta();
+    serviceRowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    serviceRowMeta.addValueMeta( new ValueMetaInteger( "amount" ) );
+    serviceRowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+  }
+
+  @Test
+  public void testSpilledSortGivesSameOrder() throws Exception {
+    String[] queries = {
+      "SELECT region, amount, id FROM service ORDER BY region, amount DESC",
+      "SELECT region, id FROM service ORDER BY amount",
+      "SELECT region, amount, id FROM service ORDER BY region DESC"
+    };
+    for ( String query : queries ) {
+      List<String> inMemory = run( query, 0 );
+      assertThat( query, spilledRuns, is( 0L ) );
+      assertThat( query, run( query, 1 ), equalTo( inMemory ) );
+      assertThat( query, spilledRuns, greaterThan( (long) ExternalSort.MAX_MERGE_RUNS ) );
+    }
+  }
+
+  @Test
+  public void testRunSize() throws Exception {
+    assertThat( ExternalSort.getRunSize( 0, serviceRowMeta ), is( Integer.MAX_VALUE ) );
+    assertThat( ExternalSort.getRunSize( 1, serviceRowMeta ), is( ExternalSort.MIN_RUN_SIZE ) );
+
+    long rowBytes = ExternalSort.estimateRowBytes( serviceRowMeta );
+    assertThat( ExternalSort.getRunSize( 1000 * rowBytes, serviceRowMeta ), is( 1000 ) );
+
+    serviceRowMeta.getValueMeta( 0 ).setLength( 100 );
+    assertThat( ExternalSort.estimateRowBytes( serviceRowMeta ), greaterThan( rowBytes ) );
+  }
+
+  private List<String> run( String query, long memoryLimit ) throws Exception {
+    SQL sql = new SQL( query );
+    sql.parse( serviceRowMeta );
+    SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+    generator.setQueryMemoryLimit( memoryLimit );
+
+    Trans trans = new Trans( generator.generateTransMeta() );
+    trans.prepareExecution( null );
+    RowProducer rowProducer = trans.addRowProducer( generator.getInjectorStepName(), 0 );
+    final List<String> results = Collections.synchronizedList( Lists.<String>newArrayList() );
+    trans.findRunThread( generator.getResultStepName() ).addRowListener( new RowAdapter() {
+      @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) {
+        results.add( Arrays.toString( Arrays.copyOf( row, rowMeta.size() ) ) );
+      }
+    } );
+    trans.startThreads();
+    for ( int i = 0; i < 2000; i++ ) {
+      Object[] row = { i % 13 == 0 ? null : "r" + i % 37, i % 11 == 0 ? null : (long) ( i % 101 ), (long) i };
+      rowProducer.putRow( serviceRowMeta, row );
+    }
+    rowProducer.finished();
+    trans.waitUntilFinished();
+    assertThat( trans.getErrors(), is( 0 ) );
+
+    spilledRuns = ( (ExternalSort) trans.findRunThread( "Sort rows" ) ).getSpilledRuns();
+    // Not sorted again, equal rows have to keep their input order
+    return results;
+  }
+}
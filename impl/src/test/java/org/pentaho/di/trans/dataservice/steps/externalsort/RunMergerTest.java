@@ -0,0 +1,109 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.externalsort;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleFileException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.trans.dataservice.steps.spill.SpillFile;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class RunMergerTest {
+
+  private RowMetaInterface rowMeta;
+  private RowOrder order;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "key" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "run" ) );
+    order = new RowOrder( rowMeta, new int[] { 0 } );
+  }
+
+  @Test
+  public void testMergesInOrderAndKeepsEqualRowsInRunOrder() throws Exception {
+    List<RunMerger.Run> runs = Lists.newArrayList(
+      RunMerger.of( rows( "a", 1L, 3L, 5L ) ),
+      RunMerger.of( rows( "b", 1L, 2L, 5L, 6L ) ),
+      RunMerger.of( rows( "c" ) ),
+      RunMerger.of( rows( "d", 0L, 5L ) ) );
+    RunMerger merger = new RunMerger( order, runs );
+
+    List<String> merged = Lists.newArrayList();
+    for ( Object[] row = merger.next(); row != null; row = merger.next() ) {
+      merged.add( row[ 0 ] + row[ 1 ].toString() );
+    }
+    merger.close();
+
+    assertThat( merged, equalTo( (List<String>) ImmutableList.of(
+      "0d", "1a", "1b", "2b", "3a", "5a", "5b", "5d", "6b" ) ) );
+    assertThat( merger.next(), nullValue() );
+  }
+
+  @Test
+  public void testSpilledRunIsDeletedOnClose() throws Exception {
+    SpillFile file = SpillFile.create( "dataservice-sort-" );
+    for ( Object[] row : rows( "a", 1L, 4L ) ) {
+      file.write( rowMeta, row );
+    }
+    file.close();
+
+    RunMerger merger = new RunMerger( order, Lists.newArrayList(
+      RunMerger.of( file, rowMeta ), RunMerger.of( rows( "b", 2L ) ) ) );
+    assertThat( Arrays.copyOf( merger.next(), 2 ), equalTo( new Object[] { 1L, "a" } ) );
+    assertThat( Arrays.copyOf( merger.next(), 2 ), equalTo( new Object[] { 2L, "b" } ) );
+    assertThat( Arrays.copyOf( merger.next(), 2 ), equalTo( new Object[] { 4L, "a" } ) );
+    assertThat( merger.next(), nullValue() );
+    merger.close();
+
+    try {
+      file.open( rowMeta );
+      fail( "Spilled run should be deleted" );
+    } catch ( KettleFileException expected ) {
+      // Gone with the merge
+    }
+  }
+
+  private static List<Object[]> rows( String run, Long... keys ) {
+    List<Object[]> rows = Lists.newArrayList();
+    for ( Long key : keys ) {
+      rows.add( new Object[] { key, run } );
+    }
+    return rows;
+  }
+}
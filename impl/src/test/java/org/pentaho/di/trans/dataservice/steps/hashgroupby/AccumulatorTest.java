@@ -0,0 +1,123 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.hashgroupby;
+
+import org.junit.Test;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBigNumber;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.math.BigDecimal;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta.TYPE_AVERAGE;
+import static org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta.TYPE_COUNT_ALL;
+import static org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta.TYPE_COUNT_ANY;
+import static org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta.TYPE_COUNT_DISTINCT;
+import static org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta.TYPE_MAX;
+import static org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta.TYPE_MIN;
+import static org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta.TYPE_SUM;
+
+public class AccumulatorTest {
+
+  private static final ValueMetaInterface INTEGER = new ValueMetaInteger( "i" );
+  private static final ValueMetaInterface NUMBER = new ValueMetaNumber( "n" );
+  private static final ValueMetaInterface STRING = new ValueMetaString( "s" );
+  private static final ValueMetaInterface BIG_NUMBER = new ValueMetaBigNumber( "b" );
+
+  @Test
+  public void testPrimitiveAccumulators() throws Exception {
+    assertThat( Accumulator.create( TYPE_SUM, INTEGER ), instanceOf( Accumulator.LongSum.class ) );
+    assertThat( Accumulator.create( TYPE_AVERAGE, NUMBER ), instanceOf( Accumulator.DoubleSum.class ) );
+    assertThat( Accumulator.create( TYPE_MIN, INTEGER ), instanceOf( Accumulator.LongExtreme.class ) );
+    assertThat( Accumulator.create( TYPE_MAX, NUMBER ), instanceOf( Accumulator.DoubleExtreme.class ) );
+    assertThat( Accumulator.create( TYPE_MAX, STRING ), instanceOf( Accumulator.ObjectAggregate.class ) );
+    assertThat( Accumulator.create( TYPE_COUNT_ANY, null ), instanceOf( Accumulator.Count.class ) );
+  }
+
+  @Test
+  public void testIntegers() throws Exception {
+    assertThat( results( TYPE_SUM, INTEGER, 3L, null, 4L ), equalTo( new Object[] { 7L, null } ) );
+    assertThat( results( TYPE_AVERAGE, INTEGER, 3L, null, 4L ), equalTo( new Object[] { 3L, null } ) );
+    assertThat( results( TYPE_MIN, INTEGER, 3L, null, -4L ), equalTo( new Object[] { -4L, null } ) );
+    assertThat( results( TYPE_MAX, INTEGER, 3L, null, -4L ), equalTo( new Object[] { 3L, null } ) );
+  }
+
+  @Test
+  public void testNumbers() throws Exception {
+    assertThat( results( TYPE_SUM, NUMBER, 1.5, null, 2.0 ), equalTo( new Object[] { 3.5, null } ) );
+    assertThat( results( TYPE_AVERAGE, NUMBER, 1.5, null, 2.0 ), equalTo( new Object[] { 1.75, null } ) );
+    assertThat( results( TYPE_MIN, NUMBER, 1.5, null, 2.0 ), equalTo( new Object[] { 1.5, null } ) );
+    assertThat( results( TYPE_MAX, NUMBER, 1.5, null, 2.0 ), equalTo( new Object[] { 2.0, null } ) );
+  }
+
+  @Test
+  public void testObjects() throws Exception {
+    assertThat( results( TYPE_MIN, STRING, "b", null, "a" ), equalTo( new Object[] { "a", null } ) );
+    assertThat( results( TYPE_MAX, STRING, "b", null, "a" ), equalTo( new Object[] { "b", null } ) );
+
+    Object[] sum = results( TYPE_SUM, BIG_NUMBER, new BigDecimal( "1.25" ), null, new BigDecimal( "2" ) );
+    assertThat( ( (BigDecimal) sum[0] ).compareTo( new BigDecimal( "3.25" ) ), is( 0 ) );
+    assertThat( sum[1], nullValue() );
+  }
+
+  @Test
+  public void testCounts() throws Exception {
+    assertThat( results( TYPE_COUNT_ALL, STRING, "a", null, "a" ), equalTo( new Object[] { 2L, 0L } ) );
+    assertThat( results( TYPE_COUNT_DISTINCT, STRING, "a", null, "a" ), equalTo( new Object[] { 1L, 0L } ) );
+
+    Accumulator rows = Accumulator.create( TYPE_COUNT_ANY, null );
+    rows.ensureCapacity( 1 );
+    rows.add( 0, null );
+    rows.add( 0, null );
+    assertThat( rows.result( 0 ), equalTo( (Object) 2L ) );
+  }
+
+  @Test
+  public void testEnsureCapacity() throws Exception {
+    Accumulator accumulator = Accumulator.create( TYPE_SUM, INTEGER );
+    accumulator.ensureCapacity( 100 );
+    accumulator.add( 99, 1L );
+    assertThat( accumulator.result( 99 ), equalTo( (Object) 1L ) );
+  }
+
+  /**
+   * Adds the values to group 0 and a null to group 1
+   */
+  private static Object[] results( int type, ValueMetaInterface subject, Object... values ) throws Exception {
+    Accumulator accumulator = Accumulator.create( type, subject );
+    accumulator.ensureCapacity( 2 );
+    for ( Object value : values ) {
+      accumulator.add( 0, value );
+    }
+    accumulator.add( 1, null );
+    return new Object[] { accumulator.result( 0 ), accumulator.result( 1 ) };
+  }
+}
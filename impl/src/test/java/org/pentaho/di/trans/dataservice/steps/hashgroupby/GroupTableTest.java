@@ -0,0 +1,78 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.hashgroupby;
+
+import org.junit.Test;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class GroupTableTest {
+
+  @Test
+  public void testNumbersGroupsInOrderSeen() throws Exception {
+    ValueMetaInterface[] keyMeta = { new ValueMetaString( "region" ), new ValueMetaInteger( "year" ) };
+    GroupTable table = new GroupTable( keyMeta, new int[] { 2, 0 } );
+
+    assertThat( table.groupOf( new Object[] { 2018L, 1L, "a" } ), is( 0 ) );
+    assertThat( table.groupOf( new Object[] { 2019L, 2L, "a" } ), is( 1 ) );
+    assertThat( table.groupOf( new Object[] { 2018L, 3L, "b" } ), is( 2 ) );
+    assertThat( table.groupOf( new Object[] { 2018L, 4L, "a" } ), is( 0 ) );
+    assertThat( table.groupOf( new Object[] { null, 5L, "a" } ), is( 3 ) );
+    assertThat( table.groupOf( new Object[] { null, 6L, "a" } ), is( 3 ) );
+
+    assertThat( table.size(), is( 4 ) );
+    assertThat( table.getKey( 1 ), equalTo( new Object[] { "a", 2019L } ) );
+    assertThat( table.getKey( 3 ), equalTo( new Object[] { "a", null } ) );
+  }
+
+  @Test
+  public void testGrows() throws Exception {
+    GroupTable table = new GroupTable( new ValueMetaInterface[] { new ValueMetaInteger( "id" ) }, new int[] { 0 } );
+
+    // Multiples of the table size all start probing at the same slot
+    for ( long i = 0; i < 1000; i++ ) {
+      assertThat( table.groupOf( new Object[] { i * 1024 } ), is( (int) i ) );
+    }
+    for ( long i = 999; i >= 0; i-- ) {
+      assertThat( table.groupOf( new Object[] { i * 1024 } ), is( (int) i ) );
+    }
+    assertThat( table.size(), is( 1000 ) );
+    assertThat( table.getKey( 500 ), equalTo( new Object[] { 500L * 1024 } ) );
+  }
+
+  @Test
+  public void testNoGroupFields() throws Exception {
+    GroupTable table = new GroupTable( new ValueMetaInterface[ 0 ], new int[ 0 ] );
+
+    assertThat( table.groupOf( new Object[] { "a" } ), is( 0 ) );
+    assertThat( table.groupOf( new Object[] { "b" } ), is( 0 ) );
+    assertThat( table.size(), is( 1 ) );
+    assertThat( table.getKey( 0 ).length, is( 0 ) );
+  }
+}
@@ -0,0 +1,127 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.hashgroupby;
+
+import com.google.common.collect.Sets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.trans.dataservice.steps.spill.SpillFile;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+
+public class SpillPartitionsTest {
+
+  private RowMetaInterface rowMeta;
+  private SpillPartitions partitions;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "amount" ) );
+    partitions = new SpillPartitions( rowMeta, 0 );
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    partitions.delete();
+  }
+
+  @Test
+  public void testRowsAreReadBackFromTheirPartition() throws Exception {
+    partitions.write( new Object[] { "a", 1L }, 7 );
+    partitions.write( new Object[] { null, null, "slack" }, 7 );
+    partitions.write( new Object[] { "a", 2L }, 7 );
+
+    partitions.close();
+    SpillFile file = partitions.next();
+    assertThat( partitions.next(), nullValue() );
+    assertThat( file.getRowCount(), is( 3L ) );
+
+    SpillFile.Reader reader = file.open( rowMeta );
+    try {
+      assertThat( Arrays.copyOf( reader.next(), 2 ), equalTo( new Object[] { "a", 1L } ) );
+      assertThat( Arrays.copyOf( reader.next(), 2 ), equalTo( new Object[] { null, null } ) );
+      assertThat( Arrays.copyOf( reader.next(), 2 ), equalTo( new Object[] { "a", 2L } ) );
+      assertThat( reader.next(), nullValue() );
+    } finally {
+      reader.close();
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testRowsOfDifferentPartitions() throws Exception {
+    for ( int hash = 0; hash < 1000; hash++ ) {
+      partitions.write( new Object[] { "a", (long) hash }, hash );
+    }
+    partitions.close();
+    assertThat( partitions.getRows(), is( 1000L ) );
+    assertThat( partitions.getPartitions(), is( SpillPartitions.PARTITIONS ) );
+
+    long rows = 0;
+    int files = 0;
+    for ( SpillFile file = partitions.next(); file != null; file = partitions.next() ) {
+      rows += file.getRowCount();
+      files++;
+      file.delete();
+    }
+    assertThat( rows, is( 1000L ) );
+    assertThat( files, is( SpillPartitions.PARTITIONS ) );
+  }
+
+  @Test
+  public void testPartitionsSpreadSmallHashes() throws Exception {
+    for ( int level = 0; level < SpillPartitions.MAX_LEVELS; level++ ) {
+      Set<Integer> used = Sets.newHashSet();
+      for ( int hash = 0; hash < 64; hash++ ) {
+        used.add( SpillPartitions.partition( hash, level ) );
+      }
+      assertThat( Arrays.toString( used.toArray() ), used.size(), greaterThan( SpillPartitions.PARTITIONS / 2 ) );
+    }
+  }
+
+  @Test
+  public void testLevelsSplitAPartitionFurther() throws Exception {
+    Set<Integer> used = Sets.newHashSet();
+    for ( int hash = 0; hash < 10000; hash++ ) {
+      if ( SpillPartitions.partition( hash, 0 ) == 3 ) {
+        used.add( SpillPartitions.partition( hash, 1 ) );
+      }
+    }
+    assertThat( used.size(), is( SpillPartitions.PARTITIONS ) );
+  }
+}
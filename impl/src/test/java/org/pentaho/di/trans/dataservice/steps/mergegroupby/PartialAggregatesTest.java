@@ -0,0 +1,114 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.mergegroupby;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class PartialAggregatesTest {
+
+  private RowMetaInterface partialRowMeta;
+  private MergeGroupByMeta meta;
+
+  @Before
+  public void setUp() throws Exception {
+    partialRowMeta = new RowMeta();
+    partialRowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    partialRowMeta.addValueMeta( new ValueMetaInteger( "total" ) );
+    partialRowMeta.addValueMeta( new ValueMetaNumber( "avg sum" ) );
+    partialRowMeta.addValueMeta( new ValueMetaInteger( "avg count" ) );
+    partialRowMeta.addValueMeta( new ValueMetaInteger( "rows" ) );
+    partialRowMeta.addValueMeta( new ValueMetaString( "first" ) );
+    partialRowMeta.addValueMeta( new ValueMetaString( "last" ) );
+
+    meta = new MergeGroupByMeta();
+    meta.allocate( 1, 5 );
+    meta.getGroupField()[0] = "region";
+    aggregate( 0, "total", "total", MergeGroupByMeta.TYPE_SUM );
+    aggregate( 1, "average", "avg sum", MergeGroupByMeta.TYPE_AVERAGE );
+    meta.getCountField()[1] = "avg count";
+    aggregate( 2, "rows", "rows", MergeGroupByMeta.TYPE_COUNT );
+    aggregate( 3, "first", "first", MergeGroupByMeta.TYPE_MIN );
+    aggregate( 4, "last", "last", MergeGroupByMeta.TYPE_MAX );
+  }
+
+  private void aggregate( int i, String name, String subject, int type ) {
+    meta.getAggregateField()[i] = name;
+    meta.getSubjectField()[i] = subject;
+    meta.getAggregateType()[i] = type;
+  }
+
+  @Test
+  public void testMergesPartialAggregates() throws Exception {
+    PartialAggregates aggregates = new PartialAggregates( partialRowMeta, meta );
+    // Two copies saw rows of region a, one of them rows of region b
+    aggregates.merge( new Object[] { "a", 10L, 6.0, 2L, 3L, "m", "p" } );
+    aggregates.merge( new Object[] { "b", 1L, null, 0L, 1L, null, null } );
+    aggregates.merge( new Object[] { "a", 5L, 3.0, 1L, 1L, "k", "n" } );
+    assertThat( aggregates.size(), is( 2 ) );
+
+    List<Object[]> results = aggregates.results( 6 );
+    assertThat( Arrays.copyOf( results.get( 0 ), 6 ), equalTo( new Object[] { "a", 15L, 3.0, 4L, "k", "p" } ) );
+    assertThat( Arrays.copyOf( results.get( 1 ), 6 ), equalTo( new Object[] { "b", 1L, null, 1L, null, null } ) );
+  }
+
+  @Test
+  public void testNullGroup() throws Exception {
+    PartialAggregates aggregates = new PartialAggregates( partialRowMeta, meta );
+    aggregates.merge( new Object[] { null, null, null, null, 2L, "x", "x" } );
+    aggregates.merge( new Object[] { null, 4L, null, null, 0L, null, null } );
+
+    List<Object[]> results = aggregates.results( 6 );
+    assertThat( results.size(), is( 1 ) );
+    assertThat( results.get( 0 )[1], equalTo( (Object) 4L ) );
+    assertThat( results.get( 0 )[2], nullValue() );
+    assertThat( results.get( 0 )[3], equalTo( (Object) 2L ) );
+  }
+
+  @Test
+  public void testEmptyResult() throws Exception {
+    assertThat( Arrays.copyOf( PartialAggregates.emptyResult( meta, 6 ), 6 ),
+      equalTo( new Object[] { null, null, null, 0L, null, null } ) );
+  }
+
+  @Test( expected = KettleStepException.class )
+  public void testMissingPartialField() throws Exception {
+    meta.getCountField()[1] = "missing";
+    new PartialAggregates( partialRowMeta, meta );
+  }
+}
@@ -0,0 +1,142 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.queryfilter;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.dataservice.SqlTransGenerator;
+import org.pentaho.di.trans.dataservice.testing.DataServiceSteps;
+import org.pentaho.di.trans.step.RowAdapter;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class QueryFilterTest {
+
+  private RowMetaInterface serviceRowMeta;
+  private List<Object[]> rows;
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    KettleClientEnvironment.init();
+    PluginRegistry.addPluginType( StepPluginType.getInstance() );
+    PluginRegistry.init();
+    DataServiceSteps.register();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    serviceRowMeta = new RowMeta();
+    serviceRowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    serviceRowMeta.addValueMeta( new ValueMetaInteger( "amount" ) );
+    serviceRowMeta.addValueMeta( new ValueMetaDate( "day" ) );
+
+    rows = Lists.newArrayList();
+    Calendar calendar = Calendar.getInstance();
+    for ( int i = 0; i < 12; i++ ) {
+      calendar.clear();
+      calendar.set( 2018, i % 3, 10 + i );
+      rows.add( new Object[] { i % 2 == 0 ? "EU" : "US", (long) i, calendar.getTime() } );
+    }
+    rows.add( new Object[] { null, null, null } );
+  }
+
+  @Test
+  public void testFilterAndProjection() throws Exception {
+    String query = "SELECT amount AS a, region FROM service WHERE region = 'EU' AND amount > 3";
+
+    List<String> results = run( query, true );
+
+    assertThat( generator( query, true ).generateTransMeta().findStep( SqlTransGenerator.WHERE_FILTER_STEP )
+      .getStepMetaInterface(), instanceOf( QueryFilterMeta.class ) );
+    assertThat( results, equalTo( Arrays.asList( "[4, EU]", "[6, EU]", "[8, EU]", "[10, EU]" ) ) );
+    assertThat( results, equalTo( run( query, false ) ) );
+  }
+
+  @Test
+  public void testFormattedFields() throws Exception {
+    String query = "SELECT amount FROM service WHERE DATE_TO_STR(day, 'MM') = '02' OR amount IS NULL";
+
+    List<String> results = run( query, true );
+
+    assertThat( results, equalTo( Arrays.asList( "[1]", "[4]", "[7]", "[10]", "[null]" ) ) );
+    assertThat( results, equalTo( run( query, false ) ) );
+  }
+
+  @Test
+  public void testFilterWithoutProjection() throws Exception {
+    String query = "SELECT region, COUNT(*) AS n FROM service WHERE amount >= 0 GROUP BY region ORDER BY region";
+
+    assertThat( run( query, true ), equalTo( run( query, false ) ) );
+  }
+
+  private List<String> run( String query, boolean rewrite ) throws Exception {
+    SqlTransGenerator generator = generator( query, rewrite );
+    Trans trans = new Trans( generator.generateTransMeta() );
+    trans.prepareExecution( null );
+    RowProducer rowProducer = trans.addRowProducer( generator.getInjectorStepName(), 0 );
+    final List<String> results = Collections.synchronizedList( Lists.<String>newArrayList() );
+    trans.findRunThread( generator.getResultStepName() ).addRowListener( new RowAdapter() {
+      @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) {
+        results.add( Arrays.toString( Arrays.copyOf( row, rowMeta.size() ) ) );
+      }
+    } );
+    trans.startThreads();
+    for ( Object[] row : rows ) {
+      rowProducer.putRow( serviceRowMeta, row.clone() );
+    }
+    rowProducer.finished();
+    trans.waitUntilFinished();
+    assertThat( trans.getErrors(), is( 0 ) );
+    return results;
+  }
+
+  private SqlTransGenerator generator( String query, boolean rewrite ) throws Exception {
+    SQL sql = new SQL( query );
+    sql.parse( serviceRowMeta );
+    SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+    generator.setRewritePlan( rewrite );
+    return generator;
+  }
+}
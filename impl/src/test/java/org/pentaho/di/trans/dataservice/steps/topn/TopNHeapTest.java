@@ -0,0 +1,116 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.steps.topn;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class TopNHeapTest {
+
+  private RowMetaInterface rowMeta;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "name" ) );
+  }
+
+  @Test
+  public void testKeepsFirstRowsInOrder() throws Exception {
+    List<Long> values = Lists.newArrayList();
+    Random random = new Random( 42 );
+    for ( int i = 0; i < 5000; i++ ) {
+      values.add( (long) random.nextInt( 1000 ) );
+    }
+
+    TopNHeap heap = new TopNHeap( rowMeta, new int[] { 0 }, 25 );
+    for ( Long value : values ) {
+      heap.offer( new Object[] { value, null } );
+    }
+    assertThat( heap.size(), is( 25 ) );
+
+    Collections.sort( values );
+    List<Object[]> rows = heap.drain();
+    assertThat( rows.size(), is( 25 ) );
+    for ( int i = 0; i < rows.size(); i++ ) {
+      assertThat( rows.get( i )[0], equalTo( (Object) values.get( i ) ) );
+    }
+    assertThat( heap.size(), is( 0 ) );
+  }
+
+  @Test
+  public void testDescendingAndStable() throws Exception {
+    rowMeta.getValueMeta( 0 ).setSortedDescending( true );
+
+    TopNHeap heap = new TopNHeap( rowMeta, new int[] { 0 }, 3 );
+    heap.offer( new Object[] { 1L, "a" } );
+    heap.offer( new Object[] { 2L, "b" } );
+    heap.offer( new Object[] { 2L, "c" } );
+    heap.offer( new Object[] { 3L, "d" } );
+    assertThat( heap.offer( new Object[] { 2L, "e" } ), is( false ) );
+    assertThat( heap.offer( new Object[] { null, "f" } ), is( false ) );
+
+    List<Object[]> rows = heap.drain();
+    assertThat( names( rows ), equalTo( Lists.newArrayList( "d", "b", "c" ) ) );
+  }
+
+  @Test
+  public void testSmallInput() throws Exception {
+    TopNHeap heap = new TopNHeap( rowMeta, new int[] { 1, 0 }, 10 );
+    heap.offer( new Object[] { 2L, "x" } );
+    heap.offer( new Object[] { 1L, "x" } );
+    heap.offer( new Object[] { 5L, "a" } );
+
+    assertThat( names( heap.drain() ), equalTo( Lists.newArrayList( "a", "x", "x" ) ) );
+  }
+
+  @Test
+  public void testZeroCapacity() throws Exception {
+    TopNHeap heap = new TopNHeap( rowMeta, new int[] { 0 }, 0 );
+    assertThat( heap.offer( new Object[] { 1L, "a" } ), is( false ) );
+    assertThat( heap.drain().isEmpty(), is( true ) );
+  }
+
+  private static List<Object> names( List<Object[]> rows ) {
+    List<Object> names = Lists.newArrayList();
+    for ( Object[] row : rows ) {
+      names.add( row[1] );
+    }
+    return names;
+  }
+}
@@ -0,0 +1,64 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2018 by Hitachi Vantara : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.testing;
+
+import org.pentaho.di.core.annotations.Step;
+import org.pentaho.di.core.exception.KettlePluginException;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.trans.dataservice.steps.conditional.ConditionalFieldsMeta;
+import org.pentaho.di.trans.dataservice.steps.externalsort.ExternalSortMeta;
+import org.pentaho.di.trans.dataservice.steps.hashgroupby.HashGroupByMeta;
+import org.pentaho.di.trans.dataservice.steps.mergegroupby.MergeGroupByMeta;
+import org.pentaho.di.trans.dataservice.steps.queryfilter.QueryFilterMeta;
+import org.pentaho.di.trans.dataservice.steps.topn.TopNMeta;
+
+import java.util.Collections;
+
+/**
+ * Registers the steps generated transformations use, which are otherwise only registered through blueprint.
+ * Call after {@link PluginRegistry#init()}.
+ */
+public class DataServiceSteps {
+
+  private DataServiceSteps() {
+  }
+
+  public static void register() throws KettlePluginException {
+    register( TopNMeta.class );
+    register( MergeGroupByMeta.class );
+    register( HashGroupByMeta.class );
+    register( ExternalSortMeta.class );
+    register( ConditionalFieldsMeta.class );
+    register( QueryFilterMeta.class );
+  }
+
+  private static void register( Class<?> metaClass ) throws KettlePluginException {
+    Step step = metaClass.getAnnotation( Step.class );
+    if ( PluginRegistry.getInstance().findPluginWithId( StepPluginType.class, step.id() ) == null ) {
+      StepPluginType.getInstance().handlePluginAnnotation( metaClass, step, Collections.<String>emptyList(), true,
+        null );
+    }
+  }
+}